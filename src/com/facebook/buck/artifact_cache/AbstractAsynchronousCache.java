@@ -33,19 +33,27 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import org.immutables.value.Value;
 
 public abstract class AbstractAsynchronousCache implements ArtifactCache {
@@ -62,6 +70,7 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
   private final CacheEventListener eventListener;
 
   private final Optional<Long> maxStoreSize;
+  private final Optional<Long> maxQueuedStoreBytes;
   private final ProjectFilesystem projectFilesystem;
   private final ArtifactCacheMode mode;
 
@@ -73,6 +82,30 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
   private final AtomicInteger consecutiveMultiFetchErrorCount = new AtomicInteger();
   private volatile boolean markAllFetchRequestsAsSkipped = false;
 
+  // Callers of store() wait on this while the queue is over maxQueuedStoreBytes.
+  private final Object storeQueueLock = new Object();
+  private final AtomicLong storeRequestSequence = new AtomicLong();
+
+  @GuardedBy("storeQueueLock")
+  private final PriorityQueue<StoreRequest> pendingStoreRequests = new PriorityQueue<>();
+
+  // Stores that are queued or uploading, by the rule keys they store. A second store of the same
+  // rule keys in that time would upload the same contents again, so it just waits on the first.
+  @GuardedBy("storeQueueLock")
+  private final Map<ImmutableSet<RuleKey>, SettableFuture<Void>> inFlightStores = new HashMap<>();
+
+  @GuardedBy("storeQueueLock")
+  private long queuedStoreBytes = 0;
+
+  @GuardedBy("storeQueueLock")
+  private long drainedStoreBytes = 0;
+
+  @GuardedBy("storeQueueLock")
+  private long storeQueueBusyNanos = 0;
+
+  @GuardedBy("storeQueueLock")
+  private long storeQueueBusySinceNanos = 0;
+
   public AbstractAsynchronousCache(
       String name,
       ArtifactCacheMode mode,
@@ -81,6 +114,7 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
       ListeningExecutorService fetchExecutorService,
       CacheEventListener eventListener,
       Optional<Long> maxStoreSize,
+      Optional<Long> maxQueuedStoreBytes,
       ProjectFilesystem projectFilesystem) {
     this.name = name;
     this.cacheReadMode = cacheReadMode;
@@ -88,6 +122,7 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     this.fetchExecutorService = fetchExecutorService;
     this.eventListener = eventListener;
     this.maxStoreSize = maxStoreSize;
+    this.maxQueuedStoreBytes = maxQueuedStoreBytes;
     this.projectFilesystem = projectFilesystem;
     this.mode = mode;
   }
@@ -364,43 +399,7 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
 
   @Override
   public final ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
-    if (!getCacheReadMode().isWritable()) {
-      return Futures.immediateFuture(null);
-    }
-
-    long artifactSizeBytes = getFileSize(output.getPath());
-    if (artifactExceedsMaximumSize(artifactSizeBytes)) {
-      LOG.info(
-          "Artifact too big so not storing it in the %s cache. " + "file=[%s] buildTarget=[%s]",
-          name, output.getPath(), info.getBuildTarget());
-      return Futures.immediateFuture(null);
-    }
-
-    Path tmp;
-    try {
-      tmp = getPathForArtifact(output);
-    } catch (IOException e) {
-      LOG.error(e, "Failed to store artifact in temp file: " + output.getPath());
-      return Futures.immediateFuture(null);
-    }
-
-    StoreEvents events = eventListener.storeScheduled(info, artifactSizeBytes);
-    return storeExecutorService.submit(
-        () -> {
-          StoreEvents.StoreRequestEvents requestEvents = events.started();
-          try {
-            StoreResult result = storeImpl(info, tmp);
-            requestEvents.finished(result);
-            return null;
-          } catch (IOException e) {
-            String msg =
-                String.format(
-                    "store(%s): %s: %s",
-                    info.getRuleKeys(), e.getClass().getName(), e.getMessage());
-            requestEvents.failed(e, msg);
-            throw new RuntimeException(e);
-          }
-        });
+    return store(ImmutableList.of(new Pair<>(info, output)));
   }
 
   @Override
@@ -410,14 +409,13 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
       return Futures.immediateFuture(null);
     }
 
-    ImmutableList.Builder<Pair<ArtifactInfo, Path>> matchedArtifactsBuilder =
-        ImmutableList.builderWithExpectedSize(artifacts.size());
-    ImmutableList.Builder<Long> artifactSizesInBytesBuilder =
-        ImmutableList.builderWithExpectedSize(artifacts.size());
-
-    for (int i = 0; i < artifacts.size(); i++) {
-      BorrowablePath output = artifacts.get(i).getSecond();
-      ArtifactInfo info = artifacts.get(i).getFirst();
+    List<ListenableFuture<Void>> coalescedStores = new ArrayList<>();
+    List<Pair<ArtifactInfo, BorrowablePath>> acceptedArtifacts = new ArrayList<>();
+    List<Long> acceptedSizesInBytes = new ArrayList<>();
+    long requestSizeBytes = 0;
+    for (Pair<ArtifactInfo, BorrowablePath> artifact : artifacts) {
+      ArtifactInfo info = artifact.getFirst();
+      BorrowablePath output = artifact.getSecond();
       long artifactSizeBytes = getFileSize(output.getPath());
       if (artifactExceedsMaximumSize(artifactSizeBytes)) {
         LOG.info(
@@ -426,59 +424,237 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
         continue;
       }
 
+      Optional<ListenableFuture<Void>> inFlightStore = getInFlightStore(info.getRuleKeys());
+      if (inFlightStore.isPresent()) {
+        LOG.debug(
+            "Coalescing store of %s into the one already queued for the %s cache.",
+            info.getRuleKeys(), name);
+        coalescedStores.add(inFlightStore.get());
+        continue;
+      }
+
+      acceptedArtifacts.add(artifact);
+      acceptedSizesInBytes.add(artifactSizeBytes);
+      requestSizeBytes += artifactSizeBytes;
+    }
+
+    if (acceptedArtifacts.isEmpty()) {
+      return Futures.whenAllSucceed(coalescedStores)
+          .call(() -> null, MoreExecutors.directExecutor());
+    }
+
+    // Wait for room in the queue before copying anything, so that waiting callers don't hold on
+    // to temp files either.
+    reserveStoreQueueBytes(requestSizeBytes);
+
+    ImmutableList.Builder<Pair<ArtifactInfo, Path>> matchedArtifactsBuilder =
+        ImmutableList.builderWithExpectedSize(acceptedArtifacts.size());
+    ImmutableList.Builder<Long> artifactSizesInBytesBuilder =
+        ImmutableList.builderWithExpectedSize(acceptedArtifacts.size());
+    ImmutableList.Builder<StoreEvents> eventsBuilder =
+        ImmutableList.builderWithExpectedSize(acceptedArtifacts.size());
+    for (int i = 0; i < acceptedArtifacts.size(); i++) {
+      ArtifactInfo info = acceptedArtifacts.get(i).getFirst();
+      BorrowablePath output = acceptedArtifacts.get(i).getSecond();
+      long artifactSizeBytes = acceptedSizesInBytes.get(i);
+
       Path tmp;
       try {
         tmp = getPathForArtifact(output);
       } catch (IOException e) {
         LOG.error(e, "Failed to store artifact in temp file: " + output.getPath());
+        releaseStoreQueueBytes(artifactSizeBytes);
         continue;
       }
 
       matchedArtifactsBuilder.add(new Pair<>(info, tmp));
       artifactSizesInBytesBuilder.add(artifactSizeBytes);
+      eventsBuilder.add(eventListener.storeScheduled(info, artifactSizeBytes));
     }
 
     ImmutableList<Pair<ArtifactInfo, Path>> matchedArtifacts = matchedArtifactsBuilder.build();
+    if (!matchedArtifacts.isEmpty()) {
+      StoreRequest request =
+          new StoreRequest(
+              matchedArtifacts, artifactSizesInBytesBuilder.build(), eventsBuilder.build());
+      registerInFlightStore(request);
+      if (coalescedStores.isEmpty()) {
+        enqueueStore(request);
+      } else {
+        // The artifacts of a batch are stored in order, as later ones may only be valid once the
+        // earlier ones are uploaded (see TwoLevelArtifactCacheDecorator). Some of them are
+        // already being stored by other requests, so the rest of the batch waits for those.
+        Futures.addCallback(
+            Futures.whenAllSucceed(coalescedStores)
+                .call(() -> null, MoreExecutors.directExecutor()),
+            new FutureCallback<Void>() {
+              @Override
+              public void onSuccess(@Nullable Void result) {
+                enqueueStore(request);
+              }
+
+              @Override
+              public void onFailure(Throwable t) {
+                failStore(request, t);
+              }
+            },
+            MoreExecutors.directExecutor());
+      }
+      coalescedStores.add(request.future);
+    }
 
-    if (matchedArtifacts.isEmpty()) {
-      return Futures.immediateFuture(null);
+    return Futures.whenAllSucceed(coalescedStores)
+        .call(() -> null, MoreExecutors.directExecutor());
+  }
+
+  // Stores are taken off the queue smallest first, so that a burst of big outputs doesn't hold
+  // back the many small ones queued behind it.
+  private void processStore() {
+    StoreRequest request;
+    synchronized (storeQueueLock) {
+      request = pendingStoreRequests.poll();
+    }
+    if (request == null) {
+      return;
     }
 
-    ImmutableList<Long> artifactSizesInBytes = artifactSizesInBytesBuilder.build();
+    try {
+      for (int i = 0; i < request.artifacts.size(); i++) {
+        ArtifactInfo info = request.artifacts.get(i).getFirst();
+        StoreEvents.StoreRequestEvents requestEvents = request.events.get(i).started();
+        try {
+          StoreResult result = storeImpl(info, request.artifacts.get(i).getSecond());
+          request.releaseNext();
+          requestEvents.finished(result, getStoreQueueStats());
+        } catch (IOException e) {
+          String msg =
+              String.format(
+                  "store(%s): %s: %s",
+                  info.getRuleKeys(), e.getClass().getName(), e.getMessage());
+          request.releaseNext();
+          requestEvents.failed(e, msg, getStoreQueueStats());
+          throw new RuntimeException(e);
+        }
+      }
+      request.future.set(null);
+    } catch (Throwable t) {
+      request.future.setException(t);
+    } finally {
+      // Whatever wasn't attempted leaves the queue along with the failed store.
+      request.releaseRemaining();
+      unregisterInFlightStore(request);
+    }
+  }
 
-    ImmutableList.Builder<StoreEvents> eventsBuilder =
-        ImmutableList.builderWithExpectedSize(artifactSizesInBytes.size());
-    for (int i = 0; i < artifactSizesInBytes.size(); i++) {
-      eventsBuilder.add(
-          eventListener.storeScheduled(
-              matchedArtifacts.get(i).getFirst(), artifactSizesInBytes.get(i)));
+  /** Fails a store that was waiting on another store of part of its batch, which failed. */
+  private void failStore(StoreRequest request, Throwable cause) {
+    try {
+      for (int i = 0; i < request.artifacts.size(); i++) {
+        ArtifactInfo info = request.artifacts.get(i).getFirst();
+        String msg =
+            String.format(
+                "store(%s): an earlier artifact of the same batch failed to store: %s",
+                info.getRuleKeys(), cause.getMessage());
+        request.releaseNext();
+        request
+            .events
+            .get(i)
+            .started()
+            .failed(new IOException(msg, cause), msg, getStoreQueueStats());
+      }
+    } finally {
+      request.future.setException(cause);
+      request.releaseRemaining();
+      unregisterInFlightStore(request);
     }
+  }
 
-    ImmutableList<StoreEvents> events = eventsBuilder.build();
+  private Optional<ListenableFuture<Void>> getInFlightStore(ImmutableSet<RuleKey> ruleKeys) {
+    if (ruleKeys.isEmpty()) {
+      return Optional.empty();
+    }
+    synchronized (storeQueueLock) {
+      return Optional.ofNullable(inFlightStores.get(ruleKeys));
+    }
+  }
 
-    return storeExecutorService.submit(
-        () -> {
-          for (int i = 0; i < matchedArtifacts.size(); i++) {
-            StoreEvents.StoreRequestEvents requestEvents = events.get(i).started();
-            try {
-              StoreResult result =
-                  storeImpl(
-                      matchedArtifacts.get(i).getFirst(), matchedArtifacts.get(i).getSecond());
-              requestEvents.finished(result);
-            } catch (IOException e) {
-              String msg =
-                  String.format(
-                      "store(%s): %s: %s",
-                      matchedArtifacts.get(i).getFirst().getRuleKeys(),
-                      e.getClass().getName(),
-                      e.getMessage());
-              requestEvents.failed(e, msg);
-              throw new RuntimeException(e);
-            }
+  private void registerInFlightStore(StoreRequest request) {
+    synchronized (storeQueueLock) {
+      for (Pair<ArtifactInfo, Path> artifact : request.artifacts) {
+        ImmutableSet<RuleKey> ruleKeys = artifact.getFirst().getRuleKeys();
+        if (!ruleKeys.isEmpty()) {
+          inFlightStores.putIfAbsent(ruleKeys, request.future);
+        }
+      }
+    }
+  }
+
+  private void unregisterInFlightStore(StoreRequest request) {
+    synchronized (storeQueueLock) {
+      for (Pair<ArtifactInfo, Path> artifact : request.artifacts) {
+        inFlightStores.remove(artifact.getFirst().getRuleKeys(), request.future);
+      }
+    }
+  }
+
+  private void enqueueStore(StoreRequest request) {
+    synchronized (storeQueueLock) {
+      pendingStoreRequests.add(request);
+    }
+    storeExecutorService.submit(this::processStore);
+  }
+
+  /**
+   * Accounts for {@code bytes} more in the store queue, first waiting for uploads to drain if that
+   * would take the queue over its budget. A single request bigger than the whole budget is let
+   * through once the queue is empty.
+   */
+  private void reserveStoreQueueBytes(long bytes) {
+    synchronized (storeQueueLock) {
+      if (maxQueuedStoreBytes.isPresent()) {
+        long maxBytes = maxQueuedStoreBytes.get();
+        while (queuedStoreBytes > 0 && queuedStoreBytes + bytes > maxBytes) {
+          try {
+            storeQueueLock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
           }
+        }
+      }
+      if (queuedStoreBytes == 0) {
+        storeQueueBusySinceNanos = System.nanoTime();
+      }
+      queuedStoreBytes += bytes;
+    }
+  }
 
-          return null;
-        });
+  private void releaseStoreQueueBytes(long bytes) {
+    synchronized (storeQueueLock) {
+      queuedStoreBytes -= bytes;
+      drainedStoreBytes += bytes;
+      if (queuedStoreBytes == 0) {
+        storeQueueBusyNanos += System.nanoTime() - storeQueueBusySinceNanos;
+      }
+      storeQueueLock.notifyAll();
+    }
+  }
+
+  /**
+   * The drain rate is measured over the time the queue had anything in it, so idle stretches
+   * between bursts of stores don't dilute it.
+   */
+  @VisibleForTesting
+  StoreQueueStats getStoreQueueStats() {
+    synchronized (storeQueueLock) {
+      long busyNanos = storeQueueBusyNanos;
+      if (queuedStoreBytes > 0) {
+        busyNanos += System.nanoTime() - storeQueueBusySinceNanos;
+      }
+      long drainBytesPerSecond =
+          busyNanos == 0 ? 0 : (long) (drainedStoreBytes * 1e9 / busyNanos);
+      return StoreQueueStats.of(queuedStoreBytes, drainBytesPerSecond);
+    }
   }
 
   @Override
@@ -556,9 +732,47 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     StoreRequestEvents started();
 
     interface StoreRequestEvents {
-      void finished(StoreResult result);
+      void finished(StoreResult result, StoreQueueStats queueStats);
+
+      void failed(IOException e, String errorMessage, StoreQueueStats queueStats);
+    }
+  }
+
+  private class StoreRequest implements Comparable<StoreRequest> {
+    private final long sequenceNumber;
+    private final long sizeBytes;
+    private final ImmutableList<Pair<ArtifactInfo, Path>> artifacts;
+    private final ImmutableList<Long> artifactSizesInBytes;
+    private final ImmutableList<StoreEvents> events;
+    private final SettableFuture<Void> future = SettableFuture.create();
+    // Only touched by the thread processing this request.
+    private int released = 0;
+
+    private StoreRequest(
+        ImmutableList<Pair<ArtifactInfo, Path>> artifacts,
+        ImmutableList<Long> artifactSizesInBytes,
+        ImmutableList<StoreEvents> events) {
+      this.sequenceNumber = storeRequestSequence.getAndIncrement();
+      this.sizeBytes = artifactSizesInBytes.stream().mapToLong(Long::longValue).sum();
+      this.artifacts = artifacts;
+      this.artifactSizesInBytes = artifactSizesInBytes;
+      this.events = events;
+    }
+
+    private void releaseNext() {
+      releaseStoreQueueBytes(artifactSizesInBytes.get(released++));
+    }
+
+    private void releaseRemaining() {
+      while (released < artifactSizesInBytes.size()) {
+        releaseNext();
+      }
+    }
 
-      void failed(IOException e, String errorMessage);
+    @Override
+    public int compareTo(StoreRequest other) {
+      int bySize = Long.compare(sizeBytes, other.sizeBytes);
+      return bySize != 0 ? bySize : Long.compare(sequenceNumber, other.sequenceNumber);
     }
   }
 
@@ -638,4 +852,15 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
 
     Optional<Boolean> getWasStoreSuccessful();
   }
+
+  /** The state of a cache's store queue, as of the end of some store. */
+  @BuckStyleTuple
+  @Value.Immutable
+  public interface AbstractStoreQueueStats {
+    /** Bytes of artifacts waiting for or in the middle of an upload. */
+    long getQueuedBytes();
+
+    /** Bytes per second leaving the queue while it had anything in it. */
+    long getDrainBytesPerSecond();
+  }
 }
@@ -53,6 +53,7 @@ public abstract class AbstractNetworkCache extends AbstractAsynchronousCache {
         new NetworkEventListener(
             args.getBuckEventBus(), args.getCacheName(), new ErrorReporter(args)),
         args.getMaxStoreSizeBytes(),
+        args.getMaxQueuedStoreBytes(),
         args.getProjectFilesystem());
     this.repository = args.getRepository();
     this.scheduleType = args.getScheduleType();
@@ -197,24 +198,29 @@ public abstract class AbstractNetworkCache extends AbstractAsynchronousCache {
               .setRuleKeys(info.getRuleKeys());
           return new StoreRequestEvents() {
             @Override
-            public void finished(StoreResult result) {
+            public void finished(StoreResult result, StoreQueueStats queueStats) {
               finishedEventBuilder
                   .getStoreBuilder()
                   .setArtifactContentHash(result.getArtifactContentHash())
                   .setRequestSizeBytes(result.getRequestSizeBytes())
                   .setWasStoreSuccessful(result.getWasStoreSuccessful())
-                  .setStoreType(StoreType.fromArtifactInfo(info));
+                  .setStoreType(StoreType.fromArtifactInfo(info))
+                  .setStoreQueueBytes(queueStats.getQueuedBytes())
+                  .setStoreQueueDrainBytesPerSecond(queueStats.getDrainBytesPerSecond());
               dispatcher.post(finishedEventBuilder.build());
             }
 
             @Override
-            public void failed(IOException e, String errorMessage) {
+            public void failed(
+                IOException e, String errorMessage, StoreQueueStats queueStats) {
               String key = String.format("store:%s", e.getClass().getSimpleName());
               errorReporter.reportFailure(e, key, errorMessage);
               finishedEventBuilder
                   .getStoreBuilder()
                   .setWasStoreSuccessful(false)
-                  .setErrorMessage(errorMessage);
+                  .setErrorMessage(errorMessage)
+                  .setStoreQueueBytes(queueStats.getQueuedBytes())
+                  .setStoreQueueDrainBytesPerSecond(queueStats.getDrainBytesPerSecond());
               dispatcher.post(finishedEventBuilder.build());
             }
           };
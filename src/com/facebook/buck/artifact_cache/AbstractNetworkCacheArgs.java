@@ -56,4 +56,6 @@ interface AbstractNetworkCacheArgs {
   int getErrorTextLimit();
 
   Optional<Long> getMaxStoreSizeBytes();
+
+  Optional<Long> getMaxQueuedStoreBytes();
 }
@@ -266,7 +266,11 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
               httpWriteExecutorService,
               httpFetchExecutorService,
               builder,
-              HttpArtifactCache::new,
+              (args) ->
+                  new HttpArtifactCache(
+                      args,
+                      buckConfig.getHttpMultiFetchEnabled() ? buckConfig.getMultiFetchLimit() : 0,
+                      buckConfig.getHttpFetchConcurrency()),
               mode);
           break;
         case sqlite:
@@ -392,7 +396,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
               projectFilesystem,
               cacheDir,
               dirCacheConfig.getCacheReadMode(),
-              dirCacheConfig.getMaxSizeBytes());
+              dirCacheConfig.getMaxSizeBytes(),
+              dirCacheConfig.isContentAddressed());
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
@@ -564,6 +569,7 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
             .setHttpFetchExecutorService(httpFetchExecutorService)
             .setErrorTextTemplate(cacheDescription.getErrorMessageFormat())
             .setErrorTextLimit(cacheDescription.getErrorMessageLimit())
+            .setMaxQueuedStoreBytes(config.getHttpMaxQueuedStoreBytes())
             .build());
   }
 
@@ -29,7 +29,9 @@ import com.facebook.buck.util.CloseableHolder;
 import com.facebook.buck.util.ErrorLogger;
 import com.facebook.buck.util.NamedTemporaryFile;
 import com.facebook.buck.util.exceptions.BuckUncheckedExecutionException;
+import com.facebook.buck.util.unarchive.ArchiveFormat;
 import com.facebook.buck.util.zip.ZipConstants;
+import com.github.luben.zstd.ZstdOutputStream;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
@@ -46,10 +48,11 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.SortedSet;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
 
 /**
  * ArtifactUploader contains the logic of how to take a list of artifact paths and metadata and
@@ -58,6 +61,22 @@ import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStr
 public class ArtifactUploader {
   private static final Logger LOG = Logger.get(ArtifactUploader.class);
 
+  /**
+   * Metadata key recording the {@link ArchiveFormat} of an uploaded artifact, so that readers can
+   * pick the matching unarchiver. Artifacts stored without it are {@link ArchiveFormat#TAR_ZSTD}.
+   */
+  public static final String ARCHIVE_FORMAT_METADATA_KEY = "ARTIFACT_ARCHIVE_FORMAT";
+
+  /** The format artifacts are archived with on upload. */
+  public static final ArchiveFormat ARCHIVE_FORMAT = ArchiveFormat.TAR_ZSTD;
+
+  /**
+   * Zstandard level used when compressing artifacts. Lower levels compress several times faster
+   * at the cost of slightly larger artifacts; decompression speed is largely unaffected.
+   */
+  private static final int COMPRESSION_LEVEL =
+      Integer.getInteger("buck.ArtifactUploader.compression_level", 3);
+
   public static ListenableFuture<Void> performUploadToArtifactCache(
       ImmutableSet<RuleKey> ruleKeys,
       ArtifactCache artifactCache,
@@ -70,10 +89,13 @@ public class ArtifactUploader {
         getTemporaryArtifactArchive(
             buildTarget, projectFilesystem, ruleKeys, eventBus, pathsToIncludeInArchive);
 
-    // Store the artifact, including any additional metadata.
+    // Store the artifact, including any additional metadata. The archive format replaces whatever
+    // format was recorded when these outputs were last fetched from the cache.
+    Map<String, String> metadata = new HashMap<>(buildMetadata);
+    metadata.put(ARCHIVE_FORMAT_METADATA_KEY, ARCHIVE_FORMAT.getShortName());
     ListenableFuture<Void> storeFuture =
         artifactCache.store(
-            ArtifactInfo.builder().setRuleKeys(ruleKeys).setMetadata(buildMetadata).build(),
+            ArtifactInfo.builder().setRuleKeys(ruleKeys).setMetadata(metadata).build(),
             BorrowablePath.borrowablePath(archive.get()));
     Futures.addCallback(
         storeFuture,
@@ -154,7 +176,8 @@ public class ArtifactUploader {
     try (CloseableHolder<NamedTemporaryFile> archive =
         new CloseableHolder<>(
             new NamedTemporaryFile(
-                "buck_artifact_" + MostFiles.sanitize(buildTarget.getShortName()), ".tar.zst"))) {
+                "buck_artifact_" + MostFiles.sanitize(buildTarget.getShortName()),
+                ARCHIVE_FORMAT.getExtension()))) {
       compress(projectFilesystem, pathsToIncludeInArchive, archive.get().get());
       return archive.release();
     } catch (IOException e) {
@@ -173,8 +196,18 @@ public class ArtifactUploader {
   static void compress(
       ProjectFilesystem projectFilesystem, Collection<Path> pathsToIncludeInArchive, Path out)
       throws IOException {
+    compress(projectFilesystem, pathsToIncludeInArchive, out, COMPRESSION_LEVEL);
+  }
+
+  @VisibleForTesting
+  static void compress(
+      ProjectFilesystem projectFilesystem,
+      Collection<Path> pathsToIncludeInArchive,
+      Path out,
+      int compressionLevel)
+      throws IOException {
     try (OutputStream o = new BufferedOutputStream(Files.newOutputStream(out));
-        OutputStream z = new ZstdCompressorOutputStream(o);
+        OutputStream z = new ZstdOutputStream(o, compressionLevel);
         TarArchiveOutputStream archive = new TarArchiveOutputStream(z)) {
       archive.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
       for (Path path : pathsToIncludeInArchive) {
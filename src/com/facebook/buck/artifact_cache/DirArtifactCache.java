@@ -24,11 +24,9 @@ import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
-import com.facebook.buck.util.DirectoryCleaner;
-import com.facebook.buck.util.DirectoryCleanerArgs;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
-import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -42,6 +40,7 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -50,6 +49,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import javax.annotation.Nullable;
 
 public class DirArtifactCache implements ArtifactCache {
@@ -57,19 +59,26 @@ public class DirArtifactCache implements ArtifactCache {
   private static final Logger LOG = Logger.get(DirArtifactCache.class);
 
   private static final ArtifactCacheMode CACHE_MODE = ArtifactCacheMode.dir;
-  // Ratio of bytes stored to max size that expresses how many bytes need to be stored after we
-  // attempt to delete old files.
-  private static final float STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER = 0.5f;
   // How much of the max size to leave if we decide to delete old files.
   private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
   private static final String TMP_EXTENSION = ".tmp";
+  private static final String METADATA_EXTENSION = DirArtifactCacheIndex.METADATA_EXTENSION;
+  // How long closing the cache waits for the index to be saved.
+  private static final long INDEX_SHUTDOWN_TIMEOUT_SECONDS = 10;
+  // Where the blobs of a content addressed cache are stored, relative to the cache dir.
+  private static final String BLOBS_DIR = "cas";
 
   private final String name;
   private final ProjectFilesystem filesystem;
   private final Path cacheDir;
   private final Optional<Long> maxCacheSizeBytes;
   private final CacheReadMode cacheReadMode;
-  private long bytesSinceLastDeleteOldFiles;
+  // Whether artifacts are hardlinks to blobs shared by all the artifacts with the same contents.
+  private final boolean contentAddressed;
+
+  // Tracks the artifacts to evict when the cache has a max size. Only used from indexExecutor.
+  @Nullable private final DirArtifactCacheIndex index;
+  private final ExecutorService indexExecutor;
 
   public DirArtifactCache(
       String name,
@@ -78,17 +87,71 @@ public class DirArtifactCache implements ArtifactCache {
       CacheReadMode cacheReadMode,
       Optional<Long> maxCacheSizeBytes)
       throws IOException {
+    this(name, filesystem, cacheDir, cacheReadMode, maxCacheSizeBytes, false);
+  }
+
+  public DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      CacheReadMode cacheReadMode,
+      Optional<Long> maxCacheSizeBytes,
+      boolean contentAddressed)
+      throws IOException {
+    this(
+        name,
+        filesystem,
+        cacheDir,
+        cacheReadMode,
+        maxCacheSizeBytes,
+        contentAddressed,
+        MostExecutors.newSingleThreadExecutor(DirArtifactCache.class.getSimpleName()));
+  }
+
+  @VisibleForTesting
+  DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      CacheReadMode cacheReadMode,
+      Optional<Long> maxCacheSizeBytes,
+      boolean contentAddressed,
+      ExecutorService indexExecutor)
+      throws IOException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
     this.maxCacheSizeBytes = maxCacheSizeBytes;
     this.cacheReadMode = cacheReadMode;
-    this.bytesSinceLastDeleteOldFiles = 0L;
+    this.index =
+        maxCacheSizeBytes.isPresent() && cacheReadMode.isWritable()
+            ? new DirArtifactCacheIndex(filesystem, cacheDir, getPathToTempFolder())
+            : null;
+    this.indexExecutor = indexExecutor;
 
     // Check first, as mkdirs will fail if the path is a symlink.
     if (!filesystem.isDirectory(cacheDir)) {
       filesystem.mkdirs(cacheDir);
     }
+
+    this.contentAddressed =
+        contentAddressed && cacheReadMode.isWritable() && supportsHardLinks(getPathToTempFolder());
+  }
+
+  private boolean supportsHardLinks(Path dir) throws IOException {
+    filesystem.mkdirs(dir);
+    Path file = filesystem.createTempFile(dir, "link", TMP_EXTENSION);
+    Path link = file.resolveSibling(file.getFileName() + ".link");
+    try {
+      Files.createLink(filesystem.resolve(link), filesystem.resolve(file));
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      LOG.warn(e, "Storing every artifact in [%s], which doesn't support hardlinks.", cacheDir);
+      return false;
+    } finally {
+      filesystem.deleteFileAtPathIfExists(link);
+      filesystem.deleteFileAtPathIfExists(file);
+    }
   }
 
   @Override
@@ -110,7 +173,7 @@ public class DirArtifactCache implements ArtifactCache {
       try (DataInputStream in =
           new DataInputStream(
               filesystem.newFileInputStream(
-                  getPathForRuleKey(ruleKey, Optional.of(".metadata"))))) {
+                  getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION))))) {
         int sz = in.readInt();
         for (int i = 0; i < sz; i++) {
           String key = in.readUTF();
@@ -126,6 +189,7 @@ public class DirArtifactCache implements ArtifactCache {
 
       result =
           CacheResult.hit(name, CACHE_MODE, metadata.build(), filesystem.getFileSize(output.get()));
+      recordAccess(ruleKey);
     } catch (NoSuchFileException e) {
       result = CacheResult.miss();
     } catch (IOException e) {
@@ -150,17 +214,27 @@ public class DirArtifactCache implements ArtifactCache {
 
     try {
       Optional<Path> borrowedAndStoredArtifactPath = Optional.empty();
+      Optional<String> blobKey = Optional.empty();
       for (RuleKey ruleKey : info.getRuleKeys()) {
         Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
 
         if (filesystem.exists(artifactPath) && filesystem.exists(metadataPath)) {
+          recordAccess(ruleKey);
           continue;
         }
 
         filesystem.mkdirs(getParentDirForRuleKey(ruleKey));
 
-        if (!output.canBorrow()) {
+        long blobSizeBytes = 0;
+        if (contentAddressed) {
+          if (!blobKey.isPresent()) {
+            blobKey = Optional.of(storeBlob(output));
+          }
+          Path blobPath = cacheDir.resolve(blobKey.get());
+          blobSizeBytes = filesystem.getFileSize(blobPath);
+          linkArtifact(blobPath, artifactPath);
+        } else if (!output.canBorrow()) {
           storeArtifactOutput(output.getPath(), artifactPath);
         } else {
           // This branch means that we are apparently the only users of the `output`, so instead
@@ -173,7 +247,8 @@ public class DirArtifactCache implements ArtifactCache {
             storeArtifactOutput(borrowedAndStoredArtifactPath.get(), artifactPath);
           }
         }
-        bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
+        // The contents of a blob are counted once by the index, however many artifacts link to it.
+        long sizeBytes = contentAddressed ? 0 : filesystem.getFileSize(artifactPath);
 
         // Now, write the meta data artifact.
         Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "metadata", TMP_EXTENSION);
@@ -188,23 +263,28 @@ public class DirArtifactCache implements ArtifactCache {
             }
           }
           filesystem.move(tmp, metadataPath, StandardCopyOption.REPLACE_EXISTING);
-          bytesSinceLastDeleteOldFiles += filesystem.getFileSize(metadataPath);
+          sizeBytes += filesystem.getFileSize(metadataPath);
         } finally {
           filesystem.deleteFileAtPathIfExists(tmp);
         }
+
+        String key = getIndexKey(ruleKey);
+        long storedSizeBytes = sizeBytes;
+        @Nullable String storedBlobKey = blobKey.orElse(null);
+        long storedBlobSizeBytes = blobSizeBytes;
+        long nowMillis = System.currentTimeMillis();
+        updateIndex(
+            index -> {
+              index.recordStore(
+                  key, storedSizeBytes, storedBlobKey, storedBlobSizeBytes, nowMillis);
+              evictIfFull(index);
+            });
       }
 
     } catch (IOException e) {
       LOG.warn(e, "Artifact store(%s, %s) error", info.getRuleKeys(), output);
     }
 
-    if (maxCacheSizeBytes.isPresent()
-        && bytesSinceLastDeleteOldFiles
-            > (maxCacheSizeBytes.get() * STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER)) {
-      bytesSinceLastDeleteOldFiles = 0L;
-      deleteOldFiles();
-    }
-
     return Futures.immediateFuture(null);
   }
 
@@ -219,7 +299,7 @@ public class DirArtifactCache implements ArtifactCache {
 
     for (RuleKey ruleKey : ruleKeys) {
       Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-      Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+      Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
 
       boolean contains = filesystem.exists(artifactPath) && filesystem.exists(metadataPath);
       results.put(ruleKey, contains ? CacheResult.contains(name, CACHE_MODE) : CacheResult.miss());
@@ -233,8 +313,14 @@ public class DirArtifactCache implements ArtifactCache {
 
   private void deleteSync(RuleKey ruleKey) {
     Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-    Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
-
+    Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
+
+    String key = getIndexKey(ruleKey);
+    updateIndex(
+        index -> {
+          index.remove(key);
+          deleteUnreferencedBlobs(index);
+        });
     try {
       filesystem.deleteFileAtPathIfExists(metadataPath);
       filesystem.deleteFileAtPathIfExists(artifactPath);
@@ -290,6 +376,51 @@ public class DirArtifactCache implements ArtifactCache {
     return result;
   }
 
+  /** @return the path of the artifact relative to the cache dir, its key in the index. */
+  private String getIndexKey(RuleKey ruleKey) {
+    ImmutableList<String> folders = subfolders(ruleKey);
+    Path result = Paths.get("");
+    for (String f : folders) {
+      result = result.resolve(f);
+    }
+    return result.resolve(ruleKey.toString()).toString();
+  }
+
+  /**
+   * Stores the contents of the output in a blob named after their hash, unless another artifact
+   * with the same contents already did.
+   *
+   * @return the key of the blob, its path relative to the cache dir.
+   */
+  private String storeBlob(BorrowablePath output) throws IOException {
+    String hash = filesystem.computeSha1(output.getPath()).getHash();
+    String blobKey =
+        Paths.get(BLOBS_DIR, hash.substring(0, 2), hash.substring(2, 4), hash).toString();
+    Path blobPath = cacheDir.resolve(blobKey);
+    if (!filesystem.exists(blobPath)) {
+      filesystem.mkdirs(blobPath.getParent());
+      if (output.canBorrow()) {
+        filesystem.move(output.getPath(), blobPath, StandardCopyOption.REPLACE_EXISTING);
+      } else {
+        storeArtifactOutput(output.getPath(), blobPath);
+      }
+    }
+    return blobKey;
+  }
+
+  private void linkArtifact(Path blobPath, Path artifactPath) throws IOException {
+    // Link in the temp folder and move the link into place, so that it replaces any partially
+    // stored artifact.
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "artifact", TMP_EXTENSION);
+    try {
+      filesystem.deleteFileAtPathIfExists(tmp);
+      Files.createLink(filesystem.resolve(tmp), filesystem.resolve(blobPath));
+      filesystem.move(tmp, artifactPath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
   private void storeArtifactOutput(Path output, Path artifactPath) throws IOException {
     // Write to a temporary file and move the file to its final location atomically to protect
     // against partial artifacts (whether due to buck interruption or filesystem failure) posing
@@ -298,7 +429,6 @@ public class DirArtifactCache implements ArtifactCache {
     try {
       filesystem.copyFile(output, tmp);
       filesystem.move(tmp, artifactPath);
-      bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
     } finally {
       filesystem.deleteFileAtPathIfExists(tmp);
     }
@@ -311,26 +441,87 @@ public class DirArtifactCache implements ArtifactCache {
 
   @Override
   public void close() {
-    // Do a cache clean up on exit only if cache was written to.
-    if (bytesSinceLastDeleteOldFiles > 0) {
-      deleteOldFiles();
+    updateIndex(
+        index -> {
+          evictIfFull(index);
+          saveIndex(index);
+        });
+    try {
+      if (!MostExecutors.shutdown(
+          indexExecutor, INDEX_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.info("The index of %s is still being updated in the background.", cacheDir);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 
   /** Deletes files that haven't been accessed recently from the directory cache. */
   @VisibleForTesting
   void deleteOldFiles() {
-    if (!maxCacheSizeBytes.isPresent()) {
+    updateIndex(this::evictIfFull);
+  }
+
+  private void recordAccess(RuleKey ruleKey) {
+    String key = getIndexKey(ruleKey);
+    long nowMillis = System.currentTimeMillis();
+    updateIndex(index -> index.recordAccess(key, nowMillis));
+  }
+
+  /**
+   * Runs the update on the index executor, so that neither fetches nor stores wait for the index to
+   * be loaded or for old artifacts to be deleted.
+   */
+  private void updateIndex(Consumer<DirArtifactCacheIndex> update) {
+    DirArtifactCacheIndex index = this.index;
+    if (index == null) {
       return;
     }
+    indexExecutor.execute(
+        () -> {
+          try {
+            update.accept(index);
+          } catch (RuntimeException e) {
+            LOG.error(e, "Failed to update the index of [%s].", cacheDir);
+          }
+        });
+  }
 
-    Path cacheDirInFs = filesystem.resolve(cacheDir);
-    try {
-      synchronized (this) {
-        newDirectoryCleaner().clean(cacheDirInFs);
+  private void evictIfFull(DirArtifactCacheIndex index) {
+    deleteUnreferencedBlobs(index);
+    long maxBytes = maxCacheSizeBytes.get();
+    if (index.getTotalBytes() <= maxBytes) {
+      return;
+    }
+    ImmutableList<String> evicted = index.evict((long) (maxBytes * MAX_BYTES_TRIM_RATIO));
+    for (String key : evicted) {
+      try {
+        filesystem.deleteFileAtPathIfExists(cacheDir.resolve(key + METADATA_EXTENSION));
+        filesystem.deleteFileAtPathIfExists(cacheDir.resolve(key));
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to evict [%s] from [%s].", key, cacheDir);
       }
+    }
+    deleteUnreferencedBlobs(index);
+    LOG.debug("Evicted %d artifacts from [%s].", evicted.size(), cacheDir);
+    saveIndex(index);
+  }
+
+  private void deleteUnreferencedBlobs(DirArtifactCacheIndex index) {
+    for (String blobKey : index.takeUnreferencedBlobs()) {
+      try {
+        filesystem.deleteFileAtPathIfExists(cacheDir.resolve(blobKey));
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to delete the blob [%s] from [%s].", blobKey, cacheDir);
+      }
+    }
+  }
+
+  private void saveIndex(DirArtifactCacheIndex index) {
+    try {
+      index.saveIfChanged();
     } catch (IOException e) {
-      LOG.error(e, "Failed to clean path [%s].", cacheDirInFs);
+      LOG.warn(e, "Failed to save the index of [%s].", cacheDir);
     }
   }
 
@@ -358,6 +549,9 @@ public class DirArtifactCache implements ArtifactCache {
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
                 throws IOException {
+              if (file.getFileName().toString().equals(DirArtifactCacheIndex.FILE_NAME)) {
+                return FileVisitResult.CONTINUE;
+              }
               allFiles.add(file);
               return super.visitFile(file, attrs);
             }
@@ -369,36 +563,6 @@ public class DirArtifactCache implements ArtifactCache {
     return allFiles;
   }
 
-  private DirectoryCleaner newDirectoryCleaner() {
-    DirectoryCleanerArgs cleanerArgs =
-        DirectoryCleanerArgs.builder()
-            .setPathSelector(getDirectoryCleanerPathSelector())
-            .setMaxTotalSizeBytes(maxCacheSizeBytes.get())
-            .setMaxBytesAfterDeletion((long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO))
-            .setMinAmountOfEntriesToKeep(0)
-            .build();
-
-    return new DirectoryCleaner(cleanerArgs);
-  }
-
-  @VisibleForTesting
-  DirectoryCleaner.PathSelector getDirectoryCleanerPathSelector() {
-    return new DirectoryCleaner.PathSelector() {
-      @Override
-      public Iterable<Path> getCandidatesToDelete(Path rootPath) {
-        return getAllFilesInCache();
-      }
-
-      @Override
-      public int comparePaths(DirectoryCleaner.PathStats path1, DirectoryCleaner.PathStats path2) {
-        return ComparisonChain.start()
-            .compare(path1.getLastAccessMillis(), path2.getLastAccessMillis())
-            .compare(path1.getCreationMillis(), path2.getCreationMillis())
-            .result();
-      }
-    };
-  }
-
   @VisibleForTesting
   Path getCacheDir() {
     return cacheDir;
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Index of the artifacts in a {@link DirArtifactCache}, with their sizes and last access times,
+ * which lets the cache evict its least recently used artifacts without walking its directory.
+ *
+ * <p>Artifacts are identified by the path of their data file relative to the cache directory, and
+ * include their metadata file. The index is saved in the cache directory and shared by all the
+ * processes using the cache, so saving it merges in what other processes saved since it was
+ * loaded. A missing or unreadable index is rebuilt by walking the cache directory once, using the
+ * last access times of the files.
+ *
+ * <p>In a content addressed cache, the data file of an artifact is a hardlink to a blob holding its
+ * contents, which is shared by all the artifacts with the same contents. Blobs are counted once
+ * towards the size of the cache, and are returned for deletion once no artifact references them.
+ * A rebuilt index doesn't know which artifacts share blobs, so it indexes blobs like artifacts and
+ * counts their contents once per hardlink, which only makes the cache evict a little earlier.
+ */
+@NotThreadSafe
+class DirArtifactCacheIndex {
+
+  private static final Logger LOG = Logger.get(DirArtifactCacheIndex.class);
+
+  /** Name of the file, relative to the cache directory, where the index is saved. */
+  static final String FILE_NAME = ".index";
+
+  static final String METADATA_EXTENSION = ".metadata";
+
+  private static final int MAGIC = 0xD1CAC4E1;
+  private static final int VERSION = 2;
+
+  private static final Comparator<Entry> LEAST_RECENTLY_USED_FIRST =
+      Comparator.<Entry>comparingLong(entry -> entry.lastAccessMillis)
+          .thenComparingLong(entry -> entry.sequence);
+
+  private final ProjectFilesystem filesystem;
+  private final Path cacheDir;
+  private final Path tmpDir;
+
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final TreeSet<Entry> leastRecentlyUsed = new TreeSet<>(LEAST_RECENTLY_USED_FIRST);
+  private final Map<String, Blob> blobs = new HashMap<>();
+  private final List<String> unreferencedBlobs = new ArrayList<>();
+
+  /** Keys removed since the index was loaded, which mustn't be merged back in when saving. */
+  private final Set<String> removed = new HashSet<>();
+
+  private long totalBytes = 0;
+  private long sequence = 0;
+  private boolean loaded = false;
+  private boolean changed = false;
+
+  DirArtifactCacheIndex(ProjectFilesystem filesystem, Path cacheDir, Path tmpDir) {
+    this.filesystem = filesystem;
+    this.cacheDir = cacheDir;
+    this.tmpDir = tmpDir;
+  }
+
+  long getTotalBytes() {
+    ensureLoaded();
+    return totalBytes;
+  }
+
+  void recordStore(String key, long sizeBytes, long nowMillis) {
+    recordStore(key, sizeBytes, null, 0, nowMillis);
+  }
+
+  /**
+   * Records an artifact whose data file is a hardlink to a blob, which is only counted once however
+   * many artifacts reference it.
+   *
+   * @param sizeBytes the size of the artifact, without the blob.
+   */
+  void recordStore(
+      String key, long sizeBytes, @Nullable String blobKey, long blobSizeBytes, long nowMillis) {
+    ensureLoaded();
+    removed.remove(key);
+    put(new Entry(key, sizeBytes, blobKey, blobSizeBytes, nowMillis, 0));
+    changed = true;
+  }
+
+  void recordAccess(String key, long nowMillis) {
+    ensureLoaded();
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      put(entry.withLastAccessMillis(Math.max(nowMillis, entry.lastAccessMillis)));
+      changed = true;
+    }
+  }
+
+  void remove(String key) {
+    ensureLoaded();
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      unlink(entry);
+      changed = true;
+    }
+    removed.add(key);
+  }
+
+  /**
+   * Removes the least recently used artifacts from the index until it holds at most {@code
+   * maxBytes}. This only takes time proportional to the number of artifacts removed.
+   *
+   * @return the keys of the removed artifacts, which the caller should delete.
+   */
+  ImmutableList<String> evict(long maxBytes) {
+    ensureLoaded();
+    ImmutableList.Builder<String> evicted = ImmutableList.builder();
+    while (totalBytes > maxBytes && !leastRecentlyUsed.isEmpty()) {
+      Entry entry = leastRecentlyUsed.first();
+      entries.remove(entry.key);
+      unlink(entry);
+      removed.add(entry.key);
+      evicted.add(entry.key);
+      changed = true;
+    }
+    return evicted.build();
+  }
+
+  /**
+   * @return the keys of the blobs which no artifact references anymore, since this was last called,
+   *     which the caller should delete.
+   */
+  ImmutableList<String> takeUnreferencedBlobs() {
+    ImmutableList<String> result = ImmutableList.copyOf(unreferencedBlobs);
+    unreferencedBlobs.clear();
+    return result;
+  }
+
+  /**
+   * Saves the index if it changed, after merging in the artifacts which other processes added and
+   * the accesses they made since it was loaded.
+   */
+  void saveIfChanged() throws IOException {
+    if (!changed) {
+      return;
+    }
+    for (Entry saved : read().values()) {
+      Entry entry = entries.get(saved.key);
+      if (entry == null
+          ? !removed.contains(saved.key)
+          : saved.lastAccessMillis > entry.lastAccessMillis) {
+        put(saved);
+      }
+    }
+
+    filesystem.mkdirs(tmpDir);
+    Path tmp = filesystem.createTempFile(tmpDir, "index", ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(filesystem.newFileOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for (Entry entry : leastRecentlyUsed) {
+          out.writeUTF(entry.key);
+          out.writeLong(entry.sizeBytes);
+          out.writeLong(entry.lastAccessMillis);
+          out.writeUTF(entry.blobKey == null ? "" : entry.blobKey);
+          out.writeLong(entry.blobSizeBytes);
+        }
+      }
+      filesystem.move(
+          tmp,
+          cacheDir.resolve(FILE_NAME),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+    changed = false;
+    LOG.debug("Saved the index of %d artifacts in %s.", entries.size(), cacheDir);
+  }
+
+  private void ensureLoaded() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    Map<String, Entry> saved = read();
+    if (saved.isEmpty()) {
+      saved = scan();
+      changed = !saved.isEmpty();
+    }
+    for (Entry entry : saved.values()) {
+      put(entry);
+    }
+  }
+
+  private void put(Entry entry) {
+    // Link the new entry first, so that its blob isn't considered unreferenced on the way.
+    Entry sequenced = entry.withSequence(sequence++);
+    link(sequenced);
+    Entry previous = entries.put(sequenced.key, sequenced);
+    if (previous != null) {
+      unlink(previous);
+    }
+    leastRecentlyUsed.add(sequenced);
+  }
+
+  private void link(Entry entry) {
+    totalBytes += entry.sizeBytes;
+    if (entry.blobKey != null) {
+      Blob blob = blobs.get(entry.blobKey);
+      if (blob == null) {
+        blob = new Blob(entry.blobSizeBytes);
+        blobs.put(entry.blobKey, blob);
+        totalBytes += blob.sizeBytes;
+      }
+      blob.references++;
+    }
+  }
+
+  private void unlink(Entry entry) {
+    leastRecentlyUsed.remove(entry);
+    totalBytes -= entry.sizeBytes;
+    if (entry.blobKey != null) {
+      Blob blob = blobs.get(entry.blobKey);
+      if (--blob.references == 0) {
+        blobs.remove(entry.blobKey);
+        totalBytes -= blob.sizeBytes;
+        unreferencedBlobs.add(entry.blobKey);
+      }
+    }
+  }
+
+  private Map<String, Entry> read() {
+    try (DataInputStream in =
+        new DataInputStream(
+            new BufferedInputStream(filesystem.newFileInputStream(cacheDir.resolve(FILE_NAME))))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        LOG.debug("Ignoring an index in an unknown format in %s.", cacheDir);
+        return Collections.emptyMap();
+      }
+      int count = in.readInt();
+      // Keeps the saved order, which breaks ties between entries accessed in the same millisecond.
+      Map<String, Entry> result = new LinkedHashMap<>(count * 4 / 3 + 1);
+      for (int i = 0; i < count; i++) {
+        String key = in.readUTF();
+        long sizeBytes = in.readLong();
+        long lastAccessMillis = in.readLong();
+        String blobKey = in.readUTF();
+        long blobSizeBytes = in.readLong();
+        result.put(
+            key,
+            new Entry(
+                key,
+                sizeBytes,
+                blobKey.isEmpty() ? null : blobKey,
+                blobSizeBytes,
+                lastAccessMillis,
+                i));
+      }
+      return result;
+    } catch (NoSuchFileException e) {
+      return Collections.emptyMap();
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Discarding the unreadable index in %s.", cacheDir);
+      return Collections.emptyMap();
+    }
+  }
+
+  /** Rebuilds the index from the files in the cache directory. */
+  private Map<String, Entry> scan() {
+    Path root = filesystem.resolve(cacheDir).normalize();
+    Path tmpRoot = filesystem.resolve(tmpDir).normalize();
+    Map<String, Entry> result = new HashMap<>();
+    try {
+      Files.walkFileTree(
+          root,
+          ImmutableSet.of(),
+          Integer.MAX_VALUE,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+              return dir.equals(tmpRoot)
+                  ? FileVisitResult.SKIP_SUBTREE
+                  : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              String key = root.relativize(file).toString();
+              if (key.equals(FILE_NAME)) {
+                return FileVisitResult.CONTINUE;
+              }
+              if (key.endsWith(METADATA_EXTENSION)) {
+                key = key.substring(0, key.length() - METADATA_EXTENSION.length());
+              }
+              Entry entry = result.get(key);
+              result.put(
+                  key,
+                  new Entry(
+                      key,
+                      attrs.size() + (entry == null ? 0 : entry.sizeBytes),
+                      null,
+                      0,
+                      Math.max(
+                          attrs.lastAccessTime().toMillis(),
+                          entry == null ? Long.MIN_VALUE : entry.lastAccessMillis),
+                      0));
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+              // The file may have been evicted by another process while walking.
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (IOException e) {
+      LOG.error(e, "Failed to index the artifacts in %s.", root);
+    }
+    LOG.info("Indexed %d artifacts in %s.", result.size(), root);
+    return result;
+  }
+
+  private static class Entry {
+    private final String key;
+    private final long sizeBytes;
+    @Nullable private final String blobKey;
+    private final long blobSizeBytes;
+    private final long lastAccessMillis;
+    // Orders entries accessed within the same millisecond.
+    private final long sequence;
+
+    private Entry(
+        String key,
+        long sizeBytes,
+        @Nullable String blobKey,
+        long blobSizeBytes,
+        long lastAccessMillis,
+        long sequence) {
+      this.key = key;
+      this.sizeBytes = sizeBytes;
+      this.blobKey = blobKey;
+      this.blobSizeBytes = blobSizeBytes;
+      this.lastAccessMillis = lastAccessMillis;
+      this.sequence = sequence;
+    }
+
+    private Entry withLastAccessMillis(long lastAccessMillis) {
+      return new Entry(key, sizeBytes, blobKey, blobSizeBytes, lastAccessMillis, sequence);
+    }
+
+    private Entry withSequence(long sequence) {
+      return new Entry(key, sizeBytes, blobKey, blobSizeBytes, lastAccessMillis, sequence);
+    }
+  }
+
+  private static class Blob {
+    private final long sizeBytes;
+    private int references = 0;
+
+    private Blob(long sizeBytes) {
+      this.sizeBytes = sizeBytes;
+    }
+  }
+}
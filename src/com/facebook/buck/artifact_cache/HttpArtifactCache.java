@@ -20,6 +20,8 @@ import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.slb.HttpResponse;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
 import java.io.DataInputStream;
@@ -30,6 +32,7 @@ import java.net.HttpURLConnection;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.List;
+import java.util.Optional;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -47,8 +50,19 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
    */
   private static final Logger LOG = Logger.get(HttpArtifactCache.class);
 
+  private final int multiFetchLimit;
+  private final int concurrencyLevel;
+  // Cleared when the server turns out not to implement the multi-fetch endpoint.
+  private volatile boolean multiFetchSupported = true;
+
   public HttpArtifactCache(NetworkCacheArgs args) {
+    this(args, 0, 0);
+  }
+
+  public HttpArtifactCache(NetworkCacheArgs args, int multiFetchLimit, int concurrencyLevel) {
     super(args);
+    this.multiFetchLimit = multiFetchLimit;
+    this.concurrencyLevel = concurrencyLevel;
   }
 
   @Override
@@ -76,55 +90,66 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
           return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
         }
 
-        // Setup a temporary file, which sits next to the destination, to write to and
-        // make sure all parent dirs exist.
-        Path file = output.get();
-        getProjectFilesystem().createParentDirs(file);
-        Path temp =
-            getProjectFilesystem()
-                .createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
-
-        FetchResponseReadResult fetchedData;
-        try (OutputStream tempFileOutputStream = getProjectFilesystem().newFileOutputStream(temp)) {
-          fetchedData =
-              HttpArtifactCacheBinaryProtocol.readFetchResponse(input, tempFileOutputStream);
-        }
+        return readFetchResponse(response.requestUrl(), ruleKey, output, input, resultBuilder);
+      }
+    }
+  }
 
-        resultBuilder
-            .setBuildTarget(ArtifactCacheEvent.getTarget(fetchedData.getMetadata()))
-            .setResponseSizeBytes(fetchedData.getResponseSizeBytes())
-            .setArtifactContentHash(fetchedData.getArtifactOnlyHashCode().toString());
+  /** Reads a fetch response from {@code input} into {@code output}. */
+  private FetchResult readFetchResponse(
+      String requestUrl,
+      RuleKey ruleKey,
+      LazyPath output,
+      DataInputStream input,
+      FetchResult.Builder resultBuilder)
+      throws IOException {
+    // Setup a temporary file, which sits next to the destination, to write to and
+    // make sure all parent dirs exist.
+    Path file = output.get();
+    getProjectFilesystem().createParentDirs(file);
+    Path temp =
+        getProjectFilesystem()
+            .createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
 
-        // Verify that we were one of the rule keys that stored this artifact.
-        if (!fetchedData.getRuleKeys().contains(ruleKey)) {
-          String msg = "incorrect key name";
-          reportFailureWithFormatKey("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
-        }
+    FetchResponseReadResult fetchedData;
+    try (OutputStream tempFileOutputStream = getProjectFilesystem().newFileOutputStream(temp)) {
+      fetchedData = HttpArtifactCacheBinaryProtocol.readFetchResponse(input, tempFileOutputStream);
+    }
 
-        // Now form the checksum on the file we got and compare it to the checksum form the
-        // the HTTP header.  If it's incorrect, log this and return a miss.
-        if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
-          String msg = "artifact had invalid checksum";
-          reportFailureWithFormatKey("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          getProjectFilesystem().deleteFileAtPath(temp);
-          return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
-        }
+    resultBuilder
+        .setBuildTarget(ArtifactCacheEvent.getTarget(fetchedData.getMetadata()))
+        .setResponseSizeBytes(fetchedData.getResponseSizeBytes())
+        .setArtifactContentHash(fetchedData.getArtifactOnlyHashCode().toString());
 
-        // Finally, move the temp file into it's final place.
-        getProjectFilesystem().move(temp, file, StandardCopyOption.REPLACE_EXISTING);
-
-        LOG.info("fetch(%s, %s): cache hit", response.requestUrl(), ruleKey);
-        return resultBuilder
-            .setCacheResult(
-                CacheResult.hit(
-                    getName(),
-                    getMode(),
-                    fetchedData.getMetadata(),
-                    fetchedData.getResponseSizeBytes()))
-            .build();
-      }
+    // Verify that we were one of the rule keys that stored this artifact.
+    if (!fetchedData.getRuleKeys().contains(ruleKey)) {
+      String msg = "incorrect key name";
+      reportFailureWithFormatKey("fetch(%s, %s): %s", requestUrl, ruleKey, msg);
+      getProjectFilesystem().deleteFileAtPath(temp);
+      return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
     }
+
+    // Now form the checksum on the file we got and compare it to the checksum form the
+    // the HTTP header.  If it's incorrect, log this and return a miss.
+    if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
+      String msg = "artifact had invalid checksum";
+      reportFailureWithFormatKey("fetch(%s, %s): %s", requestUrl, ruleKey, msg);
+      getProjectFilesystem().deleteFileAtPath(temp);
+      return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
+    }
+
+    // Finally, move the temp file into it's final place.
+    getProjectFilesystem().move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+
+    LOG.info("fetch(%s, %s): cache hit", requestUrl, ruleKey);
+    return resultBuilder
+        .setCacheResult(
+            CacheResult.hit(
+                getName(),
+                getMode(),
+                fetchedData.getMetadata(),
+                fetchedData.getResponseSizeBytes()))
+        .build();
   }
 
   @Override
@@ -193,9 +218,94 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
     throw new RuntimeException("Delete operation is not yet supported");
   }
 
+  @Override
+  protected int getMultiFetchBatchSize(int pendingRequestsSize) {
+    if (multiFetchSupported && multiFetchLimit > 0 && concurrencyLevel > 0) {
+      return Math.min(multiFetchLimit, 1 + pendingRequestsSize / concurrencyLevel);
+    }
+    return 0;
+  }
+
   @Override
   protected MultiFetchResult multiFetchImpl(
-      Iterable<AbstractAsynchronousCache.FetchRequest> requests) {
-    throw new RuntimeException("multiFetch not supported");
+      Iterable<AbstractAsynchronousCache.FetchRequest> requests) throws IOException {
+    ImmutableList<FetchRequest> fetchRequests = ImmutableList.copyOf(requests);
+    ImmutableList<RuleKey> keys =
+        fetchRequests
+            .stream()
+            .map(FetchRequest::getRuleKey)
+            .collect(ImmutableList.toImmutableList());
+    String joinedKeys = Joiner.on(", ").join(keys);
+    LOG.verbose("Will fetch keys <%s>", joinedKeys);
+
+    Request.Builder requestBuilder =
+        new Request.Builder()
+            .post(
+                RequestBody.create(
+                    OCTET_STREAM_CONTENT_TYPE,
+                    HttpArtifactCacheBinaryProtocol.createMultiFetchRequest(keys)));
+    try (HttpResponse response =
+        fetchClient.makeRequest(HttpArtifactCacheBinaryProtocol.MULTI_FETCH_PATH, requestBuilder)) {
+      ImmutableList.Builder<FetchResult> results =
+          ImmutableList.builderWithExpectedSize(keys.size());
+      try (DataInputStream input =
+          new DataInputStream(new FullyReadOnCloseInputStream(response.getBody()))) {
+
+        if (response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND
+            || response.statusCode() == HttpURLConnection.HTTP_BAD_METHOD) {
+          LOG.info(
+              "multifetch(%s): not supported by the server [%d:%s], falling back to fetch",
+              response.requestUrl(), response.statusCode(), response.statusMessage());
+          multiFetchSupported = false;
+          return fetchEach(fetchRequests);
+        }
+
+        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+          String msg =
+              String.format(
+                  "unexpected server response: [%d:%s]",
+                  response.statusCode(), response.statusMessage());
+          reportFailureWithFormatKey(
+              "multifetch(%s, <%s>): %s", response.requestUrl(), joinedKeys, msg);
+          CacheResult cacheResult = CacheResult.error(getName(), getMode(), msg);
+          for (int i = 0; i < keys.size(); i++) {
+            results.add(FetchResult.builder().setCacheResult(cacheResult).build());
+          }
+          return MultiFetchResult.of(results.build());
+        }
+
+        // The artifacts are streamed back in the order of the keys, so that each one is written
+        // to its output as soon as it arrives.
+        for (FetchRequest request : fetchRequests) {
+          Optional<DataInputStream> artifact =
+              HttpArtifactCacheBinaryProtocol.readMultiFetchResponseFrame(input);
+          if (!artifact.isPresent()) {
+            LOG.info("multifetch(%s, %s): cache miss", response.requestUrl(), request.getRuleKey());
+            results.add(FetchResult.builder().setCacheResult(CacheResult.miss()).build());
+            continue;
+          }
+          try (DataInputStream frame = artifact.get()) {
+            results.add(
+                readFetchResponse(
+                    response.requestUrl(),
+                    request.getRuleKey(),
+                    request.getOutput(),
+                    frame,
+                    FetchResult.builder()));
+          }
+        }
+      }
+      return MultiFetchResult.of(results.build());
+    }
+  }
+
+  /** Fetches each of {@code requests} on its own, for servers that can't multi-fetch. */
+  private MultiFetchResult fetchEach(ImmutableList<FetchRequest> requests) throws IOException {
+    ImmutableList.Builder<FetchResult> results =
+        ImmutableList.builderWithExpectedSize(requests.size());
+    for (FetchRequest request : requests) {
+      results.add(fetchImpl(request.getRuleKey(), request.getOutput()));
+    }
+    return MultiFetchResult.of(results.build());
   }
 }
@@ -22,6 +22,7 @@ import com.facebook.buck.util.hash.HasherInputStream;
 import com.facebook.buck.util.hash.HasherOutputStream;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
@@ -34,10 +35,12 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Map;
+import java.util.Optional;
 import org.immutables.value.Value;
 
 /** Implements the binary protocol used by Buck to talk to the cache server. */
@@ -47,6 +50,11 @@ public class HttpArtifactCacheBinaryProtocol {
   // 64MB should be enough for everyone.
   private static final long MAX_METADATA_HEADER_SIZE = 64 * 1024 * 1024;
 
+  /** Path of the endpoint which fetches several artifacts with a single request. */
+  public static final String MULTI_FETCH_PATH = "/artifacts/multifetch";
+  // Size of the frame of an artifact which isn't in the cache, in a multi-fetch response.
+  private static final long MULTI_FETCH_MISS = -1;
+
   private HttpArtifactCacheBinaryProtocol() {
     // Utility class, don't instantiate.
   }
@@ -61,6 +69,54 @@ public class HttpArtifactCacheBinaryProtocol {
     return result.build();
   }
 
+  /** @return the body of a multi-fetch request, which lists the keys to fetch. */
+  public static byte[] createMultiFetchRequest(ImmutableList<RuleKey> ruleKeys) throws IOException {
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out)) {
+      data.writeInt(ruleKeys.size());
+      for (RuleKey ruleKey : ruleKeys) {
+        data.writeUTF(ruleKey.toString());
+      }
+      return out.toByteArray();
+    }
+  }
+
+  public static ImmutableList<RuleKey> readMultiFetchRequest(DataInputStream input)
+      throws IOException {
+    int ruleKeysCount = input.readInt();
+    ImmutableList.Builder<RuleKey> ruleKeys = ImmutableList.builderWithExpectedSize(ruleKeysCount);
+    for (int i = 0; i < ruleKeysCount; i++) {
+      ruleKeys.add(new RuleKey(input.readUTF()));
+    }
+    return ruleKeys.build();
+  }
+
+  /**
+   * A multi-fetch response holds a frame for each requested key, in order: either a miss, or the
+   * size of a fetch response followed by it. This writes a miss.
+   */
+  public static void writeMultiFetchMiss(DataOutputStream responseSink) throws IOException {
+    responseSink.writeLong(MULTI_FETCH_MISS);
+  }
+
+  /**
+   * Reads the start of the next frame of a multi-fetch response.
+   *
+   * @return the fetch response of the artifact, to read with {@link #readFetchResponse}, or empty
+   *     if the artifact wasn't found. Closing it skips to the next frame.
+   */
+  public static Optional<DataInputStream> readMultiFetchResponseFrame(DataInputStream input)
+      throws IOException {
+    long size = input.readLong();
+    if (size == MULTI_FETCH_MISS) {
+      return Optional.empty();
+    }
+    if (size < 0) {
+      throw new IOException(String.format("Invalid multi-fetch frame size of %d.", size));
+    }
+    return Optional.of(new DataInputStream(new FrameInputStream(ByteStreams.limit(input, size))));
+  }
+
   public static StoreResponseReadResult readStoreRequest(
       DataInputStream input, OutputStream payloadSink) throws IOException {
     ImmutableSet.Builder<RuleKey> rawRuleKeys = ImmutableSet.builder();
@@ -252,6 +308,26 @@ public class HttpArtifactCacheBinaryProtocol {
         payloadSource.copyTo(responseSink);
       }
     }
+
+    /** Writes this as a frame of a multi-fetch response, leaving the sink open for the next. */
+    public void writeMultiFetchFrame(DataOutputStream responseSink) throws IOException {
+      responseSink.writeLong(contentLength);
+      responseSink.writeInt(rawMetadata.length);
+      responseSink.write(rawMetadata);
+      payloadSource.copyTo(responseSink);
+    }
+  }
+
+  /** A frame of a multi-fetch response, which skips to the next frame rather than closing. */
+  private static class FrameInputStream extends FilterInputStream {
+    private FrameInputStream(InputStream frame) {
+      super(frame);
+    }
+
+    @Override
+    public void close() throws IOException {
+      ByteStreams.exhaust(in);
+    }
   }
 
   abstract static class MetadataAndPayloadReadResult {
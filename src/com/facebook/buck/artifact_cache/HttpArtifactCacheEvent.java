@@ -308,6 +308,10 @@ public abstract class HttpArtifactCacheEvent extends ArtifactCacheEvent {
     Optional<String> getErrorMessage();
 
     StoreType getStoreType();
+
+    Optional<Long> getStoreQueueBytes();
+
+    Optional<Long> getStoreQueueDrainBytesPerSecond();
   }
 
   static class MultiFetchStarted extends Started {
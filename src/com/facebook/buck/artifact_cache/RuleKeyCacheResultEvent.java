@@ -21,11 +21,18 @@ import com.facebook.buck.event.EventKey;
 public class RuleKeyCacheResultEvent extends AbstractBuckEvent {
   private final RuleKeyCacheResult ruleKeyCacheResult;
   private final boolean cacheHitExpected;
+  private final boolean missPredicted;
 
   public RuleKeyCacheResultEvent(RuleKeyCacheResult ruleKeyCacheResult, boolean cacheHitExpected) {
+    this(ruleKeyCacheResult, cacheHitExpected, /* missPredicted */ false);
+  }
+
+  public RuleKeyCacheResultEvent(
+      RuleKeyCacheResult ruleKeyCacheResult, boolean cacheHitExpected, boolean missPredicted) {
     super(EventKey.unique());
     this.ruleKeyCacheResult = ruleKeyCacheResult;
     this.cacheHitExpected = cacheHitExpected;
+    this.missPredicted = missPredicted;
   }
 
   public RuleKeyCacheResult getRuleKeyCacheResult() {
@@ -45,4 +52,12 @@ public class RuleKeyCacheResultEvent extends AbstractBuckEvent {
   public boolean isCacheHitExpected() {
     return cacheHitExpected;
   }
+
+  /**
+   * @return whether the remote tiers of the cache were skipped because the lookup was predicted to
+   *     miss them, in which case only the local tiers were looked up.
+   */
+  public boolean isMissPredicted() {
+    return missPredicted;
+  }
 }
@@ -29,6 +29,7 @@ import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.file.MostFiles;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.sqlite.RetryBusyHandler;
 import com.facebook.buck.util.sqlite.SQLiteUtils;
 import com.facebook.buck.util.types.Pair;
@@ -42,6 +43,8 @@ import com.google.common.hash.HashCode;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -58,12 +61,17 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
 import org.sqlite.BusyHandler;
 import org.sqlite.SQLiteConfig;
@@ -85,6 +93,10 @@ public class SQLiteArtifactCache implements ArtifactCache {
   private static final String TMP_EXTENSION = ".tmp";
   private static final long DEFAULT_MAX_INLINED_BYTES = 40;
   private static final Duration DEFAULT_EVICTION_TIME = Duration.ofDays(7);
+  // How many fetched entries to remember before writing their access times to the database.
+  private static final int ACCESS_TIME_FLUSH_THRESHOLD = 1000;
+  // How long closing the cache waits for a background eviction, which it redoes anyway.
+  private static final long EVICTION_SHUTDOWN_TIMEOUT_SECONDS = 5;
 
   private final String name;
   private final ProjectFilesystem filesystem;
@@ -97,6 +109,14 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
   private final ConnectionInfo db;
 
+  // Access times only matter for eviction, so they're written in batches rather than with a write
+  // transaction per fetch.
+  private final Set<RuleKey> accessedMetadata = ConcurrentHashMap.newKeySet();
+  private final Set<RuleKey> accessedContent = ConcurrentHashMap.newKeySet();
+
+  private final ListeningExecutorService evictionExecutorService;
+  private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+
   static {
     SQLiteUtils.initialize();
   }
@@ -110,6 +130,29 @@ public class SQLiteArtifactCache implements ArtifactCache {
       Optional<Long> maxInlinedSizeBytes,
       CacheReadMode cacheMode)
       throws IOException, SQLException {
+    this(
+        name,
+        filesystem,
+        cacheDir,
+        eventBus,
+        maxCacheSizeBytes,
+        maxInlinedSizeBytes,
+        cacheMode,
+        MoreExecutors.listeningDecorator(
+            MostExecutors.newSingleThreadExecutor("SQLite cache eviction")));
+  }
+
+  @VisibleForTesting
+  SQLiteArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      BuckEventBus eventBus,
+      Optional<Long> maxCacheSizeBytes,
+      Optional<Long> maxInlinedSizeBytes,
+      CacheReadMode cacheMode,
+      ListeningExecutorService evictionExecutorService)
+      throws IOException, SQLException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
@@ -119,6 +162,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
         maxCacheSizeBytes.map(size -> (long) (size * MAX_BYTES_TRIM_RATIO));
     this.maxInlinedBytes = maxInlinedSizeBytes.orElse(DEFAULT_MAX_INLINED_BYTES);
     this.cacheMode = cacheMode;
+    this.evictionExecutorService = evictionExecutorService;
 
     try {
       Class.forName("org.sqlite.JDBC");
@@ -188,7 +232,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
         }
 
         long size = content.get().size;
-        db.accessContent(contentHash);
+        recordAccess(accessedContent, contentHash);
 
         return result = CacheResult.hit(name, CACHE_MODE, ImmutableMap.of(), size);
       }
@@ -215,7 +259,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
     try {
       Optional<byte[]> metadata = db.selectMetadata(ruleKey);
       if (metadata.isPresent()) {
-        db.accessMetadata(ruleKey);
+        recordAccess(accessedMetadata, ruleKey);
         output.get(); // for MultiArtifactCache, force evaluation of the output path
 
         return result = CacheResult.hit(name, CACHE_MODE, unmarshalMetadata(metadata.get()), 0);
@@ -310,6 +354,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
         db.storeFilepath(toStore, artifactPath.toString(), size);
       }
+      scheduleEviction();
     } catch (IOException | SQLException e) {
       LOG.warn(e, "Artifact store(%s, %s) error", contentHashes, content);
     }
@@ -317,6 +362,58 @@ public class SQLiteArtifactCache implements ArtifactCache {
     return Futures.immediateFuture(null);
   }
 
+  private void recordAccess(Set<RuleKey> accessed, RuleKey key) {
+    accessed.add(key);
+    if (accessed.size() >= ACCESS_TIME_FLUSH_THRESHOLD) {
+      flushAccessTimes();
+    }
+  }
+
+  /** Writes the access times of everything fetched since the last flush to the database. */
+  @VisibleForTesting
+  void flushAccessTimes() {
+    ImmutableList<RuleKey> metadataKeys = drain(accessedMetadata);
+    ImmutableList<RuleKey> contentHashes = drain(accessedContent);
+    if (metadataKeys.isEmpty() && contentHashes.isEmpty()) {
+      return;
+    }
+
+    try {
+      db.access(metadataKeys, contentHashes);
+    } catch (SQLException e) {
+      LOG.warn(
+          e,
+          "Failed to record access of %d metadata and %d content entries",
+          metadataKeys.size(),
+          contentHashes.size());
+    }
+  }
+
+  private static ImmutableList<RuleKey> drain(Set<RuleKey> keys) {
+    ImmutableList.Builder<RuleKey> drained = ImmutableList.builder();
+    Iterator<RuleKey> iterator = keys.iterator();
+    while (iterator.hasNext()) {
+      drained.add(iterator.next());
+      iterator.remove();
+    }
+    return drained.build();
+  }
+
+  // Trims the cache on a background thread as stores push it over its size limit, so that neither
+  // fetches nor the end of the build wait on eviction. Stores that arrive while an eviction is
+  // pending don't queue another one.
+  private void scheduleEviction() {
+    if (!maxCacheSizeBytes.isPresent() || !evictionScheduled.compareAndSet(false, true)) {
+      return;
+    }
+
+    evictionExecutorService.submit(
+        () -> {
+          evictionScheduled.set(false);
+          removeOldContent();
+        });
+  }
+
   private ImmutableSet<RuleKey> notPreexisting(ImmutableSet<RuleKey> contentHashes)
       throws SQLException {
     ImmutableSet.Builder<RuleKey> builder = ImmutableSet.builder();
@@ -328,7 +425,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
         String artifactPath = existingArtifact.get().filepath;
 
         if (Objects.nonNull(inlined) || filesystem.exists(filesystem.resolve(artifactPath))) {
-          db.accessContent(contentHash);
+          recordAccess(accessedContent, contentHash);
           continue;
         }
       }
@@ -427,6 +524,9 @@ public class SQLiteArtifactCache implements ArtifactCache {
       return Futures.immediateFuture(null);
     }
 
+    // Eviction goes by access time, so it has to see what has been fetched so far.
+    flushAccessTimes();
+
     try {
       Pair<Iterable<String>, Timestamp> contentToEvict =
           db.getContentToEvict(totalSizeBytes - maxBytesAfterDeletion.get());
@@ -453,6 +553,12 @@ public class SQLiteArtifactCache implements ArtifactCache {
   @Override
   public void close() {
     try (SimplePerfEvent.Scope ignored = SimplePerfEvent.scope(eventBus, "sqlite_cache_clean")) {
+      if (!MostExecutors.shutdown(
+          evictionExecutorService, EVICTION_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.info("Interrupting the background eviction of %s.", name);
+        evictionExecutorService.shutdownNow();
+      }
+      flushAccessTimes();
       Futures.allAsList(removeOldMetadata(), removeOldContent()).get();
     } catch (ExecutionException | InterruptedException e) {
       LOG.error("Failed to clean SQLite cache");
@@ -496,6 +602,11 @@ public class SQLiteArtifactCache implements ArtifactCache {
     stmt.executeUpdate();
   }
 
+  @VisibleForTesting
+  long contentSize() throws SQLException {
+    return db.totalSize();
+  }
+
   @VisibleForTesting
   ImmutableList<RuleKey> directoryFileContentHashes() throws SQLException {
     ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
@@ -599,6 +710,38 @@ public class SQLiteArtifactCache implements ArtifactCache {
                   + "OR artifact ISNULL AND filepath NOT NULL)) "
                   + "WITHOUT ROWID");
 
+      // The total size of the content is kept up to date by triggers, so that checking whether the
+      // cache needs trimming doesn't scan the whole table. Being in the database, it also counts
+      // what other processes sharing the cache store and evict. Databases created before this get
+      // the table filled in from their existing content.
+      connection.createStatement().executeUpdate("BEGIN IMMEDIATE");
+      try {
+        connection
+            .createStatement()
+            .executeUpdate(
+                "CREATE TABLE IF NOT EXISTS content_size "
+                    + "(id INTEGER PRIMARY KEY CHECK (id = 0), size INTEGER NOT NULL)");
+        connection
+            .createStatement()
+            .executeUpdate(
+                "INSERT OR IGNORE INTO content_size (id, size) "
+                    + "SELECT 0, IFNULL(sum(size), 0) FROM content");
+        connection
+            .createStatement()
+            .executeUpdate(
+                "CREATE TRIGGER IF NOT EXISTS content_size_insert AFTER INSERT ON content "
+                    + "BEGIN UPDATE content_size SET size = size + NEW.size WHERE id = 0; END");
+        connection
+            .createStatement()
+            .executeUpdate(
+                "CREATE TRIGGER IF NOT EXISTS content_size_delete AFTER DELETE ON content "
+                    + "BEGIN UPDATE content_size SET size = size - OLD.size WHERE id = 0; END");
+        connection.createStatement().executeUpdate("COMMIT");
+      } catch (SQLException e) {
+        connection.createStatement().executeUpdate("ROLLBACK");
+        throw e;
+      }
+
       fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
       fetchContent =
           connection.prepareStatement(
@@ -630,7 +773,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
           connection.prepareStatement("DELETE FROM content WHERE accessed < ?");
       deleteContentForHash = connection.prepareStatement("DELETE FROM content WHERE sha1 = ?");
 
-      contentSize = connection.prepareStatement("SELECT sum(size) FROM content");
+      contentSize = connection.prepareStatement("SELECT size FROM content_size WHERE id = 0");
 
       BusyHandler.setHandler(connection, new RetryBusyHandler());
     }
@@ -649,14 +792,27 @@ public class SQLiteArtifactCache implements ArtifactCache {
           : Optional.empty();
     }
 
-    private synchronized void accessMetadata(RuleKey ruleKey) throws SQLException {
-      updateMetadataTime.setBytes(1, getBytes(ruleKey));
-      updateMetadataTime.executeUpdate();
-    }
-
-    private synchronized void accessContent(RuleKey contentHash) throws SQLException {
-      updateContentTime.setBytes(1, getBytes(contentHash));
-      updateContentTime.executeUpdate();
+    private synchronized void access(
+        Iterable<RuleKey> ruleKeys, Iterable<RuleKey> contentHashes) throws SQLException {
+      connection.setAutoCommit(false);
+      try {
+        for (RuleKey ruleKey : ruleKeys) {
+          updateMetadataTime.setBytes(1, getBytes(ruleKey));
+          updateMetadataTime.addBatch();
+        }
+        updateMetadataTime.executeBatch();
+        for (RuleKey contentHash : contentHashes) {
+          updateContentTime.setBytes(1, getBytes(contentHash));
+          updateContentTime.addBatch();
+        }
+        updateContentTime.executeBatch();
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
     }
 
     private synchronized void storeMetadata(ImmutableSet<RuleKey> ruleKeys, byte[] metadata)
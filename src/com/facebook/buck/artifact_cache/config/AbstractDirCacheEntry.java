@@ -31,4 +31,10 @@ abstract class AbstractDirCacheEntry {
   public abstract Optional<Long> getMaxSizeBytes();
 
   public abstract CacheReadMode getCacheReadMode();
+
+  /** Whether artifacts with the same contents are stored once and hardlinked to by rule key. */
+  @Value.Default
+  public boolean isContentAddressed() {
+    return false;
+  }
 }
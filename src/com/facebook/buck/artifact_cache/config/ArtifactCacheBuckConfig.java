@@ -80,13 +80,15 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String HTTP_MAX_FETCH_RETRIES = "http_max_fetch_retries";
   private static final String HTTP_MAX_STORE_ATTEMPTS = "http_max_store_attempts";
   private static final String HTTP_STORE_RETRY_INTERVAL_MILLIS = "http_store_retry_interval_millis";
+  private static final String HTTP_MAX_QUEUED_STORE_BYTES = "http_max_queued_store_bytes";
 
   private static final String DIR_FIELD = "dir";
   private static final String DIR_MODE_FIELD = "dir_mode";
   private static final String DIR_MAX_SIZE_FIELD = "dir_max_size";
+  private static final String DIR_CONTENT_ADDRESSED_FIELD = "dir_content_addressed";
   private static final String DIR_CACHE_NAMES_FIELD_NAME = "dir_cache_names";
   private static final ImmutableSet<String> DIR_CACHE_DESCRIPTION_FIELDS =
-      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD);
+      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD, DIR_CONTENT_ADDRESSED_FIELD);
 
   private static final URI DEFAULT_HTTP_URL = URI.create("http://localhost:8080/");
   private static final String DEFAULT_HTTP_CACHE_MODE = CacheReadMode.READWRITE.name();
@@ -134,6 +136,7 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   public static final String MULTI_FETCH = "multi_fetch";
   private static final String MULTI_FETCH_LIMIT = "multi_fetch_limit";
   private static final int DEFAULT_MULTI_FETCH_LIMIT = 100;
+  private static final String HTTP_MULTI_FETCH = "http_multi_fetch";
 
   private static final String DOWNLOAD_HEAVY_BUILD_CACHE_FETCH_THREADS =
       "download_heavy_build_http_cache_fetch_threads";
@@ -181,6 +184,10 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .orElse(DEFAULT_MULTI_FETCH_LIMIT);
   }
 
+  public boolean getHttpMultiFetchEnabled() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, HTTP_MULTI_FETCH, false);
+  }
+
   public String getRepository() {
     return buckConfig.getValue(CACHE_SECTION_NAME, REPOSITORY).orElse(DEFAULT_REPOSITORY);
   }
@@ -217,6 +224,12 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
             .orElse(DEFAULT_HTTP_WRITE_SHUTDOWN_TIMEOUT_SECONDS));
   }
 
+  public Optional<Long> getHttpMaxQueuedStoreBytes() {
+    return buckConfig
+        .getValue(CACHE_SECTION_NAME, HTTP_MAX_QUEUED_STORE_BYTES)
+        .map(SizeUnit::parseBytes);
+  }
+
   public int getMaxFetchRetries() {
     return buckConfig
         .getInteger(CACHE_SECTION_NAME, HTTP_MAX_FETCH_RETRIES)
@@ -443,6 +456,8 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .setCacheDir(pathToCacheDir)
         .setCacheReadMode(readMode)
         .setMaxSizeBytes(maxSizeBytes)
+        .setContentAddressed(
+            buckConfig.getBooleanValue(section, DIR_CONTENT_ADDRESSED_FIELD, false))
         .build();
   }
 
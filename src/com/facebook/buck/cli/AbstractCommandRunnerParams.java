@@ -18,6 +18,8 @@ package com.facebook.buck.cli;
 import com.facebook.buck.artifact_cache.ArtifactCacheFactory;
 import com.facebook.buck.command.BuildExecutorArgs;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory;
+import com.facebook.buck.core.build.stats.RuleTypeMemoryHistory;
 import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.config.BuckConfig;
 import com.facebook.buck.core.model.actiongraph.computation.ActionGraphCache;
@@ -34,6 +36,7 @@ import com.facebook.buck.module.BuckModuleManager;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
+import com.facebook.buck.rules.keys.RuleKeyCacheSnapshotter;
 import com.facebook.buck.rules.keys.config.RuleKeyConfiguration;
 import com.facebook.buck.step.ExecutorPool;
 import com.facebook.buck.util.CloseableMemoizedSupplier;
@@ -160,6 +163,18 @@ public abstract class AbstractCommandRunnerParams {
   @Value.Parameter
   public abstract CloseableMemoizedSupplier<ForkJoinPool> getPoolSupplier();
 
+  /** Durations of build rules recorded by previous commands, if the history is enabled. */
+  @Value.Parameter
+  public abstract Optional<BuildRuleDurationHistory> getBuildRuleDurationHistory();
+
+  /** Peak memory of rule types recorded by previous commands, if a memory budget is set. */
+  @Value.Parameter
+  public abstract Optional<RuleTypeMemoryHistory> getRuleTypeMemoryHistory();
+
+  /** Persists the default rule key cache between daemons, if enabled. */
+  @Value.Parameter
+  public abstract Optional<RuleKeyCacheSnapshotter> getRuleKeyCacheSnapshotter();
+
   /**
    * Create {@link BuildExecutorArgs} using this {@link CommandRunnerParams}.
    *
@@ -177,6 +192,8 @@ public abstract class AbstractCommandRunnerParams {
         .setBuildInfoStoreManager(getBuildInfoStoreManager())
         .setArtifactCacheFactory(getArtifactCacheFactory())
         .setRuleKeyConfiguration(getRuleKeyConfiguration())
+        .setBuildRuleDurationHistory(getBuildRuleDurationHistory())
+        .setRuleTypeMemoryHistory(getRuleTypeMemoryHistory())
         .build();
   }
 }
@@ -35,6 +35,7 @@ import com.facebook.buck.core.build.distributed.synchronization.impl.NoOpRemoteB
 import com.facebook.buck.core.build.engine.delegate.LocalCachingBuildEngineDelegate;
 import com.facebook.buck.core.build.engine.type.BuildType;
 import com.facebook.buck.core.build.event.BuildEvent;
+import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.config.BuckConfig;
 import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.core.model.BuildTarget;
@@ -43,6 +44,7 @@ import com.facebook.buck.core.model.actiongraph.computation.ActionGraphConfig;
 import com.facebook.buck.core.model.graph.ActionAndTargetGraphs;
 import com.facebook.buck.core.model.targetgraph.TargetGraphAndBuildTargets;
 import com.facebook.buck.core.model.targetgraph.impl.TargetNodeFactory;
+import com.facebook.buck.core.resources.ResourcesConfig;
 import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.core.rulekey.calculator.ParallelRuleKeyCalculator;
 import com.facebook.buck.core.rules.ActionGraphBuilder;
@@ -101,6 +103,7 @@ import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyFactory;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.rules.keys.RuleKeyCacheScope;
+import com.facebook.buck.rules.keys.RuleKeyCacheSnapshotter;
 import com.facebook.buck.rules.keys.RuleKeyFieldLoader;
 import com.facebook.buck.rules.visibility.VisibilityPatternFactory;
 import com.facebook.buck.step.ExecutionContext;
@@ -113,6 +116,7 @@ import com.facebook.buck.util.cache.FileHashCache;
 import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
 import com.facebook.buck.util.json.ObjectMappers;
+import com.facebook.buck.util.perf.MemoryAdmissionController;
 import com.facebook.buck.versions.VersionException;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
@@ -160,6 +164,7 @@ public class BuildCommand extends AbstractCommand {
   private static final String BUILD_REPORT_LONG_ARG = "--build-report";
   private static final String JUST_BUILD_LONG_ARG = "--just-build";
   private static final String DEEP_LONG_ARG = "--deep";
+  private static final String LAZY_LONG_ARG = "--lazy";
   private static final String OUT_LONG_ARG = "--out";
   private static final String POPULATE_CACHE_LONG_ARG = "--populate-cache";
   private static final String SHALLOW_LONG_ARG = "--shallow";
@@ -209,6 +214,15 @@ public class BuildCommand extends AbstractCommand {
       forbids = {SHALLOW_LONG_ARG, DEEP_LONG_ARG})
   private boolean populateCacheOnly = false;
 
+  @Option(
+      name = LAZY_LONG_ARG,
+      usage =
+          "Perform a \"lazy\" build, which makes sure that all transitive dependencies are either"
+              + " in the cache or built locally, but only makes the output of explicitly listed"
+              + " targets available.",
+      forbids = {SHALLOW_LONG_ARG, DEEP_LONG_ARG, POPULATE_CACHE_LONG_ARG})
+  private boolean lazyBuild = false;
+
   @Option(
       name = SHALLOW_LONG_ARG,
       usage =
@@ -311,6 +325,9 @@ public class BuildCommand extends AbstractCommand {
     if (populateCacheOnly) {
       mode = Optional.of(BuildType.POPULATE_FROM_REMOTE_CACHE);
     }
+    if (lazyBuild) {
+      mode = Optional.of(BuildType.LAZY);
+    }
     if (shallowBuild) {
       mode = Optional.of(BuildType.SHALLOW);
     }
@@ -419,7 +436,18 @@ public class BuildCommand extends AbstractCommand {
                 params.getEnvironment(),
                 getArguments())) {
       prehook.startPrehookScript();
-      return run(params, pool, ImmutableSet.of()).getExitCode();
+      Optional<Long> memoryBudget =
+          params.getBuckConfig().getView(ResourcesConfig.class).getMemoryBudget();
+      if (!memoryBudget.isPresent()) {
+        return run(params, pool, ImmutableSet.of()).getExitCode();
+      }
+      try (MemoryAdmissionController memoryAdmissionController =
+          new MemoryAdmissionController(
+              params.getBuckEventBus(),
+              pool.getWeightedListeningExecutorService().getSemaphore(),
+              memoryBudget.get())) {
+        return run(params, pool, ImmutableSet.of()).getExitCode();
+      }
     }
   }
 
@@ -541,8 +569,7 @@ public class BuildCommand extends AbstractCommand {
       distBuildClientStatsTracker.stopTimer(LOCAL_GRAPH_CONSTRUCTION);
 
       try (RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
-          getDefaultRuleKeyCacheScope(
-              params, graphsAndBuildTargets.getGraphs().getActionGraphAndBuilder())) {
+          getDefaultRuleKeyCacheScope(params, graphsAndBuildTargets.getGraphs())) {
         try {
           exitCode =
               executeDistBuild(
@@ -578,8 +605,7 @@ public class BuildCommand extends AbstractCommand {
             createGraphsAndTargets(
                 params, commandThreadManager.getListeningExecutorService(), optionalRuleKeyLogger);
         try (RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
-            getDefaultRuleKeyCacheScope(
-                params, graphsAndBuildTargets.getGraphs().getActionGraphAndBuilder())) {
+            getDefaultRuleKeyCacheScope(params, graphsAndBuildTargets.getGraphs())) {
           exitCode =
               executeLocalBuild(
                   params,
@@ -1486,6 +1512,46 @@ public class BuildCommand extends AbstractCommand {
             params.getBuckConfig().getKeySeed(), actionGraphAndBuilder.getActionGraph()));
   }
 
+  /**
+   * Like {@link #getDefaultRuleKeyCacheScope(CommandRunnerParams, ActionGraphAndBuilder)}, but
+   * also seeds an empty rule key cache from the snapshot persisted by a previous daemon, if any.
+   */
+  private RuleKeyCacheScope<RuleKey> getDefaultRuleKeyCacheScope(
+      CommandRunnerParams params, ActionAndTargetGraphs graphs) {
+    RuleKeyCacheScope<RuleKey> scope =
+        getDefaultRuleKeyCacheScope(params, graphs.getActionGraphAndBuilder());
+    params
+        .getRuleKeyCacheSnapshotter()
+        .ifPresent(
+            snapshotter ->
+                snapshotter.restore(
+                    RuleKeyCacheSnapshotter.getFingerprint(
+                        params.getRuleKeyConfiguration(),
+                        params.getEnvironment(),
+                        params
+                            .getCell()
+                            .getAllCells()
+                            .stream()
+                            .map(cell -> cell.getBuckConfig().getConfig().getRawConfig())
+                            .collect(ImmutableList.toImmutableList()),
+                        params
+                            .getCell()
+                            .getAllCells()
+                            .stream()
+                            .map(Cell::getToolchainProvider)
+                            .collect(ImmutableList.toImmutableList())),
+                    graphs.getActionGraphAndBuilder().getActionGraph(),
+                    graphs.getTargetGraphForLocalBuild().getTargetGraph(),
+                    params.getFileHashCache(),
+                    params
+                        .getCell()
+                        .getAllCells()
+                        .stream()
+                        .map(Cell::getFilesystem)
+                        .collect(ImmutableList.toImmutableList())));
+    return scope;
+  }
+
   @Override
   protected ExecutionContext.Builder getExecutionContextBuilder(CommandRunnerParams params) {
     return super.getExecutionContextBuilder(params)
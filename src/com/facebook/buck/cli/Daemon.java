@@ -19,6 +19,8 @@ package com.facebook.buck.cli;
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactCaches;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
+import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory;
 import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.config.BuckConfig;
 import com.facebook.buck.core.model.actiongraph.computation.ActionGraphCache;
@@ -43,6 +45,7 @@ import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
+import com.facebook.buck.rules.keys.RuleKeyCacheSnapshotter;
 import com.facebook.buck.support.bgtasks.BackgroundTaskManager;
 import com.facebook.buck.support.bgtasks.SynchronousBackgroundTaskManager;
 import com.facebook.buck.util.RichStream;
@@ -80,10 +83,12 @@ final class Daemon implements Closeable {
   private final VersionedTargetGraphCache versionedTargetGraphCache;
   private final ActionGraphCache actionGraphCache;
   private final RuleKeyCacheRecycler<RuleKey> defaultRuleKeyFactoryCacheRecycler;
+  private final Optional<RuleKeyCacheSnapshotter> ruleKeyCacheSnapshotter;
   private final ImmutableMap<Path, WatchmanCursor> cursor;
   private final KnownRuleTypesProvider knownRuleTypesProvider;
 
   private final BackgroundTaskManager bgTaskManager;
+  private final Optional<BuildRuleDurationHistory> buildRuleDurationHistory;
 
   Daemon(
       Cell rootCell,
@@ -130,11 +135,24 @@ final class Daemon implements Closeable {
     parser.register(fileEventBus);
 
     // Build the the rule key cache recycler.
+    boolean persistRuleKeyCache =
+        rootCell
+            .getBuckConfig()
+            .getView(CachingBuildEngineBuckConfig.class)
+            .getPersistRuleKeyCache();
+    DefaultRuleKeyCache<RuleKey> defaultRuleKeyCache =
+        new DefaultRuleKeyCache<>(/* recordProvenance */ persistRuleKeyCache);
     this.defaultRuleKeyFactoryCacheRecycler =
         RuleKeyCacheRecycler.createAndRegister(
             fileEventBus,
-            new DefaultRuleKeyCache<>(),
+            defaultRuleKeyCache,
             RichStream.from(allCells).map(Cell::getFilesystem).toImmutableSet());
+    this.ruleKeyCacheSnapshotter =
+        persistRuleKeyCache
+            ? Optional.of(
+                new RuleKeyCacheSnapshotter(
+                    getRuleKeyCacheSnapshotPath(rootCell.getFilesystem()), defaultRuleKeyCache))
+            : Optional.empty();
 
     if (webServerToReuse.isPresent()) {
       webServer = webServerToReuse;
@@ -156,6 +174,37 @@ final class Daemon implements Closeable {
     persistentWorkerPools = new ConcurrentHashMap<>();
 
     this.bgTaskManager = new SynchronousBackgroundTaskManager(true);
+    this.buildRuleDurationHistory = loadBuildRuleDurationHistory(rootCell);
+  }
+
+  /**
+   * Loads the durations of build rules recorded by previous commands from buck-out, unless the
+   * history is disabled.
+   */
+  static Optional<BuildRuleDurationHistory> loadBuildRuleDurationHistory(Cell rootCell) {
+    int maxEntries =
+        rootCell
+            .getBuckConfig()
+            .getView(CachingBuildEngineBuckConfig.class)
+            .getBuildRuleDurationHistoryMaxEntries();
+    if (maxEntries <= 0) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        BuildRuleDurationHistory.load(
+            getBuildRuleDurationHistoryPath(rootCell.getFilesystem()), maxEntries));
+  }
+
+  static Path getRuleKeyCacheSnapshotPath(ProjectFilesystem filesystem) {
+    return filesystem
+        .resolve(filesystem.getBuckPaths().getBuckOut())
+        .resolve(RuleKeyCacheSnapshotter.SNAPSHOT_FILE_NAME);
+  }
+
+  static Path getBuildRuleDurationHistoryPath(ProjectFilesystem filesystem) {
+    return filesystem
+        .resolve(filesystem.getBuckPaths().getBuckOut())
+        .resolve(BuildRuleDurationHistory.DURATION_HISTORY_FILE_NAME);
   }
 
   Cell getRootCell() {
@@ -231,10 +280,18 @@ final class Daemon implements Closeable {
     return knownRuleTypesProvider;
   }
 
+  Optional<BuildRuleDurationHistory> getBuildRuleDurationHistory() {
+    return buildRuleDurationHistory;
+  }
+
   ConcurrentMap<String, WorkerProcessPool> getPersistentWorkerPools() {
     return persistentWorkerPools;
   }
 
+  Optional<RuleKeyCacheSnapshotter> getRuleKeyCacheSnapshotter() {
+    return ruleKeyCacheSnapshotter;
+  }
+
   RuleKeyCacheRecycler<RuleKey> getDefaultRuleKeyFactoryCacheRecycler() {
     return defaultRuleKeyFactoryCacheRecycler;
   }
@@ -142,11 +142,16 @@ public class FetchCommand extends BuildCommand {
                   cachingBuildEngineBuckConfig.getBuildDepFiles(),
                   cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
                   cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+                  cachingBuildEngineBuckConfig.getSpeculativeCachePrefetchMaxBytes(),
+                  Optional.empty(),
                   actionGraphAndBuilder.getActionGraphBuilder(),
                   sourcePathRuleFinder,
                   DefaultSourcePathResolver.from(sourcePathRuleFinder),
                   params.getBuildInfoStoreManager(),
-                  cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(),
+                  cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(
+                      params.getRuleTypeMemoryHistory()),
+                  cachingBuildEngineBuckConfig.getRuleSchedulingInfo(),
+                  params.getBuildRuleDurationHistory(),
                   cachingBuildEngineBuckConfig.getConsoleLogBuildRuleFailuresInline(),
                   RuleKeyFactories.of(
                       params.getRuleKeyConfiguration(),
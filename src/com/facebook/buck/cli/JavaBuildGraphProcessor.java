@@ -147,11 +147,16 @@ final class JavaBuildGraphProcessor {
                   cachingBuildEngineBuckConfig.getBuildDepFiles(),
                   cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
                   cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+                  cachingBuildEngineBuckConfig.getSpeculativeCachePrefetchMaxBytes(),
+                  Optional.empty(),
                   buildRuleResolver,
                   sourcePathRuleFinder,
                   DefaultSourcePathResolver.from(sourcePathRuleFinder),
                   params.getBuildInfoStoreManager(),
-                  cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(),
+                  cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(
+                      params.getRuleTypeMemoryHistory()),
+                  cachingBuildEngineBuckConfig.getRuleSchedulingInfo(),
+                  params.getBuildRuleDurationHistory(),
                   cachingBuildEngineBuckConfig.getConsoleLogBuildRuleFailuresInline(),
                   RuleKeyFactories.of(
                       params.getRuleKeyConfiguration(),
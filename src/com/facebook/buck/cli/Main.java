@@ -26,6 +26,9 @@ import com.facebook.buck.artifact_cache.ArtifactCaches;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.cli.exceptions.handlers.ExceptionHandlerRegistryFactory;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
+import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory;
+import com.facebook.buck.core.build.stats.RuleTypeMemoryHistory;
 import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.cell.impl.DefaultCellPathResolver;
 import com.facebook.buck.core.cell.impl.LocalCellProviderFactory;
@@ -58,6 +61,7 @@ import com.facebook.buck.event.DaemonEvent;
 import com.facebook.buck.event.DefaultBuckEventBus;
 import com.facebook.buck.event.chrome_trace.ChromeTraceBuckConfig;
 import com.facebook.buck.event.listener.AbstractConsoleEventBusListener;
+import com.facebook.buck.event.listener.BuildRuleDurationHistoryListener;
 import com.facebook.buck.event.listener.BuildTargetDurationListener;
 import com.facebook.buck.event.listener.CacheRateStatsListener;
 import com.facebook.buck.event.listener.ChromeTraceBuildListener;
@@ -72,6 +76,7 @@ import com.facebook.buck.event.listener.ProgressEstimator;
 import com.facebook.buck.event.listener.PublicAnnouncementManager;
 import com.facebook.buck.event.listener.RuleKeyDiagnosticsListener;
 import com.facebook.buck.event.listener.RuleKeyLoggerListener;
+import com.facebook.buck.event.listener.RuleTypeMemoryHistoryListener;
 import com.facebook.buck.event.listener.SimpleConsoleEventBusListener;
 import com.facebook.buck.event.listener.SuperConsoleConfig;
 import com.facebook.buck.event.listener.SuperConsoleEventBusListener;
@@ -113,6 +118,7 @@ import com.facebook.buck.rules.coercer.ConstructorArgMarshaller;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
+import com.facebook.buck.rules.keys.RuleKeyCacheSnapshotter;
 import com.facebook.buck.rules.keys.config.RuleKeyConfiguration;
 import com.facebook.buck.rules.keys.config.impl.ConfigRuleKeyConfigurationFactory;
 import com.facebook.buck.sandbox.SandboxExecutionStrategyFactory;
@@ -120,6 +126,7 @@ import com.facebook.buck.sandbox.impl.PlatformSandboxExecutionStrategyFactory;
 import com.facebook.buck.step.ExecutorPool;
 import com.facebook.buck.support.bgtasks.BackgroundTaskManager;
 import com.facebook.buck.support.bgtasks.BackgroundTaskManager.Notification;
+import com.facebook.buck.support.bgtasks.ImmutableBackgroundTask;
 import com.facebook.buck.support.bgtasks.SynchronousBackgroundTaskManager;
 import com.facebook.buck.test.TestConfig;
 import com.facebook.buck.test.TestResultSummaryVerbosity;
@@ -143,6 +150,8 @@ import com.facebook.buck.util.ProcessManager;
 import com.facebook.buck.util.Scope;
 import com.facebook.buck.util.ThrowingCloseableWrapper;
 import com.facebook.buck.util.Verbosity;
+import com.facebook.buck.util.cache.FileHashCache;
+import com.facebook.buck.util.cache.FileHashCacheMode;
 import com.facebook.buck.util.cache.InstrumentingCacheStatsTracker;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
@@ -840,7 +849,8 @@ public final class Main {
       // times in a single run.
       allCaches.add(
           DefaultFileHashCache.createDefaultFileHashCache(
-              rootCellProjectFilesystem, rootCell.getBuckConfig().getFileHashCacheMode()));
+              rootCellProjectFilesystem,
+              rootCell.getBuckConfig().getFileHashCacheMode().withoutPersistence()));
       allCaches.addAll(
           DefaultFileHashCache.createOsRootDirectoriesCaches(
               projectFilesystemFactory, rootCell.getBuckConfig().getFileHashCacheMode()));
@@ -948,7 +958,11 @@ public final class Main {
                                 "Project", buckConfig.getNumThreads())),
                         ExecutorPool.PROJECT.toString(),
                         EXECUTOR_SERVICES_TIMEOUT_SECONDS);
-            BuildInfoStoreManager storeManager = new BuildInfoStoreManager();
+            BuildInfoStoreManager storeManager =
+                new BuildInfoStoreManager(
+                    buckConfig
+                        .getView(CachingBuildEngineBuckConfig.class)
+                        .getBuildMetadataWriteBehind());
             AbstractConsoleEventBusListener consoleListener =
                 createConsoleEventListener(
                     clock,
@@ -982,7 +996,8 @@ public final class Main {
                         buildEventBus,
                         invocationInfo,
                         daemon.isPresent(),
-                        buckConfig.isProcessTrackerDeepEnabled())
+                        buckConfig.isProcessTrackerDeepEnabled(),
+                        buckConfig.getView(ResourcesConfig.class).getMemoryBudget().isPresent())
                     : null;
             ArtifactCaches artifactCacheFactory =
                 new ArtifactCaches(
@@ -1056,6 +1071,13 @@ public final class Main {
                       .getEventListeners(executors, scheduledExecutorPool.get())
                   : ImmutableList.of();
 
+          Optional<BuildRuleDurationHistory> buildRuleDurationHistory =
+              daemon.isPresent()
+                  ? daemon.get().getBuildRuleDurationHistory()
+                  : Daemon.loadBuildRuleDurationHistory(rootCell);
+          Optional<RuleTypeMemoryHistory> ruleTypeMemoryHistory =
+              loadRuleTypeMemoryHistory(rootCell);
+
           eventListeners =
               addEventListeners(
                   buildEventBus,
@@ -1068,7 +1090,9 @@ public final class Main {
                   consoleListener,
                   counterRegistry,
                   commandEventListeners,
-                  bgTaskManager);
+                  bgTaskManager,
+                  buildRuleDurationHistory,
+                  ruleTypeMemoryHistory);
 
           if (buckConfig.isBuckConfigLocalWarningEnabled() && !console.getVerbosity().isSilent()) {
             ImmutableList<Path> localConfigFiles =
@@ -1228,11 +1252,23 @@ public final class Main {
                         executableFinder,
                         pluginManager,
                         moduleManager,
-                        getForkJoinPoolSupplier(buckConfig)));
+                        getForkJoinPoolSupplier(buckConfig),
+                        buildRuleDurationHistory,
+                        ruleTypeMemoryHistory,
+                        parserAndCaches.getRuleKeyCacheSnapshotter()));
           } catch (InterruptedException | ClosedByInterruptException e) {
             buildEventBus.post(CommandEvent.interrupted(startedEvent, ExitCode.SIGNAL_INTERRUPT));
             throw e;
           }
+          parserAndCaches
+              .getRuleKeyCacheSnapshotter()
+              .ifPresent(
+                  snapshotter ->
+                      scheduleRuleKeyCacheSnapshot(bgTaskManager, snapshotter, fileHashCache));
+          if (rootCell.getBuckConfig().getFileHashCacheMode()
+              == FileHashCacheMode.PERSISTENT_PREFIX_TREE) {
+            scheduleFileHashCacheSave(bgTaskManager, fileHashCache);
+          }
           buildEventBus.post(
               new CacheStatsEvent(
                   "versioned_target_graph_cache",
@@ -1286,6 +1322,8 @@ public final class Main {
     public abstract ActionGraphCache getActionGraphCache();
 
     public abstract Optional<RuleKeyCacheRecycler<RuleKey>> getDefaultRuleKeyFactoryCacheRecycler();
+
+    public abstract Optional<RuleKeyCacheSnapshotter> getRuleKeyCacheSnapshotter();
   }
 
   private static ParserAndCaches getParserAndCaches(
@@ -1337,12 +1375,15 @@ public final class Main {
       registerClientDisconnectedListener(context.get(), daemon);
       daemon.watchFileSystem(buildEventBus, watchmanWatcher, watchmanFreshInstanceAction);
       Optional<RuleKeyCacheRecycler<RuleKey>> defaultRuleKeyFactoryCacheRecycler;
+      Optional<RuleKeyCacheSnapshotter> ruleKeyCacheSnapshotter;
       if (buckConfig.getRuleKeyCaching()) {
         LOG.debug("Using rule key calculation caching");
         defaultRuleKeyFactoryCacheRecycler =
             Optional.of(daemon.getDefaultRuleKeyFactoryCacheRecycler());
+        ruleKeyCacheSnapshotter = daemon.getRuleKeyCacheSnapshotter();
       } else {
         defaultRuleKeyFactoryCacheRecycler = Optional.empty();
+        ruleKeyCacheSnapshotter = Optional.empty();
       }
       parserAndCaches =
           ParserAndCaches.of(
@@ -1351,7 +1392,8 @@ public final class Main {
               new InstrumentedVersionedTargetGraphCache(
                   daemon.getVersionedTargetGraphCache(), new InstrumentingCacheStatsTracker()),
               daemon.getActionGraphCache(),
-              defaultRuleKeyFactoryCacheRecycler);
+              defaultRuleKeyFactoryCacheRecycler,
+              ruleKeyCacheSnapshotter);
     } else {
       TypeCoercerFactory typeCoercerFactory = new DefaultTypeCoercerFactory();
       parserAndCaches =
@@ -1369,7 +1411,8 @@ public final class Main {
               new InstrumentedVersionedTargetGraphCache(
                   new VersionedTargetGraphCache(), new InstrumentingCacheStatsTracker()),
               new ActionGraphCache(buckConfig.getMaxActionGraphCacheEntries()),
-              /* defaultRuleKeyFactoryCacheRecycler */ Optional.empty());
+              /* defaultRuleKeyFactoryCacheRecycler */ Optional.empty(),
+              /* ruleKeyCacheSnapshotter */ Optional.empty());
     }
     return parserAndCaches;
   }
@@ -1677,6 +1720,55 @@ public final class Main {
   }
 
 
+  /**
+   * Loads the peak memory of rule types recorded by previous commands from buck-out, if memory
+   * aware admission is enabled by setting a memory budget.
+   */
+  private static Optional<RuleTypeMemoryHistory> loadRuleTypeMemoryHistory(Cell rootCell) {
+    if (!rootCell.getBuckConfig().getView(ResourcesConfig.class).getMemoryBudget().isPresent()) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        RuleTypeMemoryHistory.load(getRuleTypeMemoryHistoryPath(rootCell.getFilesystem())));
+  }
+
+  /** Saves the rule keys computed by a build after the client has been released. */
+  private static void scheduleRuleKeyCacheSnapshot(
+      BackgroundTaskManager bgTaskManager,
+      RuleKeyCacheSnapshotter snapshotter,
+      FileHashCache fileHashCache) {
+    bgTaskManager.schedule(
+        ImmutableBackgroundTask.<RuleKeyCacheSnapshotter>builder()
+            .setAction(args -> args.saveIfChanged(fileHashCache))
+            .setActionArgs(snapshotter)
+            .build(),
+        "RuleKeyCacheSnapshotter_save");
+  }
+
+  /** Saves the file hashes computed by a command after the client has been released. */
+  private static void scheduleFileHashCacheSave(
+      BackgroundTaskManager bgTaskManager, StackedFileHashCache fileHashCache) {
+    bgTaskManager.schedule(
+        ImmutableBackgroundTask.<StackedFileHashCache>builder()
+            .setAction(
+                args -> {
+                  for (ProjectFileHashCache cache : args.getCaches()) {
+                    if (cache instanceof DefaultFileHashCache) {
+                      ((DefaultFileHashCache) cache).saveIfChanged();
+                    }
+                  }
+                })
+            .setActionArgs(fileHashCache)
+            .build(),
+        "FileHashCache_save");
+  }
+
+  private static Path getRuleTypeMemoryHistoryPath(ProjectFilesystem filesystem) {
+    return filesystem
+        .resolve(filesystem.getBuckPaths().getBuckOut())
+        .resolve(RuleTypeMemoryHistory.MEMORY_HISTORY_FILE_NAME);
+  }
+
   @SuppressWarnings("PMD.PrematureDeclaration")
   private ImmutableList<BuckEventListener> addEventListeners(
       BuckEventBus buckEventBus,
@@ -1689,7 +1781,9 @@ public final class Main {
       AbstractConsoleEventBusListener consoleEventBusListener,
       CounterRegistry counterRegistry,
       Iterable<BuckEventListener> commandSpecificEventListeners,
-      BackgroundTaskManager bgTaskManager) {
+      BackgroundTaskManager bgTaskManager,
+      Optional<BuildRuleDurationHistory> buildRuleDurationHistory,
+      Optional<RuleTypeMemoryHistory> ruleTypeMemoryHistory) {
     ImmutableList.Builder<BuckEventListener> eventListenersBuilder =
         ImmutableList.<BuckEventListener>builder()
             .add(consoleEventBusListener)
@@ -1771,6 +1865,16 @@ public final class Main {
                   new CommandThreadFactory(BuildTargetDurationListener.class.getName())),
               buckConfig.getCriticalPathCount()));
     }
+    buildRuleDurationHistory.ifPresent(
+        history ->
+            eventListenersBuilder.add(
+                new BuildRuleDurationHistoryListener(
+                    history, Daemon.getBuildRuleDurationHistoryPath(projectFilesystem))));
+    ruleTypeMemoryHistory.ifPresent(
+        history ->
+            eventListenersBuilder.add(
+                new RuleTypeMemoryHistoryListener(
+                    history, getRuleTypeMemoryHistoryPath(projectFilesystem))));
     eventListenersBuilder.addAll(commandSpecificEventListeners);
 
     ImmutableList<BuckEventListener> eventListeners = eventListenersBuilder.build();
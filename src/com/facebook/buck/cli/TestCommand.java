@@ -72,6 +72,7 @@ import com.facebook.buck.util.ProcessExecutorParams;
 import com.facebook.buck.util.RichStream;
 import com.facebook.buck.util.concurrent.ConcurrencyLimit;
 import com.facebook.buck.util.json.ObjectMappers;
+import com.facebook.buck.util.perf.MemoryAdmissionController;
 import com.facebook.buck.versions.VersionException;
 import com.facebook.infer.annotation.SuppressFieldNotInitialized;
 import com.google.common.annotations.VisibleForTesting;
@@ -464,219 +465,240 @@ public class TestCommand extends BuildCommand {
 
     try (CommandThreadManager pool =
         new CommandThreadManager("Test", getConcurrencyLimit(params.getBuckConfig())); ) {
-      BuildEvent.Started started = BuildEvent.started(getArguments());
-      params.getBuckEventBus().post(started);
+      Optional<Long> memoryBudget =
+          params.getBuckConfig().getView(ResourcesConfig.class).getMemoryBudget();
+      if (!memoryBudget.isPresent()) {
+        return runWithPool(params, pool);
+      }
+      try (MemoryAdmissionController memoryAdmissionController =
+          new MemoryAdmissionController(
+              params.getBuckEventBus(),
+              pool.getWeightedListeningExecutorService().getSemaphore(),
+              memoryBudget.get())) {
+        return runWithPool(params, pool);
+      }
+    }
+  }
 
-      // The first step is to parse all of the build files. This will populate the parser and find
-      // all of the test rules.
-      TargetGraphAndBuildTargets targetGraphAndBuildTargets;
-      ParserConfig parserConfig = params.getBuckConfig().getView(ParserConfig.class);
+  private ExitCode runWithPool(CommandRunnerParams params, CommandThreadManager pool)
+      throws IOException, InterruptedException {
+    BuildEvent.Started started = BuildEvent.started(getArguments());
+    params.getBuckEventBus().post(started);
 
-      try {
+    // The first step is to parse all of the build files. This will populate the parser and find
+    // all of the test rules.
+    TargetGraphAndBuildTargets targetGraphAndBuildTargets;
+    ParserConfig parserConfig = params.getBuckConfig().getView(ParserConfig.class);
 
-        // If the user asked to run all of the tests, parse all of the build files looking for any
-        // test rules.
-        if (isRunAllTests()) {
-          targetGraphAndBuildTargets =
-              params
-                  .getParser()
-                  .buildTargetGraphForTargetNodeSpecs(
-                      params.getBuckEventBus(),
-                      params.getCell(),
-                      getEnableParserProfiling(),
-                      pool.getListeningExecutorService(),
-                      ImmutableList.of(
-                          TargetNodePredicateSpec.of(
-                                  BuildFileSpec.fromRecursivePath(
-                                      Paths.get(""), params.getCell().getRoot()))
-                              .withOnlyTests(true)),
-                      parserConfig.getDefaultFlavorsMode());
-          targetGraphAndBuildTargets =
-              targetGraphAndBuildTargets.withBuildTargets(ImmutableSet.of());
-
-          // Otherwise, the user specified specific test targets to build and run, so build a graph
-          // around these.
-        } else {
-          LOG.debug("Parsing graph for arguments %s", getArguments());
-          targetGraphAndBuildTargets =
+    try {
+
+      // If the user asked to run all of the tests, parse all of the build files looking for any
+      // test rules.
+      if (isRunAllTests()) {
+        targetGraphAndBuildTargets =
+            params
+                .getParser()
+                .buildTargetGraphForTargetNodeSpecs(
+                    params.getBuckEventBus(),
+                    params.getCell(),
+                    getEnableParserProfiling(),
+                    pool.getListeningExecutorService(),
+                    ImmutableList.of(
+                        TargetNodePredicateSpec.of(
+                                BuildFileSpec.fromRecursivePath(
+                                    Paths.get(""), params.getCell().getRoot()))
+                            .withOnlyTests(true)),
+                    parserConfig.getDefaultFlavorsMode());
+        targetGraphAndBuildTargets =
+            targetGraphAndBuildTargets.withBuildTargets(ImmutableSet.of());
+
+        // Otherwise, the user specified specific test targets to build and run, so build a graph
+        // around these.
+      } else {
+        LOG.debug("Parsing graph for arguments %s", getArguments());
+        targetGraphAndBuildTargets =
+            params
+                .getParser()
+                .buildTargetGraphForTargetNodeSpecs(
+                    params.getBuckEventBus(),
+                    params.getCell(),
+                    getEnableParserProfiling(),
+                    pool.getListeningExecutorService(),
+                    parseArgumentsAsTargetNodeSpecs(
+                        params.getCell().getCellPathResolver(),
+                        params.getBuckConfig(),
+                        getArguments()),
+                    parserConfig.getDefaultFlavorsMode());
+
+        LOG.debug("Got explicit build targets %s", targetGraphAndBuildTargets.getBuildTargets());
+        ImmutableSet.Builder<BuildTarget> testTargetsBuilder = ImmutableSet.builder();
+        for (TargetNode<?> node :
+            targetGraphAndBuildTargets
+                .getTargetGraph()
+                .getAll(targetGraphAndBuildTargets.getBuildTargets())) {
+          ImmutableSortedSet<BuildTarget> nodeTests = TargetNodes.getTestTargetsForNode(node);
+          if (!nodeTests.isEmpty()) {
+            LOG.debug("Got tests for target %s: %s", node.getBuildTarget(), nodeTests);
+            testTargetsBuilder.addAll(nodeTests);
+          }
+        }
+        ImmutableSet<BuildTarget> testTargets = testTargetsBuilder.build();
+        if (!testTargets.isEmpty()) {
+          LOG.debug("Got related test targets %s, building new target graph...", testTargets);
+          Iterable<BuildTarget> allTargets =
+              Iterables.concat(targetGraphAndBuildTargets.getBuildTargets(), testTargets);
+          TargetGraph targetGraph =
               params
                   .getParser()
-                  .buildTargetGraphForTargetNodeSpecs(
+                  .buildTargetGraph(
                       params.getBuckEventBus(),
                       params.getCell(),
                       getEnableParserProfiling(),
                       pool.getListeningExecutorService(),
-                      parseArgumentsAsTargetNodeSpecs(
-                          params.getCell().getCellPathResolver(),
-                          params.getBuckConfig(),
-                          getArguments()),
-                      parserConfig.getDefaultFlavorsMode());
-
-          LOG.debug("Got explicit build targets %s", targetGraphAndBuildTargets.getBuildTargets());
-          ImmutableSet.Builder<BuildTarget> testTargetsBuilder = ImmutableSet.builder();
-          for (TargetNode<?> node :
-              targetGraphAndBuildTargets
-                  .getTargetGraph()
-                  .getAll(targetGraphAndBuildTargets.getBuildTargets())) {
-            ImmutableSortedSet<BuildTarget> nodeTests = TargetNodes.getTestTargetsForNode(node);
-            if (!nodeTests.isEmpty()) {
-              LOG.debug("Got tests for target %s: %s", node.getBuildTarget(), nodeTests);
-              testTargetsBuilder.addAll(nodeTests);
-            }
-          }
-          ImmutableSet<BuildTarget> testTargets = testTargetsBuilder.build();
-          if (!testTargets.isEmpty()) {
-            LOG.debug("Got related test targets %s, building new target graph...", testTargets);
-            Iterable<BuildTarget> allTargets =
-                Iterables.concat(targetGraphAndBuildTargets.getBuildTargets(), testTargets);
-            TargetGraph targetGraph =
-                params
-                    .getParser()
-                    .buildTargetGraph(
-                        params.getBuckEventBus(),
-                        params.getCell(),
-                        getEnableParserProfiling(),
-                        pool.getListeningExecutorService(),
-                        allTargets);
-            LOG.debug("Finished building new target graph with tests.");
-            targetGraphAndBuildTargets = TargetGraphAndBuildTargets.of(targetGraph, allTargets);
-          }
+                      allTargets);
+          LOG.debug("Finished building new target graph with tests.");
+          targetGraphAndBuildTargets = TargetGraphAndBuildTargets.of(targetGraph, allTargets);
         }
-
-        if (params.getBuckConfig().getBuildVersions()) {
-          targetGraphAndBuildTargets = toVersionedTargetGraph(params, targetGraphAndBuildTargets);
-        }
-
-      } catch (BuildFileParseException | VersionException e) {
-        params
-            .getBuckEventBus()
-            .post(ConsoleEvent.severe(MoreExceptions.getHumanReadableOrLocalizedMessage(e)));
-        return ExitCode.PARSE_ERROR;
       }
 
-      ActionGraphAndBuilder actionGraphAndBuilder =
-          params
-              .getActionGraphCache()
-              .getActionGraph(
-                  params.getBuckEventBus(),
-                  targetGraphAndBuildTargets.getTargetGraph(),
-                  params.getCell().getCellProvider(),
-                  params.getBuckConfig().getView(ActionGraphConfig.class),
-                  params.getRuleKeyConfiguration(),
-                  params.getPoolSupplier());
-      // Look up all of the test rules in the action graph.
-      Iterable<TestRule> testRules =
-          Iterables.filter(actionGraphAndBuilder.getActionGraph().getNodes(), TestRule.class);
-
-      // Unless the user requests that we build filtered tests, filter them out here, before
-      // the build.
-      if (!isBuildFiltered(params.getBuckConfig())) {
-        testRules =
-            filterTestRules(
-                params.getBuckConfig(), targetGraphAndBuildTargets.getBuildTargets(), testRules);
+      if (params.getBuckConfig().getBuildVersions()) {
+        targetGraphAndBuildTargets = toVersionedTargetGraph(params, targetGraphAndBuildTargets);
       }
 
-      MetadataChecker.checkAndCleanIfNeeded(params.getCell());
-      CachingBuildEngineBuckConfig cachingBuildEngineBuckConfig =
-          params.getBuckConfig().getView(CachingBuildEngineBuckConfig.class);
-      try (RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
-          getDefaultRuleKeyCacheScope(
-              params,
-              new RuleKeyCacheRecycler.SettingsAffectingCache(
-                  params.getBuckConfig().getKeySeed(), actionGraphAndBuilder.getActionGraph()))) {
-        LocalCachingBuildEngineDelegate localCachingBuildEngineDelegate =
-            new LocalCachingBuildEngineDelegate(params.getFileHashCache());
-        SourcePathRuleFinder sourcePathRuleFinder =
-            new SourcePathRuleFinder(actionGraphAndBuilder.getActionGraphBuilder());
-        try (CachingBuildEngine cachingBuildEngine =
-                new CachingBuildEngine(
-                    localCachingBuildEngineDelegate,
-                    ModernBuildRuleBuilderFactory.getBuildStrategy(
-                        params.getBuckConfig().getView(ModernBuildRuleConfig.class),
-                        actionGraphAndBuilder.getActionGraphBuilder(),
-                        params.getCell(),
-                        params.getCell().getCellPathResolver(),
-                        localCachingBuildEngineDelegate.getFileHashCache(),
-                        params.getBuckEventBus(),
-                        params.getConsole()),
-                    pool.getWeightedListeningExecutorService(),
-                    new DefaultStepRunner(),
-                    getBuildEngineMode().orElse(cachingBuildEngineBuckConfig.getBuildEngineMode()),
-                    cachingBuildEngineBuckConfig.getBuildMetadataStorage(),
-                    cachingBuildEngineBuckConfig.getBuildDepFiles(),
-                    cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
-                    cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
-                    actionGraphAndBuilder.getActionGraphBuilder(),
-                    sourcePathRuleFinder,
-                    DefaultSourcePathResolver.from(sourcePathRuleFinder),
-                    params.getBuildInfoStoreManager(),
-                    cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(),
-                    cachingBuildEngineBuckConfig.getConsoleLogBuildRuleFailuresInline(),
-                    RuleKeyFactories.of(
-                        params.getRuleKeyConfiguration(),
-                        localCachingBuildEngineDelegate.getFileHashCache(),
-                        actionGraphAndBuilder.getActionGraphBuilder(),
-                        params.getBuckConfig().getBuildInputRuleKeyFileSizeLimit(),
-                        ruleKeyCacheScope.getCache()),
-                    new NoOpRemoteBuildRuleCompletionWaiter());
-            Build build =
-                new Build(
-                    actionGraphAndBuilder.getActionGraphBuilder(),
-                    params.getCell(),
-                    cachingBuildEngine,
-                    params.getArtifactCacheFactory().newInstance(),
-                    params
-                        .getBuckConfig()
-                        .getView(JavaBuckConfig.class)
-                        .createDefaultJavaPackageFinder(),
-                    params.getClock(),
-                    getExecutionContext(),
-                    isKeepGoing())) {
-
-          // Build all of the test rules.
-          ExitCode exitCode =
-              build.executeAndPrintFailuresToEventBus(
-                  RichStream.from(testRules)
-                      .map(TestRule::getBuildTarget)
-                      .collect(ImmutableList.toImmutableList()),
-                  params.getBuckEventBus(),
-                  params.getConsole(),
-                  getPathToBuildReport(params.getBuckConfig()));
-          params.getBuckEventBus().post(BuildEvent.finished(started, exitCode));
-          if (exitCode != ExitCode.SUCCESS) {
-            return exitCode;
-          }
+    } catch (BuildFileParseException | VersionException e) {
+      params
+          .getBuckEventBus()
+          .post(ConsoleEvent.severe(MoreExceptions.getHumanReadableOrLocalizedMessage(e)));
+      return ExitCode.PARSE_ERROR;
+    }
 
-          // If the user requests that we build tests that we filter out, then we perform
-          // the filtering here, after we've done the build but before we run the tests.
-          if (isBuildFiltered(params.getBuckConfig())) {
-            testRules =
-                filterTestRules(
-                    params.getBuckConfig(),
-                    targetGraphAndBuildTargets.getBuildTargets(),
-                    testRules);
-          }
+    ActionGraphAndBuilder actionGraphAndBuilder =
+        params
+            .getActionGraphCache()
+            .getActionGraph(
+                params.getBuckEventBus(),
+                targetGraphAndBuildTargets.getTargetGraph(),
+                params.getCell().getCellProvider(),
+                params.getBuckConfig().getView(ActionGraphConfig.class),
+                params.getRuleKeyConfiguration(),
+                params.getPoolSupplier());
+    // Look up all of the test rules in the action graph.
+    Iterable<TestRule> testRules =
+        Iterables.filter(actionGraphAndBuilder.getActionGraph().getNodes(), TestRule.class);
+
+    // Unless the user requests that we build filtered tests, filter them out here, before
+    // the build.
+    if (!isBuildFiltered(params.getBuckConfig())) {
+      testRules =
+          filterTestRules(
+              params.getBuckConfig(), targetGraphAndBuildTargets.getBuildTargets(), testRules);
+    }
 
-          BuildContext buildContext =
-              BuildContext.builder()
-                  .setSourcePathResolver(
-                      DefaultSourcePathResolver.from(
-                          new SourcePathRuleFinder(actionGraphAndBuilder.getActionGraphBuilder())))
-                  .setBuildCellRootPath(params.getCell().getRoot())
-                  .setJavaPackageFinder(params.getJavaPackageFinder())
-                  .setEventBus(params.getBuckEventBus())
-                  .setShouldDeleteTemporaries(params.getBuckConfig().getShouldDeleteTemporaries())
-                  .build();
-
-          // Once all of the rules are built, then run the tests.
-          Optional<ImmutableList<String>> externalTestRunner =
-              params.getBuckConfig().getExternalTestRunner();
-          if (externalTestRunner.isPresent()) {
-            return runTestsExternal(
-                params, build, externalTestRunner.get(), testRules, buildContext);
-          }
-          return runTestsInternal(params, cachingBuildEngine, build, buildContext, testRules);
+    MetadataChecker.checkAndCleanIfNeeded(params.getCell());
+    CachingBuildEngineBuckConfig cachingBuildEngineBuckConfig =
+        params.getBuckConfig().getView(CachingBuildEngineBuckConfig.class);
+    try (RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
+        getDefaultRuleKeyCacheScope(
+            params,
+            new RuleKeyCacheRecycler.SettingsAffectingCache(
+                params.getBuckConfig().getKeySeed(), actionGraphAndBuilder.getActionGraph()))) {
+      LocalCachingBuildEngineDelegate localCachingBuildEngineDelegate =
+          new LocalCachingBuildEngineDelegate(params.getFileHashCache());
+      SourcePathRuleFinder sourcePathRuleFinder =
+          new SourcePathRuleFinder(actionGraphAndBuilder.getActionGraphBuilder());
+      try (CachingBuildEngine cachingBuildEngine =
+              new CachingBuildEngine(
+                  localCachingBuildEngineDelegate,
+                  ModernBuildRuleBuilderFactory.getBuildStrategy(
+                      params.getBuckConfig().getView(ModernBuildRuleConfig.class),
+                      actionGraphAndBuilder.getActionGraphBuilder(),
+                      params.getCell(),
+                      params.getCell().getCellPathResolver(),
+                      localCachingBuildEngineDelegate.getFileHashCache(),
+                      params.getBuckEventBus(),
+                      params.getConsole()),
+                  pool.getWeightedListeningExecutorService(),
+                  new DefaultStepRunner(),
+                  getBuildEngineMode().orElse(cachingBuildEngineBuckConfig.getBuildEngineMode()),
+                  cachingBuildEngineBuckConfig.getBuildMetadataStorage(),
+                  cachingBuildEngineBuckConfig.getBuildDepFiles(),
+                  cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
+                  cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+                  cachingBuildEngineBuckConfig.getSpeculativeCachePrefetchMaxBytes(),
+                  Optional.empty(),
+                  actionGraphAndBuilder.getActionGraphBuilder(),
+                  sourcePathRuleFinder,
+                  DefaultSourcePathResolver.from(sourcePathRuleFinder),
+                  params.getBuildInfoStoreManager(),
+                  cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(
+                      params.getRuleTypeMemoryHistory()),
+                  cachingBuildEngineBuckConfig.getRuleSchedulingInfo(),
+                  params.getBuildRuleDurationHistory(),
+                  cachingBuildEngineBuckConfig.getConsoleLogBuildRuleFailuresInline(),
+                  RuleKeyFactories.of(
+                      params.getRuleKeyConfiguration(),
+                      localCachingBuildEngineDelegate.getFileHashCache(),
+                      actionGraphAndBuilder.getActionGraphBuilder(),
+                      params.getBuckConfig().getBuildInputRuleKeyFileSizeLimit(),
+                      ruleKeyCacheScope.getCache()),
+                  new NoOpRemoteBuildRuleCompletionWaiter());
+          Build build =
+              new Build(
+                  actionGraphAndBuilder.getActionGraphBuilder(),
+                  params.getCell(),
+                  cachingBuildEngine,
+                  params.getArtifactCacheFactory().newInstance(),
+                  params
+                      .getBuckConfig()
+                      .getView(JavaBuckConfig.class)
+                      .createDefaultJavaPackageFinder(),
+                  params.getClock(),
+                  getExecutionContext(),
+                  isKeepGoing())) {
+
+        // Build all of the test rules.
+        ExitCode exitCode =
+            build.executeAndPrintFailuresToEventBus(
+                RichStream.from(testRules)
+                    .map(TestRule::getBuildTarget)
+                    .collect(ImmutableList.toImmutableList()),
+                params.getBuckEventBus(),
+                params.getConsole(),
+                getPathToBuildReport(params.getBuckConfig()));
+        params.getBuckEventBus().post(BuildEvent.finished(started, exitCode));
+        if (exitCode != ExitCode.SUCCESS) {
+          return exitCode;
+        }
+
+        // If the user requests that we build tests that we filter out, then we perform
+        // the filtering here, after we've done the build but before we run the tests.
+        if (isBuildFiltered(params.getBuckConfig())) {
+          testRules =
+              filterTestRules(
+                  params.getBuckConfig(),
+                  targetGraphAndBuildTargets.getBuildTargets(),
+                  testRules);
+        }
+
+        BuildContext buildContext =
+            BuildContext.builder()
+                .setSourcePathResolver(
+                    DefaultSourcePathResolver.from(
+                        new SourcePathRuleFinder(actionGraphAndBuilder.getActionGraphBuilder())))
+                .setBuildCellRootPath(params.getCell().getRoot())
+                .setJavaPackageFinder(params.getJavaPackageFinder())
+                .setEventBus(params.getBuckEventBus())
+                .setShouldDeleteTemporaries(params.getBuckConfig().getShouldDeleteTemporaries())
+                .build();
+
+        // Once all of the rules are built, then run the tests.
+        Optional<ImmutableList<String>> externalTestRunner =
+            params.getBuckConfig().getExternalTestRunner();
+        if (externalTestRunner.isPresent()) {
+          return runTestsExternal(
+              params, build, externalTestRunner.get(), testRules, buildContext);
         }
+        return runTestsInternal(params, cachingBuildEngine, build, buildContext, testRules);
       }
     }
   }
@@ -15,15 +15,21 @@
  */
 package com.facebook.buck.command;
 
+import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactCacheFactory;
+import com.facebook.buck.artifact_cache.MultiArtifactCache;
 import com.facebook.buck.core.build.distributed.synchronization.RemoteBuildRuleCompletionWaiter;
 import com.facebook.buck.core.build.engine.BuildEngineResult;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
+import com.facebook.buck.core.build.engine.cache.manager.CacheMissPrediction;
+import com.facebook.buck.core.build.engine.cache.manager.CacheMissPredictor;
 import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
 import com.facebook.buck.core.build.engine.delegate.CachingBuildEngineDelegate;
 import com.facebook.buck.core.build.engine.impl.CachingBuildEngine;
 import com.facebook.buck.core.build.engine.impl.MetadataChecker;
 import com.facebook.buck.core.build.engine.type.BuildType;
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory;
+import com.facebook.buck.core.build.stats.RuleTypeMemoryHistory;
 import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.config.BuckConfig;
 import com.facebook.buck.core.exceptions.BuildTargetParseException;
@@ -37,8 +43,10 @@ import com.facebook.buck.core.rules.SourcePathRuleFinder;
 import com.facebook.buck.core.sourcepath.resolver.impl.DefaultSourcePathResolver;
 import com.facebook.buck.core.util.immutables.BuckStyleImmutable;
 import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.ProjectFilesystemFactory;
 import com.facebook.buck.jvm.java.JavaBuckConfig;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.log.thrift.ThriftRuleKeyLogger;
 import com.facebook.buck.parser.BuildTargetParser;
 import com.facebook.buck.rules.keys.RuleKeyCacheScope;
@@ -69,6 +77,8 @@ import org.immutables.value.Value;
 
 /** Used to build a given set of targets on the local machine. */
 public class LocalBuildExecutor implements BuildExecutor {
+  private static final Logger LOG = Logger.get(LocalBuildExecutor.class);
+
   private final ActionGraphAndBuilder actionGraphAndBuilder;
   private final WeightedListeningExecutorService executorService;
   private final CachingBuildEngineDelegate cachingBuildEngineDelegate;
@@ -77,6 +87,7 @@ public class LocalBuildExecutor implements BuildExecutor {
   private final RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter;
   private final Optional<BuildType> buildEngineMode;
   private final Optional<ThriftRuleKeyLogger> ruleKeyLogger;
+  private final Optional<CacheMissPrediction> cacheMissPrediction;
 
   private final CachingBuildEngine cachingBuildEngine;
   private final Build build;
@@ -106,14 +117,34 @@ public class LocalBuildExecutor implements BuildExecutor {
     this.remoteBuildRuleCompletionWaiter = remoteBuildRuleCompletionWaiter;
 
     // Init resources.
+    ArtifactCacheFactory artifactCacheFactory = args.getArtifactCacheFactory();
+    ArtifactCache artifactCache;
+    if (args.getBuckConfig().getView(CachingBuildEngineBuckConfig.class).getCacheMissPrediction()) {
+      // Predicted misses only skip the remote tiers, so the local ones must be looked up first.
+      ArtifactCache localArtifactCache =
+          artifactCacheFactory.localOnlyInstance(useDistributedBuildCache, isDownloadHeavyBuild);
+      artifactCache =
+          new MultiArtifactCache(
+              ImmutableList.of(
+                  localArtifactCache,
+                  artifactCacheFactory.remoteOnlyInstance(
+                      useDistributedBuildCache, isDownloadHeavyBuild)));
+      this.cacheMissPrediction =
+          Optional.of(
+              CacheMissPrediction.of(
+                  CacheMissPredictor.load(getCacheMissHistoryPath()), localArtifactCache));
+    } else {
+      artifactCache =
+          artifactCacheFactory.newInstance(useDistributedBuildCache, isDownloadHeavyBuild);
+      this.cacheMissPrediction = Optional.empty();
+    }
     this.cachingBuildEngine = createCachingBuildEngine();
     this.build =
         new Build(
             actionGraphAndBuilder.getActionGraphBuilder(),
             args.getRootCell(),
             cachingBuildEngine,
-            args.getArtifactCacheFactory()
-                .newInstance(useDistributedBuildCache, isDownloadHeavyBuild),
+            artifactCache,
             args.getBuckConfig().getView(JavaBuckConfig.class).createDefaultJavaPackageFinder(),
             args.getClock(),
             executionContext,
@@ -180,6 +211,21 @@ public class LocalBuildExecutor implements BuildExecutor {
     // Destroy resources.
     build.close();
     cachingBuildEngine.close();
+
+    if (cacheMissPrediction.isPresent()) {
+      try {
+        cacheMissPrediction.get().getPredictor().saveIfChanged(getCacheMissHistoryPath());
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to save the cache miss history.");
+      }
+    }
+  }
+
+  private Path getCacheMissHistoryPath() {
+    ProjectFilesystem filesystem = args.getRootCell().getFilesystem();
+    return filesystem
+        .resolve(filesystem.getBuckPaths().getBuckOut())
+        .resolve(CacheMissPredictor.HISTORY_FILE_NAME);
   }
 
   private ImmutableList<BuildRule> getRulesToBuild(Iterable<String> targetsToBuild) {
@@ -220,11 +266,15 @@ public class LocalBuildExecutor implements BuildExecutor {
         engineConfig.getBuildDepFiles(),
         engineConfig.getBuildMaxDepFileCacheEntries(),
         engineConfig.getBuildArtifactCacheSizeLimit(),
+        engineConfig.getSpeculativeCachePrefetchMaxBytes(),
+        cacheMissPrediction,
         actionGraphAndBuilder.getActionGraphBuilder(),
         sourcePathRuleFinder,
         DefaultSourcePathResolver.from(sourcePathRuleFinder),
         args.getBuildInfoStoreManager(),
-        engineConfig.getResourceAwareSchedulingInfo(),
+        engineConfig.getResourceAwareSchedulingInfo(args.getRuleTypeMemoryHistory()),
+        engineConfig.getRuleSchedulingInfo(),
+        args.getBuildRuleDurationHistory(),
         engineConfig.getConsoleLogBuildRuleFailuresInline(),
         RuleKeyFactories.of(
             args.getRuleKeyConfiguration(),
@@ -301,6 +351,10 @@ abstract class AbstractBuildExecutorArgs {
 
   public abstract RuleKeyConfiguration getRuleKeyConfiguration();
 
+  public abstract Optional<BuildRuleDurationHistory> getBuildRuleDurationHistory();
+
+  public abstract Optional<RuleTypeMemoryHistory> getRuleTypeMemoryHistory();
+
   public BuckConfig getBuckConfig() {
     return getRootCell().getBuckConfig();
   }
@@ -31,6 +31,9 @@ import org.immutables.value.Value;
  */
 public interface BuildEngine {
 
+  /** Key of the rule type in the context of processes launched while building a rule. */
+  String BUILD_RULE_TYPE_CONTEXT_KEY = "build_rule_type";
+
   /** Calculate the total number of transitive build rules processed from the given roots. */
   int getNumRulesToBuild(Iterable<BuildRule> rule);
 
@@ -36,6 +36,9 @@ public interface BuildInfoStore extends Closeable {
   @Override
   void close();
 
+  /** Waits for all metadata updates made so far to be persisted. */
+  void flush() throws IOException;
+
   ImmutableMap<String, String> getAllMetadata(BuildTarget buildTarget) throws IOException;
 
   void updateMetadata(BuildTarget buildTarget, Map<String, String> metadata) throws IOException;
@@ -65,6 +65,9 @@ public class FilesystemBuildInfoStore implements BuildInfoStore {
   @Override
   public void close() {}
 
+  @Override
+  public void flush() {}
+
   private final Path pathToMetadata(BuildTarget target) {
     return BuildInfo.getPathToBuildMetadataDirectory(target, filesystem);
   }
@@ -18,8 +18,11 @@ package com.facebook.buck.core.build.engine.buildinfo;
 
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.sqlite.RetryBusyHandler;
 import com.facebook.buck.util.sqlite.SQLiteUtils;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
 import java.sql.Connection;
@@ -27,18 +30,53 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
 import org.sqlite.BusyHandler;
 
+/**
+ * {@link BuildInfoStore} backed by a SQLite database in the scratch directory.
+ *
+ * <p>In write-behind mode updates are queued in memory and committed in batched transactions by a
+ * dedicated writer thread, so build threads don't wait on the database. Reads consult the queued
+ * updates first, so the build always sees its own writes. Use {@link #flush()} to wait for queued
+ * updates to be committed. Updates whose commit failed are retried by the next commit, and the
+ * failure is reported by {@link #flush()} unless that retry succeeds.
+ *
+ * <p>Deletions are committed before {@link #deleteMetadata} returns, even in write-behind mode. A
+ * rule deletes its metadata before it writes new outputs, and the old metadata must never outlive
+ * the outputs it describes.
+ */
 public class SQLiteBuildInfoStore implements BuildInfoStore {
+  private static final Logger LOG = Logger.get(SQLiteBuildInfoStore.class);
+
+  private static final String SELECT_SQL =
+      "SELECT value FROM metadata WHERE target = ? AND key = ?";
+  private static final String SELECT_ALL_SQL = "SELECT key, value FROM metadata WHERE target = ?";
+  private static final String UPDATE_SQL =
+      "INSERT OR REPLACE INTO metadata (target, key, value) VALUES (?, ?, ?)";
+  private static final String DELETE_SQL = "DELETE FROM metadata WHERE target = ?";
+
   private final Connection connection;
   private final PreparedStatement selectStmt;
   private final PreparedStatement selectAllStmt;
   private final PreparedStatement updateStmt;
   private final PreparedStatement deleteStmt;
 
+  private final Optional<WriteBehind> writeBehind;
+
   public SQLiteBuildInfoStore(ProjectFilesystem filesystem) throws IOException {
+    this(filesystem, false);
+  }
+
+  public SQLiteBuildInfoStore(ProjectFilesystem filesystem, boolean writeBehind)
+      throws IOException {
     SQLiteUtils.initialize();
     String dbPath =
         filesystem
@@ -48,9 +86,7 @@ public class SQLiteBuildInfoStore implements BuildInfoStore {
     filesystem.createParentDirs(dbPath);
     try {
       Class.forName("org.sqlite.JDBC");
-      connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
-      connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
-      connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+      connection = openConnection(dbPath);
       connection
           .createStatement()
           .executeUpdate(
@@ -58,34 +94,57 @@ public class SQLiteBuildInfoStore implements BuildInfoStore {
                   + "(target TEXT, key TEXT, value TEXT, "
                   + "PRIMARY KEY (target, key)) "
                   + "WITHOUT ROWID");
-      selectStmt =
-          connection.prepareStatement("SELECT value FROM metadata WHERE target = ? AND key = ?");
-      selectAllStmt =
-          connection.prepareStatement("SELECT key, value FROM metadata WHERE target = ?");
-
-      updateStmt =
-          connection.prepareStatement(
-              "INSERT OR REPLACE INTO metadata (target, key, value) VALUES (?, ?, ?)");
-      deleteStmt = connection.prepareStatement("DELETE FROM metadata WHERE target = ?");
-      BusyHandler.setHandler(connection, new RetryBusyHandler());
+      selectStmt = connection.prepareStatement(SELECT_SQL);
+      selectAllStmt = connection.prepareStatement(SELECT_ALL_SQL);
+
+      updateStmt = connection.prepareStatement(UPDATE_SQL);
+      deleteStmt = connection.prepareStatement(DELETE_SQL);
+      // With WAL journaling the writer's connection doesn't block readers on this one.
+      this.writeBehind =
+          writeBehind ? Optional.of(new WriteBehind(openConnection(dbPath))) : Optional.empty();
     } catch (ClassNotFoundException | SQLException e) {
       throw new IOException(e);
     }
   }
 
+  private static Connection openConnection(String dbPath) throws SQLException {
+    Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+    connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
+    connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+    BusyHandler.setHandler(connection, new RetryBusyHandler());
+    return connection;
+  }
+
   @Override
   public void close() {
     try {
+      if (writeBehind.isPresent()) {
+        writeBehind.get().close();
+      }
       connection.close();
-    } catch (SQLException e) {
+    } catch (IOException | SQLException e) {
       throw new RuntimeException(e);
     }
   }
 
+  @Override
+  public void flush() throws IOException {
+    if (writeBehind.isPresent()) {
+      writeBehind.get().flush();
+    }
+  }
+
   @Override
   public synchronized Optional<String> readMetadata(BuildTarget buildTarget, String key) {
+    String target = cellRelativeName(buildTarget);
+    if (writeBehind.isPresent()) {
+      Optional<Optional<String>> queued = writeBehind.get().readQueued(target, key);
+      if (queued.isPresent()) {
+        return queued.get();
+      }
+    }
     try {
-      selectStmt.setString(1, cellRelativeName(buildTarget));
+      selectStmt.setString(1, target);
       selectStmt.setString(2, key);
       try (ResultSet rs = selectStmt.executeQuery()) {
         if (!rs.next()) {
@@ -101,47 +160,276 @@ public class SQLiteBuildInfoStore implements BuildInfoStore {
 
   @Override
   public synchronized ImmutableMap<String, String> getAllMetadata(BuildTarget buildTarget) {
-    try {
-      selectAllStmt.setString(1, cellRelativeName(buildTarget));
-      try (ResultSet rs = selectAllStmt.executeQuery()) {
-        ImmutableMap.Builder<String, String> result = ImmutableMap.builder();
-        while (rs.next()) {
-          result.put(rs.getString(1), rs.getString(2));
+    String target = cellRelativeName(buildTarget);
+    Map<String, String> result = new HashMap<>();
+    if (!writeBehind.isPresent() || !writeBehind.get().isDeletionQueued(target)) {
+      try {
+        selectAllStmt.setString(1, target);
+        try (ResultSet rs = selectAllStmt.executeQuery()) {
+          while (rs.next()) {
+            result.put(rs.getString(1), rs.getString(2));
+          }
         }
-        return result.build();
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
       }
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
     }
+    if (writeBehind.isPresent()) {
+      writeBehind.get().applyQueued(target, result);
+    }
+    return ImmutableMap.copyOf(result);
   }
 
   @Override
   public synchronized void updateMetadata(BuildTarget buildTarget, Map<String, String> metadata)
       throws IOException {
+    if (writeBehind.isPresent()) {
+      writeBehind.get().queue(cellRelativeName(buildTarget), false, metadata);
+      return;
+    }
     try {
-      for (Map.Entry<String, String> e : metadata.entrySet()) {
-        updateStmt.setString(1, cellRelativeName(buildTarget));
-        updateStmt.setString(2, e.getKey());
-        updateStmt.setString(3, e.getValue());
-        updateStmt.addBatch();
-      }
-      updateStmt.executeBatch();
+      executeUpdate(updateStmt, cellRelativeName(buildTarget), metadata);
     } catch (SQLException e) {
       throw new IOException(e);
     }
   }
 
   @Override
-  public synchronized void deleteMetadata(BuildTarget buildTarget) throws IOException {
-    try {
-      deleteStmt.setString(1, cellRelativeName(buildTarget));
-      deleteStmt.executeUpdate();
-    } catch (SQLException e) {
-      throw new IOException(e);
+  public void deleteMetadata(BuildTarget buildTarget) throws IOException {
+    if (writeBehind.isPresent()) {
+      // The commit takes the lock of the store, so it's waited for without holding it.
+      Future<?> commit;
+      synchronized (this) {
+        commit = writeBehind.get().queue(cellRelativeName(buildTarget), true, ImmutableMap.of());
+      }
+      writeBehind.get().waitFor(commit);
+      return;
+    }
+    synchronized (this) {
+      try {
+        executeDelete(deleteStmt, cellRelativeName(buildTarget));
+      } catch (SQLException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  private static void executeUpdate(
+      PreparedStatement updateStmt, String target, Map<String, String> metadata)
+      throws SQLException {
+    for (Map.Entry<String, String> e : metadata.entrySet()) {
+      updateStmt.setString(1, target);
+      updateStmt.setString(2, e.getKey());
+      updateStmt.setString(3, e.getValue());
+      updateStmt.addBatch();
     }
+    updateStmt.executeBatch();
+  }
+
+  private static void executeDelete(PreparedStatement deleteStmt, String target)
+      throws SQLException {
+    deleteStmt.setString(1, target);
+    deleteStmt.executeUpdate();
   }
 
   private String cellRelativeName(BuildTarget buildTarget) {
     return buildTarget.withoutCell().getFullyQualifiedName();
   }
+
+  /** Updates to the metadata of a single target that haven't been committed yet. */
+  private static class QueuedUpdate {
+    /** Whether existing metadata is deleted before applying {@link #metadata}. */
+    private boolean deleteFirst;
+
+    private final Map<String, String> metadata = new HashMap<>();
+  }
+
+  /**
+   * Queues updates and commits them on a single writer thread. While a transaction is being
+   * committed, new updates accumulate in the queue and go into the next one.
+   *
+   * <p>Guarded by the lock of the enclosing store.
+   */
+  private class WriteBehind {
+    private final Connection writerConnection;
+    private final PreparedStatement writerUpdateStmt;
+    private final PreparedStatement writerDeleteStmt;
+    private final ExecutorService writer =
+        MostExecutors.newSingleThreadExecutor("SQLiteBuildInfoStore writer");
+
+    /** Updates waiting for a commit to be scheduled. */
+    private Map<String, QueuedUpdate> queued = new LinkedHashMap<>();
+    /** Updates of the transaction that is currently being committed. */
+    private Map<String, QueuedUpdate> committing = new LinkedHashMap<>();
+
+    /** The commit which will include the queued updates, if one is scheduled. */
+    @Nullable private Future<?> scheduledCommit = null;
+
+    /** Why the last commit failed, cleared once a commit succeeds. */
+    @Nullable private SQLException failure = null;
+
+    private WriteBehind(Connection writerConnection) throws SQLException {
+      this.writerConnection = writerConnection;
+      this.writerUpdateStmt = writerConnection.prepareStatement(UPDATE_SQL);
+      this.writerDeleteStmt = writerConnection.prepareStatement(DELETE_SQL);
+    }
+
+    /** @return the commit which will include the update. */
+    private Future<?> queue(String target, boolean delete, Map<String, String> metadata)
+        throws IOException {
+      QueuedUpdate update = queued.computeIfAbsent(target, t -> new QueuedUpdate());
+      if (delete) {
+        update.deleteFirst = true;
+        update.metadata.clear();
+      }
+      update.metadata.putAll(metadata);
+      return scheduleCommit();
+    }
+
+    private Future<?> scheduleCommit() {
+      if (scheduledCommit == null) {
+        scheduledCommit = writer.submit(this::commit);
+      }
+      return scheduledCommit;
+    }
+
+    /**
+     * @return the value of a key as seen after applying the queued updates, or empty if the queued
+     *     updates don't determine it.
+     */
+    private Optional<Optional<String>> readQueued(String target, String key) {
+      for (Map<String, QueuedUpdate> updates : ImmutableList.of(queued, committing)) {
+        QueuedUpdate update = updates.get(target);
+        if (update == null) {
+          continue;
+        }
+        String value = update.metadata.get(key);
+        if (value != null) {
+          return Optional.of(Optional.of(value));
+        }
+        if (update.deleteFirst) {
+          return Optional.of(Optional.empty());
+        }
+      }
+      return Optional.empty();
+    }
+
+    private boolean isDeletionQueued(String target) {
+      QueuedUpdate update = queued.get(target);
+      if (update != null && update.deleteFirst) {
+        return true;
+      }
+      update = committing.get(target);
+      return update != null && update.deleteFirst;
+    }
+
+    /** Applies the queued updates of a target on top of its committed metadata. */
+    private void applyQueued(String target, Map<String, String> metadata) {
+      for (Map<String, QueuedUpdate> updates : ImmutableList.of(committing, queued)) {
+        QueuedUpdate update = updates.get(target);
+        if (update != null) {
+          if (update.deleteFirst) {
+            metadata.clear();
+          }
+          metadata.putAll(update.metadata);
+        }
+      }
+    }
+
+    private void commit() {
+      Map<String, QueuedUpdate> updates;
+      synchronized (SQLiteBuildInfoStore.this) {
+        updates = queued;
+        committing = updates;
+        queued = new LinkedHashMap<>();
+        scheduledCommit = null;
+      }
+      SQLException exception = null;
+      try {
+        writerConnection.setAutoCommit(false);
+        try {
+          for (Map.Entry<String, QueuedUpdate> entry : updates.entrySet()) {
+            if (entry.getValue().deleteFirst) {
+              executeDelete(writerDeleteStmt, entry.getKey());
+            }
+            executeUpdate(writerUpdateStmt, entry.getKey(), entry.getValue().metadata);
+          }
+          writerConnection.commit();
+        } finally {
+          writerConnection.setAutoCommit(true);
+        }
+        LOG.verbose("Committed metadata of %d targets.", updates.size());
+      } catch (SQLException e) {
+        exception = e;
+      }
+      synchronized (SQLiteBuildInfoStore.this) {
+        if (exception != null) {
+          LOG.error(exception, "Failed to commit metadata of %d targets.", updates.size());
+          failure = exception;
+          requeue(updates);
+        } else {
+          failure = null;
+        }
+        committing = new LinkedHashMap<>();
+      }
+    }
+
+    /**
+     * Puts the updates of a failed commit back in front of the ones queued since, so that they stay
+     * visible to reads and the next commit retries them.
+     */
+    private void requeue(Map<String, QueuedUpdate> updates) {
+      for (Map.Entry<String, QueuedUpdate> entry : queued.entrySet()) {
+        QueuedUpdate newer = entry.getValue();
+        QueuedUpdate older = updates.putIfAbsent(entry.getKey(), newer);
+        if (older != null) {
+          if (newer.deleteFirst) {
+            older.deleteFirst = true;
+            older.metadata.clear();
+          }
+          older.metadata.putAll(newer.metadata);
+        }
+      }
+      queued = updates;
+    }
+
+    private void flush() throws IOException {
+      // The writer runs commits in order, so once this completes everything queued before has
+      // been committed. Updates left over from a failed commit get a commit of their own.
+      Future<?> commit;
+      synchronized (SQLiteBuildInfoStore.this) {
+        commit = queued.isEmpty() ? writer.submit(() -> {}) : scheduleCommit();
+      }
+      waitFor(commit);
+    }
+
+    private void waitFor(Future<?> commit) throws IOException {
+      try {
+        commit.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+      synchronized (SQLiteBuildInfoStore.this) {
+        throwIfFailed();
+      }
+    }
+
+    private void throwIfFailed() throws IOException {
+      if (failure != null) {
+        throw new IOException("Failed to write build metadata.", failure);
+      }
+    }
+
+    private void close() throws IOException, SQLException {
+      try {
+        flush();
+      } finally {
+        writer.shutdown();
+        writerConnection.close();
+      }
+    }
+  }
 }
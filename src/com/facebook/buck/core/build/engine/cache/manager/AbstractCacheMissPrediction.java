@@ -0,0 +1,35 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.cache.manager;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.core.util.immutables.BuckStyleTuple;
+import org.immutables.value.Value;
+
+/**
+ * What a build needs to skip remote cache lookups which are predicted to miss. The artifact cache
+ * of such a build must look up the local tiers before the remote ones.
+ */
+@Value.Immutable
+@BuckStyleTuple
+abstract class AbstractCacheMissPrediction {
+
+  public abstract CacheMissPredictor getPredictor();
+
+  /** The local tiers of the artifact cache, which are looked up when a remote miss is predicted. */
+  public abstract ArtifactCache getLocalArtifactCache();
+}
@@ -17,6 +17,7 @@
 package com.facebook.buck.core.build.engine.cache.manager;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactUploader;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.core.build.engine.buildinfo.BuildInfo;
@@ -45,6 +46,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 
 public class BuildCacheArtifactFetcher {
 
@@ -199,6 +201,7 @@ public class BuildCacheArtifactFetcher {
     //
     // Unfortunately, this does not appear to work, in practice, because MostFiles fails when trying
     // to resolve a Path for a zip entry against a file Path on disk.
+    long artifactSizeBytes = Files.size(zipPath);
     ArtifactCompressionEvent.Started started =
         ArtifactCompressionEvent.started(
             ArtifactCompressionEvent.Operation.DECOMPRESS, ImmutableSet.of(ruleKey));
@@ -217,7 +220,7 @@ public class BuildCacheArtifactFetcher {
           BuildInfo.MetadataKey.ORIGIN_BUILD_ID);
 
       ImmutableSet<Path> extractedFiles =
-          ArchiveFormat.TAR_ZSTD
+          getArchiveFormat(ruleKey, cacheResult)
               .getUnarchiver()
               .extractArchive(
                   zipPath.toAbsolutePath(),
@@ -238,12 +241,32 @@ public class BuildCacheArtifactFetcher {
       throw new IOException(
           String.format("%s. Suggested fix: try `buck clean`", e.getMessage()), e.getCause());
     } finally {
-      eventBus.post(ArtifactCompressionEvent.finished(started));
+      eventBus.post(ArtifactCompressionEvent.finished(started, artifactSizeBytes));
     }
 
     return cacheResult;
   }
 
+  /**
+   * Returns the format the artifact was archived with. Artifacts uploaded before the format was
+   * recorded in their metadata are always {@link ArchiveFormat#TAR_ZSTD}.
+   */
+  private static ArchiveFormat getArchiveFormat(RuleKey ruleKey, CacheResult cacheResult)
+      throws IOException {
+    String shortName = cacheResult.getMetadata().get(ArtifactUploader.ARCHIVE_FORMAT_METADATA_KEY);
+    if (shortName == null) {
+      return ArchiveFormat.TAR_ZSTD;
+    }
+    Optional<ArchiveFormat> format = ArchiveFormat.getFormatFromShortName(shortName);
+    if (!format.isPresent()) {
+      throw new IOException(
+          String.format(
+              "Cache artifact for rulekey %s has unsupported archive format '%s'",
+              ruleKey, shortName));
+    }
+    return format.get();
+  }
+
   @FunctionalInterface
   public interface OnOutputsWillChange {
     void call() throws IOException;
@@ -29,6 +29,25 @@ import java.util.concurrent.ConcurrentHashMap;
 /** Manages the lifetimes of all {@link BuildInfoStore}s used in the build. */
 public class BuildInfoStoreManager implements AutoCloseable {
   private final ConcurrentHashMap<Path, BuildInfoStore> buildInfoStores = new ConcurrentHashMap<>();
+  private final boolean sqliteWriteBehind;
+
+  public BuildInfoStoreManager() {
+    this(false);
+  }
+
+  /**
+   * @param sqliteWriteBehind whether SQLite stores queue updates and commit them in the background.
+   */
+  public BuildInfoStoreManager(boolean sqliteWriteBehind) {
+    this.sqliteWriteBehind = sqliteWriteBehind;
+  }
+
+  /** Waits for the metadata updates made so far to all stores to be persisted. */
+  public void flush() throws IOException {
+    for (BuildInfoStore store : buildInfoStores.values()) {
+      store.flush();
+    }
+  }
 
   @Override
   public void close() {
@@ -44,7 +63,7 @@ public class BuildInfoStoreManager implements AutoCloseable {
           try {
             switch (getMetadataStorage(filesystem, metadataStorage)) {
               case SQLITE:
-                return new SQLiteBuildInfoStore(filesystem);
+                return new SQLiteBuildInfoStore(filesystem, sqliteWriteBehind);
               case FILESYSTEM:
                 return new FilesystemBuildInfoStore(filesystem);
               default:
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.cache.manager;
+
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Predicts which remote cache lookups are going to miss, from how often lookups for each type of
+ * build rule hit the cache.
+ *
+ * <p>Hit rates are tracked separately for the local and the remote tiers of the cache, the remote
+ * one counting only the lookups which the local tiers missed. Lookups in the local tiers are cheap,
+ * so only remote lookups are ever skipped.
+ *
+ * <p>The hit rate of a rule type combines the lookups of previous builds, which are decayed each
+ * time the history is saved, with the lookups of the current build. A rule type whose remote
+ * lookups essentially never hit has them skipped, except for one in every {@link
+ * #SAMPLING_INTERVAL}, so that the history notices when the cache starts having its artifacts.
+ * Since the current build counts too, a branch that rebuilds most of a rule type stops paying for
+ * its lookups after the first few misses, even if the history says they used to hit.
+ *
+ * <p>The history is stored in buck-out in a compact binary format. It is only a hint, so a missing,
+ * stale or corrupted file just results in an empty history.
+ */
+@ThreadSafe
+public class CacheMissPredictor {
+
+  private static final Logger LOG = Logger.get(CacheMissPredictor.class);
+
+  /** Name of the file, relative to buck-out, where the history is stored between commands. */
+  public static final String HISTORY_FILE_NAME = ".cachemisshistory";
+
+  private static final int MAGIC = 0xB0C4C4E1;
+  private static final int VERSION = 2;
+
+  /** Remote lookups of a rule type needed before its misses are predicted. */
+  @VisibleForTesting static final int MIN_LOOKUPS = 50;
+
+  /** Highest hit rate at which a rule type's lookups are considered not worth making. */
+  @VisibleForTesting static final double MAX_HIT_RATE = 0.01;
+
+  /** One in this many lookups predicted to miss is made anyway. */
+  @VisibleForTesting static final int SAMPLING_INTERVAL = 20;
+
+  /** Factor applied to the lookups learned before each time the history is saved. */
+  @VisibleForTesting static final double DECAY_FACTOR = 0.5;
+
+  /** Lookups learned from previous commands, per rule type. */
+  @GuardedBy("this")
+  private final Map<String, TieredLookups> learned = new HashMap<>();
+
+  /** Lookups made by the current command, per rule type. */
+  @GuardedBy("this")
+  private final Map<String, TieredLookups> observed = new HashMap<>();
+
+  /** Number of remote lookups predicted to miss by the current command, per rule type. */
+  @GuardedBy("this")
+  private final Map<String, Integer> predictedMisses = new HashMap<>();
+
+  private static class Lookups {
+    private double total;
+    private double hits;
+
+    private void add(double total, double hits) {
+      this.total += total;
+      this.hits += hits;
+    }
+
+    private void record(boolean hit) {
+      add(1, hit ? 1 : 0);
+    }
+
+    private void decay() {
+      total *= DECAY_FACTOR;
+      hits *= DECAY_FACTOR;
+    }
+  }
+
+  private static class TieredLookups {
+    private final Lookups local = new Lookups();
+    private final Lookups remote = new Lookups();
+  }
+
+  /**
+   * Loads the history stored at the given path, falling back to an empty history if the file does
+   * not exist or cannot be read.
+   */
+  public static CacheMissPredictor load(Path path) {
+    CacheMissPredictor predictor = new CacheMissPredictor();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      predictor.readFrom(in);
+    } catch (NoSuchFileException e) {
+      LOG.debug("No cache miss history at %s.", path);
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Discarding unreadable cache miss history at %s.", path);
+      predictor = new CacheMissPredictor();
+    }
+    return predictor;
+  }
+
+  /**
+   * Folds the lookups made by this command into the learned ones and writes the result to the
+   * given path, if any lookup was made. The file is replaced atomically so concurrent readers never
+   * observe a partially written history.
+   */
+  public synchronized void saveIfChanged(Path path) throws IOException {
+    if (observed.isEmpty()) {
+      return;
+    }
+    for (TieredLookups lookups : learned.values()) {
+      lookups.local.decay();
+      lookups.remote.decay();
+    }
+    for (Map.Entry<String, TieredLookups> entry : observed.entrySet()) {
+      TieredLookups lookups =
+          learned.computeIfAbsent(entry.getKey(), ruleType -> new TieredLookups());
+      lookups.local.add(entry.getValue().local.total, entry.getValue().local.hits);
+      lookups.remote.add(entry.getValue().remote.total, entry.getValue().remote.hits);
+    }
+    observed.clear();
+    predictedMisses.clear();
+
+    Files.createDirectories(path.getParent());
+    Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        writeTo(out);
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * @return whether the remote tiers should be skipped by the next cache lookup for a rule of the
+   *     given type, because they are expected to miss. The local tiers are always looked up.
+   */
+  public synchronized boolean shouldSkipRemoteLookup(String ruleType) {
+    TieredLookups learnedLookups = learned.get(ruleType);
+    TieredLookups observedLookups = observed.get(ruleType);
+    double total =
+        (learnedLookups == null ? 0 : learnedLookups.remote.total)
+            + (observedLookups == null ? 0 : observedLookups.remote.total);
+    double hits =
+        (learnedLookups == null ? 0 : learnedLookups.remote.hits)
+            + (observedLookups == null ? 0 : observedLookups.remote.hits);
+    if (total < MIN_LOOKUPS || hits > total * MAX_HIT_RATE) {
+      return false;
+    }
+    return predictedMisses.merge(ruleType, 1, Integer::sum) % SAMPLING_INTERVAL != 0;
+  }
+
+  /**
+   * Records the result of a cache lookup for a rule of the given type, which went through the
+   * local tiers first. A hit is attributed to the tier it came from. Only hits and misses are taken
+   * into account, as other results say nothing about whether the cache has the artifact.
+   *
+   * @param remoteLookedUp whether the remote tiers were looked up after a miss in the local ones.
+   */
+  public synchronized void record(String ruleType, CacheResult result, boolean remoteLookedUp) {
+    CacheResultType type = result.getType();
+    if (type != CacheResultType.HIT && type != CacheResultType.MISS) {
+      return;
+    }
+    boolean remoteHit =
+        type == CacheResultType.HIT
+            && result
+                .cacheMode()
+                .map(mode -> mode.getCacheType() == ArtifactCacheMode.CacheType.remote)
+                .orElse(false);
+    TieredLookups lookups = observed.computeIfAbsent(ruleType, key -> new TieredLookups());
+    lookups.local.record(type == CacheResultType.HIT && !remoteHit);
+    if (remoteLookedUp && (type == CacheResultType.MISS || remoteHit)) {
+      lookups.remote.record(remoteHit);
+    }
+  }
+
+  @GuardedBy("this")
+  private void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(learned.size());
+    for (Map.Entry<String, TieredLookups> entry : learned.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeDouble(entry.getValue().local.total);
+      out.writeDouble(entry.getValue().local.hits);
+      out.writeDouble(entry.getValue().remote.total);
+      out.writeDouble(entry.getValue().remote.hits);
+    }
+  }
+
+  private synchronized void readFrom(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+      throw new IOException("Unrecognized cache miss history format.");
+    }
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      TieredLookups lookups = new TieredLookups();
+      learned.put(in.readUTF(), lookups);
+      lookups.local.add(in.readDouble(), in.readDouble());
+      lookups.remote.add(in.readDouble(), in.readDouble());
+    }
+  }
+}
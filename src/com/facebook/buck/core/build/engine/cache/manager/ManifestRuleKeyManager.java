@@ -137,12 +137,10 @@ public class ManifestRuleKeyManager {
       rule.getProjectFilesystem().createParentDirs(manifestPath);
     }
 
-    // If the manifest is larger than the max size, just truncate it.  It might be nice to support
-    // some sort of LRU management here to avoid evicting everything, but it'll take some care to do
-    // this efficiently and it's not clear how much benefit this will give us.
-    if (manifest.size() >= maxDepFileCacheEntries) {
-      manifest = new Manifest(manifestKey.getRuleKey());
-      resultBuilder.setDidCreateNewManifest(true);
+    // Make room for the new entry by evicting the entries that went unused the longest.
+    int evicted = manifest.evictLeastRecentlyUsed(maxDepFileCacheEntries - 1);
+    if (evicted > 0) {
+      LOG.verbose("%s: evicted %d manifest entries", rule.getBuildTarget(), evicted);
     }
 
     // Update the manifest with the new output rule key.
@@ -152,6 +150,16 @@ public class ManifestRuleKeyManager {
     // to store.
     resultBuilder.setManifestStats(manifest.getStats());
 
+    resultBuilder.setStoreFuture(storeManifest(manifest, manifestKey.getRuleKey(), cache));
+
+    return resultBuilder.build();
+  }
+
+  // Write the manifest to disk and push it to the cache.
+  private ListenableFuture<Void> storeManifest(
+      Manifest manifest, RuleKey manifestKey, ArtifactCache cache) throws IOException {
+    Path manifestPath = getManifestPath(rule);
+
     // Serialize the manifest to disk.
     try (OutputStream outputStream =
         rule.getProjectFilesystem().newFileOutputStream(manifestPath)) {
@@ -167,29 +175,39 @@ public class ManifestRuleKeyManager {
       ByteStreams.copy(inputStream, outputStream);
     }
 
-    // Queue the upload operation and save a future wrapping it.
-    resultBuilder.setStoreFuture(
-        MoreFutures.addListenableCallback(
-            cache.store(
-                ArtifactInfo.builder()
-                    .addRuleKeys(manifestKey.getRuleKey())
-                    .setManifest(true)
-                    .build(),
-                BorrowablePath.borrowablePath(tempFile)),
-            MoreFutures.finallyCallback(
-                () -> {
-                  try {
-                    Files.deleteIfExists(tempFile);
-                  } catch (IOException e) {
-                    LOG.warn(
-                        e,
-                        "Error occurred while deleting temporary manifest file for %s",
-                        manifestPath);
-                  }
-                }),
-            MoreExecutors.directExecutor()));
+    // Queue the upload operation and return a future wrapping it.
+    return MoreFutures.addListenableCallback(
+        cache.store(
+            ArtifactInfo.builder().addRuleKeys(manifestKey).setManifest(true).build(),
+            BorrowablePath.borrowablePath(tempFile)),
+        MoreFutures.finallyCallback(
+            () -> {
+              try {
+                Files.deleteIfExists(tempFile);
+              } catch (IOException e) {
+                LOG.warn(
+                    e,
+                    "Error occurred while deleting temporary manifest file for %s",
+                    manifestPath);
+              }
+            }),
+        MoreExecutors.directExecutor());
+  }
 
-    return resultBuilder.build();
+  // Mark the entry that was hit as recently used. Hits are only persisted if the entry was getting
+  // close to being evicted, to avoid re-uploading a manifest for every hit.
+  private Optional<ListenableFuture<Void>> recordManifestHit(
+      Manifest manifest, RuleKey depFileRuleKey) throws IOException {
+    int moreRecentlyUsed = manifest.markUsed(depFileRuleKey);
+    if (moreRecentlyUsed >= maxDepFileCacheEntries / 2) {
+      LOG.verbose(
+          "%s: refreshing manifest %s after a hit on %s",
+          rule.getBuildTarget(),
+          manifest.getKey(),
+          depFileRuleKey);
+      return Optional.of(storeManifest(manifest, manifest.getKey(), artifactCache));
+    }
+    return Optional.empty();
   }
 
   public Optional<RuleKeyAndInputs> calculateManifestKey(BuckEventBus eventBus) throws IOException {
@@ -314,13 +332,17 @@ public class ManifestRuleKeyManager {
           manifestFetchResult.setDepFileRuleKey(depFileRuleKey.get());
 
           // Fetch the rule outputs from cache using the found dep file rule key.
-          return Futures.transform(
+          return Futures.transformAsync(
               buildCacheArtifactFetcher
                   .tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
                       depFileRuleKey.get(), artifactCache, rule.getProjectFilesystem()),
               (@Nonnull CacheResult ruleCacheResult) -> {
                 manifestFetchResult.setRuleCacheResult(ruleCacheResult);
-                return manifestFetchResult.build();
+                if (ruleCacheResult.getType().isSuccess()) {
+                  manifestFetchResult.setStoreFuture(
+                      recordManifestHit(manifest, depFileRuleKey.get()));
+                }
+                return Futures.immediateFuture(manifestFetchResult.build());
               });
         });
   }
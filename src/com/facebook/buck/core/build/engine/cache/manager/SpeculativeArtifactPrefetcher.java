@@ -0,0 +1,345 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.cache.manager;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.CacheDeleteResult;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.file.MostFiles;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An {@link ArtifactCache} that fetches artifacts ahead of time, before the build engine asks for
+ * them.
+ *
+ * <p>The build engine registers the rule keys of rules it expects to fetch via {@link
+ * #prefetch(BuildTarget, RuleKey)} as soon as they are computed. Those fetches are issued to the
+ * delegate cache right away, so an asynchronous cache can batch them into multi-fetches instead of
+ * paying one round-trip per rule at the moment the rule becomes ready. A later {@link #fetchAsync}
+ * for a prefetched rule key is served from the prefetched file.
+ *
+ * <p>The total size of the artifacts that are being fetched, or that were fetched and are waiting
+ * to be consumed, is bounded. Sizes of in-flight fetches are estimated from the artifacts fetched
+ * so far.
+ *
+ * <p>Prefetched artifacts are staged in the tmp dir under {@code buck-out}, so that consuming them
+ * is a cheap rename and leftovers are removed by {@code buck clean}.
+ *
+ * <p>Closing this cache discards prefetched artifacts that were never consumed, but does not close
+ * the delegate.
+ */
+public class SpeculativeArtifactPrefetcher implements ArtifactCache {
+
+  private static final Logger LOG = Logger.get(SpeculativeArtifactPrefetcher.class);
+
+  /** Size assumed for in-flight artifacts until the size of actual artifacts is known. */
+  private static final long INITIAL_ESTIMATED_ARTIFACT_BYTES = 1024 * 1024;
+
+  private final ArtifactCache delegate;
+  private final ProjectFilesystem projectFilesystem;
+  private final long maxBytes;
+
+  /** Rule keys registered for prefetching that have not been issued to the delegate yet. */
+  @GuardedBy("this")
+  private final LinkedHashMap<RuleKey, BuildTarget> pending = new LinkedHashMap<>();
+
+  /** Prefetches that were issued to the delegate and have not been consumed yet. */
+  @GuardedBy("this")
+  private final Map<RuleKey, Prefetch> issued = new HashMap<>();
+
+  @GuardedBy("this")
+  private long reservedBytes = 0;
+
+  @GuardedBy("this")
+  private long fetchedArtifactCount = 0;
+
+  @GuardedBy("this")
+  private long fetchedArtifactBytes = 0;
+
+  @GuardedBy("this")
+  private boolean issuing = false;
+
+  @GuardedBy("this")
+  private boolean stopped = false;
+
+  @GuardedBy("this")
+  private int consumedCount = 0;
+
+  public SpeculativeArtifactPrefetcher(
+      ArtifactCache delegate, ProjectFilesystem projectFilesystem, long maxBytes) {
+    Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive: %s", maxBytes);
+    this.delegate = delegate;
+    this.projectFilesystem = projectFilesystem;
+    this.maxBytes = maxBytes;
+  }
+
+  /** Registers an artifact which is expected to be fetched later. */
+  public void prefetch(BuildTarget target, RuleKey ruleKey) {
+    synchronized (this) {
+      if (stopped || issued.containsKey(ruleKey)) {
+        return;
+      }
+      pending.putIfAbsent(ruleKey, target);
+    }
+    issuePrefetches();
+  }
+
+  /**
+   * Issues pending prefetches while the size budget allows. Only one thread issues at a time; other
+   * threads freeing up budget meanwhile are picked up by the issuing thread's next iteration.
+   */
+  private void issuePrefetches() {
+    synchronized (this) {
+      if (issuing) {
+        return;
+      }
+      issuing = true;
+    }
+    while (true) {
+      Prefetch prefetch;
+      synchronized (this) {
+        if (stopped
+            || pending.isEmpty()
+            || (reservedBytes >= maxBytes && !issued.isEmpty())) {
+          issuing = false;
+          return;
+        }
+        Iterator<Map.Entry<RuleKey, BuildTarget>> next = pending.entrySet().iterator();
+        Map.Entry<RuleKey, BuildTarget> entry = next.next();
+        next.remove();
+        prefetch =
+            new Prefetch(
+                projectFilesystem,
+                entry.getValue(),
+                entry.getKey(),
+                getEstimatedArtifactBytes());
+        issued.put(prefetch.ruleKey, prefetch);
+        reservedBytes += prefetch.reservedBytes;
+      }
+      // Issue the fetch outside of the lock: some caches fetch synchronously.
+      ListenableFuture<CacheResult> result =
+          delegate.fetchAsync(prefetch.target, prefetch.ruleKey, prefetch.path);
+      prefetch.result.setFuture(result);
+      result.addListener(() -> onPrefetchFinished(prefetch), MoreExecutors.directExecutor());
+    }
+  }
+
+  @GuardedBy("this")
+  private long getEstimatedArtifactBytes() {
+    return fetchedArtifactCount == 0
+        ? INITIAL_ESTIMATED_ARTIFACT_BYTES
+        : Math.max(1, fetchedArtifactBytes / fetchedArtifactCount);
+  }
+
+  private void onPrefetchFinished(Prefetch prefetch) {
+    Optional<CacheResult> result = getDoneResult(prefetch.result);
+    synchronized (this) {
+      long actualBytes = 0;
+      if (result.isPresent() && result.get().getType() == CacheResultType.HIT) {
+        actualBytes = getSize(prefetch.path);
+        fetchedArtifactCount++;
+        fetchedArtifactBytes += actualBytes;
+      }
+      // Consumed prefetches no longer count against the budget.
+      if (issued.get(prefetch.ruleKey) == prefetch) {
+        reservedBytes += actualBytes - prefetch.reservedBytes;
+        prefetch.reservedBytes = actualBytes;
+      }
+    }
+    issuePrefetches();
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+    Prefetch prefetch;
+    synchronized (this) {
+      pending.remove(ruleKey);
+      prefetch = issued.remove(ruleKey);
+      if (prefetch != null) {
+        reservedBytes -= prefetch.reservedBytes;
+        prefetch.reservedBytes = 0;
+        consumedCount++;
+      }
+    }
+    if (prefetch == null) {
+      return delegate.fetchAsync(target, ruleKey, output);
+    }
+    issuePrefetches();
+    return Futures.transformAsync(
+        prefetch.result,
+        result -> {
+          if (result.getType() == CacheResultType.HIT) {
+            try {
+              Files.move(
+                  prefetch.path.get(), output.get(), StandardCopyOption.REPLACE_EXISTING);
+              return Futures.immediateFuture(result);
+            } catch (IOException e) {
+              LOG.warn(e, "Failed to move prefetched artifact for %s, fetching again.", ruleKey);
+            }
+          } else if (result.getType() != CacheResultType.ERROR
+              && result.getType() != CacheResultType.SKIPPED) {
+            return Futures.immediateFuture(result);
+          }
+          // Prefetching may fail for transient reasons, so give the cache another chance.
+          prefetch.deleteFile();
+          return delegate.fetchAsync(target, ruleKey, output);
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  @Override
+  public void skipPendingAndFutureAsyncFetches() {
+    synchronized (this) {
+      stopped = true;
+      pending.clear();
+    }
+    delegate.skipPendingAndFutureAsyncFetches();
+  }
+
+  @Override
+  public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+    return delegate.store(info, output);
+  }
+
+  @Override
+  public ListenableFuture<Void> store(ImmutableList<Pair<ArtifactInfo, BorrowablePath>> artifacts) {
+    return delegate.store(artifacts);
+  }
+
+  @Override
+  public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+      ImmutableSet<RuleKey> ruleKeys) {
+    return delegate.multiContainsAsync(ruleKeys);
+  }
+
+  @Override
+  public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+    return delegate.deleteAsync(ruleKeys);
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return delegate.getCacheReadMode();
+  }
+
+  /** Drops pending prefetches and deletes prefetched artifacts that were never consumed. */
+  @Override
+  public void close() {
+    List<Prefetch> unconsumed;
+    synchronized (this) {
+      stopped = true;
+      pending.clear();
+      unconsumed = new ArrayList<>(issued.values());
+      issued.clear();
+      reservedBytes = 0;
+      LOG.debug(
+          "Prefetched artifacts: %d consumed, %d unconsumed.", consumedCount, unconsumed.size());
+    }
+    for (Prefetch prefetch : unconsumed) {
+      prefetch.result.addListener(prefetch::deleteFile, MoreExecutors.directExecutor());
+    }
+  }
+
+  private static Optional<CacheResult> getDoneResult(ListenableFuture<CacheResult> future) {
+    try {
+      return Optional.of(Futures.getDone(future));
+    } catch (ExecutionException | RuntimeException e) {
+      return Optional.empty();
+    }
+  }
+
+  private static long getSize(LazyPath path) {
+    try {
+      return Files.size(path.get());
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static class Prefetch {
+    private final BuildTarget target;
+    private final RuleKey ruleKey;
+    private final LazyPath path;
+    private final SettableFuture<CacheResult> result = SettableFuture.create();
+
+    /** Bytes this prefetch counts against the budget; guarded by the prefetcher's lock. */
+    private long reservedBytes;
+
+    private Prefetch(
+        ProjectFilesystem projectFilesystem,
+        BuildTarget target,
+        RuleKey ruleKey,
+        long reservedBytes) {
+      this.target = target;
+      this.ruleKey = ruleKey;
+      this.reservedBytes = reservedBytes;
+      this.path =
+          new LazyPath() {
+            @Override
+            protected Path create() throws IOException {
+              Path tmpDir = projectFilesystem.getBuckPaths().getTmpDir();
+              projectFilesystem.mkdirs(tmpDir);
+              return projectFilesystem.resolve(
+                  projectFilesystem.createTempFile(
+                      tmpDir,
+                      "buck_prefetch_" + MostFiles.sanitize(target.getShortName()),
+                      ".zip"));
+            }
+          };
+    }
+
+    private void deleteFile() {
+      try {
+        Files.deleteIfExists(path.get());
+      } catch (IOException e) {
+        LOG.debug(e, "Failed to delete prefetched artifact for %s.", ruleKey);
+      }
+    }
+  }
+}
@@ -18,16 +18,28 @@ package com.facebook.buck.core.build.engine.config;
 import com.facebook.buck.core.build.engine.type.BuildType;
 import com.facebook.buck.core.build.engine.type.DepFiles;
 import com.facebook.buck.core.build.engine.type.MetadataStorage;
+import com.facebook.buck.core.build.engine.type.RuleSchedulingOrder;
+import com.facebook.buck.core.build.stats.RuleTypeMemoryHistory;
 import com.facebook.buck.core.config.BuckConfig;
 import com.facebook.buck.core.config.ConfigView;
+import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.core.resources.ResourcesConfig;
 import com.facebook.buck.core.util.immutables.BuckStyleTuple;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
+import com.facebook.buck.util.concurrent.ResourceAmountsEstimator;
+import com.facebook.buck.util.unit.SizeUnit;
+import com.google.common.collect.ImmutableMap;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import org.immutables.value.Value;
 
 @Value.Immutable
 @BuckStyleTuple
 abstract class AbstractCachingBuildEngineBuckConfig implements ConfigView<BuckConfig> {
+
+  private static final int DEFAULT_DURATION_HISTORY_MAX_ENTRIES = 100_000;
+
   /** @return the mode with which to run the build engine. */
   public BuildType getBuildEngineMode() {
     return getDelegate().getEnum("build", "engine", BuildType.class).orElse(BuildType.SHALLOW);
@@ -39,6 +51,22 @@ abstract class AbstractCachingBuildEngineBuckConfig implements ConfigView<BuckCo
         .orElse(MetadataStorage.FILESYSTEM);
   }
 
+  /**
+   * @return whether SQLite metadata storage queues updates and commits them in batches on a
+   *     background thread instead of writing them synchronously.
+   */
+  public boolean getBuildMetadataWriteBehind() {
+    return getDelegate().getBoolean("build", "metadata_write_behind").orElse(false);
+  }
+
+  /**
+   * @return whether the daemon persists the rule keys it computed in buck-out, so that a new daemon
+   *     can restore those which are still valid.
+   */
+  public boolean getPersistRuleKeyCache() {
+    return getDelegate().getBoolean("build", "persist_rule_key_cache").orElse(false);
+  }
+
   /** @return the mode with which to run the build engine. */
   public DepFiles getBuildDepFiles() {
     return getDelegate().getEnum("build", "depfiles", DepFiles.class).orElse(DepFiles.CACHE);
@@ -66,11 +94,110 @@ abstract class AbstractCachingBuildEngineBuckConfig implements ConfigView<BuckCo
     return getDelegate().getLong("build", "artifact_cache_size_limit");
   }
 
+  /**
+   * @return the maximum total size of artifacts that deep builds fetch from the cache ahead of
+   *     time, before their rules are ready to be built. Zero disables prefetching.
+   */
+  public long getSpeculativeCachePrefetchMaxBytes() {
+    return getDelegate()
+        .getValue("build", "speculative_cache_prefetch_max_size")
+        .map(SizeUnit::parseBytes)
+        .orElse(0L);
+  }
+
+  /**
+   * @return whether rule key cache lookups skip the remote caches for rule types whose remote
+   *     lookups essentially never hit, according to a history of lookups kept in buck-out.
+   */
+  public boolean getCacheMissPrediction() {
+    return getDelegate().getBoolean("build", "cache_miss_prediction").orElse(false);
+  }
+
+  /**
+   * @return the maximum number of (target, rule key type) entries to keep in the history of build
+   *     rule durations stored in buck-out. Zero disables the history.
+   */
+  public int getBuildRuleDurationHistoryMaxEntries() {
+    return getDelegate()
+        .getInteger("build", "duration_history_max_entries")
+        .orElse(DEFAULT_DURATION_HISTORY_MAX_ENTRIES);
+  }
+
   public ResourceAwareSchedulingInfo getResourceAwareSchedulingInfo() {
+    return getResourceAwareSchedulingInfo(Optional.empty());
+  }
+
+  /**
+   * @return the resource aware scheduling info. When {@code resources.memory_budget} is set, the
+   *     memory amount of each rule type that is in the given history is replaced with the peak
+   *     memory its processes were seen to use, rounded up to whole memory resource units.
+   */
+  public ResourceAwareSchedulingInfo getResourceAwareSchedulingInfo(
+      Optional<RuleTypeMemoryHistory> memoryHistory) {
     ResourcesConfig resourcesConfig = getDelegate().getView(ResourcesConfig.class);
+    ResourceAmounts defaultAmounts = resourcesConfig.getDefaultResourceAmounts();
+    ImmutableMap<String, ResourceAmounts> amountsPerRuleType =
+        resourcesConfig.getResourceAmountsPerRuleType();
+    if (memoryHistory.isPresent() && resourcesConfig.getMemoryBudget().isPresent()) {
+      Map<String, ResourceAmounts> learnedAmounts = new HashMap<>(amountsPerRuleType);
+      memoryHistory
+          .get()
+          .getExpectedPeakBytesPerRuleType()
+          .forEach(
+              (ruleType, peakBytes) ->
+                  learnedAmounts.put(
+                      ruleType,
+                      learnedAmounts
+                          .getOrDefault(ruleType, defaultAmounts)
+                          .withMemory(toMemoryAmount(peakBytes))));
+      amountsPerRuleType = ImmutableMap.copyOf(learnedAmounts);
+    }
     return ResourceAwareSchedulingInfo.of(
-        resourcesConfig.isResourceAwareSchedulingEnabled(),
-        resourcesConfig.getDefaultResourceAmounts(),
-        resourcesConfig.getResourceAmountsPerRuleType());
+        resourcesConfig.isResourceAwareSchedulingEnabled(), defaultAmounts, amountsPerRuleType);
+  }
+
+  private static int toMemoryAmount(long bytes) {
+    // Every rule that spawns processes holds at least one unit, so that the memory measured for
+    // its processes is taken into account while it runs.
+    return (int)
+        Math.max(
+            1,
+            Math.min(
+                Integer.MAX_VALUE,
+                (bytes + ResourceAmountsEstimator.MEMORY_UNIT_BYTES - 1)
+                    / ResourceAmountsEstimator.MEMORY_UNIT_BYTES));
+  }
+
+  /**
+   * @return how rules that are ready to build locally are ordered. With {@link
+   *     RuleSchedulingOrder#CRITICAL_PATH} the estimated cost of each rule is taken from {@code
+   *     build.critical_path_rule_type_weights}, a map from rule type to a relative weight.
+   */
+  public RuleSchedulingInfo getRuleSchedulingInfo() {
+    RuleSchedulingOrder order =
+        getDelegate()
+            .getEnum("build", "rule_scheduling_order", RuleSchedulingOrder.class)
+            .orElse(RuleSchedulingOrder.DISCOVERY);
+    ImmutableMap<String, Long> weights =
+        getDelegate()
+            .getMap("build", "critical_path_rule_type_weights")
+            .entrySet()
+            .stream()
+            .collect(
+                ImmutableMap.toImmutableMap(
+                    Map.Entry::getKey,
+                    entry -> parseRuleTypeWeight(entry.getKey(), entry.getValue())));
+    return RuleSchedulingInfo.of(order, weights);
+  }
+
+  private static long parseRuleTypeWeight(String ruleType, String value) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new HumanReadableException(
+          "Malformed value for critical_path_rule_type_weights in [build]: %s for rule type %s; "
+              + "expecting an integer.",
+          value, ruleType);
+    }
   }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.config;
+
+import com.facebook.buck.core.build.engine.type.RuleSchedulingOrder;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.util.immutables.BuckStyleTuple;
+import com.google.common.collect.ImmutableMap;
+import org.immutables.value.Value;
+
+/** Controls the order in which the build engine starts rules that are ready to build locally. */
+@Value.Immutable
+@BuckStyleTuple
+abstract class AbstractRuleSchedulingInfo {
+
+  /** Weight of a rule with build steps whose type has no configured weight. */
+  public static final long DEFAULT_RULE_WEIGHT = 1;
+
+  public static final RuleSchedulingInfo DISCOVERY_ORDER_SCHEDULING_INFO =
+      RuleSchedulingInfo.of(RuleSchedulingOrder.DISCOVERY, ImmutableMap.of());
+
+  public abstract RuleSchedulingOrder getSchedulingOrder();
+
+  /** Map from the value of {@link BuildRule#getType()} to its relative cost estimate. */
+  public abstract ImmutableMap<String, Long> getWeightsPerRuleType();
+
+  /**
+   * @return the relative cost of building the given rule locally, used to estimate how long the
+   *     chain of work depending on a rule is.
+   */
+  public long getWeightForRule(BuildRule rule) {
+    if (!rule.hasBuildSteps()) {
+      return 0;
+    }
+    return getWeightsPerRuleType().getOrDefault(rule.getType(), DEFAULT_RULE_WEIGHT);
+  }
+}
@@ -18,6 +18,7 @@ package com.facebook.buck.core.build.engine.impl;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.core.build.buildable.context.BuildableContext;
 import com.facebook.buck.core.build.distributed.synchronization.RemoteBuildRuleCompletionWaiter;
 import com.facebook.buck.core.build.engine.BuildEngine;
@@ -31,12 +32,18 @@ import com.facebook.buck.core.build.engine.buildinfo.BuildInfoRecorder;
 import com.facebook.buck.core.build.engine.buildinfo.BuildInfoStore;
 import com.facebook.buck.core.build.engine.buildinfo.OnDiskBuildInfo;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
+import com.facebook.buck.core.build.engine.cache.manager.CacheMissPrediction;
+import com.facebook.buck.core.build.engine.cache.manager.SpeculativeArtifactPrefetcher;
 import com.facebook.buck.core.build.engine.config.ResourceAwareSchedulingInfo;
+import com.facebook.buck.core.build.engine.config.RuleSchedulingInfo;
 import com.facebook.buck.core.build.engine.delegate.CachingBuildEngineDelegate;
 import com.facebook.buck.core.build.engine.type.BuildType;
 import com.facebook.buck.core.build.engine.type.DepFiles;
 import com.facebook.buck.core.build.engine.type.MetadataStorage;
+import com.facebook.buck.core.build.engine.type.RuleSchedulingOrder;
 import com.facebook.buck.core.build.event.BuildRuleEvent;
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory;
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory.DurationType;
 import com.facebook.buck.core.build.stats.BuildRuleDurationTracker;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.rulekey.RuleKey;
@@ -48,8 +55,10 @@ import com.facebook.buck.core.rules.attr.HasRuntimeDeps;
 import com.facebook.buck.core.rules.build.strategy.BuildRuleStrategy;
 import com.facebook.buck.core.sourcepath.resolver.SourcePathResolver;
 import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.keys.RuleKeyDiagnostics;
 import com.facebook.buck.rules.keys.RuleKeyFactories;
+import com.facebook.buck.rules.keys.RuleKeyType;
 import com.facebook.buck.rules.keys.hasher.StringRuleKeyHasher;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.StepRunner;
@@ -58,25 +67,35 @@ import com.facebook.buck.util.collect.SortedSets;
 import com.facebook.buck.util.concurrent.MoreFutures;
 import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
+import com.facebook.buck.util.types.Pair;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.function.ToLongFunction;
 import java.util.stream.Stream;
 import javax.annotation.Nullable;
 
@@ -86,6 +105,8 @@ import javax.annotation.Nullable;
  * tries to fetch its output from an {@link ArtifactCache} to avoid doing any computation.
  */
 public class CachingBuildEngine implements BuildEngine, Closeable {
+  private static final Logger LOG = Logger.get(CachingBuildEngine.class);
+
   public static final ResourceAmounts CACHE_CHECK_RESOURCE_AMOUNTS = ResourceAmounts.of(0, 0, 1, 1);
 
   public static final ResourceAmounts RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS =
@@ -93,7 +114,9 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
   public static final ResourceAmounts SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS =
       ResourceAmounts.zero();
 
-  static final String BUILD_RULE_TYPE_CONTEXT_KEY = "build_rule_type";
+  /** Maximum number of rule keys to look up in the artifact cache at once in lazy builds. */
+  private static final int LAZY_CACHE_LOOKUP_BATCH_SIZE = 1000;
+
   static final String STEP_TYPE_CONTEXT_KEY = "step_type";
   private final ConcurrentLinkedQueue<ListenableFuture<Void>> asyncCallbacks;
 
@@ -125,11 +148,22 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
   private final SourcePathRuleFinder ruleFinder;
   private final SourcePathResolver pathResolver;
   private final Optional<Long> artifactCacheSizeLimit;
+  private final long speculativePrefetchMaxBytes;
+  private final Optional<CacheMissPrediction> cacheMissPrediction;
   private final FileHashCache fileHashCache;
   @VisibleForTesting final RuleKeyFactories ruleKeyFactories;
   private final ResourceAwareSchedulingInfo resourceAwareSchedulingInfo;
 
   private final RuleDepsCache ruleDeps;
+  private final Optional<CriticalPathRulePrioritizer> criticalPathRulePrioritizer;
+  private final ConcurrentMap<ArtifactCache, SpeculativeArtifactPrefetcher> prefetchers =
+      Maps.newConcurrentMap();
+  private final Set<BuildRule> rulesSeenByPrefetcher = Sets.newConcurrentHashSet();
+  // The results of the deps which lazy builds checked the cache for, shared by all the top-level
+  // rules depending on them.
+  private final ConcurrentMap<BuildRule, ListenableFuture<BuildResult>> lazyCheckResults =
+      Maps.newConcurrentMap();
+  private final Set<BuildRule> rulesReportedNotMaterialized = Sets.newConcurrentHashSet();
   private final Optional<UnskippedRulesTracker> unskippedRulesTracker;
   private final BuildRuleDurationTracker buildRuleDurationTracker = new BuildRuleDurationTracker();
   private final RuleKeyDiagnostics<RuleKey, String> defaultRuleKeyDiagnostics;
@@ -154,11 +188,15 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      long speculativePrefetchMaxBytes,
+      Optional<CacheMissPrediction> cacheMissPrediction,
       BuildRuleResolver resolver,
       SourcePathRuleFinder ruleFinder,
       SourcePathResolver pathResolver,
       BuildInfoStoreManager buildInfoStoreManager,
       ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
+      RuleSchedulingInfo ruleSchedulingInfo,
+      Optional<BuildRuleDurationHistory> durationHistory,
       boolean consoleLogBuildFailuresInline,
       RuleKeyFactories ruleKeyFactories,
       RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter) {
@@ -172,6 +210,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         depFiles,
         maxDepFileCacheEntries,
         artifactCacheSizeLimit,
+        speculativePrefetchMaxBytes,
+        cacheMissPrediction,
         resolver,
         buildInfoStoreManager,
         ruleFinder,
@@ -179,6 +219,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         ruleKeyFactories,
         remoteBuildRuleCompletionWaiter,
         resourceAwareSchedulingInfo,
+        ruleSchedulingInfo,
+        durationHistory,
         new RuleKeyDiagnostics<>(
             rule ->
                 ruleKeyFactories
@@ -203,6 +245,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      long speculativePrefetchMaxBytes,
+      Optional<CacheMissPrediction> cacheMissPrediction,
       BuildRuleResolver resolver,
       BuildInfoStoreManager buildInfoStoreManager,
       SourcePathRuleFinder ruleFinder,
@@ -210,6 +254,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       RuleKeyFactories ruleKeyFactories,
       RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter,
       ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
+      RuleSchedulingInfo ruleSchedulingInfo,
+      Optional<BuildRuleDurationHistory> durationHistory,
       RuleKeyDiagnostics<RuleKey, String> defaultRuleKeyDiagnostics,
       boolean consoleLogBuildFailuresInline) {
     this.cachingBuildEngineDelegate = cachingBuildEngineDelegate;
@@ -222,6 +268,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     this.depFiles = depFiles;
     this.maxDepFileCacheEntries = maxDepFileCacheEntries;
     this.artifactCacheSizeLimit = artifactCacheSizeLimit;
+    this.speculativePrefetchMaxBytes = speculativePrefetchMaxBytes;
+    this.cacheMissPrediction = cacheMissPrediction;
     this.resolver = resolver;
     this.ruleFinder = ruleFinder;
     this.pathResolver = pathResolver;
@@ -234,6 +282,12 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
     this.ruleDeps = new DefaultRuleDepsCache(resolver);
     this.unskippedRulesTracker = createUnskippedRulesTracker(buildMode, ruleDeps, resolver);
+    this.criticalPathRulePrioritizer =
+        ruleSchedulingInfo.getSchedulingOrder() == RuleSchedulingOrder.CRITICAL_PATH
+            ? Optional.of(
+                new CriticalPathRulePrioritizer(
+                    ruleDeps, createRuleCostEstimator(ruleSchedulingInfo, durationHistory)))
+            : Optional.empty();
     this.defaultRuleKeyDiagnostics = defaultRuleKeyDiagnostics;
     this.consoleLogBuildFailuresInline = consoleLogBuildFailuresInline;
     this.asyncCallbacks = new ConcurrentLinkedQueue<>();
@@ -256,7 +310,12 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       if (customBuildRuleStrategy.isPresent()) {
         customBuildRuleStrategy.get().close();
       }
-      Futures.allAsList(asyncCallbacks).get();
+      try {
+        Futures.allAsList(asyncCallbacks).get();
+      } finally {
+        prefetchers.values().forEach(SpeculativeArtifactPrefetcher::close);
+      }
+      buildInfoStoreManager.flush();
     } catch (InterruptedException e) {
       e.printStackTrace();
     } catch (IOException | ExecutionException e) {
@@ -279,6 +338,36 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     return resourceAwareSchedulingInfo.adjustServiceDefaultWeightsTo(defaultAmounts, service);
   }
 
+  /**
+   * Estimates the cost of building a rule locally for critical path scheduling. Rules that were
+   * built locally before cost their historical execution time. The configured weight of any other
+   * rule is scaled by the average historical execution time, so that both estimates are in the
+   * same unit.
+   */
+  private static ToLongFunction<BuildRule> createRuleCostEstimator(
+      RuleSchedulingInfo ruleSchedulingInfo, Optional<BuildRuleDurationHistory> durationHistory) {
+    if (!durationHistory.isPresent()) {
+      return ruleSchedulingInfo::getWeightForRule;
+    }
+    BuildRuleDurationHistory history = durationHistory.get();
+    long millisPerWeight =
+        Math.max(
+            1,
+            history
+                .getMeanExpectedMillis(RuleKeyType.DEFAULT, DurationType.EXECUTION)
+                .orElse(1));
+    return rule -> {
+      long weight = ruleSchedulingInfo.getWeightForRule(rule);
+      if (weight == 0) {
+        return 0;
+      }
+      return history
+          .getExpectedMillis(
+              rule.getFullyQualifiedName(), RuleKeyType.DEFAULT, DurationType.EXECUTION)
+          .orElse(weight * millisPerWeight);
+    };
+  }
+
   private static Optional<UnskippedRulesTracker> createUnskippedRulesTracker(
       BuildType buildMode, RuleDepsCache ruleDeps, BuildRuleResolver resolver) {
     if (buildMode == BuildType.DEEP || buildMode == BuildType.POPULATE_FROM_REMOTE_CACHE) {
@@ -414,6 +503,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   @Override
   public int getNumRulesToBuild(Iterable<BuildRule> rules) {
+    // All top-level rules are known here, so register them together to walk shared deps only once.
+    criticalPathRulePrioritizer.ifPresent(prioritizer -> prioritizer.registerTopLevelRules(rules));
     Set<BuildRule> seen = Sets.newConcurrentHashSet();
     ImmutableList.Builder<ListenableFuture<?>> results = ImmutableList.builder();
     for (BuildRule rule : rules) {
@@ -436,11 +527,297 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     // Keep track of all jobs that run asynchronously with respect to the build dep chain.  We want
     // to make sure we wait for these before calling yielding the final build result.
     registerTopLevelRule(rule, buildContext.getEventBus());
+    criticalPathRulePrioritizer.ifPresent(
+        prioritizer -> prioritizer.registerTopLevelRules(ImmutableList.of(rule)));
+    BuildEngineBuildContext engineBuildContext = startSpeculativePrefetch(rule, buildContext);
     ListenableFuture<BuildResult> resultFuture =
-        getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext);
+        getBuildRuleResultWithRuntimeDeps(rule, engineBuildContext, executionContext);
+    if (buildMode == BuildType.LAZY) {
+      resultFuture = ensureDepsCachedOrBuilt(rule, resultFuture, buildContext, executionContext);
+    }
     return BuildEngineResult.builder().setResult(resultFuture).build();
   }
 
+  /**
+   * In lazy builds the top-level rule is built like in a shallow build, which only materializes
+   * what is needed to build it. Every other rule in its closure is only looked up in the artifact
+   * cache without fetching it, and built only if it is missing.
+   *
+   * <p>Deps shared with other top-level rules are only checked once, but every top-level rule
+   * waits for the results of its whole closure.
+   *
+   * @return the result of the top-level rule, which is canceled if any of the rules that had to be
+   *     built failed, unless keep going is enabled.
+   */
+  private ListenableFuture<BuildResult> ensureDepsCachedOrBuilt(
+      BuildRule rule,
+      ListenableFuture<BuildResult> result,
+      BuildEngineBuildContext buildContext,
+      ExecutionContext executionContext) {
+    Set<BuildRule> closure = new LinkedHashSet<>();
+    Deque<BuildRule> toVisit = new ArrayDeque<>();
+    toVisit.push(rule);
+    while (!toVisit.isEmpty()) {
+      for (BuildRule dep : ruleDeps.get(toVisit.pop())) {
+        if (closure.add(dep)) {
+          toVisit.push(dep);
+        }
+      }
+    }
+
+    List<ListenableFuture<BuildResult>> depResults = new ArrayList<>(closure.size());
+    Map<BuildRule, SettableFuture<BuildResult>> toCheck = new LinkedHashMap<>();
+    for (BuildRule dep : closure) {
+      SettableFuture<BuildResult> depResult = SettableFuture.create();
+      ListenableFuture<BuildResult> existing = lazyCheckResults.putIfAbsent(dep, depResult);
+      if (existing == null) {
+        toCheck.put(dep, depResult);
+        depResults.add(depResult);
+      } else {
+        depResults.add(existing);
+      }
+    }
+    if (!toCheck.isEmpty()) {
+      checkCacheLazily(toCheck, buildContext, executionContext);
+    }
+
+    return Futures.transformAsync(
+        Futures.allAsList(depResults),
+        finishedDeps -> {
+          reportRulesNotMaterialized(finishedDeps, buildContext);
+          Optional<BuildResult> failedDep =
+              finishedDeps.stream().filter(depResult -> !depResult.isSuccess()).findFirst();
+          if (!failedDep.isPresent() || buildContext.isKeepGoing()) {
+            return result;
+          }
+          return Futures.transform(
+              result,
+              ruleResult ->
+                  ruleResult.isSuccess()
+                      ? BuildResult.canceled(rule, failedDep.get().getFailure())
+                      : ruleResult,
+              MoreExecutors.directExecutor());
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** Completes the result of each rule once it was found in the cache, or built. */
+  private void checkCacheLazily(
+      Map<BuildRule, SettableFuture<BuildResult>> rules,
+      BuildEngineBuildContext buildContext,
+      ExecutionContext executionContext) {
+    List<BuildRule> ruleList = new ArrayList<>(rules.keySet());
+    List<ListenableFuture<RuleKey>> ruleKeys = new ArrayList<>(ruleList.size());
+    for (BuildRule rule : ruleList) {
+      ruleKeys.add(calculateRuleKey(rule, buildContext));
+    }
+    ListenableFuture<?> checked =
+        Futures.transformAsync(
+            Futures.allAsList(ruleKeys),
+            keys ->
+                buildRulesMissingFromCache(ruleList, keys, rules, buildContext, executionContext),
+            serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
+    Futures.addCallback(
+        checked,
+        new FutureCallback<Object>() {
+          @Override
+          public void onSuccess(@Nullable Object ignored) {}
+
+          @Override
+          public void onFailure(Throwable t) {
+            // Fail the rules which weren't handed over to the cache lookup or the build yet.
+            rules.values().forEach(result -> result.setException(t));
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<?> buildRulesMissingFromCache(
+      List<BuildRule> rules,
+      List<RuleKey> ruleKeys,
+      Map<BuildRule, SettableFuture<BuildResult>> ruleResults,
+      BuildEngineBuildContext buildContext,
+      ExecutionContext executionContext) {
+    List<Pair<RuleKey, BuildRule>> toLookUp = new ArrayList<>();
+    for (int i = 0; i < rules.size(); i++) {
+      BuildRule rule = rules.get(i);
+      if (results.containsKey(rule.getBuildTarget()) || !rule.isCacheable()) {
+        ruleResults
+            .get(rule)
+            .setFuture(getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext));
+      } else if (isBuiltLocally(rule, ruleKeys.get(i), buildContext)) {
+        ruleResults
+            .get(rule)
+            .set(
+                BuildResult.success(
+                    rule,
+                    BuildRuleSuccessType.MATCHING_RULE_KEY,
+                    CacheResult.localKeyUnchangedHit()));
+      } else {
+        toLookUp.add(new Pair<>(ruleKeys.get(i), rule));
+      }
+    }
+
+    List<ListenableFuture<?>> lookups = new ArrayList<>();
+    for (List<Pair<RuleKey, BuildRule>> batch :
+        Lists.partition(toLookUp, LAZY_CACHE_LOOKUP_BATCH_SIZE)) {
+      lookups.add(buildIfMissingFromCache(batch, ruleResults, buildContext, executionContext));
+    }
+    return Futures.allAsList(lookups);
+  }
+
+  private ListenableFuture<?> buildIfMissingFromCache(
+      List<Pair<RuleKey, BuildRule>> rules,
+      Map<BuildRule, SettableFuture<BuildResult>> ruleResults,
+      BuildEngineBuildContext buildContext,
+      ExecutionContext executionContext) {
+    ImmutableSet<RuleKey> ruleKeys =
+        rules.stream().map(Pair::getFirst).collect(ImmutableSet.toImmutableSet());
+    ListenableFuture<ImmutableMap<RuleKey, CacheResult>> lookup;
+    try {
+      lookup = buildContext.getArtifactCache().multiContainsAsync(ruleKeys);
+    } catch (RuntimeException e) {
+      lookup = Futures.immediateFailedFuture(e);
+    }
+    // Rules which couldn't be looked up are built, which fetches them from the cache if they are
+    // there after all, and reports any cache errors like in any other build.
+    lookup =
+        Futures.catching(
+            lookup,
+            Exception.class,
+            e -> {
+              if (e instanceof UnsupportedOperationException) {
+                // Not all caches can look up artifacts without fetching them. With those, lazy
+                // builds materialize the rules like a deep build would.
+                LOG.debug(e, "The cache can't look up rules without fetching them.");
+              } else {
+                LOG.warn(e, "Failed to look up %d rules in the cache.", ruleKeys.size());
+              }
+              return ImmutableMap.of();
+            },
+            MoreExecutors.directExecutor());
+    return Futures.transform(
+        lookup,
+        cacheResults -> {
+          for (Pair<RuleKey, BuildRule> entry : rules) {
+            BuildRule rule = entry.getSecond();
+            CacheResult cacheResult = cacheResults.get(entry.getFirst());
+            if (cacheResult != null && cacheResult.getType() == CacheResultType.CONTAINS) {
+              LOG.verbose("Found %s in the cache, not materializing it.", rule);
+              ruleResults
+                  .get(rule)
+                  .set(
+                      BuildResult.success(
+                          rule, BuildRuleSuccessType.FETCHED_FROM_CACHE, cacheResult));
+            } else {
+              ruleResults
+                  .get(rule)
+                  .setFuture(
+                      getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext));
+            }
+          }
+          return null;
+        },
+        serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
+  }
+
+  /**
+   * Reports the rules which lazy builds didn't need to build or fetch, so that they are counted in
+   * the build's progress. They are reported with a dedicated event rather than as finished, as they
+   * were never started and their cache results are only lookups, not fetches. Rules which were
+   * materialized after all, because a dependent had to be built locally, are reported as finished
+   * when they are built.
+   */
+  private void reportRulesNotMaterialized(
+      List<BuildResult> depResults, BuildEngineBuildContext buildContext) {
+    for (BuildResult depResult : depResults) {
+      BuildRule rule = depResult.getRule();
+      if (depResult.isSuccess() && claimRuleNotMaterialized(rule)) {
+        buildContext
+            .getEventBus()
+            .post(
+                BuildRuleEvent.notMaterialized(
+                    rule, depResult.getCacheResult().orElse(CacheResult.miss())));
+      }
+    }
+  }
+
+  /**
+   * Claims a rule for reporting as not materialized, unless it was already claimed or the build
+   * has already started materializing it. Rules are only added to {@link #results} while holding
+   * its lock, so this can't race with a rule starting to be materialized.
+   */
+  private boolean claimRuleNotMaterialized(BuildRule rule) {
+    synchronized (results) {
+      return !results.containsKey(rule.getBuildTarget()) && rulesReportedNotMaterialized.add(rule);
+    }
+  }
+
+  /**
+   * In deep builds every rule in the closure of a top-level rule is either fetched or built, so
+   * the artifacts of the whole closure can be requested from the cache as soon as their rule keys
+   * are known, rather than one dependency level at a time. Shallow builds may never need the
+   * artifacts of most deps, so they don't prefetch.
+   *
+   * @return the context to build the rule with, which serves fetches from prefetched artifacts.
+   */
+  private BuildEngineBuildContext startSpeculativePrefetch(
+      BuildRule rule, BuildEngineBuildContext buildContext) {
+    if (speculativePrefetchMaxBytes <= 0
+        || (buildMode != BuildType.DEEP && buildMode != BuildType.POPULATE_FROM_REMOTE_CACHE)) {
+      return buildContext;
+    }
+    SpeculativeArtifactPrefetcher prefetcher =
+        prefetchers.computeIfAbsent(
+            buildContext.getArtifactCache(),
+            cache ->
+                new SpeculativeArtifactPrefetcher(
+                    cache, rule.getProjectFilesystem(), speculativePrefetchMaxBytes));
+    BuildEngineBuildContext prefetchingContext = buildContext.withArtifactCache(prefetcher);
+
+    Deque<BuildRule> toVisit = new ArrayDeque<>();
+    if (rulesSeenByPrefetcher.add(rule)) {
+      toVisit.push(rule);
+    }
+    while (!toVisit.isEmpty()) {
+      BuildRule current = toVisit.pop();
+      if (current.isCacheable()) {
+        Futures.addCallback(
+            calculateRuleKey(current, prefetchingContext),
+            new FutureCallback<RuleKey>() {
+              @Override
+              public void onSuccess(RuleKey ruleKey) {
+                if (!isBuiltLocally(current, ruleKey, buildContext)) {
+                  prefetcher.prefetch(current.getBuildTarget(), ruleKey);
+                }
+              }
+
+              @Override
+              public void onFailure(Throwable t) {
+                // The failure is reported when the rule itself is built.
+              }
+            },
+            MoreExecutors.directExecutor());
+      }
+      for (BuildRule dep : ruleDeps.get(current)) {
+        if (rulesSeenByPrefetcher.add(dep)) {
+          toVisit.push(dep);
+        }
+      }
+    }
+    return prefetchingContext;
+  }
+
+  private boolean isBuiltLocally(
+      BuildRule rule, RuleKey ruleKey, BuildEngineBuildContext buildContext) {
+    OnDiskBuildInfo onDiskBuildInfo =
+        buildContext.createOnDiskBuildInfoFor(
+            rule.getBuildTarget(),
+            rule.getProjectFilesystem(),
+            buildInfoStoreManager.get(rule.getProjectFilesystem(), metadataStorage));
+    return ruleKey.equals(onDiskBuildInfo.getRuleKey(BuildInfo.MetadataKey.RULE_KEY).orElse(null));
+  }
+
   @Nullable
   @Override
   public BuildResult getBuildRuleResult(BuildTarget buildTarget)
@@ -484,6 +861,12 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                 ruleKeyFactories.getDefaultRuleKeyFactory().build(rule).toString())
             .addBuildMetadata(BuildInfo.MetadataKey.BUILD_ID, buildContext.getBuildId().toString());
     BuildableContext buildableContext = new DefaultBuildableContext(buildInfoRecorder);
+    WeightedListeningExecutorService ruleService = service;
+    if (criticalPathRulePrioritizer.isPresent()) {
+      long priority = criticalPathRulePrioritizer.get().getPriority(rule);
+      buildContext.getEventBus().post(BuildRuleEvent.prioritized(rule, priority));
+      ruleService = service.withPriority(priority);
+    }
     return new CachingBuildRuleBuilder(
             new DefaultBuildRuleBuilderDelegate(this, buildContext),
             artifactCacheSizeLimit,
@@ -499,7 +882,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
             pathResolver,
             resourceAwareSchedulingInfo,
             ruleKeyFactories,
-            service,
+            ruleService,
             stepRunner,
             this.ruleDeps,
             rule,
@@ -510,6 +893,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
             buildableContext,
             pipelinesRunner,
             remoteBuildRuleCompletionWaiter,
+            cacheMissPrediction,
             customBuildRuleStrategy)
         .build();
   }
@@ -24,6 +24,7 @@ import com.facebook.buck.artifact_cache.RuleKeyCacheResultEvent;
 import com.facebook.buck.core.build.buildable.context.BuildableContext;
 import com.facebook.buck.core.build.context.BuildContext;
 import com.facebook.buck.core.build.distributed.synchronization.RemoteBuildRuleCompletionWaiter;
+import com.facebook.buck.core.build.engine.BuildEngine;
 import com.facebook.buck.core.build.engine.BuildEngineBuildContext;
 import com.facebook.buck.core.build.engine.BuildExecutor;
 import com.facebook.buck.core.build.engine.BuildExecutorRunner;
@@ -39,6 +40,7 @@ import com.facebook.buck.core.build.engine.cache.manager.BuildCacheArtifactFetch
 import com.facebook.buck.core.build.engine.cache.manager.BuildCacheArtifactUploader;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
 import com.facebook.buck.core.build.engine.cache.manager.BuildRuleScopeManager;
+import com.facebook.buck.core.build.engine.cache.manager.CacheMissPrediction;
 import com.facebook.buck.core.build.engine.cache.manager.DependencyFileRuleKeyManager;
 import com.facebook.buck.core.build.engine.cache.manager.InputBasedRuleKeyManager;
 import com.facebook.buck.core.build.engine.cache.manager.ManifestRuleKeyManager;
@@ -144,6 +146,7 @@ class CachingBuildRuleBuilder {
   private final ArtifactCache artifactCache;
   private final BuildId buildId;
   private final RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter;
+  private final Optional<CacheMissPrediction> cacheMissPrediction;
   private final Set<String> depsWithCacheMiss = Collections.synchronizedSet(new HashSet<>());
 
   private final BuildRuleScopeManager buildRuleScopeManager;
@@ -205,6 +208,7 @@ class CachingBuildRuleBuilder {
       BuildableContext buildableContext,
       BuildRulePipelinesRunner pipelinesRunner,
       RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter,
+      Optional<CacheMissPrediction> cacheMissPrediction,
       Optional<BuildRuleStrategy> customBuildRuleStrategy) {
     this.buildRuleBuilderDelegate = buildRuleBuilderDelegate;
     this.buildMode = buildMode;
@@ -226,6 +230,7 @@ class CachingBuildRuleBuilder {
     this.artifactCache = buildContext.getArtifactCache();
     this.buildId = buildContext.getBuildId();
     this.remoteBuildRuleCompletionWaiter = remoteBuildRuleCompletionWaiter;
+    this.cacheMissPrediction = cacheMissPrediction;
 
     this.defaultKey = ruleKeyFactories.getDefaultRuleKeyFactory().build(rule);
 
@@ -845,6 +850,9 @@ class CachingBuildRuleBuilder {
             if (!result.getRuleCacheResult().get().getType().isSuccess()) {
               return Optional.empty();
             }
+            if (result.getStoreFuture().isPresent()) {
+              uploadCompleteFuture = result.getStoreFuture().get();
+            }
             return Optional.of(
                 success(
                     BuildRuleSuccessType.FETCHED_FROM_CACHE_MANIFEST_BASED,
@@ -1051,14 +1059,29 @@ class CachingBuildRuleBuilder {
 
   private ListenableFuture<CacheResult> performRuleKeyCacheCheck(boolean cacheHitExpected) {
     long cacheRequestTimestampMillis = System.currentTimeMillis();
-    return Futures.transform(
+    // Lookups which are expected to hit, because the rule was built remotely, are always made in
+    // full. Otherwise, a predicted miss only skips the remote tiers of the cache.
+    boolean missPredicted =
+        !cacheHitExpected
+            && rule.isCacheable()
+            && cacheMissPrediction.isPresent()
+            && cacheMissPrediction.get().getPredictor().shouldSkipRemoteLookup(rule.getType());
+    ListenableFuture<CacheResult> lookup =
         buildCacheArtifactFetcher
             .tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
                 defaultKey,
-                artifactCache,
+                missPredicted ? cacheMissPrediction.get().getLocalArtifactCache() : artifactCache,
                 // TODO(simons): This should be a shared between all tests, not one per cell
-                rule.getProjectFilesystem()),
+                rule.getProjectFilesystem());
+    return Futures.transform(
+        lookup,
         cacheResult -> {
+          if (cacheMissPrediction.isPresent()) {
+            cacheMissPrediction
+                .get()
+                .getPredictor()
+                .record(rule.getType(), cacheResult, !missPredicted);
+          }
           RuleKeyCacheResult ruleKeyCacheResult =
               RuleKeyCacheResult.builder()
                   .setBuildTarget(rule.getFullyQualifiedName())
@@ -1070,7 +1093,8 @@ class CachingBuildRuleBuilder {
                   .build();
           ruleKeyCacheCheckTimestampsMillis =
               new Pair<>(cacheRequestTimestampMillis, System.currentTimeMillis());
-          eventBus.post(new RuleKeyCacheResultEvent(ruleKeyCacheResult, cacheHitExpected));
+          eventBus.post(
+              new RuleKeyCacheResultEvent(ruleKeyCacheResult, cacheHitExpected, missPredicted));
           return cacheResult;
         });
   }
@@ -1147,7 +1171,7 @@ class CachingBuildRuleBuilder {
               new ContextualProcessExecutor(
                   executionContext.getProcessExecutor(),
                   ImmutableMap.of(
-                      CachingBuildEngine.BUILD_RULE_TYPE_CONTEXT_KEY,
+                      BuildEngine.BUILD_RULE_TYPE_CONTEXT_KEY,
                       rule.getType(),
                       CachingBuildEngine.STEP_TYPE_CONTEXT_KEY,
                       CachingBuildEngine.StepType.POST_BUILD_STEP.toString()))),
@@ -1320,7 +1344,7 @@ class CachingBuildRuleBuilder {
               new ContextualProcessExecutor(
                   executionContext.getProcessExecutor(),
                   ImmutableMap.of(
-                      CachingBuildEngine.BUILD_RULE_TYPE_CONTEXT_KEY,
+                      BuildEngine.BUILD_RULE_TYPE_CONTEXT_KEY,
                       rule.getType(),
                       CachingBuildEngine.STEP_TYPE_CONTEXT_KEY,
                       StepType.BUILD_STEP.toString())));
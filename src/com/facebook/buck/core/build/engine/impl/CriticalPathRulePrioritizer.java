@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import com.facebook.buck.core.build.engine.RuleDepsCache;
+import com.facebook.buck.core.rules.BuildRule;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Assigns each build rule a scheduling priority equal to the estimated length of the remaining
+ * critical path through it: the rule's own cost plus the most expensive chain of rules that
+ * transitively depend on it, up to a top-level rule. Starting the rules with the highest
+ * priorities first keeps long chains (e.g. codegen, then a library, then a big link) from being
+ * started late and serializing the tail of the build.
+ *
+ * <p>Priorities only ever grow as more top-level rules are registered, since a rule shared by
+ * several top-level rules is on the critical path of each of them.
+ */
+class CriticalPathRulePrioritizer {
+
+  private final RuleDepsCache ruleDeps;
+  private final ToLongFunction<BuildRule> costEstimator;
+  private final ConcurrentMap<BuildRule, Long> priorities = new ConcurrentHashMap<>();
+  private final Set<BuildRule> registeredTopLevelRules = ConcurrentHashMap.newKeySet();
+
+  CriticalPathRulePrioritizer(RuleDepsCache ruleDeps, ToLongFunction<BuildRule> costEstimator) {
+    this.ruleDeps = ruleDeps;
+    this.costEstimator = costEstimator;
+  }
+
+  /** Computes priorities for the transitive closure of the given top-level rules. */
+  synchronized void registerTopLevelRules(Iterable<BuildRule> topLevelRules) {
+    List<BuildRule> newTopLevelRules = new ArrayList<>();
+    for (BuildRule rule : topLevelRules) {
+      if (registeredTopLevelRules.add(rule)) {
+        newTopLevelRules.add(rule);
+      }
+    }
+    if (newTopLevelRules.isEmpty()) {
+      return;
+    }
+
+    // Rules are visited with dependents before their deps, so by the time a rule is reached the
+    // most expensive chain above it is already known.
+    List<BuildRule> dependentsFirst = topologicallySorted(newTopLevelRules);
+    Map<BuildRule, Long> costAbove = new HashMap<>();
+    for (BuildRule rule : dependentsFirst) {
+      long remaining = costEstimator.applyAsLong(rule) + costAbove.getOrDefault(rule, 0L);
+      priorities.merge(rule, remaining, Math::max);
+      for (BuildRule dep : ruleDeps.get(rule)) {
+        costAbove.merge(dep, remaining, Math::max);
+      }
+    }
+  }
+
+  /** @return the priority of the given rule, or 0 if it is not reachable from a top-level rule. */
+  long getPriority(BuildRule rule) {
+    return priorities.getOrDefault(rule, 0L);
+  }
+
+  private List<BuildRule> topologicallySorted(List<BuildRule> roots) {
+    // Iterative post-order DFS; the graph can be too deep to recurse on.
+    List<BuildRule> postOrder = new ArrayList<>();
+    Set<BuildRule> visited = new HashSet<>();
+    Deque<BuildRule> stack = new ArrayDeque<>();
+    Deque<Iterator<BuildRule>> iterators = new ArrayDeque<>();
+    for (BuildRule root : roots) {
+      if (!visited.add(root)) {
+        continue;
+      }
+      stack.push(root);
+      iterators.push(ruleDeps.get(root).iterator());
+      while (!stack.isEmpty()) {
+        Iterator<BuildRule> deps = iterators.peek();
+        if (deps.hasNext()) {
+          BuildRule dep = deps.next();
+          if (visited.add(dep)) {
+            stack.push(dep);
+            iterators.push(ruleDeps.get(dep).iterator());
+          }
+        } else {
+          iterators.pop();
+          postOrder.add(stack.pop());
+        }
+      }
+    }
+    Collections.reverse(postOrder);
+    return postOrder;
+  }
+}
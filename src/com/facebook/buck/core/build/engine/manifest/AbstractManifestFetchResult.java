@@ -20,6 +20,7 @@ import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.core.util.immutables.BuckStyleImmutable;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.util.Optional;
 import org.immutables.value.Value;
 
@@ -65,4 +66,7 @@ abstract class AbstractManifestFetchResult {
 
   /** @return the result from fetching the rule outputs via the found dep file rule key. */
   abstract Optional<CacheResult> getRuleCacheResult();
+
+  /** @return a future wrapping the upload of a manifest refreshed after a hit. */
+  abstract Optional<ListenableFuture<Void>> getStoreFuture();
 }
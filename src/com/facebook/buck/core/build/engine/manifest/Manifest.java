@@ -39,13 +39,24 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import javax.annotation.Nullable;
 
+/**
+ * Maps the hashes of the inputs a rule actually used to the dep file rule keys it was built with.
+ *
+ * <p>Lookups hash every known input once and use an index from hashes to the entries containing
+ * them, so only entries sharing at least one hash with the inputs on disk are considered. Entries
+ * are kept in least recently used order, where both adding and matching an entry count as a use,
+ * so that the size of the manifest can be bounded by evicting the entries that went unused the
+ * longest.
+ */
 public class Manifest {
 
   private static final Logger LOG = Logger.get(Manifest.class);
@@ -60,8 +71,15 @@ public class Manifest {
   @VisibleForTesting final List<Pair<Integer, HashCode>> hashes;
   private final Map<HashCode, Integer> hashIndices;
 
+  /** Entries, from the least to the most recently used. */
   @VisibleForTesting final List<Pair<RuleKey, int[]>> entries;
 
+  /**
+   * For every hash, the positions in {@link #entries} of the entries that contain it. Built on the
+   * first lookup and dropped whenever the entries change.
+   */
+  @Nullable private int[][] entriesByHash;
+
   /** Create an empty manifest. */
   public Manifest(RuleKey key) {
     this.key = key;
@@ -141,6 +159,12 @@ public class Manifest {
     return hashIndex;
   }
 
+  @VisibleForTesting
+  void addEntry(RuleKey key, int[] hashIndices) {
+    entries.add(new Pair<>(key, hashIndices));
+    entriesByHash = null;
+  }
+
   /** Hash the files pointed to by the source paths. */
   @VisibleForTesting
   static HashCode hashSourcePathGroup(
@@ -167,60 +191,124 @@ public class Manifest {
     }
   }
 
-  private boolean hashesMatch(
-      FileHashCache fileHashCache,
-      SourcePathResolver resolver,
-      ImmutableListMultimap<String, SourcePath> universe,
-      int[] hashIndices)
+  /**
+   * @return the {@link RuleKey} of the entry that matches the on disk hashes provided by {@code
+   *     fileHashCache}. If several entries match, the most recently used one is returned.
+   */
+  public Optional<RuleKey> lookup(
+      FileHashCache fileHashCache, SourcePathResolver resolver, ImmutableSet<SourcePath> universe)
       throws IOException {
-    for (int hashIndex : hashIndices) {
-      Pair<Integer, HashCode> hashEntry = hashes.get(hashIndex);
-      String input = inputs.get(hashEntry.getFirst());
-      ImmutableList<SourcePath> candidates = universe.get(input);
+    // Create a multimap from paths we care about to SourcePaths that maps to them.
+    ImmutableListMultimap<String, SourcePath> mappedUniverse =
+        index(universe, sourcePathToManifestHeaderFunction(resolver), inputIndices::containsKey);
+
+    // Hash every input once, and count for every entry how many of its hashes match what is on
+    // disk. Every hash belongs to a single input, so an entry matches iff all of its hashes do.
+    int[][] entriesByHash = getEntriesByHash();
+    int[] matchingHashCounts = new int[entries.size()];
+    for (int inputIndex = 0; inputIndex < inputs.size(); inputIndex++) {
+      ImmutableList<SourcePath> candidates = mappedUniverse.get(inputs.get(inputIndex));
       if (candidates.isEmpty()) {
-        return false;
+        continue;
       }
-      HashCode onDiskHeaderHash;
+      HashCode onDiskHash;
       try {
-        onDiskHeaderHash = hashSourcePathGroup(fileHashCache, resolver, candidates);
+        onDiskHash = hashSourcePathGroup(fileHashCache, resolver, candidates);
       } catch (NoSuchFileException e) {
-        return false;
+        continue;
+      }
+      Integer hashIndex = hashIndices.get(onDiskHash);
+      if (hashIndex == null || hashes.get(hashIndex).getFirst() != inputIndex) {
+        continue;
       }
-      HashCode inputHash = hashEntry.getSecond();
-      if (!inputHash.equals(onDiskHeaderHash)) {
-        return false;
+      for (int entryIndex : entriesByHash[hashIndex]) {
+        matchingHashCounts[entryIndex]++;
       }
     }
-    return true;
+
+    for (int entryIndex = entries.size() - 1; entryIndex >= 0; entryIndex--) {
+      Pair<RuleKey, int[]> entry = entries.get(entryIndex);
+      if (matchingHashCounts[entryIndex] == entry.getSecond().length) {
+        return Optional.of(entry.getFirst());
+      }
+    }
+    return Optional.empty();
   }
 
-  /**
-   * @return the {@link RuleKey} of the entry that matches the on disk hashes provided by {@code
-   *     fileHashCache}.
-   */
-  public Optional<RuleKey> lookup(
-      FileHashCache fileHashCache, SourcePathResolver resolver, ImmutableSet<SourcePath> universe)
-      throws IOException {
-    // Create a set of all paths we care about.
-    ImmutableSet.Builder<String> interestingPathsBuilder = new ImmutableSet.Builder<>();
-    for (Pair<?, int[]> entry : entries) {
+  private int[][] getEntriesByHash() {
+    if (entriesByHash != null) {
+      return entriesByHash;
+    }
+    int[] counts = new int[hashes.size()];
+    for (Pair<RuleKey, int[]> entry : entries) {
       for (int hashIndex : entry.getSecond()) {
-        interestingPathsBuilder.add(inputs.get(hashes.get(hashIndex).getFirst()));
+        counts[hashIndex]++;
       }
     }
-    ImmutableSet<String> interestingPaths = interestingPathsBuilder.build();
+    int[][] index = new int[hashes.size()][];
+    for (int hashIndex = 0; hashIndex < index.length; hashIndex++) {
+      index[hashIndex] = new int[counts[hashIndex]];
+    }
+    Arrays.fill(counts, 0);
+    for (int entryIndex = 0; entryIndex < entries.size(); entryIndex++) {
+      for (int hashIndex : entries.get(entryIndex).getSecond()) {
+        index[hashIndex][counts[hashIndex]++] = entryIndex;
+      }
+    }
+    entriesByHash = index;
+    return index;
+  }
 
-    // Create a multimap from paths we care about to SourcePaths that maps to them.
-    ImmutableListMultimap<String, SourcePath> mappedUniverse =
-        index(universe, sourcePathToManifestHeaderFunction(resolver), interestingPaths::contains);
+  /**
+   * Makes the entry for the given dep file rule key the most recently used one.
+   *
+   * @return how many entries were used more recently than this one before the call, or -1 if there
+   *     is no such entry.
+   */
+  public int markUsed(RuleKey depFileRuleKey) {
+    for (int entryIndex = entries.size() - 1; entryIndex >= 0; entryIndex--) {
+      if (entries.get(entryIndex).getFirst().equals(depFileRuleKey)) {
+        int moreRecentlyUsed = entries.size() - 1 - entryIndex;
+        if (moreRecentlyUsed > 0) {
+          entries.add(entries.remove(entryIndex));
+          entriesByHash = null;
+        }
+        return moreRecentlyUsed;
+      }
+    }
+    return -1;
+  }
 
-    // Find a matching entry.
-    for (Pair<RuleKey, int[]> entry : entries) {
-      if (hashesMatch(fileHashCache, resolver, mappedUniverse, entry.getSecond())) {
-        return Optional.of(entry.getFirst());
+  /**
+   * Evicts the least recently used entries until at most {@code maxEntries} are left, and drops
+   * the inputs and hashes no remaining entry refers to.
+   *
+   * @return the number of evicted entries.
+   */
+  public int evictLeastRecentlyUsed(long maxEntries) {
+    int evicted = (int) Math.min(entries.size(), Math.max(0, entries.size() - maxEntries));
+    if (evicted == 0) {
+      return 0;
+    }
+    List<String> oldInputs = new ArrayList<>(inputs);
+    List<Pair<Integer, HashCode>> oldHashes = new ArrayList<>(hashes);
+    List<Pair<RuleKey, int[]>> retained = new ArrayList<>(entries.subList(evicted, entries.size()));
+    inputs.clear();
+    inputIndices.clear();
+    hashes.clear();
+    hashIndices.clear();
+    entries.clear();
+    for (Pair<RuleKey, int[]> entry : retained) {
+      int[] oldHashIndices = entry.getSecond();
+      int[] newHashIndices = new int[oldHashIndices.length];
+      for (int i = 0; i < oldHashIndices.length; i++) {
+        Pair<Integer, HashCode> hash = oldHashes.get(oldHashIndices[i]);
+        newHashIndices[i] = addHash(oldInputs.get(hash.getFirst()), hash.getSecond());
       }
+      entries.add(new Pair<>(entry.getFirst(), newHashIndices));
     }
-    return Optional.empty();
+    entriesByHash = null;
+    return evicted;
   }
 
   private static Function<SourcePath, String> sourcePathToManifestHeaderFunction(
@@ -262,7 +350,7 @@ public class Manifest {
       hashIndices[index++] =
           addHash(relativePath, hashSourcePathGroup(fileHashCache, resolver, paths));
     }
-    entries.add(new Pair<>(key, hashIndices));
+    addEntry(key, hashIndices);
   }
 
   /** Serializes the manifest to the given {@link OutputStream}. */
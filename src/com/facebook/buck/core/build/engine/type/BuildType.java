@@ -31,4 +31,9 @@ public enum BuildType {
   // the top-level build targets from the remote cache, without building missing or changed
   // dependencies locally.
   POPULATE_FROM_REMOTE_CACHE,
+
+  // Perform a deep build which ensures that all the transitive dependencies of the top-level build
+  // targets are either in the artifact cache or built locally, but only locally materializing the
+  // outputs of the top-level build targets and of the rules needed to build missing rules.
+  LAZY,
 }
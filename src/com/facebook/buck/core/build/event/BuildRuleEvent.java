@@ -152,6 +152,14 @@ public abstract class BuildRuleEvent extends AbstractBuckEvent implements WorkAd
     return new WillBuildLocally(rule);
   }
 
+  public static Prioritized prioritized(BuildRule rule, long priority) {
+    return new Prioritized(rule, priority);
+  }
+
+  public static NotMaterialized notMaterialized(BuildRule rule, CacheResult cacheResult) {
+    return new NotMaterialized(rule, cacheResult);
+  }
+
   /**
    * A {@link BuildRuleEvent} that denotes beginning of computation for a particular {@link
    * BuildRule}.
@@ -495,6 +503,78 @@ public abstract class BuildRuleEvent extends AbstractBuckEvent implements WorkAd
     }
   }
 
+  /**
+   * Denotes that a particular build rule was handed to the build engine's executor with the given
+   * scheduling priority.
+   */
+  public static class Prioritized extends AbstractBuckEvent {
+
+    private final BuildRule rule;
+    private final long priority;
+
+    public Prioritized(BuildRule rule, long priority) {
+      super(EventKey.unique());
+      this.rule = rule;
+      this.priority = priority;
+    }
+
+    @JsonIgnore
+    public BuildRule getBuildRule() {
+      return rule;
+    }
+
+    public long getPriority() {
+      return priority;
+    }
+
+    @Override
+    public String getEventName() {
+      return "BuildRulePrioritized";
+    }
+
+    @Override
+    protected String getValueString() {
+      return String.format("%s (priority %d)", rule, priority);
+    }
+  }
+
+  /**
+   * Denotes that a lazy build didn't need to build or fetch a particular build rule, because it is
+   * in the artifact cache or already built locally. The rule was never started, so unlike {@link
+   * Finished} this has no duration and doesn't count towards the cache statistics.
+   */
+  public static class NotMaterialized extends AbstractBuckEvent implements WorkAdvanceEvent {
+
+    private final BuildRule rule;
+    private final CacheResult cacheResult;
+
+    public NotMaterialized(BuildRule rule, CacheResult cacheResult) {
+      super(EventKey.unique());
+      this.rule = rule;
+      this.cacheResult = cacheResult;
+    }
+
+    @JsonIgnore
+    public BuildRule getBuildRule() {
+      return rule;
+    }
+
+    @JsonIgnore
+    public CacheResult getCacheResult() {
+      return cacheResult;
+    }
+
+    @Override
+    public String getEventName() {
+      return "BuildRuleNotMaterialized";
+    }
+
+    @Override
+    protected String getValueString() {
+      return String.format("%s (%s)", rule, cacheResult.getType());
+    }
+  }
+
   public static Scope ruleKeyCalculationScope(
       BuckEventBus eventBus,
       BuildRule rule,
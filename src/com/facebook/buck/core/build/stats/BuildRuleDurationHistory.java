@@ -0,0 +1,247 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.keys.RuleKeyType;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.OptionalLong;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Remembers how long build rules took in previous builds, keyed by build target and by the type of
+ * the rule key the work was done for (e.g. a fetch of an input-based artifact is tracked separately
+ * from a fetch of a default one).
+ *
+ * <p>Durations are smoothed with an exponentially weighted moving average so that a single slow or
+ * fast run does not throw the estimate off. The number of tracked entries is bounded, and the
+ * least recently used ones are evicted first, so targets that are no longer built eventually fall
+ * out of the history.
+ *
+ * <p>The history is stored in buck-out in a compact binary format. It is only a hint, so a missing,
+ * stale or corrupted file just results in an empty history.
+ */
+@ThreadSafe
+public class BuildRuleDurationHistory {
+
+  private static final Logger LOG = Logger.get(BuildRuleDurationHistory.class);
+
+  /** Name of the file, relative to buck-out, where the history is stored between commands. */
+  public static final String DURATION_HISTORY_FILE_NAME = ".ruledurationhistory";
+
+  private static final int MAGIC = 0xB0C4D047;
+  private static final int VERSION = 1;
+
+  /** Weight of the newest sample in the moving average. */
+  @VisibleForTesting static final double SMOOTHING_FACTOR = 0.5;
+
+  private static final long UNKNOWN = -1;
+
+  /** The kinds of work whose durations are tracked for every rule. */
+  public enum DurationType {
+    /** Running the rule's steps locally. */
+    EXECUTION,
+    /** Fetching the rule's outputs from the artifact cache. */
+    CACHE_FETCH,
+    /** Uploading the rule's outputs to the artifact cache. */
+    UPLOAD,
+  }
+
+  private final int maxEntries;
+
+  @GuardedBy("this")
+  private final LinkedHashMap<Key, long[]> entries;
+
+  @GuardedBy("this")
+  private boolean dirty = false;
+
+  public BuildRuleDurationHistory(int maxEntries) {
+    Preconditions.checkArgument(maxEntries > 0, "maxEntries must be positive: %s", maxEntries);
+    this.maxEntries = maxEntries;
+    // Access order, so that iteration starts with the least recently used entry.
+    this.entries =
+        new LinkedHashMap<Key, long[]>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, long[]> eldest) {
+            return size() > BuildRuleDurationHistory.this.maxEntries;
+          }
+        };
+  }
+
+  /**
+   * Loads the history stored at the given path, falling back to an empty history if the file does
+   * not exist or cannot be read.
+   */
+  public static BuildRuleDurationHistory load(Path path, int maxEntries) {
+    BuildRuleDurationHistory history = new BuildRuleDurationHistory(maxEntries);
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      history.readFrom(in);
+    } catch (NoSuchFileException e) {
+      LOG.debug("No build rule duration history at %s.", path);
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Discarding unreadable build rule duration history at %s.", path);
+      history = new BuildRuleDurationHistory(maxEntries);
+    }
+    return history;
+  }
+
+  /**
+   * Writes the history to the given path if it changed since it was loaded or last saved. The file
+   * is replaced atomically so concurrent readers never observe a partially written history.
+   */
+  public synchronized void saveIfChanged(Path path) throws IOException {
+    if (!dirty) {
+      return;
+    }
+    Files.createDirectories(path.getParent());
+    Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        writeTo(out);
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    dirty = false;
+  }
+
+  /** Folds a newly observed duration into the moving average for the given target. */
+  public synchronized void record(
+      String target, RuleKeyType ruleKeyType, DurationType durationType, long millis) {
+    Preconditions.checkArgument(millis >= 0, "Negative duration %s for %s", millis, target);
+    long[] durations = entries.computeIfAbsent(new Key(target, ruleKeyType), key -> newDurations());
+    long previous = durations[durationType.ordinal()];
+    durations[durationType.ordinal()] =
+        previous == UNKNOWN
+            ? millis
+            : Math.round(SMOOTHING_FACTOR * millis + (1 - SMOOTHING_FACTOR) * previous);
+    dirty = true;
+  }
+
+  /** @return the smoothed historical duration, if the work was ever observed for the target. */
+  public synchronized OptionalLong getExpectedMillis(
+      String target, RuleKeyType ruleKeyType, DurationType durationType) {
+    long[] durations = entries.get(new Key(target, ruleKeyType));
+    if (durations == null || durations[durationType.ordinal()] == UNKNOWN) {
+      return OptionalLong.empty();
+    }
+    return OptionalLong.of(durations[durationType.ordinal()]);
+  }
+
+  /** @return the mean of the known durations of the given type across all targets. */
+  public synchronized OptionalLong getMeanExpectedMillis(
+      RuleKeyType ruleKeyType, DurationType durationType) {
+    long sum = 0;
+    long count = 0;
+    for (Map.Entry<Key, long[]> entry : entries.entrySet()) {
+      long millis = entry.getValue()[durationType.ordinal()];
+      if (entry.getKey().ruleKeyType == ruleKeyType && millis != UNKNOWN) {
+        sum += millis;
+        count++;
+      }
+    }
+    return count == 0 ? OptionalLong.empty() : OptionalLong.of(sum / count);
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private static long[] newDurations() {
+    long[] durations = new long[DurationType.values().length];
+    Arrays.fill(durations, UNKNOWN);
+    return durations;
+  }
+
+  @GuardedBy("this")
+  private void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(entries.size());
+    // Least recently used entries are written first so that reading them back in order restores
+    // the eviction order.
+    for (Map.Entry<Key, long[]> entry : entries.entrySet()) {
+      out.writeUTF(entry.getKey().target);
+      out.writeByte(entry.getKey().ruleKeyType.ordinal());
+      for (long millis : entry.getValue()) {
+        out.writeLong(millis);
+      }
+    }
+  }
+
+  private synchronized void readFrom(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+      throw new IOException("Unrecognized build rule duration history format.");
+    }
+    int count = in.readInt();
+    RuleKeyType[] ruleKeyTypes = RuleKeyType.values();
+    for (int i = 0; i < count; i++) {
+      String target = in.readUTF();
+      int ruleKeyType = in.readUnsignedByte();
+      long[] durations = new long[DurationType.values().length];
+      for (int j = 0; j < durations.length; j++) {
+        durations[j] = in.readLong();
+      }
+      if (ruleKeyType >= ruleKeyTypes.length) {
+        throw new IOException("Unknown rule key type ordinal " + ruleKeyType);
+      }
+      entries.put(new Key(target, ruleKeyTypes[ruleKeyType]), durations);
+    }
+  }
+
+  private static final class Key {
+    private final String target;
+    private final RuleKeyType ruleKeyType;
+
+    private Key(String target, RuleKeyType ruleKeyType) {
+      this.target = target;
+      this.ruleKeyType = ruleKeyType;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) other;
+      return target.equals(that.target) && ruleKeyType == that.ruleKeyType;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(target, ruleKeyType);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Remembers the peak resident memory of the processes spawned by each type of build rule in
+ * previous builds.
+ *
+ * <p>Within a command the highest observed peak of each rule type is kept. When the history is
+ * saved, the peaks learned before are decayed a little and replaced by the newly observed ones if
+ * they are higher, so that the estimate follows rule types whose memory usage went down, but never
+ * drops below what was actually seen in the last build.
+ *
+ * <p>The history is stored in buck-out in a compact binary format. It is only a hint, so a missing,
+ * stale or corrupted file just results in an empty history.
+ */
+@ThreadSafe
+public class RuleTypeMemoryHistory {
+
+  private static final Logger LOG = Logger.get(RuleTypeMemoryHistory.class);
+
+  /** Name of the file, relative to buck-out, where the history is stored between commands. */
+  public static final String MEMORY_HISTORY_FILE_NAME = ".rulememoryhistory";
+
+  private static final int MAGIC = 0xB0C43E30;
+  private static final int VERSION = 1;
+
+  /** Factor applied to a learned peak each time a build observes the rule type again. */
+  @VisibleForTesting static final double DECAY_FACTOR = 0.9;
+
+  /** Peaks learned by previous commands. */
+  @GuardedBy("this")
+  private final Map<String, Long> learnedPeakBytes = new HashMap<>();
+
+  /** Peaks observed by the current command. */
+  @GuardedBy("this")
+  private final Map<String, Long> observedPeakBytes = new HashMap<>();
+
+  /**
+   * Loads the history stored at the given path, falling back to an empty history if the file does
+   * not exist or cannot be read.
+   */
+  public static RuleTypeMemoryHistory load(Path path) {
+    RuleTypeMemoryHistory history = new RuleTypeMemoryHistory();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      history.readFrom(in);
+    } catch (NoSuchFileException e) {
+      LOG.debug("No rule type memory history at %s.", path);
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Discarding unreadable rule type memory history at %s.", path);
+      history = new RuleTypeMemoryHistory();
+    }
+    return history;
+  }
+
+  /**
+   * Folds the peaks observed by this command into the learned ones and writes the result to the
+   * given path, if anything was observed. The file is replaced atomically so concurrent readers
+   * never observe a partially written history.
+   */
+  public synchronized void saveIfChanged(Path path) throws IOException {
+    if (observedPeakBytes.isEmpty()) {
+      return;
+    }
+    for (Map.Entry<String, Long> entry : observedPeakBytes.entrySet()) {
+      learnedPeakBytes.merge(
+          entry.getKey(),
+          entry.getValue(),
+          (learned, observed) -> Math.max(observed, Math.round(learned * DECAY_FACTOR)));
+    }
+    observedPeakBytes.clear();
+
+    Files.createDirectories(path.getParent());
+    Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        writeTo(out);
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /** Records the peak resident memory of a process spawned by a rule of the given type. */
+  public synchronized void record(String ruleType, long peakBytes) {
+    Preconditions.checkArgument(peakBytes >= 0, "Negative memory %s for %s", peakBytes, ruleType);
+    observedPeakBytes.merge(ruleType, peakBytes, Math::max);
+  }
+
+  /** @return the highest memory that a rule of the given type is expected to need, if known. */
+  public synchronized OptionalLong getExpectedPeakBytes(String ruleType) {
+    Long learned = learnedPeakBytes.get(ruleType);
+    Long observed = observedPeakBytes.get(ruleType);
+    if (learned == null && observed == null) {
+      return OptionalLong.empty();
+    }
+    return OptionalLong.of(
+        Math.max(learned == null ? 0 : learned, observed == null ? 0 : observed));
+  }
+
+  /** @return the expected peak memory of every rule type that was ever observed. */
+  public synchronized ImmutableMap<String, Long> getExpectedPeakBytesPerRuleType() {
+    Map<String, Long> result = new HashMap<>(learnedPeakBytes);
+    observedPeakBytes.forEach((ruleType, peak) -> result.merge(ruleType, peak, Math::max));
+    return ImmutableMap.copyOf(result);
+  }
+
+  @GuardedBy("this")
+  private void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(learnedPeakBytes.size());
+    for (Map.Entry<String, Long> entry : learnedPeakBytes.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeLong(entry.getValue());
+    }
+  }
+
+  private synchronized void readFrom(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+      throw new IOException("Unrecognized rule type memory history format.");
+    }
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      learnedPeakBytes.put(in.readUTF(), in.readLong());
+    }
+  }
+}
@@ -23,9 +23,11 @@ import com.facebook.buck.util.concurrent.ConcurrencyLimit;
 import com.facebook.buck.util.concurrent.ResourceAllocationFairness;
 import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.facebook.buck.util.concurrent.ResourceAmountsEstimator;
+import com.facebook.buck.util.unit.SizeUnit;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import java.util.Optional;
 import org.immutables.value.Value;
 
 @Value.Immutable(builder = false, copy = false)
@@ -104,13 +106,31 @@ abstract class AbstractResourcesConfig implements ConfigView<BuckConfig> {
             .orElse(ResourceAmountsEstimator.DEFAULT_NETWORK_IO_AMOUNT));
   }
 
+  /**
+   * @return the amount of memory, in bytes, that the processes spawned by the build may use
+   *     together. When set, rules are only admitted if the memory measured for the processes that
+   *     are already running plus the memory expected for the new rule fits in the budget, and the
+   *     expected memory of each rule type is learned from previous builds.
+   */
+  public Optional<Long> getMemoryBudget() {
+    if (!isResourceAwareSchedulingEnabled()) {
+      return Optional.empty();
+    }
+    return getDelegate()
+        .getValue(RESOURCES_SECTION_HEADER, "memory_budget")
+        .map(SizeUnit::parseBytes);
+  }
+
   public ResourceAmounts getMaximumResourceAmounts() {
     ResourceAmounts estimated = ResourceAmountsEstimator.getEstimatedAmounts();
+    Optional<Long> memoryBudget = getMemoryBudget();
     return ResourceAmounts.of(
         getDelegate().getNumThreads(estimated.getCpu()),
-        getDelegate()
-            .getInteger(RESOURCES_SECTION_HEADER, "max_memory_resource")
-            .orElse(estimated.getMemory()),
+        memoryBudget.isPresent()
+            ? (int) (memoryBudget.get() / ResourceAmountsEstimator.MEMORY_UNIT_BYTES)
+            : getDelegate()
+                .getInteger(RESOURCES_SECTION_HEADER, "max_memory_resource")
+                .orElse(estimated.getMemory()),
         getDelegate()
             .getInteger(RESOURCES_SECTION_HEADER, "max_disk_io_resource")
             .orElse(estimated.getDiskIO()),
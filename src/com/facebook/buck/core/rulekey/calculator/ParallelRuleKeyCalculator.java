@@ -20,103 +20,332 @@ import com.facebook.buck.core.build.engine.RuleDepsCache;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.counters.SamplingCounter;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.rules.keys.RuleKeyFactory;
 import com.facebook.buck.util.Scope;
-import com.facebook.buck.util.collect.SortedSets;
 import com.facebook.buck.util.exceptions.BuckUncheckedExecutionException;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
-import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
-/** Calculates {@link RuleKey}, bottom-up, using tree parallelism. */
+/**
+ * Calculates {@link RuleKey}, bottom-up, using tree parallelism.
+ *
+ * <p>Rather than chaining a future per dependency edge, each rule counts the deps whose keys are
+ * still pending, and whichever task completes the last of them calculates the rule's key next. A
+ * task works through its own queue of rules and hands half of it off to a new task whenever fewer
+ * than {@code parallelism} tasks are active, so chains of rules are processed without executor
+ * hops while wide graphs still spread over all threads.
+ */
 public class ParallelRuleKeyCalculator<T> {
 
+  private static final String COUNTER_CATEGORY = "buck_rule_key_calculator";
+
   private final ListeningExecutorService service;
   private final RuleKeyFactory<T> ruleKeyFactory;
   private final RuleDepsCache ruleDepsCache;
   private final BiFunction<BuckEventBus, BuildRule, Scope> ruleKeyCalculationScope;
+  private final int parallelism;
+
+  private final ConcurrentMap<BuildTarget, Node<T>> ruleKeys = Maps.newConcurrentMap();
+
+  /** Tasks which have been submitted to {@link #service} and haven't finished yet. */
+  private final AtomicInteger activeTasks = new AtomicInteger();
 
-  private final ConcurrentMap<BuildTarget, ListenableFuture<T>> ruleKeys = Maps.newConcurrentMap();
+  // Throughput is measured over busy periods, which start when the first task is submitted and
+  // end when the last active task finishes.
+  private final LongAdder keysCalculatedInPeriod = new LongAdder();
+  private volatile long periodStartNanos;
+
+  private final AtomicBoolean countersRegistered = new AtomicBoolean();
+  private final IntegerCounter keysCalculatedCounter =
+      new IntegerCounter(COUNTER_CATEGORY, "rule_keys_calculated", ImmutableMap.of());
+  private final SamplingCounter keysPerSecondCounter =
+      new SamplingCounter(COUNTER_CATEGORY, "rule_keys_per_second", ImmutableMap.of());
 
   public ParallelRuleKeyCalculator(
       ListeningExecutorService service,
       RuleKeyFactory<T> ruleKeyFactory,
       RuleDepsCache ruleDepsCache,
       BiFunction<BuckEventBus, BuildRule, Scope> ruleKeyCalculationScope) {
+    this(
+        service,
+        ruleKeyFactory,
+        ruleDepsCache,
+        ruleKeyCalculationScope,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  public ParallelRuleKeyCalculator(
+      ListeningExecutorService service,
+      RuleKeyFactory<T> ruleKeyFactory,
+      RuleDepsCache ruleDepsCache,
+      BiFunction<BuckEventBus, BuildRule, Scope> ruleKeyCalculationScope,
+      int parallelism) {
+    Preconditions.checkArgument(parallelism > 0, "parallelism must be positive: %s", parallelism);
     this.service = service;
     this.ruleKeyFactory = ruleKeyFactory;
     this.ruleDepsCache = ruleDepsCache;
     this.ruleKeyCalculationScope = ruleKeyCalculationScope;
+    this.parallelism = parallelism;
   }
 
   /**
    * @return a {@link ListenableFuture} wrapping the result of calculating the {@link RuleKey} of
    *     the given {@link BuildRule}.
    */
-  public synchronized ListenableFuture<T> calculate(BuckEventBus buckEventBus, BuildRule rule) {
-    ListenableFuture<T> fromOurCache = ruleKeys.get(rule.getBuildTarget());
-    if (fromOurCache != null) {
-      return fromOurCache;
+  public ListenableFuture<T> calculate(BuckEventBus buckEventBus, BuildRule rule) {
+    if (countersRegistered.compareAndSet(false, true)) {
+      buckEventBus.post(
+          new CounterRegistry.AsyncCounterRegistrationEvent(
+              ImmutableList.of(keysCalculatedCounter, keysPerSecondCounter)));
     }
-
-    T fromInternalCache = ruleKeyFactory.getFromCache(rule);
-    if (fromInternalCache != null) {
-      ListenableFuture<T> future = Futures.immediateFuture(fromInternalCache);
-      // Record the rule key future.
-      ruleKeys.put(rule.getBuildTarget(), future);
-      // Because a rule key will be invalidated from the internal cache any time one of its
-      // dependents is invalidated, we know that all of our transitive deps are also in cache.
-      return future;
-    }
-
-    // Grab all the dependency rule key futures.  Since our rule key calculation depends on this
-    // one, we need to wait for them to complete.
-    ListenableFuture<List<T>> depKeys =
-        Futures.transformAsync(
-            Futures.immediateFuture(ruleDepsCache.get(rule)),
-            (@Nonnull SortedSet<BuildRule> deps) -> {
-              List<ListenableFuture<T>> depKeys1 =
-                  new ArrayList<>(SortedSets.sizeEstimate(rule.getBuildDeps()));
-              for (BuildRule dep : deps) {
-                depKeys1.add(calculate(buckEventBus, dep));
-              }
-              return Futures.allAsList(depKeys1);
-            },
-            service);
-
-    // Setup a future to calculate this rule key once the dependencies have been calculated.
-    ListenableFuture<T> calculated =
-        Futures.transform(
-            depKeys,
-            (List<T> input) -> {
-              try (Scope scope = ruleKeyCalculationScope.apply(buckEventBus, rule)) {
-                return ruleKeyFactory.build(rule);
-              } catch (Exception e) {
-                throw new BuckUncheckedExecutionException(
-                    e, String.format("When computing rulekey for %s.", rule));
-              }
-            },
-            service);
-
-    // Record the rule key future.
-    ruleKeys.put(rule.getBuildTarget(), calculated);
-    return calculated;
+    Deque<Node<T>> work = new ArrayDeque<>();
+    Node<T> node = getOrCreateNode(buckEventBus, rule, work);
+    if (!work.isEmpty()) {
+      try {
+        submit(work);
+      } catch (RejectedExecutionException e) {
+        // Nothing else will pick these rules up, so fail them along with everything waiting on
+        // them.
+        while (!work.isEmpty()) {
+          complete(work.pop(), null, e, work);
+        }
+      }
+    }
+    return node.future;
   }
 
-  public synchronized Set<BuildTarget> getAllKnownTargets() {
+  public Set<BuildTarget> getAllKnownTargets() {
     return ruleKeys.keySet();
   }
 
   public RuleDepsCache getRuleDepsCache() {
     return ruleDepsCache;
   }
+
+  /**
+   * Looks up the node for the given rule, creating it if necessary. Newly created nodes which
+   * still need their key calculated are pushed onto {@code work}, which becomes responsible for
+   * them.
+   */
+  private Node<T> getOrCreateNode(BuckEventBus buckEventBus, BuildRule rule, Deque<Node<T>> work) {
+    Node<T> node = ruleKeys.get(rule.getBuildTarget());
+    if (node != null) {
+      return node;
+    }
+    // Because a rule key will be invalidated from the internal cache any time one of its
+    // dependents is invalidated, we know that all of our transitive deps are also in cache.
+    T fromInternalCache = ruleKeyFactory.getFromCache(rule);
+    Node<T> newNode = new Node<>(buckEventBus, rule, fromInternalCache);
+    node = ruleKeys.putIfAbsent(rule.getBuildTarget(), newNode);
+    if (node != null) {
+      return node;
+    }
+    if (fromInternalCache == null) {
+      work.push(newNode);
+    }
+    return newNode;
+  }
+
+  private void submit(Deque<Node<T>> work) {
+    if (activeTasks.getAndIncrement() == 0) {
+      periodStartNanos = System.nanoTime();
+    }
+    try {
+      service.execute(new Task(work));
+    } catch (RejectedExecutionException e) {
+      onTaskFinished(0);
+      throw e;
+    }
+  }
+
+  private void onTaskFinished(long keysCalculated) {
+    if (keysCalculated > 0) {
+      keysCalculatedInPeriod.add(keysCalculated);
+      keysCalculatedCounter.inc(keysCalculated);
+    }
+    if (activeTasks.decrementAndGet() == 0) {
+      long keys = keysCalculatedInPeriod.sumThenReset();
+      long elapsedNanos = System.nanoTime() - periodStartNanos;
+      if (keys > 0 && elapsedNanos > 0) {
+        keysPerSecondCounter.addSample(keys * TimeUnit.SECONDS.toNanos(1) / elapsedNanos);
+      }
+    }
+  }
+
+  /** Registers the node with its deps, queueing any that haven't been seen before. */
+  private void expand(Node<T> node, Deque<Node<T>> work) {
+    node.expanded = true;
+    try {
+      for (BuildRule dep : ruleDepsCache.get(node.rule)) {
+        Node<T> depNode = getOrCreateNode(node.buckEventBus, dep, work);
+        node.pendingDeps.incrementAndGet();
+        if (!depNode.addDependent(node)) {
+          // The dep finished in the meantime and won't be notifying us.
+          node.pendingDeps.decrementAndGet();
+          if (depNode.failure != null) {
+            node.depFailure = depNode.failure;
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      node.depFailure = e;
+    }
+    // Drop the hold taken at construction, now that all deps have been registered.
+    if (node.pendingDeps.decrementAndGet() == 0) {
+      work.push(node);
+    }
+  }
+
+  /** @return whether a key was calculated, rather than failing due to one of the deps. */
+  private boolean calculateKey(Node<T> node, Deque<Node<T>> work) {
+    Throwable failure = node.depFailure;
+    if (failure != null) {
+      complete(node, null, failure, work);
+      return false;
+    }
+    T key = null;
+    try (Scope scope = ruleKeyCalculationScope.apply(node.buckEventBus, node.rule)) {
+      key = ruleKeyFactory.build(node.rule);
+    } catch (Exception e) {
+      failure =
+          new BuckUncheckedExecutionException(
+              e, String.format("When computing rulekey for %s.", node.rule));
+    } catch (Throwable t) {
+      failure = t;
+    }
+    complete(node, key, failure, work);
+    return failure == null;
+  }
+
+  /** Publishes the result for the node and queues the dependents which are now ready. */
+  private void complete(
+      Node<T> node, @Nullable T key, @Nullable Throwable failure, Deque<Node<T>> work) {
+    if (failure == null) {
+      node.future.set(key);
+    } else {
+      node.failure = failure;
+      node.future.setException(failure);
+    }
+    for (Node<T> dependent : node.takeDependents()) {
+      if (failure != null) {
+        dependent.depFailure = failure;
+      }
+      if (dependent.pendingDeps.decrementAndGet() == 0) {
+        work.push(dependent);
+      }
+    }
+  }
+
+  /** Works through a queue of rules, newest first, sharing it with new tasks while it can. */
+  private class Task implements Runnable {
+
+    private final Deque<Node<T>> work;
+
+    Task(Deque<Node<T>> work) {
+      this.work = work;
+    }
+
+    @Override
+    public void run() {
+      long keysCalculated = 0;
+      try {
+        while (!work.isEmpty()) {
+          if (work.size() > 1 && activeTasks.get() < parallelism) {
+            handOff();
+          }
+          Node<T> node = work.pop();
+          if (!node.expanded) {
+            expand(node, work);
+          } else if (calculateKey(node, work)) {
+            keysCalculated++;
+          }
+        }
+      } finally {
+        onTaskFinished(keysCalculated);
+      }
+    }
+
+    /** Gives the oldest half of the queue, which tends to cover the widest subgraphs, away. */
+    private void handOff() {
+      int count = work.size() / 2;
+      Deque<Node<T>> stolen = new ArrayDeque<>(count);
+      for (int i = 0; i < count; i++) {
+        stolen.addFirst(work.removeLast());
+      }
+      try {
+        submit(stolen);
+      } catch (RejectedExecutionException e) {
+        work.addAll(stolen);
+      }
+    }
+  }
+
+  private static class Node<T> {
+
+    private final BuckEventBus buckEventBus;
+    private final BuildRule rule;
+    private final SettableFuture<T> future = SettableFuture.create();
+
+    /** Deps whose keys are still pending, plus one until all of them have been registered. */
+    private final AtomicInteger pendingDeps = new AtomicInteger(1);
+
+    /** Only accessed by the task which owns this node, or hands it off. */
+    private boolean expanded = false;
+
+    @Nullable private volatile Throwable depFailure;
+    @Nullable private volatile Throwable failure;
+
+    /** Nodes waiting on this one, or null once its result has been published. */
+    @GuardedBy("this")
+    @Nullable
+    private List<Node<T>> dependents;
+
+    Node(BuckEventBus buckEventBus, BuildRule rule, @Nullable T cachedKey) {
+      this.buckEventBus = buckEventBus;
+      this.rule = rule;
+      if (cachedKey != null) {
+        future.set(cachedKey);
+      } else {
+        dependents = new ArrayList<>();
+      }
+    }
+
+    /** @return false if this node has already finished, in which case it won't notify. */
+    synchronized boolean addDependent(Node<T> dependent) {
+      if (dependents == null) {
+        return false;
+      }
+      dependents.add(dependent);
+      return true;
+    }
+
+    synchronized List<Node<T>> takeDependents() {
+      List<Node<T>> result = Preconditions.checkNotNull(dependents);
+      dependents = null;
+      return result;
+    }
+  }
 }
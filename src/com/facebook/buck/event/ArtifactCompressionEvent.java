@@ -21,6 +21,8 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.CaseFormat;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableSet;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 public abstract class ArtifactCompressionEvent extends AbstractBuckEvent
     implements LeafEvent, WorkAdvanceEvent {
@@ -63,7 +65,15 @@ public abstract class ArtifactCompressionEvent extends AbstractBuckEvent
   }
 
   public static Finished finished(Started started) {
-    return new Finished(started);
+    return new Finished(started, Optional.empty());
+  }
+
+  /**
+   * @param artifactSizeBytes size of the archive that was produced or unpacked, used to report the
+   *     throughput of the operation.
+   */
+  public static Finished finished(Started started, long artifactSizeBytes) {
+    return new Finished(started, Optional.of(artifactSizeBytes));
   }
 
   public static class Started extends ArtifactCompressionEvent {
@@ -80,8 +90,29 @@ public abstract class ArtifactCompressionEvent extends AbstractBuckEvent
   }
 
   public static class Finished extends ArtifactCompressionEvent {
-    protected Finished(Started started) {
+    @JsonIgnore private final long startedNanoTime;
+    private final Optional<Long> artifactSizeBytes;
+
+    protected Finished(Started started, Optional<Long> artifactSizeBytes) {
       super(started.getEventKey(), started.getOperation(), started.getRuleKeys());
+      this.startedNanoTime = started.getNanoTime();
+      this.artifactSizeBytes = artifactSizeBytes;
+    }
+
+    public Optional<Long> getArtifactSizeBytes() {
+      return artifactSizeBytes;
+    }
+
+    /** Megabytes of archive processed per second, if the size of the archive is known. */
+    public Optional<Double> getMegabytesPerSecond() {
+      long elapsedNanos = getNanoTime() - startedNanoTime;
+      if (!artifactSizeBytes.isPresent() || elapsedNanos <= 0) {
+        return Optional.empty();
+      }
+      return Optional.of(
+          artifactSizeBytes.get()
+              / (1024.0 * 1024.0)
+              / ((double) elapsedNanos / TimeUnit.SECONDS.toNanos(1)));
     }
 
     @Override
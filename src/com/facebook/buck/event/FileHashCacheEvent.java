@@ -88,6 +88,31 @@ public class FileHashCacheEvent extends AbstractBuckEvent implements LeafEvent {
     }
   }
 
+  /** Reports how many files a cache read from disk to hash them, and how fast. */
+  public static class FilesHashed extends FileHashCacheEvent {
+
+    private final long bytesHashed;
+
+    public FilesHashed(String subCategory, long totalTimeNs, long filesHashed, long bytesHashed) {
+      super(subCategory, totalTimeNs, totalTimeNs, filesHashed);
+      this.bytesHashed = bytesHashed;
+    }
+
+    public long getBytesHashed() {
+      return bytesHashed;
+    }
+
+    public long getBytesHashedPerSecond() {
+      long totalTimeNs = getTotalNanoTime();
+      return totalTimeNs == 0 ? 0 : (long) (bytesHashed * 1e9 / totalTimeNs);
+    }
+
+    @Override
+    public String getEventName() {
+      return "FileHashCacheFilesHashed";
+    }
+  }
+
   public static class InvalidationFinished extends FileHashCacheEvent {
 
     public InvalidationFinished(InvalidationStarted started) {
@@ -20,6 +20,7 @@ import com.facebook.buck.artifact_cache.HttpArtifactCacheEvent;
 import com.facebook.buck.core.build.engine.BuildRuleStatus;
 import com.facebook.buck.core.build.event.BuildEvent;
 import com.facebook.buck.core.build.event.BuildRuleEvent;
+import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.UnflavoredBuildTarget;
 import com.facebook.buck.distributed.DistBuildStatus;
 import com.facebook.buck.distributed.DistBuildStatusEvent;
@@ -68,6 +69,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -150,6 +152,10 @@ public abstract class AbstractConsoleEventBusListener implements BuckEventListen
 
   protected final AtomicInteger numRulesCompleted = new AtomicInteger();
 
+  // Rules which lazy builds didn't materialize, which are counted as completed even if they are
+  // materialized later on.
+  private final Set<BuildTarget> rulesNotMaterialized = ConcurrentHashMap.newKeySet();
+
   protected Optional<ProgressEstimator> progressEstimator = Optional.empty();
 
   protected final CacheRateStatsKeeper cacheRateStatsKeeper;
@@ -718,6 +724,7 @@ public abstract class AbstractConsoleEventBusListener implements BuckEventListen
     buildRuleThreadTracker.reset();
     progressEstimator.ifPresent(ProgressEstimator::resetBuildData);
     numRulesCompleted.set(0);
+    rulesNotMaterialized.clear();
   }
 
   @Subscribe
@@ -741,7 +748,8 @@ public abstract class AbstractConsoleEventBusListener implements BuckEventListen
       }
     }
 
-    if (finished.getStatus() != BuildRuleStatus.CANCELED) {
+    if (finished.getStatus() != BuildRuleStatus.CANCELED
+        && !rulesNotMaterialized.contains(finished.getBuildRule().getBuildTarget())) {
       progressEstimator.ifPresent(ProgressEstimator::didFinishRule);
       numRulesCompleted.getAndIncrement();
     }
@@ -750,6 +758,14 @@ public abstract class AbstractConsoleEventBusListener implements BuckEventListen
     cacheRateStatsKeeper.buildRuleFinished(finished);
   }
 
+  @Subscribe
+  public void buildRuleNotMaterialized(BuildRuleEvent.NotMaterialized notMaterialized) {
+    if (rulesNotMaterialized.add(notMaterialized.getBuildRule().getBuildTarget())) {
+      progressEstimator.ifPresent(ProgressEstimator::didFinishRule);
+      numRulesCompleted.getAndIncrement();
+    }
+  }
+
   @Subscribe
   public void distBuildFinished(BuildEvent.DistBuildFinished finished) {
     if (distBuildFinished == null) {
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event.listener;
+
+import com.facebook.buck.artifact_cache.ArtifactCacheEvent;
+import com.facebook.buck.core.build.engine.BuildRuleSuccessType;
+import com.facebook.buck.core.build.event.BuildRuleEvent;
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory;
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory.DurationType;
+import com.facebook.buck.event.BuckEventListener;
+import com.facebook.buck.event.EventKey;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.keys.RuleKeyType;
+import com.google.common.eventbus.Subscribe;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records how long each build rule took to build locally, to fetch from the artifact cache and to
+ * upload into a {@link BuildRuleDurationHistory}, and writes the history back to disk when the
+ * command finishes.
+ */
+public class BuildRuleDurationHistoryListener implements BuckEventListener {
+
+  private static final Logger LOG = Logger.get(BuildRuleDurationHistoryListener.class);
+
+  private final BuildRuleDurationHistory history;
+  private final Path historyPath;
+
+  /** Start times of in-flight artifact uploads. */
+  private final ConcurrentMap<EventKey, Long> uploadStartMillis = new ConcurrentHashMap<>();
+
+  public BuildRuleDurationHistoryListener(BuildRuleDurationHistory history, Path historyPath) {
+    this.history = history;
+    this.historyPath = historyPath;
+  }
+
+  @Subscribe
+  public void buildRuleFinished(BuildRuleEvent.Finished event) {
+    Optional<BuildRuleSuccessType> successType = event.getSuccessType();
+    if (!successType.isPresent()) {
+      return;
+    }
+    DurationType durationType;
+    RuleKeyType ruleKeyType;
+    switch (successType.get()) {
+      case BUILT_LOCALLY:
+        durationType = DurationType.EXECUTION;
+        ruleKeyType = RuleKeyType.DEFAULT;
+        break;
+      case FETCHED_FROM_CACHE:
+        durationType = DurationType.CACHE_FETCH;
+        ruleKeyType = RuleKeyType.DEFAULT;
+        break;
+      case FETCHED_FROM_CACHE_INPUT_BASED:
+        durationType = DurationType.CACHE_FETCH;
+        ruleKeyType = RuleKeyType.INPUT;
+        break;
+      case FETCHED_FROM_CACHE_MANIFEST_BASED:
+        durationType = DurationType.CACHE_FETCH;
+        ruleKeyType = RuleKeyType.MANIFEST;
+        break;
+        // $CASES-OMITTED$
+      default:
+        // Rules that were found to be up to date did no work worth remembering.
+        return;
+    }
+    history.record(
+        event.getBuildRule().getFullyQualifiedName(),
+        ruleKeyType,
+        durationType,
+        event.getDuration().getWallMillisDuration());
+  }
+
+  @Subscribe
+  public void artifactCacheStarted(ArtifactCacheEvent.Started event) {
+    if (event.getOperation() == ArtifactCacheEvent.Operation.STORE
+        && event.getTarget().isPresent()) {
+      uploadStartMillis.put(event.getEventKey(), event.getTimestamp());
+    }
+  }
+
+  @Subscribe
+  public void artifactCacheFinished(ArtifactCacheEvent.Finished event) {
+    if (event.getOperation() != ArtifactCacheEvent.Operation.STORE) {
+      return;
+    }
+    Long startMillis = uploadStartMillis.remove(event.getEventKey());
+    if (startMillis == null
+        || !event.getTarget().isPresent()
+        || event.getStoreType() == ArtifactCacheEvent.StoreType.MANIFEST) {
+      return;
+    }
+    history.record(
+        event.getTarget().get(),
+        RuleKeyType.DEFAULT,
+        DurationType.UPLOAD,
+        Math.max(0, event.getTimestamp() - startMillis));
+  }
+
+  @Override
+  public void close() {
+    try {
+      history.saveIfChanged(historyPath);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save build rule duration history to %s.", historyPath);
+    }
+  }
+}
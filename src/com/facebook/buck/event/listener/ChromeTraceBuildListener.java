@@ -310,6 +310,16 @@ public class ChromeTraceBuildListener implements BuckEventListener {
         finished);
   }
 
+  @Subscribe
+  public void rulePrioritized(BuildRuleEvent.Prioritized prioritized) {
+    writeChromeTraceEvent(
+        "buck",
+        prioritized.getBuildRule().getFullyQualifiedName(),
+        ChromeTraceEvent.Phase.IMMEDIATE,
+        ImmutableMap.of("critical_path_priority", prioritized.getPriority()),
+        prioritized);
+  }
+
   @Subscribe
   public void ruleResumed(BuildRuleEvent.Resumed resumed) {
     BuildRule buildRule = resumed.getBuildRule();
@@ -587,16 +597,33 @@ public class ChromeTraceBuildListener implements BuckEventListener {
 
   @Subscribe
   public void artifactCompressionFinished(ArtifactCompressionEvent.Finished finished) {
-    writeArtifactCompressionEvent(finished, ChromeTraceEvent.Phase.END);
+    ImmutableMap.Builder<String, String> args = ImmutableMap.builder();
+    finished
+        .getArtifactSizeBytes()
+        .ifPresent(size -> args.put("artifact_size", Long.toString(size)));
+    finished
+        .getMegabytesPerSecond()
+        .ifPresent(speed -> args.put("mb_per_second", String.format("%.2f", speed)));
+    writeArtifactCompressionEvent(finished, ChromeTraceEvent.Phase.END, args.build());
   }
 
   public void writeArtifactCompressionEvent(
       ArtifactCompressionEvent event, ChromeTraceEvent.Phase phase) {
+    writeArtifactCompressionEvent(event, phase, ImmutableMap.of());
+  }
+
+  private void writeArtifactCompressionEvent(
+      ArtifactCompressionEvent event,
+      ChromeTraceEvent.Phase phase,
+      ImmutableMap<String, String> extraArgs) {
     writeChromeTraceEvent(
         "buck",
         event.getCategory(),
         phase,
-        ImmutableMap.of("rule_key", Joiner.on(", ").join(event.getRuleKeys())),
+        ImmutableMap.<String, String>builder()
+            .put("rule_key", Joiner.on(", ").join(event.getRuleKeys()))
+            .putAll(extraArgs)
+            .build(),
         event);
   }
 
@@ -102,6 +102,8 @@ public class HttpArtifactCacheEventListener implements BuckEventListener {
                       ? data.wasStoreSuccessful().get()
                       : NOT_SET_STRING)
               .appendString(event.getTarget().orElse(NOT_SET_STRING))
+              .appendString(data.getStoreQueueBytes().orElse(NOT_SET_LONG))
+              .appendString(data.getStoreQueueDrainBytesPerSecond().orElse(NOT_SET_LONG))
               .build();
       storeRequestLogger.log(hiveRow);
     }
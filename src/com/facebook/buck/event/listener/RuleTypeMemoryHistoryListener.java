@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event.listener;
+
+import com.facebook.buck.core.build.engine.BuildEngine;
+import com.facebook.buck.core.build.stats.RuleTypeMemoryHistory;
+import com.facebook.buck.event.BuckEventListener;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.ProcessResourceConsumption;
+import com.facebook.buck.util.perf.ProcessTracker.ProcessResourceConsumptionEvent;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.Subscribe;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Records the peak resident memory of the processes spawned by build rules, as reported by the
+ * process tracker, into a {@link RuleTypeMemoryHistory}, and writes the history back to disk when
+ * the command finishes.
+ */
+public class RuleTypeMemoryHistoryListener implements BuckEventListener {
+
+  private static final Logger LOG = Logger.get(RuleTypeMemoryHistoryListener.class);
+
+  private final RuleTypeMemoryHistory history;
+  private final Path historyPath;
+
+  public RuleTypeMemoryHistoryListener(RuleTypeMemoryHistory history, Path historyPath) {
+    this.history = history;
+    this.historyPath = historyPath;
+  }
+
+  @Subscribe
+  public void processResourceConsumption(ProcessResourceConsumptionEvent event) {
+    Optional<ImmutableMap<String, String>> context = event.getContext();
+    Optional<ProcessResourceConsumption> consumption = event.getResourceConsumption();
+    if (!context.isPresent() || !consumption.isPresent()) {
+      return;
+    }
+    String ruleType = context.get().get(BuildEngine.BUILD_RULE_TYPE_CONTEXT_KEY);
+    if (ruleType != null) {
+      history.record(ruleType, consumption.get().getMemResident());
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      history.saveIfChanged(historyPath);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save rule type memory history to %s.", historyPath);
+    }
+  }
+}
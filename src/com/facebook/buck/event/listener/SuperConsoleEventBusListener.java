@@ -51,7 +51,9 @@ import com.facebook.buck.util.Console;
 import com.facebook.buck.util.ExitCode;
 import com.facebook.buck.util.MoreIterables;
 import com.facebook.buck.util.environment.ExecutionEnvironment;
+import com.facebook.buck.util.perf.MemoryAdmissionController.MemoryBudgetEvent;
 import com.facebook.buck.util.timing.Clock;
+import com.facebook.buck.util.unit.SizeUnit;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
@@ -162,6 +164,8 @@ public class SuperConsoleEventBusListener extends AbstractConsoleEventBusListene
       Optional.empty();
   private Optional<String> stampedeIdLogLine = Optional.empty();
 
+  private volatile Optional<MemoryBudgetEvent> memoryBudget = Optional.empty();
+
   private final Set<String> actionGraphCacheMessage = new HashSet<>();
 
   /** Maximum width of the terminal. */
@@ -493,6 +497,10 @@ public class SuperConsoleEventBusListener extends AbstractConsoleEventBusListene
       lines.add(getNetworkStatsLine(buildFinished));
     }
 
+    if (memoryBudget.isPresent() && buildFinished == null) {
+      lines.add(getMemoryBudgetLine(memoryBudget.get()));
+    }
+
     // Check to see if the build encompasses the time spent parsing. This is true for runs of
     // buck build but not so for runs of e.g. buck project. If so, subtract parse times
     // from the build time.
@@ -605,6 +613,20 @@ public class SuperConsoleEventBusListener extends AbstractConsoleEventBusListene
     }
   }
 
+  private String getMemoryBudgetLine(MemoryBudgetEvent event) {
+    return String.format(
+        locale,
+        "Memory budget: %s in use, %s reserved of %s",
+        formatBytes(event.getMeasuredBytes()),
+        formatBytes(event.getReservedBytes()),
+        formatBytes(event.getBudgetBytes()));
+  }
+
+  private String formatBytes(long bytes) {
+    return SizeUnit.toHumanReadableString(
+        SizeUnit.getHumanReadableSize(bytes, SizeUnit.BYTES), locale);
+  }
+
   private Optional<String> getOptionalDistBuildLineSuffix() {
     List<String> columns = new ArrayList<>();
 
@@ -755,6 +777,11 @@ public class SuperConsoleEventBusListener extends AbstractConsoleEventBusListene
     }
   }
 
+  @Subscribe
+  public void memoryBudgetUpdated(MemoryBudgetEvent event) {
+    memoryBudget = Optional.of(event);
+  }
+
   @Subscribe
   public void stepStarted(StepEvent.Started started) {
     threadsToRunningStep.put(started.getThreadId(), Optional.of(started));
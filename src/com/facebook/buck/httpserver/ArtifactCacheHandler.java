@@ -26,10 +26,12 @@ import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
 import com.google.common.util.concurrent.Futures;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -67,6 +69,8 @@ public class ArtifactCacheHandler extends AbstractHandler {
         status = handleGet(baseRequest, response);
       } else if (method.equals("PUT")) {
         status = handlePut(baseRequest, response);
+      } else if (method.equals("POST")) {
+        status = handlePost(baseRequest, response);
       }
       response.setStatus(status);
     } catch (Exception e) {
@@ -128,6 +132,57 @@ public class ArtifactCacheHandler extends AbstractHandler {
     }
   }
 
+  private int handlePost(Request baseRequest, HttpServletResponse response) throws IOException {
+    if (!artifactCache.isPresent()) {
+      response.getWriter().write("Serving local cache is disabled for this instance.");
+      return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    String path = baseRequest.getHttpURI().getPath();
+    if (!path.equals(HttpArtifactCacheBinaryProtocol.MULTI_FETCH_PATH)) {
+      response.getWriter().write("Incorrect url format.");
+      return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    ImmutableList<RuleKey> ruleKeys;
+    try (DataInputStream requestInputData = new DataInputStream(baseRequest.getInputStream())) {
+      ruleKeys = HttpArtifactCacheBinaryProtocol.readMultiFetchRequest(requestInputData);
+    }
+
+    // Stream each artifact back as soon as it is fetched, rather than waiting for all of them.
+    response.setStatus(HttpServletResponse.SC_OK);
+    DataOutputStream responseOutputData = new DataOutputStream(response.getOutputStream());
+    projectFilesystem.mkdirs(projectFilesystem.getBuckPaths().getScratchDir());
+    for (RuleKey ruleKey : ruleKeys) {
+      Path temp =
+          projectFilesystem.createTempFile(
+              projectFilesystem.getBuckPaths().getScratchDir(), "outgoing_rulekey", ".tmp");
+      try {
+        CacheResult fetchResult =
+            Futures.getUnchecked(
+                artifactCache.get().fetchAsync(null, ruleKey, LazyPath.ofInstance(temp)));
+        if (!fetchResult.getType().isSuccess()) {
+          HttpArtifactCacheBinaryProtocol.writeMultiFetchMiss(responseOutputData);
+          continue;
+        }
+        new HttpArtifactCacheBinaryProtocol.FetchResponse(
+                ImmutableSet.of(ruleKey),
+                fetchResult.getMetadata(),
+                new ByteSource() {
+                  @Override
+                  public InputStream openStream() throws IOException {
+                    return projectFilesystem.newFileInputStream(temp);
+                  }
+                })
+            .writeMultiFetchFrame(responseOutputData);
+      } finally {
+        projectFilesystem.deleteFileAtPathIfExists(temp);
+      }
+    }
+    responseOutputData.flush();
+    return HttpServletResponse.SC_OK;
+  }
+
   private int handlePut(Request baseRequest, HttpServletResponse response) throws IOException {
     if (!artifactCache.isPresent()) {
       response.getWriter().write("Serving local cache is disabled for this instance.");
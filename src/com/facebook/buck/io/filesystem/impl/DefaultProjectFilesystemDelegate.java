@@ -17,13 +17,12 @@
 package com.facebook.buck.io.filesystem.impl;
 
 import com.facebook.buck.io.filesystem.ProjectFilesystemDelegate;
+import com.facebook.buck.util.hashing.LargeFileHashing;
 import com.facebook.buck.util.sha1.Sha1HashCode;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
-import com.google.common.io.ByteSource;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
@@ -51,17 +50,9 @@ public final class DefaultProjectFilesystemDelegate implements ProjectFilesystem
 
     // Normally, we would just use `Files.hash(fileToHash.toFile(), Hashing.sha1())`, but if
     // fileToHash is backed by Jimfs, its toFile() method throws an UnsupportedOperationException.
-    // Creating the input stream via java.nio.file.Files.newInputStream() avoids this issue.
-    ByteSource source =
-        new ByteSource() {
-          @Override
-          public InputStream openStream() throws IOException {
-            // No need to wrap with BufferedInputStream because ByteSource uses ByteStreams.copy(),
-            // which already buffers.
-            return Files.newInputStream(fileToHash);
-          }
-        };
-    HashCode hashCode = source.hash(Hashing.sha1());
+    // Reading through a FileChannel avoids this issue, and can let large files be hashed straight
+    // from memory mapped regions instead of being copied through heap buffers.
+    HashCode hashCode = LargeFileHashing.hash(fileToHash, Hashing.sha1());
     return Sha1HashCode.fromHashCode(hashCode);
   }
 
@@ -21,17 +21,28 @@ import com.facebook.buck.core.rulekey.RuleKeyAppendable;
 import com.facebook.buck.core.rulekey.RuleKeyObjectSink;
 import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.log.Logger;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableCollection;
-import java.util.concurrent.ConcurrentHashMap;
 
 public final class AlterRuleKeys {
   private static final Logger LOG = Logger.get(AlterRuleKeys.class);
-  private static final LoadingCache<Class<?>, ImmutableCollection<AlterRuleKey>> cache =
-      CacheBuilder.newBuilder().build(new ReflectiveAlterKeyLoader());
-  private static final ConcurrentHashMap<Class<?>, String> pseudoNameCache =
-      new ConcurrentHashMap<>();
+  private static final ReflectiveAlterKeyLoader LOADER = new ReflectiveAlterKeyLoader();
+
+  /**
+   * Everything needed to amend a rule key with an instance of a class, computed once per class.
+   * Looking up a {@link ClassValue} is cheaper than a map lookup, and finding out whether a class
+   * is anonymous isn't cheap at all, since it computes the class's simple name.
+   */
+  private static final ClassValue<ClassAmender> AMENDERS =
+      new ClassValue<ClassAmender>() {
+        @Override
+        protected ClassAmender computeValue(Class<?> clazz) {
+          String className = clazz.getName();
+          if (clazz.isAnonymousClass() || clazz.isSynthetic()) {
+            className = getPseudoClassName(clazz);
+          }
+          return new ClassAmender(className, LOADER.load(clazz));
+        }
+      };
 
   public static void amendKey(RuleKeyObjectSink sink, BuildRule rule) {
     amendKey(sink, (Object) rule);
@@ -50,13 +61,9 @@ public final class AlterRuleKeys {
   }
 
   private static void amendKey(RuleKeyObjectSink sink, Object appendable) {
-    Class<?> clazz = appendable.getClass();
-    String className = clazz.getName();
-    if (clazz.isAnonymousClass() || clazz.isSynthetic()) {
-      className = pseudoNameCache.computeIfAbsent(clazz, AlterRuleKeys::getPseudoClassName);
-    }
-    sink.setReflectively(".class", className);
-    for (AlterRuleKey alterRuleKey : cache.getUnchecked(clazz)) {
+    ClassAmender amender = AMENDERS.get(appendable.getClass());
+    sink.setReflectively(".class", amender.className);
+    for (AlterRuleKey alterRuleKey : amender.alterRuleKeys) {
       alterRuleKey.amendKey(sink, appendable);
     }
   }
@@ -77,4 +84,14 @@ public final class AlterRuleKeys {
         clazz.getName(), pseudoName);
     return pseudoName;
   }
+
+  private static class ClassAmender {
+    private final String className;
+    private final ImmutableCollection<AlterRuleKey> alterRuleKeys;
+
+    private ClassAmender(String className, ImmutableCollection<AlterRuleKey> alterRuleKeys) {
+      this.className = className;
+      this.alterRuleKeys = alterRuleKeys;
+    }
+  }
 }
@@ -27,11 +27,16 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -62,13 +67,36 @@ public class DefaultRuleKeyCache<V> implements TrackableRuleKeyCache<V> {
   private final ConcurrentHashMap<RuleKeyInput, Stream.Builder<Object>> inputsIndex =
       new ConcurrentHashMap<>();
 
-  private <K> V calculateNode(K node, Function<K, RuleKeyResult<V>> create) {
+  /** Whether to keep the deps and inputs of computed values, at the cost of extra memory. */
+  private final boolean recordProvenance;
+
+  /** Incremented whenever values are computed or invalidated. */
+  private final AtomicLong version = new AtomicLong();
+
+  public DefaultRuleKeyCache() {
+    this(false);
+  }
+
+  /**
+   * @param recordProvenance whether to keep the deps and inputs of computed values, which is
+   *     required for {@link #getCachedBuildRulesWithProvenance()}.
+   */
+  public DefaultRuleKeyCache(boolean recordProvenance) {
+    this.recordProvenance = recordProvenance;
+  }
+
+  private <K> V calculateNode(
+      K node, Function<K, RuleKeyResult<V>> create, Node<Object, V> cachedNode) {
     Preconditions.checkArgument(
         node instanceof BuildRule || node instanceof AddsToRuleKey,
         "%s must be one of either a `BuildRule` or `AddsToRuleKey`",
         node.getClass());
 
     RuleKeyResult<V> result = create.apply(node);
+    if (recordProvenance) {
+      cachedNode.provenance = result;
+    }
+    version.incrementAndGet();
     for (Object dependency : result.deps) {
       cache.compute(
           new IdentityWrapper<>(dependency),
@@ -107,7 +135,9 @@ public class DefaultRuleKeyCache<V> implements TrackableRuleKeyCache<V> {
                   }
                   if (value.value == null) {
                     request.recordMiss();
-                    value.value = MoreSuppliers.memoize(() -> calculateNode(node, create));
+                    Node<Object, V> cachedNode = value;
+                    value.value =
+                        MoreSuppliers.memoize(() -> calculateNode(node, create, cachedNode));
                     request.recordLoadSuccess();
                   } else {
                     request.recordHit();
@@ -172,6 +202,7 @@ public class DefaultRuleKeyCache<V> implements TrackableRuleKeyCache<V> {
             LOG.verbose("invalidating node %s", key);
             dependents.add(node.dependents.build());
             statsTracker.recordEviction();
+            version.incrementAndGet();
           }
         });
     if (!dependents.isEmpty()) {
@@ -235,6 +266,17 @@ public class DefaultRuleKeyCache<V> implements TrackableRuleKeyCache<V> {
     statsTracker.recordEviction(cache.size());
     cache.clear();
     inputsIndex.clear();
+    version.incrementAndGet();
+  }
+
+  /** @return whether the cache holds no values. */
+  public boolean isEmpty() {
+    return cache.isEmpty();
+  }
+
+  /** @return a counter which changes whenever values are computed or invalidated. */
+  public long getVersion() {
+    return version.get();
   }
 
   @Override
@@ -252,6 +294,74 @@ public class DefaultRuleKeyCache<V> implements TrackableRuleKeyCache<V> {
     return builder.build();
   }
 
+  /**
+   * @return the cached build rules along with the inputs and the build rules their values were
+   *     computed from, including those of the appendables they use. Rules for which these are not
+   *     fully known are skipped.
+   */
+  public ImmutableList<CachedBuildRule<V>> getCachedBuildRulesWithProvenance() {
+    Preconditions.checkState(recordProvenance, "The cache doesn't record provenance.");
+    ImmutableList.Builder<CachedBuildRule<V>> builder = ImmutableList.builder();
+    cache.forEach(
+        (key, value) -> {
+          RuleKeyResult<V> result = value.provenance;
+          if (!(key.delegate instanceof BuildRule) || result == null) {
+            return;
+          }
+          Set<RuleKeyInput> inputs = new LinkedHashSet<>();
+          Set<BuildRule> deps = new LinkedHashSet<>();
+          if (collectProvenance(result, inputs, deps, Sets.newIdentityHashSet())) {
+            builder.add(
+                new CachedBuildRule<>(
+                    (BuildRule) key.delegate,
+                    result.result,
+                    ImmutableSet.copyOf(inputs),
+                    ImmutableSet.copyOf(deps)));
+          }
+        });
+    return builder.build();
+  }
+
+  /** Folds the inputs and build rule deps of appendables into those of the given result. */
+  private boolean collectProvenance(
+      RuleKeyResult<V> result, Set<RuleKeyInput> inputs, Set<BuildRule> deps, Set<Object> seen) {
+    Iterables.addAll(inputs, result.inputs);
+    for (Object dep : result.deps) {
+      if (dep instanceof BuildRule) {
+        deps.add((BuildRule) dep);
+      } else if (seen.add(dep)) {
+        Node<Object, V> node = cache.get(new IdentityWrapper<>(dep));
+        RuleKeyResult<V> depResult = node == null ? null : node.provenance;
+        if (depResult == null || !collectProvenance(depResult, inputs, deps, seen)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /** A cached build rule value along with what it was computed from. */
+  public static final class CachedBuildRule<V> {
+
+    public final BuildRule rule;
+
+    public final V value;
+
+    /** All inputs the value depends on. */
+    public final ImmutableSet<RuleKeyInput> inputs;
+
+    /** All other `BuildRule`s the value depends on. */
+    public final ImmutableSet<BuildRule> deps;
+
+    CachedBuildRule(
+        BuildRule rule, V value, ImmutableSet<RuleKeyInput> inputs, ImmutableSet<BuildRule> deps) {
+      this.rule = rule;
+      this.value = value;
+      this.inputs = inputs;
+      this.deps = deps;
+    }
+  }
+
   private static final class Node<T, V> {
     /**
      * Accumulator of nodes that depends on this one. Used to invalidate those nodes when this node
@@ -269,6 +379,9 @@ public class DefaultRuleKeyCache<V> implements TrackableRuleKeyCache<V> {
      */
     @Nullable private volatile Supplier<V> value;
 
+    /** The deps and inputs the value was computed from, if the cache records them. */
+    @Nullable private volatile RuleKeyResult<V> provenance;
+
     public Node() {
       this.dependents = Stream.builder();
       this.value = null;
@@ -19,6 +19,8 @@ package com.facebook.buck.rules.keys;
 import com.facebook.buck.rules.keys.hasher.CountingRuleKeyHasher;
 import com.facebook.buck.rules.keys.hasher.RuleKeyHasher;
 import com.facebook.buck.util.Scope;
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
 
 /**
  * A wrapper of {@link RuleKeyHasher} that provides scoped hashing facilities.
@@ -26,9 +28,30 @@ import com.facebook.buck.util.Scope;
  * <p>Important: Container, wrapper and key signatures only get hashed if their scope was non-empty.
  * I.e. if at least one thing gets hashed under their scope. This is to support rule key builders
  * that ignore some fields.
+ *
+ * <p>Scopes are opened for every field and element of a rule, so rather than allocating an object
+ * per scope, open scopes are kept on a stack of frames and every returned scope is this hasher's
+ * single {@link ContainerScope}, which closes the innermost open scope. Scopes therefore have to
+ * be closed in the reverse order they were opened in, which try-with-resources guarantees.
  */
 public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
+  private static final byte KEY = 0;
+  private static final byte WRAPPER = 1;
+  private static final byte CONTAINER = 2;
+  private static final byte ELEMENT = 3;
+
+  private static final int INITIAL_DEPTH = 16;
+
   private final CountingRuleKeyHasher<HASH> hasher;
+  private final ContainerScope scope = new FrameScope();
+
+  // The stack of open scopes. For each frame: its kind, the hasher count when it was opened, the
+  // key, wrapper or container it hashes, and for containers the number of non-empty elements.
+  private byte[] kinds = new byte[INITIAL_DEPTH];
+  private long[] counts = new long[INITIAL_DEPTH];
+  private Object[] signatures = new Object[INITIAL_DEPTH];
+  private int[] elementCounts = new int[INITIAL_DEPTH];
+  private int depth = 0;
 
   DefaultRuleKeyScopedHasher(CountingRuleKeyHasher<HASH> hasher) {
     this.hasher = hasher;
@@ -41,23 +64,13 @@ public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
   /** Hashes the key iff non-empty (i.e. if anything gets hashed during its scope). */
   @Override
   public Scope keyScope(String key) {
-    long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putKey(key);
-      }
-    };
+    return push(KEY, key);
   }
 
   /** Hashes the wrapper iff non-empty (i.e. if any element gets hashed during its scope). */
   @Override
   public Scope wrapperScope(RuleKeyHasher.Wrapper wrapper) {
-    long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putWrapper(wrapper);
-      }
-    };
+    return push(WRAPPER, wrapper);
   }
 
   /**
@@ -67,37 +80,70 @@ public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
    */
   @Override
   public ContainerScope containerScope(RuleKeyHasher.Container container) {
-    return new DefaultContainerScope(hasher, container);
+    return push(CONTAINER, container);
   }
 
-  public static class DefaultContainerScope implements ContainerScope {
-    private final CountingRuleKeyHasher<?> hasher;
-    private final RuleKeyHasher.Container container;
-    private int elementCount = 0;
+  private ContainerScope push(byte kind, Object signature) {
+    if (depth == kinds.length) {
+      int newLength = depth * 2;
+      kinds = Arrays.copyOf(kinds, newLength);
+      counts = Arrays.copyOf(counts, newLength);
+      signatures = Arrays.copyOf(signatures, newLength);
+      elementCounts = Arrays.copyOf(elementCounts, newLength);
+    }
+    kinds[depth] = kind;
+    counts[depth] = hasher.getCount();
+    signatures[depth] = signature;
+    elementCounts[depth] = 0;
+    depth++;
+    return scope;
+  }
 
-    private DefaultContainerScope(
-        CountingRuleKeyHasher<?> hasher, RuleKeyHasher.Container container) {
-      this.hasher = hasher;
-      this.container = container;
+  private void pop() {
+    Preconditions.checkState(depth > 0, "Closing a scope that isn't open.");
+    depth--;
+    boolean nonEmpty = hasher.getCount() > counts[depth];
+    Object signature = signatures[depth];
+    signatures[depth] = null;
+    switch (kinds[depth]) {
+      case KEY:
+        if (nonEmpty) {
+          hasher.putKey((String) signature);
+        }
+        break;
+      case WRAPPER:
+        if (nonEmpty) {
+          hasher.putWrapper((RuleKeyHasher.Wrapper) signature);
+        }
+        break;
+      case CONTAINER:
+        if (elementCounts[depth] > 0) {
+          hasher.putContainer((RuleKeyHasher.Container) signature, elementCounts[depth]);
+        }
+        break;
+      case ELEMENT:
+        // Increases the element count of the enclosing container.
+        if (nonEmpty) {
+          elementCounts[depth - 1]++;
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unknown scope kind: " + kinds[depth]);
     }
+  }
 
-    /** Increases element count if anything gets hashed during the element scope. */
+  private class FrameScope implements ContainerScope {
     @Override
     public Scope elementScope() {
-      long hasherCount = hasher.getCount();
-      return () -> {
-        if (hasher.getCount() > hasherCount) {
-          elementCount++;
-        }
-      };
+      Preconditions.checkState(
+          depth > 0 && kinds[depth - 1] == CONTAINER,
+          "Element scopes must be opened directly within a container scope.");
+      return push(ELEMENT, null);
     }
 
-    /** Hashes the container iff non-empty (i.e. if any element gets hashed during this scope). */
     @Override
     public void close() {
-      if (elementCount > 0) {
-        hasher.putContainer(container, elementCount);
-      }
+      pop();
     }
   }
 }
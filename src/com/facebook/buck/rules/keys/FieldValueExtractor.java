@@ -16,15 +16,18 @@
 
 package com.facebook.buck.rules.keys;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Field;
 import javax.annotation.Nullable;
 
 /** Extracts a value of a given field, that is assumed to be accessible. */
 public class FieldValueExtractor implements ValueExtractor {
   private final Field field;
+  @Nullable private final MethodHandle getter;
 
   FieldValueExtractor(Field field) {
     this.field = field;
+    this.getter = ValueAccessors.getterFor(field).orElse(null);
   }
 
   @Override
@@ -40,6 +43,9 @@ public class FieldValueExtractor implements ValueExtractor {
   @Override
   @Nullable
   public Object getValue(Object obj) {
+    if (getter != null) {
+      return ValueAccessors.invoke(getter, obj);
+    }
     try {
       return field.get(obj);
     } catch (IllegalAccessException e) {
@@ -22,26 +22,29 @@ import com.facebook.buck.util.Scope;
 
 /** Does nothing. */
 public class NoopRuleKeyScopedHasher implements RuleKeyScopedHasher {
+  private static final ContainerScope NOOP_SCOPE =
+      new ContainerScope() {
+        @Override
+        public void close() {}
+
+        @Override
+        public Scope elementScope() {
+          return this;
+        }
+      };
+
   @Override
   public Scope keyScope(String key) {
-    return () -> {};
+    return NOOP_SCOPE;
   }
 
   @Override
   public Scope wrapperScope(Wrapper wrapper) {
-    return () -> {};
+    return NOOP_SCOPE;
   }
 
   @Override
   public ContainerScope containerScope(Container container) {
-    return new ContainerScope() {
-      @Override
-      public void close() {}
-
-      @Override
-      public Scope elementScope() {
-        return () -> {};
-      }
-    };
+    return NOOP_SCOPE;
   }
 }
@@ -23,7 +23,6 @@ import com.facebook.buck.core.util.immutables.BuckStylePackageVisibleImmutable;
 import com.facebook.buck.core.util.immutables.BuckStylePackageVisibleTuple;
 import com.facebook.buck.core.util.immutables.BuckStyleTuple;
 import com.google.common.base.Preconditions;
-import com.google.common.cache.CacheLoader;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedMap;
@@ -37,7 +36,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 
-class ReflectiveAlterKeyLoader extends CacheLoader<Class<?>, ImmutableCollection<AlterRuleKey>> {
+/** Finds the values of a class that are added to rule keys, ordered by class and name. */
+class ReflectiveAlterKeyLoader {
   private static final Comparator<ValueExtractor> COMPARATOR =
       (o1, o2) -> {
         String name1 = o1.getFullyQualifiedName();
@@ -45,8 +45,7 @@ class ReflectiveAlterKeyLoader extends CacheLoader<Class<?>, ImmutableCollection
         return name1.compareTo(name2);
       };
 
-  @Override
-  public ImmutableCollection<AlterRuleKey> load(Class<?> key) throws Exception {
+  public ImmutableCollection<AlterRuleKey> load(Class<?> key) {
     ImmutableList.Builder<AlterRuleKey> builder = ImmutableList.builder();
     List<Class<?>> superClasses = new ArrayList<>();
 
@@ -0,0 +1,553 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.actiongraph.ActionGraph;
+import com.facebook.buck.core.model.targetgraph.TargetGraph;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.toolchain.ComparableToolchain;
+import com.facebook.buck.core.toolchain.ToolchainProvider;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.keys.config.RuleKeyConfiguration;
+import com.facebook.buck.util.cache.NoOpCacheStatsTracker;
+import com.facebook.buck.util.config.RawConfig;
+import com.facebook.buck.util.hashing.FileHashLoader;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Persists the build rule keys of a {@link DefaultRuleKeyCache} in buck-out, so that a new daemon
+ * can restore those which are still valid instead of recomputing them.
+ *
+ * <p>Since build rules are recreated with every action graph, persisted keys are matched to rules
+ * by build target. A persisted key is only restored if everything it was computed from is
+ * unchanged:
+ *
+ * <ul>
+ *   <li>the buck version, the configuration of all cells, the client environment, which tools are
+ *       looked up in, and the state of the toolchains which were set up, which are checked for the
+ *       snapshot as a whole;
+ *   <li>the target node the rule was created from, along with all of its transitive target graph
+ *       deps, which determine how the rule is constructed;
+ *   <li>the contents of the rule's inputs, which are checked against the file hash cache;
+ *   <li>the keys of the build rules it depends on, which must have been restored themselves.
+ * </ul>
+ *
+ * <p>The snapshot is only a hint, so a missing, stale or corrupted file just means that rule keys
+ * are computed from scratch.
+ */
+@ThreadSafe
+public class RuleKeyCacheSnapshotter {
+
+  private static final Logger LOG = Logger.get(RuleKeyCacheSnapshotter.class);
+
+  /** Name of the file, relative to buck-out, where the snapshot is stored. */
+  public static final String SNAPSHOT_FILE_NAME = ".rulekeycache";
+
+  private static final int MAGIC = 0xB0C4CAC4;
+  private static final int VERSION = 1;
+
+  /**
+   * Variables which the buck client sets anew for every command, and which don't affect rule keys.
+   * Fingerprinting them would make every snapshot stale.
+   */
+  private static final ImmutableSet<String> PER_INVOCATION_ENVIRONMENT =
+      ImmutableSet.of(
+          "BUCK_BUILD_ID", "BUCK_PYTHON_SPACE_INIT_TIME", "BUCK_TTY", "BUCK_TERM_COLUMNS");
+
+  private final Path path;
+  private final DefaultRuleKeyCache<RuleKey> cache;
+
+  /** The settings of the last build, which the rule keys in the cache belong to. */
+  @GuardedBy("this")
+  @Nullable
+  private BuildSettings lastBuildSettings = null;
+
+  @GuardedBy("this")
+  private long savedVersion = -1;
+
+  public RuleKeyCacheSnapshotter(Path path, DefaultRuleKeyCache<RuleKey> cache) {
+    this.path = path;
+    this.cache = cache;
+  }
+
+  /**
+   * @return a fingerprint of the settings that affect all rule keys, a snapshot written with
+   *     different settings is ignored. Only the toolchains which were already created or failed to
+   *     be created are part of it, like when checking whether a daemon is still valid. The
+   *     variables which the client sets for every command are left out of the environment.
+   */
+  public static String getFingerprint(
+      RuleKeyConfiguration ruleKeyConfiguration,
+      ImmutableMap<String, String> environment,
+      Iterable<RawConfig> cellConfigs,
+      Iterable<ToolchainProvider> toolchainProviders) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(ruleKeyConfiguration.getSeed());
+    hasher.putString(ruleKeyConfiguration.getCoreKey(), StandardCharsets.UTF_8);
+    for (Map.Entry<String, String> entry : ImmutableSortedMap.copyOf(environment).entrySet()) {
+      if (PER_INVOCATION_ENVIRONMENT.contains(entry.getKey())) {
+        continue;
+      }
+      hasher.putString(entry.getKey(), StandardCharsets.UTF_8).putByte((byte) 0);
+      hasher.putString(entry.getValue(), StandardCharsets.UTF_8).putByte((byte) 0);
+    }
+    hasher.putByte((byte) 1);
+    for (RawConfig config : cellConfigs) {
+      for (Map.Entry<String, ImmutableMap<String, String>> section :
+          ImmutableSortedMap.copyOf(config.getValues()).entrySet()) {
+        hasher.putString(section.getKey(), StandardCharsets.UTF_8).putByte((byte) 0);
+        for (Map.Entry<String, String> entry :
+            ImmutableSortedMap.copyOf(section.getValue()).entrySet()) {
+          hasher.putString(entry.getKey(), StandardCharsets.UTF_8).putByte((byte) 0);
+          hasher.putString(entry.getValue(), StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+      }
+      hasher.putByte((byte) 1);
+    }
+    for (ToolchainProvider toolchainProvider : toolchainProviders) {
+      for (String toolchain :
+          ImmutableSortedSet.copyOf(
+              toolchainProvider.getToolchainsWithCapability(ComparableToolchain.class))) {
+        // Comparable toolchains are immutable values, which describe their whole state.
+        if (toolchainProvider.isToolchainCreated(toolchain)) {
+          hasher.putString(toolchain, StandardCharsets.UTF_8).putByte((byte) 0);
+          hasher.putString(
+              toolchainProvider.getByName(toolchain).toString(), StandardCharsets.UTF_8);
+        } else if (toolchainProvider.isToolchainFailed(toolchain)) {
+          hasher.putString(toolchain, StandardCharsets.UTF_8).putByte((byte) 0);
+          hasher.putString(
+              toolchainProvider
+                  .getToolchainInstantiationException(toolchain)
+                  .map(Throwable::getMessage)
+                  .orElse(""),
+              StandardCharsets.UTF_8);
+        }
+        hasher.putByte((byte) 0);
+      }
+      hasher.putByte((byte) 1);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Restores the keys of the rules in the given action graph from the snapshot, unless the cache
+   * already holds values. Also remembers the settings of the build for {@link #saveIfChanged}.
+   *
+   * @return the number of restored rule keys.
+   */
+  public synchronized int restore(
+      String fingerprint,
+      ActionGraph actionGraph,
+      TargetGraph targetGraph,
+      FileHashLoader hashLoader,
+      Iterable<ProjectFilesystem> filesystems) {
+    lastBuildSettings = new BuildSettings(fingerprint, targetGraph);
+    if (!cache.isEmpty()) {
+      return 0;
+    }
+    Optional<Snapshot> snapshot = load(fingerprint);
+    if (!snapshot.isPresent()) {
+      return 0;
+    }
+    Restorer restorer =
+        new Restorer(snapshot.get(), new StructureHasher(targetGraph), hashLoader, filesystems);
+    int restored = 0;
+    for (BuildRule rule : actionGraph.getNodes()) {
+      if (restorer.restore(rule) != null) {
+        restored++;
+      }
+    }
+    LOG.debug(
+        "Restored %d of %d rule keys from %s.", restored, snapshot.get().entries.size(), path);
+    // Restoring values doesn't make the snapshot stale.
+    savedVersion = cache.getVersion();
+    return restored;
+  }
+
+  /**
+   * Writes the build rule keys in the cache to the snapshot if they changed since it was last
+   * written or restored. The file is replaced atomically so concurrent readers never observe a
+   * partially written snapshot.
+   */
+  public synchronized void saveIfChanged(FileHashLoader hashLoader) throws IOException {
+    BuildSettings settings = lastBuildSettings;
+    lastBuildSettings = null;
+    long version = cache.getVersion();
+    if (settings == null || version == savedVersion) {
+      return;
+    }
+
+    StructureHasher structureHasher = new StructureHasher(settings.targetGraph);
+    Map<String, Integer> rootIndices = new LinkedHashMap<>();
+    List<Entry> entries = new ArrayList<>();
+    for (DefaultRuleKeyCache.CachedBuildRule<RuleKey> cached :
+        cache.getCachedBuildRulesWithProvenance()) {
+      Optional<Entry> entry = createEntry(cached, structureHasher, hashLoader, rootIndices);
+      if (entry.isPresent()) {
+        entries.add(entry.get());
+      }
+    }
+
+    Files.createDirectories(path.getParent());
+    Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(settings.fingerprint);
+        out.writeInt(rootIndices.size());
+        for (String root : rootIndices.keySet()) {
+          out.writeUTF(root);
+        }
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+          entry.writeTo(out);
+        }
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    savedVersion = version;
+    LOG.debug("Saved %d rule keys to %s.", entries.size(), path);
+  }
+
+  private Optional<Entry> createEntry(
+      DefaultRuleKeyCache.CachedBuildRule<RuleKey> cached,
+      StructureHasher structureHasher,
+      FileHashLoader hashLoader,
+      Map<String, Integer> rootIndices) {
+    Optional<HashCode> structureHash = structureHasher.get(cached.rule.getBuildTarget());
+    if (!structureHash.isPresent()) {
+      return Optional.empty();
+    }
+    ImmutableList.Builder<Input> inputs = ImmutableList.builder();
+    for (RuleKeyInput input : cached.inputs) {
+      String root = input.getFilesystem().getRootPath().toString();
+      try {
+        inputs.add(
+            new Input(
+                rootIndices.computeIfAbsent(root, r -> rootIndices.size()),
+                input.getPath().toString(),
+                hashLoader.get(input.getFilesystem(), input.getPath())));
+      } catch (IOException e) {
+        LOG.verbose(e, "Not saving the rule key of %s.", cached.rule);
+        return Optional.empty();
+      }
+    }
+    ImmutableMap.Builder<String, String> deps = ImmutableMap.builder();
+    for (BuildRule dep : cached.deps) {
+      RuleKey depKey = cache.get(dep, new NoOpCacheStatsTracker());
+      if (depKey == null) {
+        return Optional.empty();
+      }
+      deps.put(dep.getBuildTarget().toString(), depKey.toString());
+    }
+    return Optional.of(
+        new Entry(
+            cached.rule.getBuildTarget().toString(),
+            structureHash.get(),
+            cached.value.toString(),
+            inputs.build(),
+            deps.build()));
+  }
+
+  private Optional<Snapshot> load(String fingerprint) {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        LOG.debug("Ignoring rule key cache snapshot in an unknown format at %s.", path);
+        return Optional.empty();
+      }
+      if (!in.readUTF().equals(fingerprint)) {
+        LOG.debug("Ignoring rule key cache snapshot written with different settings.");
+        return Optional.empty();
+      }
+      String[] roots = new String[in.readInt()];
+      for (int i = 0; i < roots.length; i++) {
+        roots[i] = in.readUTF();
+      }
+      int count = in.readInt();
+      Map<String, Entry> entries = new HashMap<>(count);
+      for (int i = 0; i < count; i++) {
+        Entry entry = Entry.readFrom(in);
+        entries.put(entry.target, entry);
+      }
+      return Optional.of(new Snapshot(roots, entries));
+    } catch (NoSuchFileException e) {
+      LOG.debug("No rule key cache snapshot at %s.", path);
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Discarding unreadable rule key cache snapshot at %s.", path);
+    }
+    return Optional.empty();
+  }
+
+  private static class BuildSettings {
+    private final String fingerprint;
+    private final TargetGraph targetGraph;
+
+    private BuildSettings(String fingerprint, TargetGraph targetGraph) {
+      this.fingerprint = fingerprint;
+      this.targetGraph = targetGraph;
+    }
+  }
+
+  private static class Snapshot {
+    private final String[] roots;
+    private final Map<String, Entry> entries;
+
+    private Snapshot(String[] roots, Map<String, Entry> entries) {
+      this.roots = roots;
+      this.entries = entries;
+    }
+  }
+
+  /** A persisted rule key along with what it was computed from. */
+  private static class Entry {
+    private final String target;
+    private final HashCode structureHash;
+    private final String ruleKey;
+    private final ImmutableList<Input> inputs;
+    /** The rule keys of the build rules the key was computed from, by target. */
+    private final ImmutableMap<String, String> deps;
+
+    private Entry(
+        String target,
+        HashCode structureHash,
+        String ruleKey,
+        ImmutableList<Input> inputs,
+        ImmutableMap<String, String> deps) {
+      this.target = target;
+      this.structureHash = structureHash;
+      this.ruleKey = ruleKey;
+      this.inputs = inputs;
+      this.deps = deps;
+    }
+
+    private void writeTo(DataOutputStream out) throws IOException {
+      out.writeUTF(target);
+      writeHashCode(out, structureHash);
+      out.writeUTF(ruleKey);
+      out.writeInt(inputs.size());
+      for (Input input : inputs) {
+        out.writeInt(input.rootIndex);
+        out.writeUTF(input.path);
+        writeHashCode(out, input.hash);
+      }
+      out.writeInt(deps.size());
+      for (Map.Entry<String, String> dep : deps.entrySet()) {
+        out.writeUTF(dep.getKey());
+        out.writeUTF(dep.getValue());
+      }
+    }
+
+    private static Entry readFrom(DataInputStream in) throws IOException {
+      String target = in.readUTF();
+      HashCode structureHash = readHashCode(in);
+      String ruleKey = in.readUTF();
+      int inputCount = in.readInt();
+      ImmutableList.Builder<Input> inputs = ImmutableList.builderWithExpectedSize(inputCount);
+      for (int i = 0; i < inputCount; i++) {
+        inputs.add(new Input(in.readInt(), in.readUTF(), readHashCode(in)));
+      }
+      int depCount = in.readInt();
+      ImmutableMap.Builder<String, String> deps = ImmutableMap.builderWithExpectedSize(depCount);
+      for (int i = 0; i < depCount; i++) {
+        deps.put(in.readUTF(), in.readUTF());
+      }
+      return new Entry(target, structureHash, ruleKey, inputs.build(), deps.build());
+    }
+
+    private static void writeHashCode(DataOutputStream out, HashCode hashCode)
+        throws IOException {
+      byte[] bytes = hashCode.asBytes();
+      out.writeByte(bytes.length);
+      out.write(bytes);
+    }
+
+    private static HashCode readHashCode(DataInputStream in) throws IOException {
+      byte[] bytes = new byte[in.readUnsignedByte()];
+      in.readFully(bytes);
+      return HashCode.fromBytes(bytes);
+    }
+  }
+
+  private static class Input {
+    private final int rootIndex;
+    private final String path;
+    private final HashCode hash;
+
+    private Input(int rootIndex, String path, HashCode hash) {
+      this.rootIndex = rootIndex;
+      this.path = path;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * Hashes the parts of the target graph a build rule is constructed from: the raw attributes of
+   * its target node and of all of the node's transitive deps.
+   */
+  private static class StructureHasher {
+    private final TargetGraph targetGraph;
+    private final Map<BuildTarget, HashCode> hashes = new HashMap<>();
+
+    private StructureHasher(TargetGraph targetGraph) {
+      this.targetGraph = targetGraph;
+    }
+
+    /** @return the hash for a build rule, which may have been created from a flavored node. */
+    private Optional<HashCode> get(BuildTarget target) {
+      Optional<TargetNode<?>> node = targetGraph.getOptional(target);
+      if (!node.isPresent()) {
+        node = targetGraph.getOptional(target.withFlavors());
+      }
+      return node.map(this::hash);
+    }
+
+    private HashCode hash(TargetNode<?> node) {
+      HashCode hash = hashes.get(node.getBuildTarget());
+      if (hash == null) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putString(node.getBuildTarget().toString(), StandardCharsets.UTF_8);
+        hasher.putBytes(node.getRawInputsHashCode().asBytes());
+        for (BuildTarget dep : ImmutableSortedSet.copyOf(node.getParseDeps())) {
+          Optional<TargetNode<?>> depNode = targetGraph.getOptional(dep);
+          hasher.putString(dep.toString(), StandardCharsets.UTF_8);
+          hasher.putBytes(depNode.isPresent() ? hash(depNode.get()).asBytes() : new byte[0]);
+        }
+        hash = hasher.hash();
+        hashes.put(node.getBuildTarget(), hash);
+      }
+      return hash;
+    }
+  }
+
+  /** Restores the rule keys of build rules, deps first. */
+  private class Restorer {
+    private final Snapshot snapshot;
+    private final StructureHasher structureHasher;
+    private final FileHashLoader hashLoader;
+    private final Map<String, ProjectFilesystem> filesystemsByRoot = new HashMap<>();
+    /** The restored keys, or absent values for rules that couldn't be restored. */
+    private final Map<BuildRule, Optional<RuleKey>> restored = new IdentityHashMap<>();
+
+    private Restorer(
+        Snapshot snapshot,
+        StructureHasher structureHasher,
+        FileHashLoader hashLoader,
+        Iterable<ProjectFilesystem> filesystems) {
+      this.snapshot = snapshot;
+      this.structureHasher = structureHasher;
+      this.hashLoader = hashLoader;
+      for (ProjectFilesystem filesystem : filesystems) {
+        filesystemsByRoot.put(filesystem.getRootPath().toString(), filesystem);
+      }
+    }
+
+    @Nullable
+    private RuleKey restore(BuildRule rule) {
+      Optional<RuleKey> key = restored.get(rule);
+      if (key == null) {
+        key = tryRestore(rule);
+        restored.put(rule, key);
+      }
+      return key.orElse(null);
+    }
+
+    private Optional<RuleKey> tryRestore(BuildRule rule) {
+      Entry entry = snapshot.entries.get(rule.getBuildTarget().toString());
+      if (entry == null
+          || !structureHasher.get(rule.getBuildTarget()).equals(Optional.of(entry.structureHash))) {
+        return Optional.empty();
+      }
+
+      ImmutableList.Builder<RuleKeyInput> inputs = ImmutableList.builder();
+      for (Input input : entry.inputs) {
+        ProjectFilesystem filesystem = filesystemsByRoot.get(snapshot.roots[input.rootIndex]);
+        if (filesystem == null) {
+          return Optional.empty();
+        }
+        Path inputPath = Paths.get(input.path);
+        try {
+          if (!hashLoader.get(filesystem, inputPath).equals(input.hash)) {
+            return Optional.empty();
+          }
+        } catch (IOException e) {
+          return Optional.empty();
+        }
+        inputs.add(RuleKeyInput.of(filesystem, inputPath));
+      }
+
+      // Only the build deps of the rule can be matched up by target, so keys which depend on any
+      // other rules are not restored.
+      Map<String, BuildRule> buildDeps = new HashMap<>();
+      for (BuildRule dep : rule.getBuildDeps()) {
+        buildDeps.put(dep.getBuildTarget().toString(), dep);
+      }
+      ImmutableList.Builder<BuildRule> deps = ImmutableList.builder();
+      for (Map.Entry<String, String> dep : entry.deps.entrySet()) {
+        BuildRule depRule = buildDeps.get(dep.getKey());
+        if (depRule == null) {
+          return Optional.empty();
+        }
+        RuleKey depKey = restore(depRule);
+        if (depKey == null || !depKey.toString().equals(dep.getValue())) {
+          return Optional.empty();
+        }
+        deps.add(depRule);
+      }
+
+      RuleKeyResult<RuleKey> result =
+          new RuleKeyResult<>(new RuleKey(entry.ruleKey), deps.build(), inputs.build());
+      return Optional.of(cache.get(rule, r -> result, new NoOpCacheStatsTracker()));
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Throwables;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Optional;
+import javax.annotation.Nullable;
+
+/**
+ * Creates method handles that read the values of fields and methods added to rule keys. Values are
+ * read for every rule key, and unlike reflection, invoking a method handle doesn't allocate an
+ * argument array or repeat access checks.
+ *
+ * <p>If a handle can't be created, or {@code -Dbuck.AlterRuleKeys.use_reflection=true} is set,
+ * extractors fall back to plain reflection.
+ */
+final class ValueAccessors {
+  private static final Logger LOG = Logger.get(ValueAccessors.class);
+
+  private static final boolean USE_REFLECTION =
+      Boolean.getBoolean("buck.AlterRuleKeys.use_reflection");
+
+  private static final MethodType ACCESSOR_TYPE = MethodType.methodType(Object.class, Object.class);
+
+  private ValueAccessors() {}
+
+  /** @return a handle of type {@code (Object)Object} that reads the given accessible field. */
+  static Optional<MethodHandle> getterFor(Field field) {
+    if (USE_REFLECTION) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(MethodHandles.lookup().unreflectGetter(field).asType(ACCESSOR_TYPE));
+    } catch (IllegalAccessException | RuntimeException e) {
+      LOG.debug(e, "Falling back to reflection to read %s.", field);
+      return Optional.empty();
+    }
+  }
+
+  /** @return a handle of type {@code (Object)Object} that invokes the given accessible method. */
+  static Optional<MethodHandle> invokerFor(Method method) {
+    if (USE_REFLECTION) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(MethodHandles.lookup().unreflect(method).asType(ACCESSOR_TYPE));
+    } catch (IllegalAccessException | RuntimeException e) {
+      LOG.debug(e, "Falling back to reflection to invoke %s.", method);
+      return Optional.empty();
+    }
+  }
+
+  /** Invokes a handle created by this class, rethrowing checked exceptions as unchecked. */
+  @Nullable
+  static Object invoke(MethodHandle accessor, Object obj) {
+    try {
+      // Without a cast, the invocation's type is (Object)Object, which matches the handle exactly.
+      return accessor.invokeExact(obj);
+    } catch (Throwable t) {
+      Throwables.throwIfUnchecked(t);
+      throw new RuntimeException(t);
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package com.facebook.buck.rules.keys;
 
 import com.google.common.base.Preconditions;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.regex.Pattern;
@@ -28,6 +29,7 @@ public class ValueMethodValueExtractor implements ValueExtractor {
   private static final Pattern IS_PATTERN = Pattern.compile("is[A-Z].*");
 
   private final Method method;
+  @Nullable private final MethodHandle invoker;
   private final String name;
   private final String qualifiedName;
 
@@ -37,6 +39,7 @@ public class ValueMethodValueExtractor implements ValueExtractor {
     // TODO(cjhopman): Should this do any other verification of the signature/annotations on the
     // method?
     this.method = method;
+    this.invoker = ValueAccessors.invokerFor(method).orElse(null);
     this.qualifiedName = method.getDeclaringClass() + "." + method.getName();
     String methodName = method.getName();
 
@@ -63,6 +66,9 @@ public class ValueMethodValueExtractor implements ValueExtractor {
   @Override
   @Nullable
   public Object getValue(Object obj) {
+    if (invoker != null) {
+      return ValueAccessors.invoke(invoker, obj);
+    }
     try {
       return method.invoke(obj);
     } catch (IllegalAccessException | InvocationTargetException e) {
@@ -36,19 +36,54 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
   private final Hasher hasher;
 
+  /**
+   * Scratch space that strings and hashes are copied into before being hashed, so that hashing a
+   * value doesn't allocate. Grows to the longest value hashed.
+   */
+  private byte[] scratch = new byte[64];
+
   public GuavaRuleKeyHasher(Hasher hasher) {
     this.hasher = hasher;
   }
 
   private GuavaRuleKeyHasher putBytes(byte type, byte[] bytes) {
-    hasher.putBytes(bytes);
-    hasher.putInt(bytes.length);
+    return putBytes(type, bytes, bytes.length);
+  }
+
+  private GuavaRuleKeyHasher putBytes(byte type, byte[] bytes, int length) {
+    hasher.putBytes(bytes, 0, length);
+    hasher.putInt(length);
     hasher.putByte(type);
     return this;
   }
 
   private GuavaRuleKeyHasher putStringified(byte type, String val) {
-    return putBytes(type, val.getBytes(StandardCharsets.UTF_8));
+    // Most strings in rule keys are ASCII, whose UTF-8 encoding is just their chars, so those are
+    // encoded into the scratch buffer directly.
+    int length = val.length();
+    byte[] buffer = ensureScratchCapacity(length);
+    for (int i = 0; i < length; i++) {
+      char c = val.charAt(i);
+      if (c >= 0x80) {
+        return putBytes(type, val.getBytes(StandardCharsets.UTF_8));
+      }
+      buffer[i] = (byte) c;
+    }
+    return putBytes(type, buffer, length);
+  }
+
+  private GuavaRuleKeyHasher putHashCode(byte type, HashCode hashCode) {
+    int length = hashCode.bits() / Byte.SIZE;
+    byte[] buffer = ensureScratchCapacity(length);
+    hashCode.writeBytesTo(buffer, 0, length);
+    return putBytes(type, buffer, length);
+  }
+
+  private byte[] ensureScratchCapacity(int length) {
+    if (scratch.length < length) {
+      scratch = new byte[Math.max(length, scratch.length * 2)];
+    }
+    return scratch;
   }
 
   private GuavaRuleKeyHasher putBuildTarget(byte type, BuildTarget target) {
@@ -129,14 +164,14 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
   @Override
   public GuavaRuleKeyHasher putPath(Path path, HashCode hash) {
     this.putStringified(RuleKeyHasherTypes.PATH, path.toString());
-    this.putBytes(RuleKeyHasherTypes.PATH, hash.asBytes());
+    this.putHashCode(RuleKeyHasherTypes.PATH, hash);
     return this;
   }
 
   @Override
   public GuavaRuleKeyHasher putArchiveMemberPath(ArchiveMemberPath path, HashCode hash) {
     this.putStringified(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, path.toString());
-    this.putBytes(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, hash.asBytes());
+    this.putHashCode(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, hash);
     return this;
   }
 
@@ -152,7 +187,7 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
   @Override
   public GuavaRuleKeyHasher putRuleKey(RuleKey ruleKey) {
-    return this.putBytes(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode().asBytes());
+    return this.putHashCode(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode());
   }
 
   @Override
@@ -87,4 +87,13 @@ abstract class AbstractClientSideSlbConfig {
   public int getMinSamplesToReportError() {
     return MIN_SAMPLES_TO_REPORT_ERROR_DEFAULT_VALUE;
   }
+
+  /**
+   * Whether requests without a body that take longer than usual should also be sent to a second
+   * server, using whichever response arrives first.
+   */
+  @Value.Default
+  public boolean isHedgingEnabled() {
+    return false;
+  }
 }
@@ -30,6 +30,8 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -55,6 +57,7 @@ public class ClientSideSlb implements HttpLoadBalancer {
   private final ScheduledExecutorService schedulerService;
   private final ScheduledFuture<?> backgroundHealthChecker;
   private final BuckEventBus eventBus;
+  private final boolean hedgingEnabled;
 
   public static boolean isSafeToCreate(ClientSideSlbConfig config) {
     return config.getPingEndpoint() != null
@@ -100,6 +103,7 @@ public class ClientSideSlb implements HttpLoadBalancer {
             config.getMinSamplesToReportError(),
             config.getEventBus(),
             this.clock);
+    this.hedgingEnabled = config.isHedgingEnabled();
     this.pingClient = pingClient;
     this.schedulerService = executor;
     backgroundHealthChecker =
@@ -125,6 +129,21 @@ public class ClientSideSlb implements HttpLoadBalancer {
     healthManager.reportRequestError(server);
   }
 
+  @Override
+  public void reportRequestLatency(URI server, long latencyMillis) {
+    healthManager.reportRequestLatency(server, latencyMillis);
+  }
+
+  @Override
+  public OptionalLong getHedgeDelayMillis(URI server) {
+    return hedgingEnabled ? healthManager.getHedgeDelayMillis(server) : OptionalLong.empty();
+  }
+
+  @Override
+  public Optional<URI> getHedgeServer(URI server) {
+    return healthManager.getBestServerOtherThan(server);
+  }
+
   @Override
   public void close() {
     backgroundHealthChecker.cancel(true);
@@ -17,6 +17,8 @@
 package com.facebook.buck.slb;
 
 import java.net.URI;
+import java.util.Optional;
+import java.util.OptionalLong;
 
 public interface HttpLoadBalancer extends AutoCloseable {
   URI getBestServer() throws NoHealthyServersException;
@@ -25,6 +27,18 @@ public interface HttpLoadBalancer extends AutoCloseable {
 
   void reportRequestException(URI server);
 
+  /** Reports how long the server took to respond to a request. */
+  void reportRequestLatency(URI server, long latencyMillis);
+
+  /**
+   * Returns how long to wait for a response from the server before sending the same idempotent
+   * request to another server, or nothing if requests should not be hedged.
+   */
+  OptionalLong getHedgeDelayMillis(URI server);
+
+  /** Returns the server to send a hedged copy of a request to the given server to, if any. */
+  Optional<URI> getHedgeServer(URI server);
+
   @Override
   void close();
 }
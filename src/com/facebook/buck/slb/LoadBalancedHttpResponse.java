@@ -36,13 +36,24 @@ public class LoadBalancedHttpResponse extends OkHttpResponseWrapper {
     try {
       return new LoadBalancedHttpResponse(server, loadBalancer, call.execute());
     } catch (IOException e) {
-      if (FIX_HTTP_BOTTLENECK) {
-        loadBalancer.reportRequestException(server);
-      }
+      reportCallFailure(server, loadBalancer);
       throw e;
     }
   }
 
+  /** Wraps the response of a call that was enqueued rather than executed directly. */
+  static LoadBalancedHttpResponse createLoadBalancedResponse(
+      URI server, HttpLoadBalancer loadBalancer, Response response) {
+    return new LoadBalancedHttpResponse(server, loadBalancer, response);
+  }
+
+  /** Reports a call that failed before any response arrived. */
+  static void reportCallFailure(URI server, HttpLoadBalancer loadBalancer) {
+    if (FIX_HTTP_BOTTLENECK) {
+      loadBalancer.reportRequestException(server);
+    }
+  }
+
   @VisibleForTesting
   LoadBalancedHttpResponse(URI server, HttpLoadBalancer loadBalancer, Response response) {
     super(response);
@@ -51,6 +62,15 @@ public class LoadBalancedHttpResponse extends OkHttpResponseWrapper {
     this.hasConnectionResultBeenReported = false;
   }
 
+  /** Time between sending the request and receiving the response headers. */
+  public long getLatencyMillis() {
+    return getResponse().receivedResponseAtMillis() - getResponse().sentRequestAtMillis();
+  }
+
+  public URI getServer() {
+    return server;
+  }
+
   @Override
   public long contentLength() throws IOException {
     try {
@@ -18,12 +18,25 @@ package com.facebook.buck.slb;
 
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.log.Logger;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.Response;
 
 public class LoadBalancedService implements HttpService {
   private static final Logger LOG = Logger.get(LoadBalancedService.class);
@@ -50,10 +63,21 @@ public class LoadBalancedService implements HttpService {
       data.setRequestSizeBytes(request.body().contentLength());
     }
     LOG.verbose("Making call to %s", fullUrl);
-    Call call = client.newCall(request);
     try {
-      HttpResponse response =
-          LoadBalancedHttpResponse.createLoadBalancedResponse(server, slb, call);
+      // Only requests without a body are hedged: those are idempotent, and bodies may not be
+      // possible to write out twice.
+      OptionalLong hedgeDelayMillis =
+          request.body() == null ? slb.getHedgeDelayMillis(server) : OptionalLong.empty();
+      LoadBalancedHttpResponse response;
+      if (hedgeDelayMillis.isPresent()) {
+        response =
+            new HedgedRequest()
+                .execute(server, request, path, requestBuilder, hedgeDelayMillis.getAsLong(), data);
+      } else {
+        Call call = client.newCall(request);
+        response = LoadBalancedHttpResponse.createLoadBalancedResponse(server, slb, call);
+        slb.reportRequestLatency(server, response.getLatencyMillis());
+      }
       if (response.contentLength() != -1) {
         data.setResponseSizeBytes(response.contentLength());
       }
@@ -70,4 +94,122 @@ public class LoadBalancedService implements HttpService {
   public void close() {
     slb.close();
   }
+
+  /**
+   * Sends a request to its server and, if no response arrives within the hedge delay, the same
+   * request to a second server. The first successful response is used and the other call is
+   * cancelled. Error responses are only used once every server has failed.
+   */
+  private class HedgedRequest {
+    private final SettableFuture<LoadBalancedHttpResponse> firstResponse = SettableFuture.create();
+    private final List<Attempt> attempts = new ArrayList<>();
+    private int failedAttempts = 0;
+
+    public LoadBalancedHttpResponse execute(
+        URI server,
+        Request request,
+        String path,
+        Request.Builder requestBuilder,
+        long hedgeDelayMillis,
+        LoadBalancedServiceEventData.Builder data)
+        throws IOException {
+      send(server, request);
+      try {
+        try {
+          return firstResponse.get(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          Optional<URI> hedgeServer = slb.getHedgeServer(server);
+          if (hedgeServer.isPresent()) {
+            LOG.verbose("No response from %s after %d ms, hedging", server, hedgeDelayMillis);
+            data.setHedgedServer(hedgeServer.get());
+            requestBuilder.url(SingleUriService.getFullUrl(hedgeServer.get(), path));
+            send(hedgeServer.get(), requestBuilder.build());
+          }
+        }
+        LoadBalancedHttpResponse response = firstResponse.get();
+        if (!response.getServer().equals(server)) {
+          data.setHedgedServer(server).setServer(response.getServer());
+        }
+        return response;
+      } catch (InterruptedException e) {
+        cancelAllBut(null);
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for " + request.url());
+      } catch (ExecutionException e) {
+        Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+        throw new IOException(e.getCause());
+      }
+    }
+
+    private void send(URI server, Request request) {
+      Attempt attempt = new Attempt(server, client.newCall(request));
+      synchronized (this) {
+        attempts.add(attempt);
+      }
+      attempt.call.enqueue(attempt);
+    }
+
+    /** Cancels the calls still waiting for a response, counting the wait as their latency. */
+    private synchronized void cancelAllBut(Attempt winner) {
+      for (Attempt attempt : attempts) {
+        if (attempt != winner && !attempt.isDone) {
+          attempt.call.cancel();
+          slb.reportRequestLatency(
+              attempt.server, System.currentTimeMillis() - attempt.startedAtMillis);
+        }
+      }
+    }
+
+    private class Attempt implements Callback {
+      private final URI server;
+      private final Call call;
+      private final long startedAtMillis = System.currentTimeMillis();
+      // Guarded by HedgedRequest.this.
+      private boolean isDone = false;
+
+      private Attempt(URI server, Call call) {
+        this.server = server;
+        this.call = call;
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) {
+        LoadBalancedHttpResponse loadBalancedResponse =
+            LoadBalancedHttpResponse.createLoadBalancedResponse(server, slb, response);
+        slb.reportRequestLatency(server, loadBalancedResponse.getLatencyMillis());
+        // A server that fails fast mustn't cancel a slower one that may still answer correctly.
+        // A cache miss is a correct answer.
+        boolean isUsable =
+            response.isSuccessful() || response.code() == HttpURLConnection.HTTP_NOT_FOUND;
+        synchronized (HedgedRequest.this) {
+          isDone = true;
+          if (!isUsable && ++failedAttempts < attempts.size()) {
+            response.close();
+            return;
+          }
+        }
+        if (firstResponse.set(loadBalancedResponse)) {
+          cancelAllBut(this);
+        } else {
+          response.close();
+        }
+      }
+
+      @Override
+      public void onFailure(Call call, IOException e) {
+        if (call.isCanceled()) {
+          return;
+        }
+        LoadBalancedHttpResponse.reportCallFailure(server, slb);
+        synchronized (HedgedRequest.this) {
+          isDone = true;
+          // Only fail once no other server can respond anymore.
+          if (++failedAttempts < attempts.size()) {
+            return;
+          }
+        }
+        firstResponse.setException(e);
+      }
+    }
+  }
 }
@@ -55,5 +55,8 @@ public class LoadBalancedServiceEvent extends AbstractBuckEvent {
     Optional<Long> getRequestSizeBytes();
 
     Optional<Long> getResponseSizeBytes();
+
+    /** The other server the request was sent to, if it was hedged. */
+    Optional<URI> getHedgedServer();
   }
 }
@@ -32,6 +32,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -40,6 +41,13 @@ import java.util.stream.Collectors;
 public class ServerHealthManager {
   public static final int CACHE_TIME_MS = 1000;
 
+  // Requests that take longer than this share of recent requests to a server get hedged.
+  private static final double HEDGE_DELAY_PERCENTILE = 0.95;
+  // Below this many recent requests the percentile says too little about the server to hedge.
+  private static final int MIN_SAMPLES_FOR_HEDGE_DELAY = 20;
+  // Hedging sooner than this would mostly duplicate requests that were about to complete anyway.
+  private static final long MIN_HEDGE_DELAY_MILLIS = 10;
+
   private static final Comparator<Pair<URI, Long>> LATENCY_COMPARATOR =
       (o1, o2) -> (int) (o1.getSecond() - o2.getSecond());
 
@@ -50,7 +58,8 @@ public class ServerHealthManager {
   private final float maxErrorPercentage;
   private final int errorCheckTimeRangeMillis;
   private final BuckEventBus eventBus;
-  private final LoadingCache<Object, Optional<URI>> getBestServerCache;
+  // Healthy servers, from the one with the lowest expected latency to the highest.
+  private final LoadingCache<Object, ImmutableList<URI>> getBestServerCache;
 
   private final Clock clock;
 
@@ -77,10 +86,10 @@ public class ServerHealthManager {
         CacheBuilder.newBuilder()
             .expireAfterWrite(CACHE_TIME_MS, TimeUnit.MILLISECONDS)
             .build(
-                new CacheLoader<Object, Optional<URI>>() {
+                new CacheLoader<Object, ImmutableList<URI>>() {
                   @Override
-                  public Optional<URI> load(Object key) {
-                    return calculateBestServer();
+                  public ImmutableList<URI> load(Object key) {
+                    return calculateRankedServers();
                   }
                 });
   }
@@ -105,11 +114,53 @@ public class ServerHealthManager {
     servers.get(server).reportRequestSuccess(clock.currentTimeMillis());
   }
 
+  /**
+   * Records how long a request to the server took. Once all healthy servers have recent request
+   * latencies, those take precedence over ping latencies when ranking them, as they reflect the
+   * load on the servers.
+   */
+  public void reportRequestLatency(URI server, long latencyMillis) {
+    Preconditions.checkState(servers.containsKey(server), "Unknown server [%s]", server);
+    servers.get(server).reportRequestLatency(clock.currentTimeMillis(), latencyMillis);
+  }
+
+  /**
+   * Returns how long a request to the server usually takes at most, once enough requests to it have
+   * been reported. The delay is never shorter than {@link #MIN_HEDGE_DELAY_MILLIS}.
+   */
+  public OptionalLong getHedgeDelayMillis(URI server) {
+    Preconditions.checkState(servers.containsKey(server), "Unknown server [%s]", server);
+    long delayMillis =
+        servers
+            .get(server)
+            .getRequestLatencyPercentileMillis(
+                clock.currentTimeMillis(),
+                latencyCheckTimeRangeMillis,
+                HEDGE_DELAY_PERCENTILE,
+                MIN_SAMPLES_FOR_HEDGE_DELAY);
+    return delayMillis < 0
+        ? OptionalLong.empty()
+        : OptionalLong.of(Math.max(delayMillis, MIN_HEDGE_DELAY_MILLIS));
+  }
+
+  /** Returns the best healthy server other than the given one. */
+  public Optional<URI> getBestServerOtherThan(URI server) {
+    try {
+      return getBestServerCache
+          .get(this)
+          .stream()
+          .filter(candidate -> !candidate.equals(server))
+          .findFirst();
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   public URI getBestServer() throws NoHealthyServersException {
     try {
-      Optional<URI> server = getBestServerCache.get(this);
-      if (server.isPresent()) {
-        return server.get();
+      ImmutableList<URI> rankedServers = getBestServerCache.get(this);
+      if (!rankedServers.isEmpty()) {
+        return rankedServers.get(0);
       }
       throw new NoHealthyServersException(
           String.format(
@@ -135,12 +186,13 @@ public class ServerHealthManager {
     }
   }
 
-  private Optional<URI> calculateBestServer() {
+  private ImmutableList<URI> calculateRankedServers() {
     ServerHealthManagerEventData.Builder data = ServerHealthManagerEventData.builder();
     Map<URI, PerServerData.Builder> allPerServerData = new HashMap<>();
     try {
       long epochMillis = clock.currentTimeMillis();
-      List<Pair<URI, Long>> serverLatencies = new ArrayList<>();
+      List<Pair<URI, Long>> pingLatencies = new ArrayList<>();
+      List<Pair<URI, Long>> requestLatencies = new ArrayList<>();
       for (ServerHealthState state : servers.values()) {
         URI server = state.getServer();
         PerServerData.Builder perServerData = PerServerData.builder().setServer(server);
@@ -149,21 +201,30 @@ public class ServerHealthManager {
         float errorPercentage = state.getErrorPercentage(epochMillis, errorCheckTimeRangeMillis);
         long latencyMillis = state.getPingLatencyMillis(epochMillis, latencyCheckTimeRangeMillis);
         if (errorPercentage <= maxErrorPercentage && latencyMillis <= maxAcceptableLatencyMillis) {
-          serverLatencies.add(new Pair<>(state.getServer(), latencyMillis));
+          pingLatencies.add(new Pair<>(server, latencyMillis));
+          long requestLatencyMillis =
+              state.getRequestLatencyEwmaMillis(epochMillis, latencyCheckTimeRangeMillis);
+          if (requestLatencyMillis >= 0) {
+            requestLatencies.add(new Pair<>(server, requestLatencyMillis));
+          }
         } else {
           perServerData.setServerUnhealthy(true);
         }
       }
 
+      // Request latencies include the work done by the server, so they can only be compared with
+      // each other and not with the ping latencies of servers that haven't served any requests.
+      List<Pair<URI, Long>> serverLatencies =
+          requestLatencies.size() == pingLatencies.size() ? requestLatencies : pingLatencies;
       if (serverLatencies.size() == 0) {
         data.setNoHealthyServersAvailable(true);
-        return Optional.empty();
+        return ImmutableList.of();
       }
 
       serverLatencies.sort(LATENCY_COMPARATOR);
       URI bestServer = serverLatencies.get(0).getFirst();
       Preconditions.checkNotNull(allPerServerData.get(bestServer)).setBestServer(true);
-      return Optional.of(bestServer);
+      return serverLatencies.stream().map(Pair::getFirst).collect(ImmutableList.toImmutableList());
     } finally {
       for (PerServerData.Builder builder : allPerServerData.values()) {
         data.addPerServerData(builder.build());
@@ -20,12 +20,16 @@ import static com.facebook.buck.slb.AbstractClientSideSlbConfig.MIN_SAMPLES_TO_R
 
 import com.google.common.base.Preconditions;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 
 public class ServerHealthState {
   private static final int MAX_STORED_SAMPLES = 100;
+  // Weight of the newest sample in the exponentially weighted moving average of request latencies.
+  private static final double REQUEST_LATENCY_EWMA_WEIGHT = 0.2;
 
   private final int maxSamplesStored;
   // This value sets how many samples we must in the sliding window before we determine the server
@@ -34,6 +38,8 @@ public class ServerHealthState {
   private final URI server;
   private final List<LatencySample> pingLatencies;
   private final List<RequestSample> requests;
+  private final List<LatencySample> requestLatencies;
+  private double requestLatencyEwmaMillis;
   private float lastReportedErrorPercentage;
   private int lastReportedSamples;
   private long lastReportedLatency;
@@ -56,6 +62,7 @@ public class ServerHealthState {
     this.server = server;
     this.pingLatencies = new LinkedList<>();
     this.requests = new LinkedList<>();
+    this.requestLatencies = new LinkedList<>();
     this.lastReportedLatency = 0;
     this.lastReportedErrorPercentage = 0;
   }
@@ -91,6 +98,24 @@ public class ServerHealthState {
     reportRequest(nowMillis, false);
   }
 
+  /**
+   * NOTE: Assumes nowMillis is roughly non-decreasing in consecutive calls.
+   *
+   * @param nowMillis
+   * @param latencyMillis Time it took the server to respond to a request.
+   */
+  public void reportRequestLatency(long nowMillis, long latencyMillis) {
+    synchronized (requestLatencies) {
+      requestLatencyEwmaMillis =
+          requestLatencies.isEmpty()
+              ? latencyMillis
+              : REQUEST_LATENCY_EWMA_WEIGHT * latencyMillis
+                  + (1 - REQUEST_LATENCY_EWMA_WEIGHT) * requestLatencyEwmaMillis;
+      requestLatencies.add(new LatencySample(nowMillis, latencyMillis));
+      keepWithinSizeLimit(requestLatencies);
+    }
+  }
+
   private void reportRequest(long nowMillis, boolean wasSuccessful) {
     synchronized (requests) {
       requests.add(new RequestSample(nowMillis, wasSuccessful));
@@ -172,6 +197,51 @@ public class ServerHealthState {
     return lastReportedLatency;
   }
 
+  /**
+   * @param nowMillis Current timestamp.
+   * @param timeRangeMillis Time range for 'nowMillis' in which the latest request must have been
+   *     made.
+   * @return Moving average of request latencies, weighted towards recent requests, or -1 if no
+   *     request was reported in the time range.
+   */
+  public long getRequestLatencyEwmaMillis(long nowMillis, int timeRangeMillis) {
+    synchronized (requestLatencies) {
+      if (requestLatencies.isEmpty()
+          || requestLatencies.get(requestLatencies.size() - 1).getEpochMillis()
+              < nowMillis - timeRangeMillis) {
+        return -1;
+      }
+      return Math.round(requestLatencyEwmaMillis);
+    }
+  }
+
+  /**
+   * @param nowMillis Current timestamp.
+   * @param timeRangeMillis Time range for 'nowMillis' to compute the percentile for.
+   * @param percentile Value in the interval (0.0, 1.0].
+   * @param minSamples Number of samples needed in the time range for a meaningful result.
+   * @return Request latency below which the given share of requests completed, or -1 if there are
+   *     fewer than minSamples samples.
+   */
+  public long getRequestLatencyPercentileMillis(
+      long nowMillis, int timeRangeMillis, double percentile, int minSamples) {
+    List<Long> latencies = new ArrayList<>();
+    long initialMillis = nowMillis - timeRangeMillis;
+    synchronized (requestLatencies) {
+      for (LatencySample sample : requestLatencies) {
+        if (sample.getEpochMillis() >= initialMillis && sample.getEpochMillis() <= nowMillis) {
+          latencies.add(sample.getLatencyMillis());
+        }
+      }
+    }
+    if (latencies.isEmpty() || latencies.size() < minSamples) {
+      return -1;
+    }
+    Collections.sort(latencies);
+    int index = (int) Math.ceil(percentile * latencies.size()) - 1;
+    return latencies.get(Math.max(0, Math.min(index, latencies.size() - 1)));
+  }
+
   public String toString(long nowMillis, int timeRangeMillis) {
     return "ServerHealthState{"
         + "server="
@@ -44,6 +44,7 @@ public class SlbBuckConfig {
       "slb_latency_check_time_range_millis";
   private static final String MAX_ACCEPTABLE_LATENCY_MILLIS = "slb_max_acceptable_latency_millis";
   private static final String MIN_SAMPLES_TO_REPORT_ERROR = "slb_min_samples_to_report_error";
+  private static final String HEDGING_ENABLED = "slb_hedging_enabled";
 
   private final String parentSection;
   private final BuckConfig buckConfig;
@@ -151,6 +152,9 @@ public class SlbBuckConfig {
       configBuilder.setMinSamplesToReportError(
           buckConfig.getInteger(parentSection, MIN_SAMPLES_TO_REPORT_ERROR).getAsInt());
     }
+
+    configBuilder.setHedgingEnabled(
+        buckConfig.getBooleanValue(parentSection, HEDGING_ENABLED, false));
     return configBuilder.build();
   }
 }
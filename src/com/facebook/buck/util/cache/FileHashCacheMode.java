@@ -22,6 +22,16 @@ public enum FileHashCacheMode {
   PREFIX_TREE,
   LIMITED_PREFIX_TREE,
   LIMITED_PREFIX_TREE_PARALLEL,
-  PARALLEL_COMPARISON;
+  PARALLEL_COMPARISON,
+  /** Like {@link #PREFIX_TREE}, but also persists the hashes of files in buck-out across runs. */
+  PERSISTENT_PREFIX_TREE;
   public static final FileHashCacheMode DEFAULT = PREFIX_TREE;
+
+  /**
+   * @return the mode to use for caches which must not persist hashes, e.g. because they don't own
+   *     the buck-out of their filesystem.
+   */
+  public FileHashCacheMode withoutPersistence() {
+    return this == PERSISTENT_PREFIX_TREE ? PREFIX_TREE : this;
+  }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import com.facebook.buck.util.cache.HashCodeAndFileType;
+import com.facebook.buck.util.cache.JarContentHasher;
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Path;
+import javax.annotation.Nullable;
+
+/**
+ * Looks up the hashes of the members of a jar by the hash of the jar itself before reading them
+ * from the jar, so that a jar whose contents didn't change isn't read again after it's invalidated
+ * or, with a {@link PersistentFileHashStore}, by a new process.
+ */
+class CachingJarContentHasher implements JarContentHasher {
+
+  private final JarContentHasher delegate;
+  private final HashCode jarHashCode;
+  private final Cache<HashCode, ImmutableMap<Path, HashCodeAndFileType>> cache;
+  @Nullable private final PersistentFileHashStore persistentHashStore;
+
+  CachingJarContentHasher(
+      JarContentHasher delegate,
+      HashCode jarHashCode,
+      Cache<HashCode, ImmutableMap<Path, HashCodeAndFileType>> cache,
+      @Nullable PersistentFileHashStore persistentHashStore) {
+    this.delegate = delegate;
+    this.jarHashCode = jarHashCode;
+    this.cache = cache;
+    this.persistentHashStore = persistentHashStore;
+  }
+
+  @Override
+  public Path getJarRelativePath() {
+    return delegate.getJarRelativePath();
+  }
+
+  @Override
+  public ImmutableMap<Path, HashCodeAndFileType> getContentHashes() throws IOException {
+    ImmutableMap<Path, HashCodeAndFileType> contents = cache.getIfPresent(jarHashCode);
+    if (contents != null) {
+      return contents;
+    }
+    if (persistentHashStore != null) {
+      contents = persistentHashStore.getJarContents(jarHashCode);
+    }
+    if (contents == null) {
+      contents = delegate.getContentHashes();
+      if (persistentHashStore != null) {
+        persistentHashStore.putJarContents(jarHashCode, contents);
+      }
+    }
+    cache.put(jarHashCode, contents);
+    return contents;
+  }
+}
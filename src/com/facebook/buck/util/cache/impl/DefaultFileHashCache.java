@@ -17,6 +17,7 @@
 package com.facebook.buck.util.cache.impl;
 
 import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.FileHashCacheEvent;
 import com.facebook.buck.io.ArchiveMemberPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.ProjectFilesystemFactory;
@@ -24,47 +25,133 @@ import com.facebook.buck.util.cache.FileHashCacheEngine;
 import com.facebook.buck.util.cache.FileHashCacheMode;
 import com.facebook.buck.util.cache.FileHashCacheVerificationResult;
 import com.facebook.buck.util.cache.HashCodeAndFileType;
+import com.facebook.buck.util.cache.JarContentHasher;
 import com.facebook.buck.util.cache.JarHashCodeAndFileType;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
+import com.facebook.buck.util.hashing.LargeFileHashing;
 import com.facebook.buck.util.hashing.PathHashing;
+import com.facebook.buck.util.timing.DefaultClock;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
+import javax.annotation.Nullable;
 
 public class DefaultFileHashCache implements ProjectFileHashCache {
 
   private static final boolean SHOULD_CHECK_IGNORED_PATHS =
       Boolean.getBoolean("buck.DefaultFileHashCache.check_ignored_paths");
 
+  /**
+   * When positive, the files under large directories are hashed in parallel on a pool of this many
+   * threads, which is shared by all caches. Off by default.
+   */
+  private static final int DIRECTORY_HASHING_THREADS =
+      Integer.getInteger("buck.DefaultFileHashCache.directory_hashing_threads", 0);
+
+  private static final Supplier<Optional<ForkJoinPool>> DIRECTORY_HASHING_POOL =
+      Suppliers.memoize(
+          () ->
+              DIRECTORY_HASHING_THREADS > 0
+                  ? Optional.of(new ForkJoinPool(DIRECTORY_HASHING_THREADS))
+                  : Optional.empty());
+
+  /**
+   * When positive, files larger than this are hashed in chunks of this size in parallel. The
+   * resulting digest differs from the SHA-1 of the contents, so this must be set the same way
+   * everywhere hashes are compared.
+   */
+  private static final long CHUNKED_HASHING_CHUNK_SIZE =
+      Long.getLong("buck.DefaultFileHashCache.chunked_hashing_chunk_size", 0);
+
+  /**
+   * The chunks are read on a small pool of their own, so that the blocking reads neither starve the
+   * common pool nor thrash the disk with more concurrent reads than it can serve.
+   */
+  private static final Supplier<ForkJoinPool> CHUNKED_HASHING_POOL =
+      Suppliers.memoize(
+          () -> new ForkJoinPool(Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+  private static final long JAR_CONTENTS_CACHE_MAX_MEMBERS = 500_000;
+
   private final ProjectFilesystem projectFilesystem;
   private final Predicate<Path> ignoredPredicate;
+  private final Optional<ForkJoinPool> directoryHashingPool;
 
   @VisibleForTesting FileHashCacheEngine fileHashCacheEngine;
 
+  @Nullable private final PersistentFileHashStore persistentHashStore;
+
+  /**
+   * Hashes of the members of jars, keyed by the hash of the jar, which outlive the invalidation of
+   * the jars themselves.
+   */
+  private final Cache<HashCode, ImmutableMap<Path, HashCodeAndFileType>> jarContentsCache =
+      CacheBuilder.newBuilder()
+          .maximumWeight(JAR_CONTENTS_CACHE_MAX_MEMBERS)
+          .weigher(
+              (HashCode jarHashCode, ImmutableMap<Path, HashCodeAndFileType> contents) ->
+                  contents.size() + 1)
+          .build();
+
+  private final AtomicLong filesHashed = new AtomicLong();
+  private final AtomicLong bytesHashed = new AtomicLong();
+  private final AtomicLong hashingNanoTime = new AtomicLong();
+
   protected DefaultFileHashCache(
       ProjectFilesystem projectFilesystem,
       Predicate<Path> ignoredPredicate,
       FileHashCacheMode fileHashCacheMode) {
+    this(
+        projectFilesystem, ignoredPredicate, fileHashCacheMode, DIRECTORY_HASHING_POOL.get());
+  }
+
+  /** @param directoryHashingPool the pool to hash the files under large directories on, if any. */
+  @VisibleForTesting
+  DefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Predicate<Path> ignoredPredicate,
+      FileHashCacheMode fileHashCacheMode,
+      Optional<ForkJoinPool> directoryHashingPool) {
     this.projectFilesystem = projectFilesystem;
     this.ignoredPredicate = ignoredPredicate;
+    this.directoryHashingPool = directoryHashingPool;
+    this.persistentHashStore =
+        fileHashCacheMode == FileHashCacheMode.PERSISTENT_PREFIX_TREE
+            ? new PersistentFileHashStore(
+                projectFilesystem
+                    .resolve(projectFilesystem.getBuckPaths().getBuckOut())
+                    .resolve(
+                        CHUNKED_HASHING_CHUNK_SIZE > 0
+                            ? PersistentFileHashStore.FILE_NAME + "." + CHUNKED_HASHING_CHUNK_SIZE
+                            : PersistentFileHashStore.FILE_NAME),
+                new DefaultClock())
+            : null;
     FileHashCacheEngine.ValueLoader<HashCodeAndFileType> hashLoader =
         path -> {
           try {
-            return getHashCodeAndFileType(path);
+            return getHashCodeAndFileType(path, true);
           } catch (IOException e) {
             throw new RuntimeException(e);
           }
@@ -82,7 +169,7 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     FileHashCacheEngine.ValueLoader<HashCode> fileHashLoader =
         (path) -> {
           try {
-            return getFileHashCode(path);
+            return getFileHashCode(path, true);
           } catch (IOException e) {
             throw new RuntimeException(e);
           }
@@ -104,6 +191,7 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
         fileHashCacheEngine = LoadingCacheFileHashCache.createWithStats(hashLoader, sizeLoader);
         break;
       case PREFIX_TREE:
+      case PERSISTENT_PREFIX_TREE:
         fileHashCacheEngine =
             FileSystemMapFileHashCache.createWithStats(hashLoader, sizeLoader, projectFilesystem);
         break;
@@ -131,7 +219,9 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   public static DefaultFileHashCache createBuckOutFileHashCache(
       ProjectFilesystem projectFilesystem, FileHashCacheMode fileHashCacheMode) {
     return new DefaultFileHashCache(
-        projectFilesystem, (path) -> !isInBuckOut(projectFilesystem, path), fileHashCacheMode);
+        projectFilesystem,
+        (path) -> !isInBuckOut(projectFilesystem, path),
+        fileHashCacheMode.withoutPersistence());
   }
 
   public static DefaultFileHashCache createDefaultFileHashCache(
@@ -181,7 +271,8 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
       // rules (e.g. /usr/bin/gcc), and only serves to prevent rehashing the same file
       // multiple times in a single run.
       allCaches.add(
-          DefaultFileHashCache.createDefaultFileHashCache(projectFilesystem, fileHashCacheMode));
+          DefaultFileHashCache.createDefaultFileHashCache(
+              projectFilesystem, fileHashCacheMode.withoutPersistence()));
     }
 
     return allCaches.build();
@@ -193,19 +284,58 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     }
   }
 
-  private HashCodeAndFileType getHashCodeAndFileType(Path path) throws IOException {
+  /**
+   * @param usePersistedHashes whether hashes persisted by earlier runs may be used for files which
+   *     haven't changed since, rather than hashing them again.
+   */
+  private HashCodeAndFileType getHashCodeAndFileType(Path path, boolean usePersistedHashes)
+      throws IOException {
     if (projectFilesystem.isDirectory(path)) {
       return getDirHashCode(path);
     } else if (path.toString().endsWith(".jar")) {
-      return JarHashCodeAndFileType.ofArchive(
-          getFileHashCode(path), new DefaultJarContentHasher(projectFilesystem, path));
+      HashCode hashCode = getFileHashCode(path, usePersistedHashes);
+      return JarHashCodeAndFileType.ofArchive(hashCode, newJarContentHasher(path, hashCode));
     }
 
-    return HashCodeAndFileType.ofFile(getFileHashCode(path));
+    return HashCodeAndFileType.ofFile(getFileHashCode(path, usePersistedHashes));
+  }
+
+  private JarContentHasher newJarContentHasher(Path path, HashCode hashCode) {
+    return new CachingJarContentHasher(
+        new DefaultJarContentHasher(projectFilesystem, path),
+        hashCode,
+        jarContentsCache,
+        persistentHashStore);
+  }
+
+  private HashCode getFileHashCode(Path path, boolean usePersistedHashes) throws IOException {
+    BasicFileAttributes attributes =
+        projectFilesystem.readAttributes(path, BasicFileAttributes.class);
+    if (persistentHashStore == null || !usePersistedHashes) {
+      return hashFile(path, attributes.size());
+    }
+    HashCode hashCode = persistentHashStore.get(path, attributes);
+    if (hashCode == null) {
+      hashCode = hashFile(path, attributes.size());
+      persistentHashStore.put(path, attributes, hashCode);
+    }
+    return hashCode;
   }
 
-  private HashCode getFileHashCode(Path path) throws IOException {
-    return projectFilesystem.computeSha1(path).asHashCode();
+  private HashCode hashFile(Path path, long size) throws IOException {
+    long start = System.nanoTime();
+    HashCode hashCode =
+        CHUNKED_HASHING_CHUNK_SIZE > 0 && size > CHUNKED_HASHING_CHUNK_SIZE
+            ? LargeFileHashing.hashChunks(
+                projectFilesystem.resolve(path),
+                Hashing.sha1(),
+                CHUNKED_HASHING_CHUNK_SIZE,
+                Optional.of(CHUNKED_HASHING_POOL.get()))
+            : projectFilesystem.computeSha1(path).asHashCode();
+    hashingNanoTime.addAndGet(System.nanoTime() - start);
+    bytesHashed.addAndGet(size);
+    filesHashed.incrementAndGet();
+    return hashCode;
   }
 
   private long getPathSize(Path path) throws IOException {
@@ -218,7 +348,7 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
 
   private HashCodeAndFileType getDirHashCode(Path path) throws IOException {
     Hasher hasher = Hashing.sha1().newHasher();
-    PathHashing.hashPath(hasher, this, projectFilesystem, path);
+    PathHashing.hashPath(hasher, this, projectFilesystem, path, directoryHashingPool);
     return HashCodeAndFileType.ofDirectory(hasher.hash());
   }
 
@@ -300,9 +430,8 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
       value =
           JarHashCodeAndFileType.ofArchive(
               hashCode,
-              new DefaultJarContentHasher(
-                  projectFilesystem,
-                  projectFilesystem.getPathRelativeToProjectRoot(relativePath).get()));
+              newJarContentHasher(
+                  projectFilesystem.getPathRelativeToProjectRoot(relativePath).get(), hashCode));
     } else {
       value = HashCodeAndFileType.ofFile(hashCode);
     }
@@ -317,7 +446,8 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     for (Map.Entry<Path, HashCodeAndFileType> entry : cacheMap.entrySet()) {
       Path path = entry.getKey();
       HashCodeAndFileType cached = entry.getValue();
-      HashCodeAndFileType current = getHashCodeAndFileType(path);
+      // Hash the files again, so that a stale persisted hash is caught too.
+      HashCodeAndFileType current = getHashCodeAndFileType(path, false);
       if (!cached.equals(current)) {
         errors.add(path.toString());
       }
@@ -341,7 +471,24 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
                     projectFilesystem.resolve(entry.getKey()), entry.getValue().getHashCode()));
   }
 
+  /**
+   * Writes the hashes of files to buck-out if the cache persists them and any were computed since
+   * they were last written.
+   */
+  public void saveIfChanged() throws IOException {
+    if (persistentHashStore != null) {
+      persistentHashStore.saveIfChanged();
+    }
+  }
+
   public List<AbstractBuckEvent> getStatsEvents() {
-    return fileHashCacheEngine.getStatsEvents();
+    List<AbstractBuckEvent> events = new ArrayList<>(fileHashCacheEngine.getStatsEvents());
+    long files = filesHashed.getAndSet(0);
+    if (files > 0) {
+      events.add(
+          new FileHashCacheEvent.FilesHashed(
+              "hashing", hashingNanoTime.getAndSet(0), files, bytesHashed.getAndSet(0)));
+    }
+    return events;
   }
 }
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.cache.HashCodeAndFileType;
+import com.facebook.buck.util.timing.Clock;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Persists the hashes of files in buck-out, so that a new daemon, or a build without one, doesn't
+ * need to hash the files which haven't changed since.
+ *
+ * <p>Each hash is stored along with the size, modification time and file key (the inode on unix)
+ * of the file it was computed from, and is only used while all three still match. Like git's
+ * index, hashes of files which were modified so recently that a further modification could keep
+ * the same timestamp are not stored.
+ *
+ * <p>The hashes of the members of jars are stored as well, keyed by the hash of the jar itself, so
+ * they stay valid for as long as the contents of the jar don't change.
+ *
+ * <p>Saving merges the hashes used by this process into the ones already in the file, so that runs
+ * which hash different files don't evict each other's hashes. Hashes which no run used for {@link
+ * #MAX_UNUSED_MILLIS} are dropped, which keeps deleted files from accumulating.
+ *
+ * <p>The file is only a hint, so a missing, stale or corrupted file just means that files are
+ * hashed again.
+ */
+@ThreadSafe
+class PersistentFileHashStore {
+
+  private static final Logger LOG = Logger.get(PersistentFileHashStore.class);
+
+  /** Name of the file, relative to buck-out, where the hashes are stored. */
+  static final String FILE_NAME = ".filehashcache";
+
+  private static final int MAGIC = 0xB0C4F1A5;
+  private static final int VERSION = 3;
+
+  /** How long a file must not have been modified for before its hash is stored. */
+  private static final long RACY_INTERVAL_MILLIS = 2000;
+
+  /** How long a hash is kept in the file after it was last used. */
+  static final long MAX_UNUSED_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+  /** How long after a hash was last saved as used a run which uses it saves it again. */
+  private static final long LAST_USED_REFRESH_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private final Path path;
+  private final Clock clock;
+
+  /** Entries read from {@link #path}, loaded on first use. */
+  @Nullable private volatile Persisted persisted = null;
+
+  /** Entries used or added since this store was created, which are saved as used now. */
+  private final ConcurrentMap<String, Entry> live = new ConcurrentHashMap<>();
+
+  /** Files whose hashes must not be stored, as they were modified too recently. */
+  private final Set<String> dropped = ConcurrentHashMap.newKeySet();
+
+  /** Jar contents used or added since this store was created, which are saved as used now. */
+  private final ConcurrentMap<HashCode, ImmutableMap<Path, HashCodeAndFileType>> liveJarContents =
+      new ConcurrentHashMap<>();
+
+  private final AtomicBoolean changed = new AtomicBoolean();
+
+  PersistentFileHashStore(Path path, Clock clock) {
+    this.path = path;
+    this.clock = clock;
+  }
+
+  /** @return the stored hash of the file, if it was stored with the given attributes. */
+  @Nullable
+  HashCode get(Path relativePath, BasicFileAttributes attributes) {
+    String key = relativePath.toString();
+    Entry entry = live.get(key);
+    if (entry != null) {
+      return entry.matches(attributes) ? entry.hash : null;
+    }
+    entry = getPersisted().entries.get(key);
+    if (entry == null || !entry.matches(attributes)) {
+      return null;
+    }
+    live.putIfAbsent(key, entry);
+    markUsed(entry.lastUsedMillis);
+    return entry.hash;
+  }
+
+  /** Stores the hash of the file, which had the given attributes before it was hashed. */
+  void put(Path relativePath, BasicFileAttributes attributes, HashCode hash) {
+    String key = relativePath.toString();
+    long modifiedMillis = attributes.lastModifiedTime().toMillis();
+    if (!attributes.isRegularFile()
+        || clock.currentTimeMillis() - modifiedMillis < RACY_INTERVAL_MILLIS) {
+      dropped.add(key);
+      if (live.remove(key) != null || getPersisted().entries.containsKey(key)) {
+        changed.set(true);
+      }
+      return;
+    }
+    dropped.remove(key);
+    live.put(key, new Entry(attributes.size(), modifiedMillis, fileKeyOf(attributes), hash, 0));
+    changed.set(true);
+  }
+
+  /** @return the stored hashes of the members of the jar with the given hash. */
+  @Nullable
+  ImmutableMap<Path, HashCodeAndFileType> getJarContents(HashCode jarHash) {
+    ImmutableMap<Path, HashCodeAndFileType> contents = liveJarContents.get(jarHash);
+    if (contents == null) {
+      JarContents persistedContents = getPersisted().jarContents.get(jarHash);
+      if (persistedContents != null) {
+        contents = persistedContents.members;
+        liveJarContents.putIfAbsent(jarHash, contents);
+        markUsed(persistedContents.lastUsedMillis);
+      }
+    }
+    return contents;
+  }
+
+  /** Stores the hashes of the members of the jar with the given hash, which must all be files. */
+  void putJarContents(HashCode jarHash, ImmutableMap<Path, HashCodeAndFileType> contents) {
+    if (liveJarContents.put(jarHash, contents) == null) {
+      changed.set(true);
+    }
+  }
+
+  /** Makes sure a persisted hash is saved again before it is too old to be kept. */
+  private void markUsed(long lastUsedMillis) {
+    if (clock.currentTimeMillis() - lastUsedMillis >= LAST_USED_REFRESH_MILLIS) {
+      changed.set(true);
+    }
+  }
+
+  /**
+   * Merges the hashes which were used or added into the file, if any were added since it was last
+   * written. The file is read again first, so that hashes saved by other processes in the meantime
+   * are kept too. It is replaced atomically so concurrent readers never observe a partially written
+   * store.
+   */
+  synchronized void saveIfChanged() throws IOException {
+    if (!changed.getAndSet(false)) {
+      return;
+    }
+    long nowMillis = clock.currentTimeMillis();
+    Persisted onDisk = load();
+
+    Map<String, Entry> entries = new HashMap<>();
+    for (Map.Entry<String, Entry> entry : onDisk.entries.entrySet()) {
+      if (nowMillis - entry.getValue().lastUsedMillis < MAX_UNUSED_MILLIS
+          && !dropped.contains(entry.getKey())) {
+        entries.put(entry.getKey(), entry.getValue());
+      }
+    }
+    for (Map.Entry<String, Entry> entry : live.entrySet()) {
+      entries.put(entry.getKey(), entry.getValue().usedAt(nowMillis));
+    }
+
+    Map<HashCode, JarContents> jarContents = new HashMap<>();
+    for (Map.Entry<HashCode, JarContents> jar : onDisk.jarContents.entrySet()) {
+      if (nowMillis - jar.getValue().lastUsedMillis < MAX_UNUSED_MILLIS) {
+        jarContents.put(jar.getKey(), jar.getValue());
+      }
+    }
+    for (Map.Entry<HashCode, ImmutableMap<Path, HashCodeAndFileType>> jar :
+        liveJarContents.entrySet()) {
+      jarContents.put(jar.getKey(), new JarContents(nowMillis, jar.getValue()));
+    }
+
+    Files.createDirectories(path.getParent());
+    Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          out.writeUTF(entry.getKey());
+          entry.getValue().writeTo(out);
+        }
+        out.writeInt(jarContents.size());
+        for (Map.Entry<HashCode, JarContents> jar : jarContents.entrySet()) {
+          writeHash(out, jar.getKey());
+          out.writeLong(jar.getValue().lastUsedMillis);
+          out.writeInt(jar.getValue().members.size());
+          for (Map.Entry<Path, HashCodeAndFileType> member :
+              jar.getValue().members.entrySet()) {
+            out.writeUTF(member.getKey().toString());
+            writeHash(out, member.getValue().getHashCode());
+          }
+        }
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    persisted = new Persisted(entries, jarContents);
+    LOG.debug(
+        "Saved %d file hashes and the contents of %d jars to %s.",
+        entries.size(), jarContents.size(), path);
+  }
+
+  private Persisted getPersisted() {
+    Persisted result = persisted;
+    if (result == null) {
+      synchronized (this) {
+        result = persisted;
+        if (result == null) {
+          result = load();
+          persisted = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  private Persisted load() {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        LOG.debug("Ignoring file hash store in an unknown format at %s.", path);
+        return Persisted.EMPTY;
+      }
+      int count = in.readInt();
+      Map<String, Entry> entries = new HashMap<>(count * 4 / 3 + 1);
+      for (int i = 0; i < count; i++) {
+        entries.put(in.readUTF(), Entry.readFrom(in));
+      }
+      int jarCount = in.readInt();
+      Map<HashCode, JarContents> jarContents = new HashMap<>(jarCount * 4 / 3 + 1);
+      for (int i = 0; i < jarCount; i++) {
+        HashCode jarHash = readHash(in);
+        long lastUsedMillis = in.readLong();
+        int memberCount = in.readInt();
+        ImmutableMap.Builder<Path, HashCodeAndFileType> members =
+            ImmutableMap.builderWithExpectedSize(memberCount);
+        for (int j = 0; j < memberCount; j++) {
+          members.put(Paths.get(in.readUTF()), HashCodeAndFileType.ofFile(readHash(in)));
+        }
+        jarContents.put(jarHash, new JarContents(lastUsedMillis, members.build()));
+      }
+      LOG.debug(
+          "Loaded %d file hashes and the contents of %d jars from %s.", count, jarCount, path);
+      return new Persisted(entries, jarContents);
+    } catch (NoSuchFileException e) {
+      LOG.debug("No file hash store at %s.", path);
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Discarding unreadable file hash store at %s.", path);
+    }
+    return Persisted.EMPTY;
+  }
+
+  private static void writeHash(DataOutputStream out, HashCode hash) throws IOException {
+    byte[] bytes = hash.asBytes();
+    out.writeByte(bytes.length);
+    out.write(bytes);
+  }
+
+  private static HashCode readHash(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readUnsignedByte()];
+    in.readFully(bytes);
+    return HashCode.fromBytes(bytes);
+  }
+
+  private static class Persisted {
+    private static final Persisted EMPTY =
+        new Persisted(Collections.emptyMap(), Collections.emptyMap());
+
+    private final Map<String, Entry> entries;
+    private final Map<HashCode, JarContents> jarContents;
+
+    private Persisted(Map<String, Entry> entries, Map<HashCode, JarContents> jarContents) {
+      this.entries = entries;
+      this.jarContents = jarContents;
+    }
+  }
+
+  private static class JarContents {
+    private final long lastUsedMillis;
+    private final ImmutableMap<Path, HashCodeAndFileType> members;
+
+    private JarContents(long lastUsedMillis, ImmutableMap<Path, HashCodeAndFileType> members) {
+      this.lastUsedMillis = lastUsedMillis;
+      this.members = members;
+    }
+  }
+
+  private static int fileKeyOf(BasicFileAttributes attributes) {
+    return Objects.hashCode(attributes.fileKey());
+  }
+
+  private static class Entry {
+    private final long size;
+    private final long modifiedMillis;
+    private final int fileKey;
+    private final HashCode hash;
+    private final long lastUsedMillis;
+
+    private Entry(long size, long modifiedMillis, int fileKey, HashCode hash, long lastUsedMillis) {
+      this.size = size;
+      this.modifiedMillis = modifiedMillis;
+      this.fileKey = fileKey;
+      this.hash = hash;
+      this.lastUsedMillis = lastUsedMillis;
+    }
+
+    private Entry usedAt(long millis) {
+      return new Entry(size, modifiedMillis, fileKey, hash, millis);
+    }
+
+    private boolean matches(BasicFileAttributes attributes) {
+      return attributes.isRegularFile()
+          && size == attributes.size()
+          && modifiedMillis == attributes.lastModifiedTime().toMillis()
+          && fileKey == fileKeyOf(attributes);
+    }
+
+    private void writeTo(DataOutputStream out) throws IOException {
+      out.writeLong(size);
+      out.writeLong(modifiedMillis);
+      out.writeInt(fileKey);
+      writeHash(out, hash);
+      out.writeLong(lastUsedMillis);
+    }
+
+    private static Entry readFrom(DataInputStream in) throws IOException {
+      long size = in.readLong();
+      long modifiedMillis = in.readLong();
+      int fileKey = in.readInt();
+      HashCode hash = readHash(in);
+      return new Entry(size, modifiedMillis, fileKey, hash, in.readLong());
+    }
+  }
+}
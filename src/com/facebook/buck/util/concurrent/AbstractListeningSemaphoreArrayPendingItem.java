@@ -25,4 +25,10 @@ abstract class AbstractListeningSemaphoreArrayPendingItem {
   public abstract SettableFuture<Void> getFuture();
 
   public abstract ResourceAmounts getResources();
+
+  /** Pending items with a higher priority are granted resources first. */
+  public abstract long getPriority();
+
+  /** Order in which the item was queued, which breaks ties between equal priorities. */
+  public abstract long getSequenceNumber();
 }
@@ -20,9 +20,10 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * A semaphore using {@link ListenableFuture}s for acquisition of different resource types rather
@@ -30,11 +31,25 @@ import java.util.List;
  */
 public class ListeningMultiSemaphore {
 
+  /** Priority of requests which do not specify one explicitly. */
+  public static final long DEFAULT_PRIORITY = 0;
+
   private ResourceAmounts usedValues;
   private final ResourceAmounts maximumValues;
-  private final List<ListeningSemaphoreArrayPendingItem> pending = new LinkedList<>();
+  private final PriorityQueue<ListeningSemaphoreArrayPendingItem> pending =
+      new PriorityQueue<>(
+          Comparator.comparingLong(ListeningSemaphoreArrayPendingItem::getPriority)
+              .reversed()
+              .thenComparingLong(ListeningSemaphoreArrayPendingItem::getSequenceNumber));
+  private long nextSequenceNumber = 0;
   private final ResourceAllocationFairness fairness;
 
+  /**
+   * Memory actually in use by the work holding resources, in the same units as memory amounts, as
+   * last reported by {@link #updateMeasuredMemory(int)}.
+   */
+  private int measuredMemory = 0;
+
   public ListeningMultiSemaphore(
       ResourceAmounts availableResources, ResourceAllocationFairness fairness) {
     this.usedValues = ResourceAmounts.zero();
@@ -52,7 +67,20 @@ public class ListeningMultiSemaphore {
    *     amounts, they will be capped to them.
    * @return Future that will be completed once resource will be acquired.
    */
-  public synchronized ListenableFuture<Void> acquire(ResourceAmounts resources) {
+  public ListenableFuture<Void> acquire(ResourceAmounts resources) {
+    return acquire(resources, DEFAULT_PRIORITY);
+  }
+
+  /**
+   * Same as {@link #acquire(ResourceAmounts)}, but if the resources are not immediately available
+   * the request is queued ahead of all pending requests with a lower priority. Requests with equal
+   * priorities are processed in the order they were made.
+   *
+   * @param resources Resource amounts that need to be acquired.
+   * @param priority Priority of the request, higher values are served first.
+   * @return Future that will be completed once resource will be acquired.
+   */
+  public synchronized ListenableFuture<Void> acquire(ResourceAmounts resources, long priority) {
     if (resources.equals(ResourceAmounts.zero())) {
       return Futures.immediateFuture(null);
     }
@@ -60,7 +88,9 @@ public class ListeningMultiSemaphore {
     resources = capResourceAmounts(resources);
     if (!checkIfResourcesAvailable(resources)) {
       SettableFuture<Void> pendingFuture = SettableFuture.create();
-      pending.add(ListeningSemaphoreArrayPendingItem.of(pendingFuture, resources));
+      pending.add(
+          ListeningSemaphoreArrayPendingItem.of(
+              pendingFuture, resources, priority, nextSequenceNumber++));
       return pendingFuture;
     }
     increaseUsedResources(resources);
@@ -87,17 +117,21 @@ public class ListeningMultiSemaphore {
       getPendingItemsThatCanBeProcessed() {
     ImmutableList.Builder<ListeningSemaphoreArrayPendingItem> builder = ImmutableList.builder();
 
-    Iterator<ListeningSemaphoreArrayPendingItem> iterator = pending.iterator();
-    while (!getAvailableResources().equals(ResourceAmounts.zero()) && iterator.hasNext()) {
-      ListeningSemaphoreArrayPendingItem item = iterator.next();
+    // Items which don't fit are only skipped if fairness allows it, and are queued again after.
+    List<ListeningSemaphoreArrayPendingItem> skipped = new ArrayList<>();
+    while (!getAvailableResources().equals(ResourceAmounts.zero()) && !pending.isEmpty()) {
+      ListeningSemaphoreArrayPendingItem item = pending.peek();
       if (checkIfResourcesAvailable(item.getResources())) {
         builder.add(item);
         increaseUsedResources(item.getResources());
-        iterator.remove();
-      } else if (!fairnessAllowsReordering()) {
+        pending.poll();
+      } else if (fairnessAllowsReordering()) {
+        skipped.add(pending.poll());
+      } else {
         break;
       }
     }
+    pending.addAll(skipped);
     return builder.build();
   }
 
@@ -105,6 +139,25 @@ public class ListeningMultiSemaphore {
     return maximumValues.subtract(usedValues);
   }
 
+  public synchronized ResourceAmounts getUsedResources() {
+    return usedValues;
+  }
+
+  /**
+   * Updates how much memory is actually in use. When it is more than the acquired memory amounts,
+   * e.g. because they underestimate what running jobs need, pending requests are only granted if
+   * they fit on top of the measured memory. If no memory is acquired at all, the measurement is
+   * ignored so that work can't be blocked forever by memory that isn't ours to release.
+   *
+   * @param measuredMemory Memory in use, in the same units as memory amounts.
+   */
+  public void updateMeasuredMemory(int measuredMemory) {
+    synchronized (this) {
+      this.measuredMemory = measuredMemory;
+    }
+    processPendingFutures(getPendingItemsThatCanBeProcessed());
+  }
+
   public synchronized ResourceAmounts getMaximumValues() {
     return maximumValues;
   }
@@ -132,7 +185,11 @@ public class ListeningMultiSemaphore {
         "Resource amounts (%s) must be capped to the maximum amounts (%s)",
         resources,
         maximumValues);
-    return usedValues.append(resources).allValuesLessThanOrEqual(maximumValues);
+    ResourceAmounts projectedValues = usedValues.append(resources);
+    if (usedValues.getMemory() > 0 && measuredMemory > usedValues.getMemory()) {
+      projectedValues = projectedValues.withMemory(measuredMemory + resources.getMemory());
+    }
+    return projectedValues.allValuesLessThanOrEqual(maximumValues);
   }
 
   private synchronized void increaseUsedResources(ResourceAmounts resources) {
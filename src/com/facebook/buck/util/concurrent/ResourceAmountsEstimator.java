@@ -20,9 +20,14 @@ public class ResourceAmountsEstimator {
   /** CPU resource amount is considered as number of cores. Each core can perform a single job. */
   public static final int DEFAULT_CPU_CAP = Runtime.getRuntime().availableProcessors();
 
-  /** Memory resource unit size has been chosen arbitrarily. We can tune the value if we need. */
+  /**
+   * Size in bytes of a single unit of the memory resource. It has been chosen arbitrarily. We can
+   * tune the value if we need.
+   */
+  public static final long MEMORY_UNIT_BYTES = 100 * 1024 * 1024;
+
   public static final int DEFAULT_MEMORY_CAP =
-      (int) (Runtime.getRuntime().maxMemory() / (100 * 1024 * 1024));
+      (int) (Runtime.getRuntime().maxMemory() / MEMORY_UNIT_BYTES);
 
   /**
    * Disk IO resource unit size has been chosen arbitrarily. Since most of the jobs are light, we
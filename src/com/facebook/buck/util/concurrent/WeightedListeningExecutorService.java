@@ -38,14 +38,24 @@ public class WeightedListeningExecutorService extends AbstractListeningExecutorS
   private final ListeningMultiSemaphore semaphore;
   private final ResourceAmounts defaultValues;
   private final ListeningExecutorService delegate;
+  private final long priority;
 
   public WeightedListeningExecutorService(
       ListeningMultiSemaphore semaphore,
       ResourceAmounts defaultValues,
       ListeningExecutorService delegate) {
+    this(semaphore, defaultValues, delegate, ListeningMultiSemaphore.DEFAULT_PRIORITY);
+  }
+
+  private WeightedListeningExecutorService(
+      ListeningMultiSemaphore semaphore,
+      ResourceAmounts defaultValues,
+      ListeningExecutorService delegate,
+      long priority) {
     this.semaphore = semaphore;
     this.defaultValues = defaultValues;
     this.delegate = delegate;
+    this.priority = priority;
   }
 
   public ListeningMultiSemaphore getSemaphore() {
@@ -65,14 +75,30 @@ public class WeightedListeningExecutorService extends AbstractListeningExecutorS
     if (newDefaultAmounts.equals(defaultValues)) {
       return this;
     }
-    return new WeightedListeningExecutorService(semaphore, newDefaultAmounts, delegate);
+    return new WeightedListeningExecutorService(semaphore, newDefaultAmounts, delegate, priority);
+  }
+
+  /**
+   * Creates a new service whose submitted tasks wait for resources with the given priority. When
+   * the semaphore is saturated, tasks with higher priorities are started first.
+   *
+   * @param newPriority priority passed to {@link ListeningMultiSemaphore#acquire(ResourceAmounts,
+   *     long)}
+   * @return Service that uses the same semaphore, delegate and default resource amounts but with
+   *     the given priority.
+   */
+  public WeightedListeningExecutorService withPriority(long newPriority) {
+    if (newPriority == priority) {
+      return this;
+    }
+    return new WeightedListeningExecutorService(semaphore, defaultValues, delegate, newPriority);
   }
 
   private <T> ListenableFuture<T> submitWithSemaphore(
       Callable<T> callable, ResourceAmounts amounts) {
     ListenableFuture<T> future =
         Futures.transformAsync(
-            semaphore.acquire(amounts),
+            semaphore.acquire(amounts, priority),
             input -> {
               try {
                 return Futures.immediateFuture(callable.call());
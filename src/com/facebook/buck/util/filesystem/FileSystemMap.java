@@ -16,17 +16,18 @@
 package com.facebook.buck.util.filesystem;
 
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
-import com.facebook.buck.util.types.Pair;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * This class implements a map for a filesystem structure relying on a prefix tree. The trie only
@@ -40,11 +41,18 @@ import javax.annotation.Nullable;
  * of the target leaf leaves an empty branch (a stump), that is removed as well in order to keep the
  * prefix tree as slim as possible.
  *
- * <p>This class is thread safe in its public methods: concurrent calls to the trie will have the
- * exclusiveness in write/remove operations, while allowing parallel reads to the whole data
- * structure: an attempt could be made to make the trie more concurrent by locking branches of the
- * trie instead of the whole object, although that will require some thought around how to grant
- * parallel writes.
+ * <p>Lookups go through a flat index from the paths given by callers to their nodes, so a hit costs
+ * a single hash lookup. To keep the trie itself compact, a node only stores its own path segment,
+ * interned across all instances since the same names recur throughout a repository, and keeps its
+ * children in an open addressing hash table.
+ *
+ * <p>This class is thread safe in its public methods. Hits in the index don't take any locks, and
+ * walking the trie only falls back to locking a node when it misses or runs into a removed node.
+ * Changes lock the children of a single node at a time. Detached nodes are marked as removed
+ * before they leave the index, and insertions check that mark after adding to the index, so the
+ * index never keeps a node that is no longer in the trie. Loading a value locks the node being
+ * loaded, which changes to the trie never do, so loaders are free to call back into the map from
+ * any thread.
  *
  * @param <T> The type to associate with a specific path.
  */
@@ -59,6 +67,8 @@ public class FileSystemMap<T> {
     T load(Path path);
   }
 
+  private static final Interner<String> SEGMENTS = Interners.newWeakInterner();
+
   /**
    * Entry is the class representing a file/folder in the prefix tree. Its main responsibilities are
    * to fetch a child of the current folder or the current value, if the entry is a leaf or "inner
@@ -68,9 +78,22 @@ public class FileSystemMap<T> {
    */
   @VisibleForTesting
   static class Entry<T> {
-    // Stores all child nodes (i.e. files and subfolders) of the current node
-    // Nullable to conserve memory
-    @Nullable Map<Path, Entry<T>> subLevels = null;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Entry, Children> CHILDREN =
+        AtomicReferenceFieldUpdater.newUpdater(Entry.class, Children.class, "children");
+
+    // The last segment of the path of this node, and its hash code, which is kept next to the
+    // other fields so that probing for a child doesn't need to load the names that don't match.
+    private final String name;
+    private final int hash;
+
+    // Stores all child nodes (i.e. files and subfolders) of the current node. Its lock guards the
+    // changes to them, and to `removed`. Nullable to conserve memory
+    private volatile @Nullable Children<T> children = null;
+
+    // Set once the node is detached from the trie, so that it is no longer extended nor indexed.
+    private volatile boolean removed = false;
 
     // The value of the Entry is the actual value the node is associated with:
     //   - If this is a leaf node, value is never null.
@@ -80,44 +103,322 @@ public class FileSystemMap<T> {
     //       a `null` value.
     private volatile @Nullable T value;
 
-    private Entry() {}
+    private Entry(String name) {
+      this.name = name;
+      this.hash = name.hashCode();
+    }
 
     private void set(@Nullable T value) {
       this.value = value;
     }
 
+    @VisibleForTesting
+    String getName() {
+      return name;
+    }
+
     @VisibleForTesting
     @Nullable
     T getWithoutLoading() {
       return this.value;
     }
 
-    private void load(ValueLoader<T> loader, Path path) {
-      if (this.value == null) {
-        synchronized (this) {
-          if (this.value == null) {
-            this.value = loader.load(path);
-          }
+    private T load(ValueLoader<T> loader, Path path) {
+      // Only loading locks the entry itself, so loaders are free to call back into the map, even
+      // to add children to this entry from other threads.
+      synchronized (this) {
+        T loaded = this.value;
+        if (loaded == null) {
+          loaded = loader.load(path);
+          this.value = loaded;
         }
+        return loaded;
       }
     }
 
+    @VisibleForTesting
+    @Nullable
+    Entry<T> getChild(String name) {
+      return getChild(name, 0, name.length(), name.hashCode());
+    }
+
+    @Nullable
+    private Entry<T> getChild(String path, int start, int end, int hash) {
+      Children<T> children = this.children;
+      if (children == null) {
+        return null;
+      }
+      Entry<T> child = children.find(path, start, end, hash);
+      if (child != null && !child.removed) {
+        return child;
+      }
+      // The lock-free lookup may have missed a concurrent change, so double check.
+      synchronized (children) {
+        return children.find(path, start, end, hash);
+      }
+    }
+
+    /**
+     * @return the child with the given name, which is created if needed, or null if this node has
+     *     been removed.
+     */
+    @Nullable
+    private Entry<T> getOrCreateChild(String path, int start, int end, int hash) {
+      Children<T> children = getOrCreateChildren();
+      Entry<T> child = children.find(path, start, end, hash);
+      if (child != null && !child.removed) {
+        return child;
+      }
+      synchronized (children) {
+        if (removed) {
+          return null;
+        }
+        child = children.find(path, start, end, hash);
+        if (child == null) {
+          child = new Entry<>(SEGMENTS.intern(path.substring(start, end)));
+          children.insert(child);
+        }
+        return child;
+      }
+    }
+
+    private Children<T> getOrCreateChildren() {
+      Children<T> children = this.children;
+      if (children == null) {
+        CHILDREN.compareAndSet(this, null, new Children<T>());
+        children = this.children;
+      }
+      return children;
+    }
+
     @VisibleForTesting
     int size() {
-      return subLevels == null ? 0 : subLevels.size();
+      Children<T> children = this.children;
+      if (children == null) {
+        return 0;
+      }
+      synchronized (children) {
+        return children.size;
+      }
+    }
+
+    /** Detaches the given child if it has no children itself, and marks it as removed. */
+    private boolean removeChildIfEmpty(Entry<T> child) {
+      Children<T> children = getOrCreateChildren();
+      synchronized (children) {
+        Children<T> grandChildren = child.getOrCreateChildren();
+        synchronized (grandChildren) {
+          if (grandChildren.size > 0 || child.removed || !children.remove(child)) {
+            return false;
+          }
+          child.removed = true;
+          return true;
+        }
+      }
+    }
+
+    /** Detaches the given child, if it is still a child of this node. */
+    private boolean detachChild(Entry<T> child) {
+      Children<T> children = this.children;
+      if (children == null) {
+        return false;
+      }
+      synchronized (children) {
+        return children.remove(child);
+      }
+    }
+
+    /** Detaches all children of this node. */
+    private List<Entry<T>> detachAllChildren() {
+      Children<T> children = getOrCreateChildren();
+      synchronized (children) {
+        List<Entry<T>> result = children.snapshot();
+        children.clear();
+        return result;
+      }
+    }
+
+    /** Marks this node as removed and returns its children. */
+    private List<Entry<T>> markRemoved() {
+      removed = true;
+      Children<T> children = this.children;
+      if (children == null) {
+        // Whoever adds the first child will see the mark once they hold the lock.
+        return Collections.emptyList();
+      }
+      // Wait for insertions which passed the check before the mark was set.
+      synchronized (children) {
+        return children.snapshot();
+      }
+    }
+
+    private void collectValues(Path path, ImmutableMap.Builder<Path, T> builder) {
+      T value = this.value;
+      if (value != null) {
+        builder.put(path, value);
+      }
+      Children<T> children = this.children;
+      if (children == null) {
+        return;
+      }
+      List<Entry<T>> snapshot;
+      synchronized (children) {
+        snapshot = children.snapshot();
+      }
+      for (Entry<T> child : snapshot) {
+        child.collectValues(path.resolve(child.name), builder);
+      }
     }
   }
 
-  @VisibleForTesting final Path rootPath;
-  @VisibleForTesting final Entry<T> root = new Entry<>();
+  /**
+   * The children of an entry, in an open addressing hash table keyed by name. Changes are made
+   * under the lock of this object. Entries are never moved within a table, removals leave a
+   * tombstone behind instead, so that a lookup without the lock may only miss an entry which is
+   * being added concurrently. Tables are rebuilt from scratch when they fill up.
+   */
+  private static class Children<T> {
 
-  @VisibleForTesting final ConcurrentHashMap<Path, Entry<T>> map = new ConcurrentHashMap<>();
+    private static final int INITIAL_CAPACITY = 2;
+
+    @SuppressWarnings("rawtypes")
+    private static final Entry TOMBSTONE = new Entry<>("");
+
+    private volatile Entry<T>[] slots = newSlots(INITIAL_CAPACITY);
+
+    // The number of children, and the number of slots taken by children or tombstones.
+    @GuardedBy("this")
+    private int size = 0;
+
+    @GuardedBy("this")
+    private int used = 0;
+
+    /**
+     * Looks up a child without locking.
+     *
+     * @param hash the {@link String#hashCode()} of the name.
+     */
+    @Nullable
+    Entry<T> find(String path, int start, int end, int hash) {
+      Entry<T>[] slots = this.slots;
+      int mask = slots.length - 1;
+      int i = spread(hash) & mask;
+      // Bounded, as a reader which doesn't lock isn't guaranteed to see the empty slots.
+      for (int probes = 0; probes < slots.length; probes++) {
+        Entry<T> entry = slots[i];
+        if (entry == null) {
+          return null;
+        }
+        // Tombstones are named after the empty segment, so they never match.
+        if (entry.hash == hash
+            && entry.name.length() == end - start
+            && entry.name.regionMatches(0, path, start, end - start)) {
+          return entry;
+        }
+        i = (i + 1) & mask;
+      }
+      return null;
+    }
+
+    @GuardedBy("this")
+    void insert(Entry<T> entry) {
+      if ((used + 1) * 4 > slots.length * 3) {
+        rebuild(size + 1);
+      }
+      insert(slots, entry);
+      size++;
+      used++;
+    }
 
+    @GuardedBy("this")
+    @SuppressWarnings("unchecked")
+    boolean remove(Entry<T> entry) {
+      Entry<T>[] slots = this.slots;
+      int mask = slots.length - 1;
+      int i = spread(entry.hash) & mask;
+      for (int probes = 0; probes < slots.length; probes++, i = (i + 1) & mask) {
+        if (slots[i] == null) {
+          return false;
+        }
+        if (slots[i] == entry) {
+          slots[i] = TOMBSTONE;
+          if (--size == 0) {
+            clear();
+          }
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @GuardedBy("this")
+    void clear() {
+      slots = newSlots(INITIAL_CAPACITY);
+      size = 0;
+      used = 0;
+    }
+
+    @GuardedBy("this")
+    List<Entry<T>> snapshot() {
+      List<Entry<T>> result = new ArrayList<>(size);
+      for (Entry<T> entry : slots) {
+        if (entry != null && entry != TOMBSTONE) {
+          result.add(entry);
+        }
+      }
+      return result;
+    }
+
+    // Copies the children into a new table, dropping the tombstones. Readers still holding the old
+    // table keep seeing all the children it had.
+    @GuardedBy("this")
+    private void rebuild(int minSize) {
+      int capacity = INITIAL_CAPACITY;
+      while (minSize * 4 > capacity * 3) {
+        capacity *= 2;
+      }
+      Entry<T>[] rebuilt = newSlots(capacity * 2);
+      for (Entry<T> entry : slots) {
+        if (entry != null && entry != TOMBSTONE) {
+          insert(rebuilt, entry);
+        }
+      }
+      slots = rebuilt;
+      used = size;
+    }
+
+    private static <T> void insert(Entry<T>[] slots, Entry<T> entry) {
+      int mask = slots.length - 1;
+      int i = spread(entry.hash) & mask;
+      while (slots[i] != null) {
+        i = (i + 1) & mask;
+      }
+      slots[i] = entry;
+    }
+
+    private static int spread(int hash) {
+      return hash ^ (hash >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Entry<T>[] newSlots(int capacity) {
+      return (Entry<T>[]) new Entry<?>[capacity];
+    }
+  }
+
+  @VisibleForTesting final Path rootPath;
+  @VisibleForTesting final Entry<T> root = new Entry<>("");
+
+  private final char separator;
   private final ValueLoader<T> loader;
 
+  // Index of the nodes which were looked up or stored by their full path.
+  @VisibleForTesting final ConcurrentHashMap<Path, Entry<T>> map = new ConcurrentHashMap<>();
+
   public FileSystemMap(ValueLoader<T> loader, ProjectFilesystem filesystem) {
     this.loader = loader;
     this.rootPath = filesystem.getPath("");
+    this.separator = rootPath.getFileSystem().getSeparator().charAt(0);
   }
 
   /**
@@ -129,33 +430,11 @@ public class FileSystemMap<T> {
   public void put(Path path, T value) {
     Entry<T> maybe = map.get(path);
     if (maybe == null) {
-      synchronized (root) {
-        maybe = map.computeIfAbsent(path, this::putEntry);
-      }
+      maybe = putEntry(path);
     }
     maybe.set(value);
   }
 
-  // Creates the intermediate (and/or the leaf node) if needed and returns the leaf associated
-  // with the given path.
-  private Entry<T> putEntry(Path path) {
-    synchronized (root) {
-      Entry<T> parent = root;
-      Path relPath = rootPath;
-      for (Path p : path) {
-        relPath = relPath.resolve(p);
-        if (parent.subLevels == null) {
-          // 4 is a magic value we use trying to conserve memory on folders with small amount of
-          // files
-          parent.subLevels = new HashMap<>(4);
-        }
-        // Create the intermediate node only if it's missing.
-        parent = parent.subLevels.computeIfAbsent(relPath, childPath -> new Entry<>());
-      }
-      return parent;
-    }
-  }
-
   /**
    * Removes the given path.
    *
@@ -171,20 +450,18 @@ public class FileSystemMap<T> {
    * @param path The path specifying the branch to remove.
    */
   public void remove(Path path) {
-    synchronized (root) {
-      Stack<Pair<Path, Entry<T>>> stack = new Stack<>();
-      Entry<T> entry = root;
-      Path relPath = rootPath;
-      // Walk the tree to fetch the node requested by the path, or the closest intermediate node.
-      boolean partial = false;
-      for (Path p : path) {
-
-        // stack will contain all the parent chain but not the actual leaf
-        stack.push(new Pair<>(relPath, entry));
-
-        relPath = relPath.resolve(p);
-        entry = entry.subLevels == null ? null : entry.subLevels.get(relPath);
-
+    String pathString = path.toString();
+    // Will contain all the parent chain but not the actual leaf.
+    List<Entry<T>> parents = new ArrayList<>();
+    Entry<T> entry = root;
+    // Walk the tree to fetch the node requested by the path, or the closest intermediate node.
+    boolean partial = false;
+    int start = 0;
+    while (start < pathString.length()) {
+      int end = segmentEnd(pathString, start);
+      if (end > start) {
+        parents.add(entry);
+        entry = entry.getChild(pathString, start, end, segmentHash(pathString, start, end));
         if (entry == null) {
           // We're trying to remove a path that doesn't exist, no point in going deeper.
           // Break and proceed to remove whatever path we found so far.
@@ -192,63 +469,56 @@ public class FileSystemMap<T> {
           break;
         }
       }
-      // The following approach supports these cases:
-      //   1. Remove a path that has been found as a leaf in the trie (easy case).
-      //   2. Support prefix removal as well (i.e.: if we want to remove an intermediate node.
-
-      if (stack.size() == 0) {
-        // this can only happen if path we are trying to remove is empty
-        return;
-      }
-
-      if (!partial) {
-        // If full path is matched, then remove it and everything below it
-        removeChild(stack.peek().getSecond(), path);
-      }
+      start = end + 1;
+    }
 
-      // For all paths above, remove intermediate nodes if empty or reset their values if not
-      while (!stack.empty()) {
-        Pair<Path, Entry<T>> current = stack.pop();
+    if (parents.isEmpty()) {
+      // this can only happen if path we are trying to remove is empty
+      return;
+    }
 
-        // dump value on all nodes up, including a root one
-        current.getSecond().set(null);
+    if (!partial && parents.get(parents.size() - 1).detachChild(entry)) {
+      // If full path is matched, then remove it and everything below it
+      discard(entry, path);
+    }
 
-        // remove all parent nodes that do not have children anymore
-        if (current.getSecond().size() == 0 && !stack.empty()) {
-          removeChild(stack.peek().getSecond(), current.getFirst());
-        }
+    // For all paths above, remove intermediate nodes if empty or reset their values if not
+    for (int i = parents.size() - 1; i >= 0; i--) {
+      Entry<T> current = parents.get(i);
+      // dump value on all nodes up, including a root one
+      current.set(null);
+      // remove all parent nodes that do not have children anymore
+      if (i > 0 && parents.get(i - 1).removeChildIfEmpty(current)) {
+        map.remove(path.subpath(0, i), current);
       }
     }
   }
 
-  @SuppressWarnings("NullableProblems")
-  private void removeChild(Entry<T> parent, Path childPath) {
-    map.remove(childPath);
-    Entry<T> child = parent.subLevels.remove(childPath);
-    if (parent.subLevels.size() == 0) {
-      parent.subLevels = null;
+  // Marks the given detached node and all nodes below it as removed, and drops them from the index.
+  private void discard(Entry<T> entry, Path path) {
+    List<Entry<T>> children = entry.markRemoved();
+    map.remove(path, entry);
+    for (Entry<T> child : children) {
+      discard(child, path.resolve(child.name));
     }
+  }
 
-    // remove recursively
-    if (child.subLevels == null) {
-      return;
+  // Marks the given detached node and all nodes below it as removed.
+  private static <T> void markAllRemoved(Entry<T> entry) {
+    for (Entry<T> child : entry.markRemoved()) {
+      markAllRemoved(child);
     }
-
-    child
-        .subLevels
-        .keySet()
-        .stream()
-        // copy collection of keys first to avoid removing from them while iterating
-        .collect(Collectors.toList())
-        .forEach(cp -> removeChild(child, cp));
   }
 
   /** Empties the trie leaving only the root node available. */
   public void removeAll() {
-    synchronized (root) {
-      map.clear();
-      root.subLevels = null;
+    for (Entry<T> child : root.detachAllChildren()) {
+      markAllRemoved(child);
     }
+    // Entries inserted meanwhile may be dropped from the index as well, which is fine as they are
+    // indexed again by the next lookup that misses.
+    map.clear();
+    root.set(null);
   }
 
   /**
@@ -258,27 +528,18 @@ public class FileSystemMap<T> {
    * @return The value associated with the path.
    */
   public T get(Path path) {
-    Entry<T> maybe = map.get(path);
-    // get() and remove() shouldn't overlap, but for performance reason (to hold the root lock for
-    // less time), we opted for allowing overlap provided that *the entry creation is atomic*.
-    // That is, the entry creation is guaranteed to not overlap with anything else, but the entry
-    // filling is not: this is because the caller of the get() will still need to get a value,
-    // even if the entry is removed meanwhile.
-    if (maybe == null) {
-      synchronized (root) {
-        maybe = map.computeIfAbsent(path, this::putEntry);
-      }
+    // get() and remove() shouldn't overlap, but we allow it provided that *the entry creation is
+    // atomic*. That is, the entry creation is guaranteed to leave the trie consistent, but the
+    // entry filling is not: this is because the caller of the get() will still need to get a
+    // value, even if the entry is removed meanwhile.
+    Entry<T> entry = map.get(path);
+    if (entry == null) {
+      entry = putEntry(path);
     }
+    T value = entry.value;
     // Maybe here we receive a request for getting an intermediate node (a folder) whose
     // value was never computed before (or has been removed).
-    if (maybe.value == null) {
-      // It is possible that maybe.load() will call back into other methods on this FileSystemMap.
-      // Those methods might acquire the root lock. If there's any flow that calls maybe.load()
-      // while already holding that lock, there's likely a flow w/ lock inversion.
-      Preconditions.checkState(!Thread.holdsLock(root));
-      maybe.load(loader, path);
-    }
-    return maybe.value;
+    return value != null ? value : entry.load(loader, path);
   }
 
   /**
@@ -299,12 +560,58 @@ public class FileSystemMap<T> {
    */
   public ImmutableMap<Path, T> asMap() {
     ImmutableMap.Builder<Path, T> builder = ImmutableMap.builder();
-    map.forEach(
-        (k, v) -> {
-          if (v.value != null) {
-            builder.put(k, v.value);
-          }
-        });
+    root.collectValues(rootPath, builder);
     return builder.build();
   }
+
+  // Creates the intermediate (and/or the leaf node) if needed, indexes the leaf associated with the
+  // given path and returns it.
+  private Entry<T> putEntry(Path path) {
+    String pathString = path.toString();
+    while (true) {
+      Entry<T> entry = root;
+      int start = 0;
+      while (entry != null && start < pathString.length()) {
+        int hash = 0;
+        int end = start;
+        for (char c;
+            end < pathString.length() && (c = pathString.charAt(end)) != separator;
+            end++) {
+          hash = 31 * hash + c;
+        }
+        if (end > start) {
+          entry = entry.getOrCreateChild(pathString, start, end, hash);
+        }
+        start = end + 1;
+      }
+      if (entry == null) {
+        // A branch was removed while we were walking it, start over.
+        continue;
+      }
+      Entry<T> leaf = entry;
+      Entry<T> indexed =
+          map.compute(
+              path, (key, existing) -> existing == null || existing.removed ? leaf : existing);
+      // A removal may have detached the leaf before it got indexed, in which case the removal may
+      // already have gone through the index, so undo and retry.
+      if (!indexed.removed) {
+        return indexed;
+      }
+      map.remove(path, indexed);
+    }
+  }
+
+  private int segmentEnd(String pathString, int start) {
+    int end = pathString.indexOf(separator, start);
+    return end < 0 ? pathString.length() : end;
+  }
+
+  /** @return the {@link String#hashCode()} of the given segment. */
+  private static int segmentHash(String pathString, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + pathString.charAt(i);
+    }
+    return hash;
+  }
 }
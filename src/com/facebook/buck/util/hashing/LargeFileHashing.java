@@ -0,0 +1,258 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.hashing;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.environment.Platform;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
+import javax.annotation.Nullable;
+
+/**
+ * Hashes file contents through a {@link FileChannel}, optionally mapping large regular files into
+ * memory region by region rather than copying them through heap buffers.
+ *
+ * <p>Mapping is opt-in, as truncating a file while it's mapped may crash the JVM rather than make
+ * it throw. A file which changes while it's mapped is hashed again by reading it, which fails with
+ * an {@link EOFException} if it was truncated.
+ */
+public class LargeFileHashing {
+  private static final Logger LOG = Logger.get(LargeFileHashing.class);
+
+  // Utility class, do not instantiate.
+  private LargeFileHashing() {}
+
+  /** Files smaller than this are cheaper to read than to map. */
+  public static final long MIN_SIZE_TO_MAP = 8L * 1024 * 1024;
+
+  /** Bounds the address space taken by a single mapping. */
+  private static final long MAX_REGION_SIZE = 64L * 1024 * 1024;
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  // A mapped file can't be deleted or replaced on Windows until the mapping is garbage collected.
+  private static final boolean MAP_LARGE_FILES =
+      Platform.detect() != Platform.WINDOWS
+          && Boolean.getBoolean("buck.LargeFileHashing.map_large_files");
+
+  // Mappings are otherwise only released once the buffers are garbage collected, which may be
+  // long after they have been hashed.
+  private static final Optional<Consumer<MappedByteBuffer>> UNMAPPER = findUnmapper();
+
+  /** @return the hash of the contents of the file, same as hashing it as a stream. */
+  public static HashCode hash(Path path, HashFunction hashFunction) throws IOException {
+    return hash(path, hashFunction, MAP_LARGE_FILES);
+  }
+
+  @VisibleForTesting
+  static HashCode hash(Path path, HashFunction hashFunction, boolean mapLargeFiles)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return hashRegion(path, channel, 0, channel.size(), hashFunction, mapLargeFiles);
+    }
+  }
+
+  /**
+   * Hashes the file in chunks of {@code chunkSize} bytes, in parallel on the given pool if any.
+   *
+   * <p>The result is <em>not</em> the hash of the contents. It is the hash of the chunk size
+   * followed by the hashes of every chunk in order, so it only matches other chunked hashes taken
+   * with the same function and chunk size.
+   */
+  public static HashCode hashChunks(
+      Path path, HashFunction hashFunction, long chunkSize, Optional<ForkJoinPool> pool)
+      throws IOException {
+    Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive: %s", chunkSize);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long chunks = (size + chunkSize - 1) / chunkSize;
+      // A parallel stream consumed by a task of a pool runs on that pool rather than on the common
+      // pool, which mustn't be tied up by blocking reads.
+      ForkJoinTask<ImmutableList<HashCode>> task =
+          ForkJoinTask.adapt(
+              () -> {
+                LongStream indices = LongStream.range(0, chunks);
+                return (pool.isPresent() ? indices.parallel() : indices)
+                    .mapToObj(
+                        chunk -> {
+                          long position = chunk * chunkSize;
+                          try {
+                            return hashRegion(
+                                path,
+                                channel,
+                                position,
+                                Math.min(chunkSize, size - position),
+                                hashFunction,
+                                MAP_LARGE_FILES);
+                          } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                          }
+                        })
+                    .collect(ImmutableList.toImmutableList());
+              });
+      ImmutableList<HashCode> chunkHashes;
+      try {
+        chunkHashes = pool.isPresent() ? pool.get().invoke(task) : task.invoke();
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      Hasher hasher = hashFunction.newHasher().putLong(chunkSize);
+      for (HashCode chunkHash : chunkHashes) {
+        hasher.putBytes(chunkHash.asBytes());
+      }
+      return hasher.hash();
+    }
+  }
+
+  private static HashCode hashRegion(
+      Path path,
+      FileChannel channel,
+      long position,
+      long size,
+      HashFunction hashFunction,
+      boolean mapLargeFiles)
+      throws IOException {
+    if (mapLargeFiles && size >= MIN_SIZE_TO_MAP) {
+      BasicFileAttributes before = Files.readAttributes(path, BasicFileAttributes.class);
+      // Only regular files which still hold the whole region are safe to map. Reading a mapping
+      // past the end of the file raises a SIGBUS.
+      if (before.isRegularFile() && position + size <= channel.size()) {
+        Hasher hasher = hashFunction.newHasher();
+        if (hashMappedRegion(channel, position, size, hasher) && isUnchanged(path, before)) {
+          return hasher.hash();
+        }
+        LOG.debug("%s changed while it was mapped, reading it instead.", path);
+      }
+    }
+    Hasher hasher = hashFunction.newHasher();
+    readRegion(channel, position, size, hasher);
+    return hasher.hash();
+  }
+
+  /**
+   * @return whether the whole region was hashed, false if it couldn't be mapped or the file was
+   *     truncated while it was mapped, in which case the hasher holds part of the region.
+   */
+  private static boolean hashMappedRegion(
+      FileChannel channel, long position, long size, Hasher hasher) throws IOException {
+    try {
+      for (long offset = 0; offset < size; offset += MAX_REGION_SIZE) {
+        MappedByteBuffer region =
+            channel.map(
+                MapMode.READ_ONLY, position + offset, Math.min(MAX_REGION_SIZE, size - offset));
+        try {
+          hasher.putBytes(region);
+        } finally {
+          UNMAPPER.ifPresent(unmapper -> unmapper.accept(region));
+        }
+      }
+      return true;
+    } catch (UnsupportedOperationException e) {
+      // The file system doesn't support mapping, e.g. an in-memory one.
+      return false;
+    } catch (InternalError e) {
+      // Where it can, the JVM reports the SIGBUS raised by reading a mapping past the end of a
+      // file which was truncated meanwhile as an InternalError.
+      return false;
+    }
+  }
+
+  private static boolean isUnchanged(Path path, BasicFileAttributes before) throws IOException {
+    BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+    return after.size() == before.size()
+        && after.lastModifiedTime().equals(before.lastModifiedTime());
+  }
+
+  private static void readRegion(FileChannel channel, long position, long size, Hasher hasher)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_BUFFER_SIZE, Math.max(size, 1)));
+    long end = position + size;
+    while (position < end) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), end - position));
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException(
+            String.format("File was truncated while hashing it, at %d of %d bytes", position, end));
+      }
+      buffer.flip();
+      hasher.putBytes(buffer);
+      position += read;
+    }
+  }
+
+  /** @return a way to release mappings right away, if this JVM exposes one. */
+  private static Optional<Consumer<MappedByteBuffer>> findUnmapper() {
+    try {
+      // Java 9 and later.
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      Object unsafe = theUnsafe.get(null);
+      return Optional.of(buffer -> invokeQuietly(invokeCleaner, unsafe, buffer));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Fall through to the Java 8 way.
+    }
+    try {
+      Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+      Method cleanerClean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      return Optional.of(
+          buffer -> {
+            Object bufferCleaner = invokeQuietly(cleaner, buffer);
+            if (bufferCleaner != null) {
+              invokeQuietly(cleanerClean, bufferCleaner);
+            }
+          });
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LOG.debug(e, "Mapped files will be released when garbage collected.");
+      return Optional.empty();
+    }
+  }
+
+  @Nullable
+  private static Object invokeQuietly(Method method, Object target, Object... args) {
+    try {
+      return method.invoke(target, args);
+    } catch (ReflectiveOperationException e) {
+      LOG.debug(e, "Failed to release a mapped file.");
+      return null;
+    }
+  }
+}
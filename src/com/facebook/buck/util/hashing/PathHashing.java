@@ -19,12 +19,18 @@ package com.facebook.buck.util.hashing;
 import com.facebook.buck.io.file.MorePaths;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class PathHashing {
   // Utility class, do not instantiate.
@@ -32,22 +38,83 @@ public class PathHashing {
 
   private static final Path EMPTY_PATH = Paths.get("");
 
+  /** Directories with fewer files than this are always hashed on the calling thread. */
+  private static final int MIN_FILES_TO_PARALLELIZE = 32;
+
   public static ImmutableSet<Path> hashPath(
       Hasher hasher,
       ProjectFileHashLoader fileHashLoader,
       ProjectFilesystem projectFilesystem,
       Path root)
       throws IOException {
+    return hashPath(hasher, fileHashLoader, projectFilesystem, root, Optional.empty());
+  }
+
+  /**
+   * Hashes the paths and contents of all files under {@code root}, loading the hashes of the files
+   * in parallel on the given pool, if any. The result doesn't depend on the pool, since the hashes
+   * are always combined in path order.
+   *
+   * @return the paths of the files, relative to {@code root}.
+   */
+  public static ImmutableSet<Path> hashPath(
+      Hasher hasher,
+      ProjectFileHashLoader fileHashLoader,
+      ProjectFilesystem projectFilesystem,
+      Path root,
+      Optional<ForkJoinPool> pool)
+      throws IOException {
     Preconditions.checkArgument(
         !root.equals(EMPTY_PATH), "Path to hash (%s) must not be empty", root);
+    ImmutableList<Path> files =
+        ImmutableSortedSet.copyOf(projectFilesystem.getFilesUnderPath(root)).asList();
+    ImmutableList<HashCode> hashes =
+        loadHashes(
+            fileHashLoader,
+            files,
+            files.size() < MIN_FILES_TO_PARALLELIZE ? Optional.empty() : pool);
     ImmutableSet.Builder<Path> children = ImmutableSet.builder();
-    for (Path path : ImmutableSortedSet.copyOf(projectFilesystem.getFilesUnderPath(root))) {
+    for (int i = 0; i < files.size(); i++) {
+      Path path = files.get(i);
       StringHashing.hashStringAndLength(hasher, MorePaths.pathWithUnixSeparators(path));
       if (!root.equals(path)) {
         children.add(root.relativize(path));
       }
-      hasher.putBytes(fileHashLoader.get(path).asBytes());
+      hasher.putBytes(hashes.get(i).asBytes());
     }
     return children.build();
   }
+
+  private static ImmutableList<HashCode> loadHashes(
+      ProjectFileHashLoader fileHashLoader, ImmutableList<Path> files, Optional<ForkJoinPool> pool)
+      throws IOException {
+    if (!pool.isPresent()) {
+      ImmutableList.Builder<HashCode> hashes = ImmutableList.builderWithExpectedSize(files.size());
+      for (Path path : files) {
+        hashes.add(fileHashLoader.get(path));
+      }
+      return hashes.build();
+    }
+    // A parallel stream consumed by a task of a pool runs on that pool rather than on the common
+    // pool, which mustn't be tied up by blocking file system calls.
+    ForkJoinTask<ImmutableList<HashCode>> task =
+        ForkJoinTask.adapt(
+            () ->
+                files
+                    .parallelStream()
+                    .map(
+                        path -> {
+                          try {
+                            return fileHashLoader.get(path);
+                          } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                          }
+                        })
+                    .collect(ImmutableList.toImmutableList()));
+    try {
+      return pool.get().invoke(task);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.perf;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.EventKey;
+import com.facebook.buck.util.concurrent.ListeningMultiSemaphore;
+import com.facebook.buck.util.concurrent.ResourceAmountsEstimator;
+import com.facebook.buck.util.perf.ProcessTracker.ExternalProcessesMemoryEvent;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.eventbus.Subscribe;
+
+/**
+ * Feeds the resident memory of the external processes measured by the {@link ProcessTracker} into
+ * the semaphore that admits build work, so that new work is only started when the memory that is
+ * actually in use plus the memory the work is expected to need fits in the budget.
+ *
+ * <p>Each measurement is also reported as a {@link MemoryBudgetEvent}, so that the console can show
+ * how much of the budget is in use.
+ */
+public class MemoryAdmissionController implements AutoCloseable {
+
+  private final BuckEventBus eventBus;
+  private final ListeningMultiSemaphore semaphore;
+  private final long budgetBytes;
+
+  public MemoryAdmissionController(
+      BuckEventBus eventBus, ListeningMultiSemaphore semaphore, long budgetBytes) {
+    this.eventBus = eventBus;
+    this.semaphore = semaphore;
+    this.budgetBytes = budgetBytes;
+    eventBus.register(this);
+  }
+
+  @Subscribe
+  public void externalProcessesMemory(ExternalProcessesMemoryEvent event) {
+    long measuredBytes = event.getMemResidentBytes();
+    semaphore.updateMeasuredMemory(toMemoryAmount(measuredBytes));
+    long reservedBytes =
+        semaphore.getUsedResources().getMemory() * ResourceAmountsEstimator.MEMORY_UNIT_BYTES;
+    eventBus.post(new MemoryBudgetEvent(measuredBytes, reservedBytes, budgetBytes));
+  }
+
+  @VisibleForTesting
+  static int toMemoryAmount(long bytes) {
+    return (int)
+        Math.min(
+            Integer.MAX_VALUE,
+            (bytes + ResourceAmountsEstimator.MEMORY_UNIT_BYTES - 1)
+                / ResourceAmountsEstimator.MEMORY_UNIT_BYTES);
+  }
+
+  @Override
+  public void close() {
+    eventBus.unregister(this);
+    semaphore.updateMeasuredMemory(0);
+  }
+
+  /** Memory measured for the running external processes, compared with the memory budget. */
+  public static class MemoryBudgetEvent extends AbstractBuckEvent {
+    private final long measuredBytes;
+    private final long reservedBytes;
+    private final long budgetBytes;
+
+    public MemoryBudgetEvent(long measuredBytes, long reservedBytes, long budgetBytes) {
+      super(EventKey.unique());
+      this.measuredBytes = measuredBytes;
+      this.reservedBytes = reservedBytes;
+      this.budgetBytes = budgetBytes;
+    }
+
+    /** @return the resident memory of all the running external processes. */
+    public long getMeasuredBytes() {
+      return measuredBytes;
+    }
+
+    /** @return the memory expected to be needed by the work that is currently admitted. */
+    public long getReservedBytes() {
+      return reservedBytes;
+    }
+
+    public long getBudgetBytes() {
+      return budgetBytes;
+    }
+
+    @Override
+    protected String getValueString() {
+      return String.format("%d/%d", measuredBytes, budgetBytes);
+    }
+
+    @Override
+    public String getEventName() {
+      return "MemoryBudgetEvent";
+    }
+  }
+}
@@ -61,6 +61,8 @@ public class ProcessTracker extends AbstractScheduledService implements AutoClos
   private final ProcessRegistry processRegistry;
   private final boolean isDaemon;
   private final boolean deepEnabled;
+  // Whether the memory of external processes is posted for memory aware admission of build work.
+  private final boolean memoryAdmissionEnabled;
 
   private final ProcessRegistry.ProcessRegisterCallback processRegisterCallback =
       this::registerProcess;
@@ -72,14 +74,16 @@ public class ProcessTracker extends AbstractScheduledService implements AutoClos
       BuckEventBus buckEventBus,
       InvocationInfo invocationInfo,
       boolean isDaemon,
-      boolean deepEnabled) {
+      boolean deepEnabled,
+      boolean memoryAdmissionEnabled) {
     this(
         buckEventBus,
         invocationInfo,
         ProcessHelper.getInstance(),
         ProcessRegistry.getInstance(),
         isDaemon,
-        deepEnabled);
+        deepEnabled,
+        memoryAdmissionEnabled);
   }
 
   @VisibleForTesting
@@ -89,7 +93,8 @@ public class ProcessTracker extends AbstractScheduledService implements AutoClos
       ProcessHelper processHelper,
       ProcessRegistry processRegistry,
       boolean isDaemon,
-      boolean deepEnabled) {
+      boolean deepEnabled,
+      boolean memoryAdmissionEnabled) {
     this.eventBus = buckEventBus;
     this.invocationInfo = invocationInfo;
     this.serviceManager = new ServiceManager(ImmutableList.of(this));
@@ -97,6 +102,7 @@ public class ProcessTracker extends AbstractScheduledService implements AutoClos
     this.processRegistry = processRegistry;
     this.isDaemon = isDaemon;
     this.deepEnabled = deepEnabled;
+    this.memoryAdmissionEnabled = memoryAdmissionEnabled;
     serviceManager.startAsync();
     this.processRegistry.subscribe(processRegisterCallback);
   }
@@ -127,6 +133,7 @@ public class ProcessTracker extends AbstractScheduledService implements AutoClos
 
   private void refreshProcessesInfo(boolean isTrackerShuttingDown) {
     LOG.verbose("refreshProcessesInfo: processes before: %d", processesInfo.size());
+    long externalMemResident = 0;
     Iterator<Map.Entry<Long, ProcessInfo>> it;
     for (it = processesInfo.entrySet().iterator(); it.hasNext(); ) {
       ProcessInfo info = it.next().getValue();
@@ -134,9 +141,14 @@ public class ProcessTracker extends AbstractScheduledService implements AutoClos
       if (isTrackerShuttingDown || info.hasProcessFinished()) {
         info.postEvent();
         it.remove();
+      } else if (info instanceof ExternalProcessInfo) {
+        externalMemResident += ((ExternalProcessInfo) info).currentMemResident;
       }
     }
     LOG.verbose("refreshProcessesInfo: processes after: %d", processesInfo.size());
+    if (memoryAdmissionEnabled && !isTrackerShuttingDown) {
+      eventBus.post(new ExternalProcessesMemoryEvent(externalMemResident));
+    }
   }
 
   @Override
@@ -186,6 +198,7 @@ public class ProcessTracker extends AbstractScheduledService implements AutoClos
     final ProcessExecutorParams params;
     final ImmutableMap<String, String> context;
     @Nullable ProcessResourceConsumption resourceConsumption;
+    long currentMemResident;
 
     ExternalProcessInfo(
         long pid,
@@ -214,6 +227,7 @@ public class ProcessTracker extends AbstractScheduledService implements AutoClos
               ? processHelper.getTotalResourceConsumption(pid)
               : processHelper.getProcessResourceConsumption(pid);
       resourceConsumption = ProcessResourceConsumption.getPeak(resourceConsumption, res);
+      currentMemResident = res == null ? 0 : res.getMemResident();
     }
 
     @Override
@@ -308,4 +322,28 @@ public class ProcessTracker extends AbstractScheduledService implements AutoClos
       return "";
     }
   }
+
+  /** Current resident memory of all the live external processes that are being tracked. */
+  public static class ExternalProcessesMemoryEvent extends AbstractBuckEvent {
+    private final long memResidentBytes;
+
+    public ExternalProcessesMemoryEvent(long memResidentBytes) {
+      super(EventKey.unique());
+      this.memResidentBytes = memResidentBytes;
+    }
+
+    public long getMemResidentBytes() {
+      return memResidentBytes;
+    }
+
+    @Override
+    protected String getValueString() {
+      return String.valueOf(memResidentBytes);
+    }
+
+    @Override
+    public String getEventName() {
+      return "ExternalProcessesMemoryEvent";
+    }
+  }
 }
@@ -20,24 +20,38 @@ import com.facebook.buck.io.file.MorePosixFilePermissions;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.util.environment.Platform;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.CompressorException;
@@ -46,6 +60,30 @@ import org.apache.commons.compress.compressors.CompressorStreamFactory;
 /** Utility class to extract a .tar.* file */
 public class Untar extends Unarchiver {
 
+  /**
+   * Files at most this large are read into memory and written out on a separate thread while the
+   * archive stream moves on to the next entry. Larger files are streamed straight to disk.
+   */
+  private static final int MAX_PARALLEL_WRITE_BYTES = 1024 * 1024;
+
+  /** Upper bound on the contents held in memory by files that are waiting to be written. */
+  private static final long MAX_PENDING_WRITE_BYTES = 64 * 1024 * 1024;
+
+  /**
+   * Writes out small files. Decompression is inherently serial, so for archives with many small
+   * files most of the time goes into creating and closing files, which does scale with threads.
+   */
+  private static final Supplier<ListeningExecutorService> WRITE_EXECUTOR =
+      Suppliers.memoize(
+          () ->
+              MoreExecutors.listeningDecorator(
+                  Executors.newFixedThreadPool(
+                      Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors())),
+                      new ThreadFactoryBuilder()
+                          .setNameFormat("untar-writer-%d")
+                          .setDaemon(true)
+                          .build())));
+
   private final Optional<String> compressorType;
 
   private Untar(Optional<String> compressorType) {
@@ -86,7 +124,8 @@ public class Untar extends Unarchiver {
         filesystemRelativePath,
         stripPath,
         existingFileMode,
-        Platform.detect() == Platform.WINDOWS);
+        Platform.detect() == Platform.WINDOWS,
+        WRITE_EXECUTOR.get());
   }
 
   @VisibleForTesting
@@ -98,6 +137,26 @@ public class Untar extends Unarchiver {
       ExistingFileMode existingFileMode,
       boolean writeSymlinksAfterCreatingFiles)
       throws IOException {
+    return extractArchive(
+        archiveFile,
+        filesystem,
+        filesystemRelativePath,
+        stripPath,
+        existingFileMode,
+        writeSymlinksAfterCreatingFiles,
+        WRITE_EXECUTOR.get());
+  }
+
+  @VisibleForTesting
+  ImmutableSet<Path> extractArchive(
+      Path archiveFile,
+      ProjectFilesystem filesystem,
+      Path filesystemRelativePath,
+      Optional<Path> stripPath,
+      ExistingFileMode existingFileMode,
+      boolean writeSymlinksAfterCreatingFiles,
+      ListeningExecutorService writeExecutor)
+      throws IOException {
 
     ImmutableSet.Builder<Path> paths = ImmutableSet.builder();
     HashSet<Path> dirsToTidy = new HashSet<>();
@@ -109,7 +168,11 @@ public class Untar extends Unarchiver {
     // all files are extracted, and /then/ try to do the links
     Map<Path, Path> windowsSymlinkMap = new HashMap<>();
 
-    try (TarArchiveInputStream archiveStream = getArchiveInputStream(archiveFile)) {
+    // Directories and everything that may delete or replace existing files are handled on this
+    // thread, in archive order. Only writing the contents of small files is handed off, and any
+    // entry that touches a path with a write still in flight waits for the outstanding writes.
+    try (PendingWrites pendingWrites = new PendingWrites(writeExecutor);
+        TarArchiveInputStream archiveStream = getArchiveInputStream(archiveFile)) {
       TarArchiveEntry entry;
       while ((entry = archiveStream.getNextTarEntry()) != null) {
         Path destFile = Paths.get(entry.getName());
@@ -124,6 +187,10 @@ public class Untar extends Unarchiver {
           destPath = filesystemRelativePath.resolve(destFile).normalize();
         }
 
+        if (pendingWrites.conflictsWith(destPath, entry)) {
+          pendingWrites.await();
+        }
+
         if (entry.isDirectory()) {
           dirsToTidy.add(destPath);
           mkdirs(creator, destPath);
@@ -137,12 +204,17 @@ public class Untar extends Unarchiver {
           paths.add(destPath);
           setAttributes(filesystem, destPath, entry);
         } else if (entry.isFile()) {
-          writeFile(creator, archiveStream, destPath);
+          if (entry.getSize() <= MAX_PARALLEL_WRITE_BYTES) {
+            writeFileInBackground(creator, archiveStream, destPath, entry, pendingWrites);
+          } else {
+            writeFile(creator, archiveStream, destPath);
+            setAttributes(filesystem, destPath, entry);
+          }
           paths.add(destPath);
-          setAttributes(filesystem, destPath, entry);
         }
       }
 
+      pendingWrites.await();
       writeWindowsSymlinks(creator, windowsSymlinkMap);
     } catch (CompressorException e) {
       throw new IOException(
@@ -217,6 +289,37 @@ public class Untar extends Unarchiver {
     }
   }
 
+  /**
+   * Reads a small regular file from an archive into memory and writes it out, along with its
+   * attributes, on the executor of {@code pendingWrites}
+   */
+  private void writeFileInBackground(
+      DirectoryCreator creator,
+      TarArchiveInputStream inputStream,
+      Path target,
+      TarArchiveEntry entry,
+      PendingWrites pendingWrites)
+      throws IOException {
+    ProjectFilesystem filesystem = creator.getFilesystem();
+    prepareForFile(creator, target);
+
+    byte[] contents = new byte[(int) entry.getSize()];
+    ByteStreams.readFully(inputStream, contents);
+    if (pendingWrites.getBytes() + contents.length > MAX_PENDING_WRITE_BYTES) {
+      pendingWrites.await();
+    }
+    pendingWrites.submit(
+        target,
+        contents.length,
+        () -> {
+          try (OutputStream outputStream = filesystem.newFileOutputStream(target)) {
+            outputStream.write(contents);
+          }
+          setAttributes(filesystem, target, entry);
+          return null;
+        });
+  }
+
   /** Writes out a symlink from an archive */
   private void writeSymbolicLink(DirectoryCreator creator, Path target, TarArchiveEntry entry)
       throws IOException {
@@ -310,4 +413,94 @@ public class Untar extends Unarchiver {
       file.setLastModified(pathAndTime.getValue());
     }
   }
+
+  /**
+   * Tracks files that are being written out on another thread, so that entries touching the same
+   * paths can wait for them, and so that extraction does not finish before they are on disk.
+   */
+  private static class PendingWrites implements AutoCloseable {
+    private final ListeningExecutorService executor;
+    private final List<ListenableFuture<Void>> futures = new ArrayList<>();
+    private final Set<Path> files = new HashSet<>();
+    private final Set<Path> parents = new HashSet<>();
+    private long bytes = 0;
+
+    PendingWrites(ListeningExecutorService executor) {
+      this.executor = executor;
+    }
+
+    long getBytes() {
+      return bytes;
+    }
+
+    void submit(Path target, long size, Callable<Void> write) {
+      futures.add(executor.submit(write));
+      files.add(target);
+      for (Path parent = target.getParent(); parent != null; parent = parent.getParent()) {
+        if (!parents.add(parent)) {
+          break;
+        }
+      }
+      bytes += size;
+    }
+
+    /**
+     * Whether handling {@code entry} at {@code path} could race with a pending write: the path or
+     * one of its parents is being written, or a file or symlink is replacing a directory that
+     * pending writes live under. A symlink also changes the attributes of its target.
+     */
+    boolean conflictsWith(Path path, TarArchiveEntry entry) {
+      if (futures.isEmpty()) {
+        return false;
+      }
+      for (Path current = path; current != null; current = current.getParent()) {
+        if (files.contains(current)) {
+          return true;
+        }
+      }
+      if (entry.isDirectory()) {
+        return false;
+      }
+      if (parents.contains(path)) {
+        return true;
+      }
+      if (entry.isSymbolicLink() && path.getParent() != null) {
+        return files.contains(path.getParent().resolve(entry.getLinkName()).normalize());
+      }
+      return false;
+    }
+
+    /** Waits for all pending writes, and rethrows the first failure among them */
+    void await() throws IOException {
+      if (futures.isEmpty()) {
+        return;
+      }
+      List<ListenableFuture<Void>> toAwait = new ArrayList<>(futures);
+      futures.clear();
+      files.clear();
+      parents.clear();
+      bytes = 0;
+      try {
+        // Let every write finish before surfacing a failure, so that nothing is still writing
+        // into the destination once extraction has returned.
+        Futures.successfulAsList(toAwait).get();
+        for (ListenableFuture<Void> future : toAwait) {
+          future.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while writing out archive contents");
+      } catch (ExecutionException e) {
+        Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+        Throwables.throwIfUnchecked(e.getCause());
+        throw new IOException(e.getCause());
+      }
+    }
+
+    /** Waits for writes left behind when extraction failed part way through */
+    @Override
+    public void close() {
+      Futures.getUnchecked(Futures.successfulAsList(futures));
+    }
+  }
 }
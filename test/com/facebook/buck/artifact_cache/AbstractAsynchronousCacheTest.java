@@ -24,12 +24,14 @@ import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.testutil.MoreAsserts;
 import com.facebook.buck.util.RichStream;
 import com.facebook.buck.util.concurrent.ExplicitRunExecutorService;
+import com.facebook.buck.util.types.Pair;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
@@ -51,7 +53,8 @@ public class AbstractAsynchronousCacheTest {
     List<ImmutableList<RuleKey>> requestedRuleKeys = new ArrayList<>();
 
     try (AbstractAsynchronousCache cache =
-        new RequestedKeyRecordingAsynchronousCache(service, filesystem, requestedRuleKeys, 3, 3)) {
+        new RequestedKeyRecordingAsynchronousCache(
+            service, filesystem, requestedRuleKeys, 3, 3, Optional.empty())) {
 
       List<ListenableFuture<CacheResult>> results = new ArrayList<>();
       List<RuleKey> keys = new ArrayList<>();
@@ -106,7 +109,8 @@ public class AbstractAsynchronousCacheTest {
     List<ImmutableList<RuleKey>> requestedRuleKeys = new ArrayList<>();
 
     try (AbstractAsynchronousCache cache =
-        new RequestedKeyRecordingAsynchronousCache(service, filesystem, requestedRuleKeys, 3, 3)) {
+        new RequestedKeyRecordingAsynchronousCache(
+            service, filesystem, requestedRuleKeys, 3, 3, Optional.empty())) {
 
       // Make an async fetch request and allow it to run on the Executor
       ListenableFuture<CacheResult> fetchRequestOne =
@@ -145,6 +149,152 @@ public class AbstractAsynchronousCacheTest {
     }
   }
 
+  @Test
+  public void testStoresSmallestArtifactsFirst() throws Exception {
+    ExplicitRunExecutorService service = new ExplicitRunExecutorService();
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+
+    List<ImmutableList<RuleKey>> storedRuleKeys = new ArrayList<>();
+
+    try (AbstractAsynchronousCache cache =
+        new RequestedKeyRecordingAsynchronousCache(
+            service, filesystem, storedRuleKeys, 3, 3, Optional.empty())) {
+      List<ListenableFuture<Void>> results = new ArrayList<>();
+      int[] sizes = {100, 10, 50};
+      for (int i = 0; i < sizes.length; i++) {
+        results.add(store(cache, filesystem, i, sizes[i]));
+      }
+      assertEquals(160, cache.getStoreQueueStats().getQueuedBytes());
+
+      service.run();
+
+      for (ListenableFuture<Void> future : results) {
+        assertTrue(future.isDone());
+        future.get();
+      }
+      assertEquals(
+          ImmutableList.of(
+              ImmutableList.of(new RuleKey(HashCode.fromInt(1))),
+              ImmutableList.of(new RuleKey(HashCode.fromInt(2))),
+              ImmutableList.of(new RuleKey(HashCode.fromInt(0)))),
+          storedRuleKeys);
+      assertEquals(0, cache.getStoreQueueStats().getQueuedBytes());
+    }
+  }
+
+  @Test
+  public void testStoreOfInFlightRuleKeysIsCoalesced() throws Exception {
+    ExplicitRunExecutorService service = new ExplicitRunExecutorService();
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+
+    List<ImmutableList<RuleKey>> storedRuleKeys = new ArrayList<>();
+
+    try (AbstractAsynchronousCache cache =
+        new RequestedKeyRecordingAsynchronousCache(
+            service, filesystem, storedRuleKeys, 3, 3, Optional.empty())) {
+      ListenableFuture<Void> first = store(cache, filesystem, 1, 10);
+      ListenableFuture<Void> second = store(cache, filesystem, 1, 10);
+      assertEquals(10, cache.getStoreQueueStats().getQueuedBytes());
+
+      service.run();
+
+      assertTrue(first.isDone());
+      assertTrue(second.isDone());
+      assertEquals(
+          ImmutableList.of(ImmutableList.of(new RuleKey(HashCode.fromInt(1)))), storedRuleKeys);
+
+      // Once the first store is done, storing the same rule keys uploads them again.
+      store(cache, filesystem, 1, 10);
+      service.run();
+      assertEquals(2, storedRuleKeys.size());
+    }
+  }
+
+  @Test
+  public void testBatchWithInFlightArtifactWaitsForIt() throws Exception {
+    ExplicitRunExecutorService service = new ExplicitRunExecutorService();
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+
+    List<ImmutableList<RuleKey>> storedRuleKeys = new ArrayList<>();
+
+    try (AbstractAsynchronousCache cache =
+        new RequestedKeyRecordingAsynchronousCache(
+            service, filesystem, storedRuleKeys, 3, 3, Optional.empty())) {
+      // Another target is already storing the content, and the batch stores the same content
+      // followed by empty metadata, as TwoLevelArtifactCacheDecorator does.
+      ListenableFuture<Void> content = store(cache, filesystem, 1, 100);
+      Path contentPath = filesystem.getPath("content");
+      filesystem.writeBytesToPath(new byte[100], contentPath);
+      Path metadataPath = filesystem.getPath("metadata");
+      filesystem.writeBytesToPath(new byte[0], metadataPath);
+      ListenableFuture<Void> batch =
+          cache.store(
+              ImmutableList.of(
+                  new Pair<>(
+                      ArtifactInfo.builder().addRuleKeys(new RuleKey(HashCode.fromInt(1))).build(),
+                      BorrowablePath.borrowablePath(contentPath)),
+                  new Pair<>(
+                      ArtifactInfo.builder().addRuleKeys(new RuleKey(HashCode.fromInt(2))).build(),
+                      BorrowablePath.borrowablePath(metadataPath))));
+
+      service.run();
+
+      assertTrue(content.isDone());
+      assertTrue(batch.isDone());
+      batch.get();
+      assertEquals(
+          ImmutableList.of(
+              ImmutableList.of(new RuleKey(HashCode.fromInt(1))),
+              ImmutableList.of(new RuleKey(HashCode.fromInt(2)))),
+          storedRuleKeys);
+      assertEquals(0, cache.getStoreQueueStats().getQueuedBytes());
+    }
+  }
+
+  @Test
+  public void testStoreWaitsWhileQueueIsOverBudget() throws Exception {
+    ExplicitRunExecutorService service = new ExplicitRunExecutorService();
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+
+    List<ImmutableList<RuleKey>> storedRuleKeys = new ArrayList<>();
+
+    try (AbstractAsynchronousCache cache =
+        new RequestedKeyRecordingAsynchronousCache(
+            service, filesystem, storedRuleKeys, 3, 3, Optional.of(100L))) {
+      // A single artifact over the budget is still let into an empty queue.
+      ListenableFuture<Void> big = store(cache, filesystem, 1, 150);
+      List<ListenableFuture<Void>> waiting = new ArrayList<>();
+      Thread storer = new Thread(() -> waiting.add(store(cache, filesystem, 2, 10)));
+      storer.start();
+      while (storer.getState() != Thread.State.WAITING) {
+        Thread.sleep(1);
+      }
+      assertEquals(150, cache.getStoreQueueStats().getQueuedBytes());
+
+      service.runOnce();
+      storer.join();
+
+      assertTrue(big.isDone());
+      assertEquals(10, cache.getStoreQueueStats().getQueuedBytes());
+      service.run();
+      assertTrue(waiting.get(0).isDone());
+      assertEquals(2, storedRuleKeys.size());
+    }
+  }
+
+  private static ListenableFuture<Void> store(
+      AbstractAsynchronousCache cache, ProjectFilesystem filesystem, int key, int sizeBytes) {
+    try {
+      Path path = filesystem.getPath("artifact" + key + "_" + sizeBytes);
+      filesystem.writeBytesToPath(new byte[sizeBytes], path);
+      return cache.store(
+          ArtifactInfo.builder().addRuleKeys(new RuleKey(HashCode.fromInt(key))).build(),
+          BorrowablePath.borrowablePath(path));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   private static class NoOpEventListener implements AbstractAsynchronousCache.CacheEventListener {
     @Override
     public AbstractAsynchronousCache.StoreEvents storeScheduled(
@@ -152,10 +302,10 @@ public class AbstractAsynchronousCacheTest {
       return () ->
           new AbstractAsynchronousCache.StoreEvents.StoreRequestEvents() {
             @Override
-            public void finished(StoreResult result) {}
+            public void finished(StoreResult result, StoreQueueStats queueStats) {}
 
             @Override
-            public void failed(IOException e, String errorMessage) {}
+            public void failed(IOException e, String errorMessage, StoreQueueStats queueStats) {}
           };
     }
 
@@ -202,7 +352,8 @@ public class AbstractAsynchronousCacheTest {
         ProjectFilesystem filesystem,
         List<ImmutableList<RuleKey>> requestedRuleKeys,
         int multiFetchLimit,
-        int concurrency) {
+        int concurrency,
+        Optional<Long> maxQueuedStoreBytes) {
       super(
           "fake",
           ArtifactCacheMode.dir,
@@ -211,6 +362,7 @@ public class AbstractAsynchronousCacheTest {
           service,
           new NoOpEventListener(),
           Optional.empty(),
+          maxQueuedStoreBytes,
           filesystem);
       this.requestedRuleKeys = requestedRuleKeys;
       this.multiFetchLimit = multiFetchLimit;
@@ -238,7 +390,10 @@ public class AbstractAsynchronousCacheTest {
 
     @Override
     protected StoreResult storeImpl(ArtifactInfo info, Path file) {
-      return null;
+      synchronized (requestedRuleKeys) {
+        requestedRuleKeys.add(ImmutableList.copyOf(info.getRuleKeys()));
+      }
+      return StoreResult.builder().build();
     }
 
     @Override
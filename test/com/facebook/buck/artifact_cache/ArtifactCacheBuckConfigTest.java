@@ -185,6 +185,19 @@ public class ArtifactCacheBuckConfigTest {
     assertThat(dirCacheConfig.getMaxSizeBytes(), Matchers.equalTo(Optional.of(1022L)));
   }
 
+  @Test
+  public void testDirCacheContentAddressedSetting() throws IOException {
+    ArtifactCacheBuckConfig config = createFromText("[cache]", "dir = cache_dir");
+    assertThat(
+        config.getCacheEntries().getDirCacheEntries().asList().get(0).isContentAddressed(),
+        Matchers.is(false));
+
+    config = createFromText("[cache]", "dir = cache_dir", "dir_content_addressed = true");
+    assertThat(
+        config.getCacheEntries().getDirCacheEntries().asList().get(0).isContentAddressed(),
+        Matchers.is(true));
+  }
+
   @Test
   public void testMultipleDirCacheSettings() throws IOException {
     ArtifactCacheBuckConfig config =
@@ -318,6 +331,19 @@ public class ArtifactCacheBuckConfigTest {
     assertThat(defaultConfig.getScheduleType(), Matchers.equalTo("none"));
   }
 
+  @Test
+  public void testHttpMaxQueuedStoreBytes() throws IOException {
+    ArtifactCacheBuckConfig config =
+        createFromText("[cache]", "http_max_queued_store_bytes = 2GB");
+
+    assertThat(
+        config.getHttpMaxQueuedStoreBytes(),
+        Matchers.equalTo(Optional.of(2L * 1024 * 1024 * 1024)));
+
+    ArtifactCacheBuckConfig defaultConfig = createFromText("[cache]");
+    assertThat(defaultConfig.getHttpMaxQueuedStoreBytes(), Matchers.equalTo(Optional.empty()));
+  }
+
   @Test
   public void errorMessageFormatter() throws IOException {
     String testText = "this is a test";
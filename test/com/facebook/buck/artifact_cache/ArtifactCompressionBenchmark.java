@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.file.MostFiles;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.util.unarchive.ArchiveFormat;
+import com.facebook.buck.util.unarchive.ExistingFileMode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures archiving build outputs the way {@link ArtifactUploader} does on upload, and extracting
+ * them the way cache hits are unpacked, at several compression levels.
+ *
+ * <p>Run from the root of a project that has been built, so that {@code inputDir} holds real
+ * outputs. The compressed size, as a percentage of the input, is reported as the {@code
+ * compressedPercent} secondary result of the {@code compress} benchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class ArtifactCompressionBenchmark {
+
+  @Param({"buck-out/gen"})
+  private String inputDir;
+
+  @Param({"1", "3", "9"})
+  private int compressionLevel;
+
+  private ProjectFilesystem filesystem;
+  private ImmutableList<Path> paths;
+  private long inputBytes;
+  private Path tmp;
+  private Path archive;
+  private ProjectFilesystem extractFilesystem;
+
+  /** Reports how well the input compressed. */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class CompressedSize {
+    public long compressedPercent;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(Paths.get("").toAbsolutePath());
+    Path input = filesystem.resolve(inputDir);
+    if (!Files.isDirectory(input)) {
+      throw new IllegalStateException(
+          String.format("%s is not a directory; build something first or pass -p inputDir", input));
+    }
+    try (Stream<Path> files = Files.walk(input)) {
+      paths =
+          files
+              .filter(Files::isRegularFile)
+              .map(filesystem::relativize)
+              .sorted()
+              .collect(ImmutableList.toImmutableList());
+    }
+    for (Path path : paths) {
+      inputBytes += filesystem.getFileSize(path);
+    }
+
+    tmp = Files.createTempDirectory("artifact_compression_benchmark");
+    archive = tmp.resolve("archive" + ArtifactUploader.ARCHIVE_FORMAT.getExtension());
+    extractFilesystem =
+        TestProjectFilesystems.createProjectFilesystem(
+            Files.createDirectory(tmp.resolve("extracted")));
+    ArtifactUploader.compress(filesystem, paths, archive, compressionLevel);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    MostFiles.deleteRecursivelyIfExists(tmp);
+  }
+
+  @Benchmark
+  public Path compress(CompressedSize size) throws IOException {
+    ArtifactUploader.compress(filesystem, paths, archive, compressionLevel);
+    size.compressedPercent = Files.size(archive) * 100 / inputBytes;
+    return archive;
+  }
+
+  @Benchmark
+  public ImmutableSet<Path> extract() throws IOException {
+    return ArtifactUploader.ARCHIVE_FORMAT
+        .getUnarchiver()
+        .extractArchive(
+            archive, extractFilesystem, ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+  }
+}
@@ -32,6 +32,7 @@ import com.facebook.buck.io.file.MorePosixFilePermissions;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.testutil.integration.TarInspector;
+import com.facebook.buck.util.unarchive.ArchiveFormat;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -131,6 +132,38 @@ public class ArtifactUploaderTest {
     assertTrue(stored.get());
   }
 
+  @Test
+  public void testUploadRecordsArchiveFormat() throws IOException {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path file = Paths.get("file");
+    filesystem.writeContentsToPath("contents", file);
+
+    AtomicBoolean stored = new AtomicBoolean(false);
+    ArtifactCache cache =
+        new NoopArtifactCache() {
+          @Override
+          public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+            stored.set(true);
+            assertEquals(
+                ArchiveFormat.TAR_ZSTD.getShortName(),
+                info.getMetadata().get(ArtifactUploader.ARCHIVE_FORMAT_METADATA_KEY));
+            return Futures.immediateFuture(null);
+          }
+        };
+
+    // A format recorded when the outputs were last fetched is replaced by the one uploaded.
+    ArtifactUploader.performUploadToArtifactCache(
+        ImmutableSet.of(new RuleKey("aa")),
+        cache,
+        BuckEventBusForTests.newInstance(),
+        ImmutableMap.of(ArtifactUploader.ARCHIVE_FORMAT_METADATA_KEY, "tar.gz"),
+        ImmutableSortedSet.of(file),
+        BUILD_TARGET,
+        filesystem);
+
+    assertTrue(stored.get());
+  }
+
   /** compressSavesExecutableBit asserts that compress()-ing an executable file stores the x bit. */
   @Test
   public void compressSavesExecutableBit() throws Exception {
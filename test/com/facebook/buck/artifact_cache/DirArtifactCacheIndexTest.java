@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DirArtifactCacheIndexTest {
+
+  @Rule public TemporaryPaths tmpDir = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Path cacheDir;
+
+  @Before
+  public void setUp() throws InterruptedException {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmpDir.getRoot());
+    cacheDir = Paths.get("cache");
+  }
+
+  private DirArtifactCacheIndex newIndex() {
+    return new DirArtifactCacheIndex(filesystem, cacheDir, cacheDir.resolve("tmp"));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedArtifactsFirst() {
+    DirArtifactCacheIndex index = newIndex();
+    index.recordStore("a", 10, 1000);
+    index.recordStore("b", 10, 1000);
+    index.recordStore("c", 10, 2000);
+    index.recordAccess("a", 3000);
+    assertEquals(30, index.getTotalBytes());
+
+    assertEquals(ImmutableList.of("b", "c"), index.evict(10));
+    assertEquals(10, index.getTotalBytes());
+    assertEquals(ImmutableList.of(), index.evict(10));
+  }
+
+  @Test
+  public void sharedBlobsAreCountedOnceAndReleasedWhenUnreferenced() throws IOException {
+    DirArtifactCacheIndex index = newIndex();
+    index.recordStore("a", 4, "cas/blob", 100, 1000);
+    index.recordStore("b", 4, "cas/blob", 100, 2000);
+    index.recordStore("c", 4, "cas/other", 50, 3000);
+    index.saveIfChanged();
+    assertEquals(162, index.getTotalBytes());
+
+    index = newIndex();
+    assertEquals(162, index.getTotalBytes());
+    assertEquals(ImmutableList.of("a"), index.evict(160));
+    assertEquals(ImmutableList.of(), index.takeUnreferencedBlobs());
+    index.remove("b");
+    assertEquals(54, index.getTotalBytes());
+    assertEquals(ImmutableList.of("cas/blob"), index.takeUnreferencedBlobs());
+    assertEquals(ImmutableList.of(), index.takeUnreferencedBlobs());
+  }
+
+  @Test
+  public void savedIndexIsLoadedByANewIndex() throws IOException {
+    DirArtifactCacheIndex index = newIndex();
+    index.recordStore("a", 10, 2000);
+    index.recordStore("b", 20, 1000);
+    index.saveIfChanged();
+
+    index = newIndex();
+    assertEquals(30, index.getTotalBytes());
+    assertEquals(ImmutableList.of("b"), index.evict(10));
+  }
+
+  @Test
+  public void savingMergesWhatOtherProcessesSaved() throws IOException {
+    DirArtifactCacheIndex first = newIndex();
+    DirArtifactCacheIndex second = newIndex();
+    first.recordStore("a", 10, 1000);
+    first.recordStore("b", 10, 2000);
+    first.saveIfChanged();
+    second.recordStore("c", 10, 3000);
+    second.saveIfChanged();
+
+    // Evicted by the first index, but not yet known to the second one.
+    assertEquals(ImmutableList.of("a"), first.evict(10));
+    first.saveIfChanged();
+
+    DirArtifactCacheIndex index = newIndex();
+    assertEquals(20, index.getTotalBytes());
+    assertEquals(ImmutableList.of("b", "c"), index.evict(0));
+  }
+
+  @Test
+  public void missingIndexIsRebuiltFromTheFilesInTheCache() throws IOException {
+    writeFile(Paths.get("aa/bb/aabbcc"), 10, 2000);
+    writeFile(Paths.get("aa/bb/aabbcc.metadata"), 5, 3000);
+    writeFile(Paths.get("dd/ee/ddeeff"), 10, 1000);
+    writeFile(Paths.get("tmp/artifact.tmp"), 10, 0);
+
+    DirArtifactCacheIndex index = newIndex();
+    assertEquals(25, index.getTotalBytes());
+    assertEquals(
+        ImmutableList.of(Paths.get("dd/ee/ddeeff").toString()), index.evict(15));
+  }
+
+  private void writeFile(Path path, int size, long lastAccessMillis) throws IOException {
+    Path file = tmpDir.getRoot().resolve(cacheDir).resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, new byte[size]);
+    Files.setAttribute(file, "lastAccessTime", FileTime.fromMillis(lastAccessMillis));
+  }
+}
@@ -19,9 +19,7 @@ package com.facebook.buck.artifact_cache;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
-import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.core.model.BuildTargetFactory;
@@ -37,6 +35,7 @@ import com.facebook.buck.core.sourcepath.resolver.SourcePathResolver;
 import com.facebook.buck.core.sourcepath.resolver.impl.DefaultSourcePathResolver;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
 import com.facebook.buck.rules.FakeBuildRule;
 import com.facebook.buck.rules.keys.DefaultRuleKeyFactory;
@@ -45,21 +44,26 @@ import com.facebook.buck.testutil.DummyFileHashCache;
 import com.facebook.buck.testutil.FakeFileHashCache;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.testutil.TemporaryPaths;
-import com.facebook.buck.util.DirectoryCleaner;
 import com.facebook.buck.util.cache.FileHashCache;
 import com.facebook.buck.util.types.Pair;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Rule;
@@ -799,7 +803,9 @@ public class DirArtifactCacheTest {
             TestProjectFilesystems.createProjectFilesystem(cacheDir),
             Paths.get("."),
             CacheReadMode.READWRITE,
-            /* maxCacheSizeBytes */ Optional.of(3L));
+            /* maxCacheSizeBytes */ Optional.of(3L),
+            false,
+            MoreExecutors.newDirectExecutorService());
 
     Files.write(fileW, "w".getBytes(UTF_8));
     Files.write(fileX, "x".getBytes(UTF_8));
@@ -821,31 +827,6 @@ public class DirArtifactCacheTest {
     assertEquals(ImmutableSet.of(fileZ, fileW), ImmutableSet.copyOf(filesInCache));
   }
 
-  private DirectoryCleaner.PathStats fakePathStats(long creationTime, long lastAccessTime) {
-    return new DirectoryCleaner.PathStats(null, 0, creationTime, lastAccessTime);
-  }
-
-  @Test
-  public void testDirectoryCleanerPathSelector() throws IOException {
-    Path cacheDir = tmpDir.newFolder();
-
-    dirArtifactCache =
-        new DirArtifactCache(
-            "dir",
-            TestProjectFilesystems.createProjectFilesystem(cacheDir),
-            Paths.get("."),
-            CacheReadMode.READWRITE,
-            /* maxCacheSizeBytes */ Optional.of(3L));
-
-    DirectoryCleaner.PathSelector pathSelector = dirArtifactCache.getDirectoryCleanerPathSelector();
-
-    assertTrue(pathSelector.comparePaths(fakePathStats(0, 0), fakePathStats(0, 10)) < 0);
-    assertTrue(pathSelector.comparePaths(fakePathStats(0, 10), fakePathStats(10, 10)) < 0);
-    assertSame(pathSelector.comparePaths(fakePathStats(20, 10), fakePathStats(20, 10)), 0);
-    assertTrue(pathSelector.comparePaths(fakePathStats(0, 20), fakePathStats(10, 10)) > 0);
-    assertTrue(pathSelector.comparePaths(fakePathStats(20, 10), fakePathStats(10, 10)) > 0);
-  }
-
   @Test
   public void testDeleteAfterStoreIfFull() throws IOException {
     Path cacheDir = tmpDir.newFolder();
@@ -869,7 +850,9 @@ public class DirArtifactCacheTest {
             TestProjectFilesystems.createProjectFilesystem(cacheDir),
             cacheDir,
             CacheReadMode.READWRITE,
-            /* maxCacheSizeBytes */ Optional.of(9L));
+            /* maxCacheSizeBytes */ Optional.of(9L),
+            false,
+            MoreExecutors.newDirectExecutorService());
 
     Files.write(fileX, "x".getBytes(UTF_8));
     Files.write(fileY, "y".getBytes(UTF_8));
@@ -901,15 +884,6 @@ public class DirArtifactCacheTest {
                 dirArtifactCache.fetchAsync(null, ruleKeyX, LazyPath.ofInstance(fileX)))
             .getType());
 
-    Files.setAttribute(
-        dirArtifactCache.getPathForRuleKey(ruleKeyX, Optional.empty()),
-        "lastAccessTime",
-        FileTime.fromMillis(0));
-    Files.setAttribute(
-        dirArtifactCache.getPathForRuleKey(ruleKeyX, Optional.of(".metadata")),
-        "lastAccessTime",
-        FileTime.fromMillis(0));
-
     dirArtifactCache.store(
         ArtifactInfo.builder().addRuleKeys(ruleKeyY).build(),
         BorrowablePath.notBorrowablePath(fileY));
@@ -924,15 +898,6 @@ public class DirArtifactCacheTest {
                 dirArtifactCache.fetchAsync(null, ruleKeyY, LazyPath.ofInstance(fileY)))
             .getType());
 
-    Files.setAttribute(
-        dirArtifactCache.getPathForRuleKey(ruleKeyY, Optional.empty()),
-        "lastAccessTime",
-        FileTime.fromMillis(1000));
-    Files.setAttribute(
-        dirArtifactCache.getPathForRuleKey(ruleKeyY, Optional.of(".metadata")),
-        "lastAccessTime",
-        FileTime.fromMillis(1000));
-
     dirArtifactCache.store(
         ArtifactInfo.builder().addRuleKeys(ruleKeyZ).build(),
         BorrowablePath.notBorrowablePath(fileZ));
@@ -954,6 +919,163 @@ public class DirArtifactCacheTest {
             .getType());
   }
 
+  @Test
+  public void testFetchedArtifactsAreEvictedLast() throws IOException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmpDir.getRoot());
+    // Each artifact takes 4 bytes: an empty data file and a metadata file without entries.
+    dirArtifactCache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            Paths.get("cache"),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.of(14L),
+            false,
+            MoreExecutors.newDirectExecutorService());
+    Path data = Paths.get("data");
+    filesystem.touch(data);
+    RuleKey ruleKeyW = new RuleKey("aaaa");
+    RuleKey ruleKeyX = new RuleKey("bbbb");
+    RuleKey ruleKeyY = new RuleKey("cccc");
+    RuleKey ruleKeyZ = new RuleKey("dddd");
+
+    for (RuleKey ruleKey : ImmutableList.of(ruleKeyX, ruleKeyY, ruleKeyZ)) {
+      dirArtifactCache.store(
+          ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+          BorrowablePath.notBorrowablePath(data));
+    }
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(
+                dirArtifactCache.fetchAsync(null, ruleKeyX, LazyPath.ofInstance(Paths.get("out"))))
+            .getType());
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyW).build(),
+        BorrowablePath.notBorrowablePath(data));
+
+    assertEquals(
+        ImmutableMap.of(
+            ruleKeyW, CacheResultType.CONTAINS,
+            ruleKeyX, CacheResultType.CONTAINS,
+            ruleKeyY, CacheResultType.MISS,
+            ruleKeyZ, CacheResultType.MISS),
+        Maps.transformValues(
+            Futures.getUnchecked(
+                dirArtifactCache.multiContainsAsync(
+                    ImmutableSet.of(ruleKeyW, ruleKeyX, ruleKeyY, ruleKeyZ))),
+            CacheResult::getType));
+  }
+
+  @Test
+  public void testContentAddressedArtifactsShareTheirContents() throws IOException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmpDir.getRoot());
+    dirArtifactCache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            Paths.get("cache"),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.empty(),
+            /* contentAddressed */ true,
+            MoreExecutors.newDirectExecutorService());
+    Path data = Paths.get("data");
+    filesystem.writeContentsToPath("contents", data);
+    RuleKey ruleKeyX = new RuleKey("aaaa");
+    RuleKey ruleKeyY = new RuleKey("bbbb");
+    RuleKey ruleKeyZ = new RuleKey("cccc");
+
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyX, ruleKeyY).build(),
+        BorrowablePath.notBorrowablePath(data));
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyZ).build(), BorrowablePath.borrowablePath(data));
+
+    List<Path> blobs;
+    try (Stream<Path> files = Files.walk(filesystem.resolve("cache/cas"))) {
+      blobs = files.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    assertEquals(1, blobs.size());
+    Object blobFileKey = Files.readAttributes(blobs.get(0), BasicFileAttributes.class).fileKey();
+    for (RuleKey ruleKey : ImmutableList.of(ruleKeyX, ruleKeyY, ruleKeyZ)) {
+      Path artifact =
+          filesystem.resolve(dirArtifactCache.getPathForRuleKey(ruleKey, Optional.empty()));
+      assertEquals(
+          blobFileKey, Files.readAttributes(artifact, BasicFileAttributes.class).fileKey());
+
+      Path out = Paths.get("out");
+      assertEquals(
+          CacheResultType.HIT,
+          Futures.getUnchecked(dirArtifactCache.fetchAsync(null, ruleKey, LazyPath.ofInstance(out)))
+              .getType());
+      assertEquals(Optional.of("contents"), filesystem.readFileIfItExists(out));
+    }
+  }
+
+  @Test
+  public void testContentAddressedCacheCountsSharedContentsOnce() throws IOException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmpDir.getRoot());
+    // Each artifact takes 4 bytes for its metadata file, and its 100 bytes of contents are shared.
+    dirArtifactCache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            Paths.get("cache"),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.of(250L),
+            /* contentAddressed */ true,
+            MoreExecutors.newDirectExecutorService());
+    Path shared = Paths.get("shared");
+    filesystem.writeContentsToPath(Strings.repeat("s", 100), shared);
+    Path other = Paths.get("other");
+    filesystem.writeContentsToPath(Strings.repeat("o", 100), other);
+    RuleKey ruleKeyW = new RuleKey("aaaa");
+    RuleKey ruleKeyX = new RuleKey("bbbb");
+    RuleKey ruleKeyY = new RuleKey("cccc");
+    RuleKey ruleKeyZ = new RuleKey("dddd");
+
+    for (RuleKey ruleKey : ImmutableList.of(ruleKeyX, ruleKeyY, ruleKeyZ)) {
+      dirArtifactCache.store(
+          ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+          BorrowablePath.notBorrowablePath(shared));
+    }
+    // Three artifacts with their metadata, and the blob they link to.
+    assertEquals(7, getFilesInCache(filesystem).size());
+
+    // Exceeds the max size, and evicts the artifacts sharing the least recently used contents.
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyW).build(),
+        BorrowablePath.notBorrowablePath(other));
+
+    assertEquals(
+        ImmutableMap.of(
+            ruleKeyW, CacheResultType.CONTAINS,
+            ruleKeyX, CacheResultType.MISS,
+            ruleKeyY, CacheResultType.MISS,
+            ruleKeyZ, CacheResultType.MISS),
+        Maps.transformValues(
+            Futures.getUnchecked(
+                dirArtifactCache.multiContainsAsync(
+                    ImmutableSet.of(ruleKeyW, ruleKeyX, ruleKeyY, ruleKeyZ))),
+            CacheResult::getType));
+    String hash = filesystem.computeSha1(other).getHash();
+    assertEquals(
+        ImmutableSet.of(
+            dirArtifactCache.getPathForRuleKey(ruleKeyW, Optional.empty()),
+            dirArtifactCache.getPathForRuleKey(ruleKeyW, Optional.of(".metadata")),
+            Paths.get("cache", "cas", hash.substring(0, 2), hash.substring(2, 4), hash)),
+        getFilesInCache(filesystem));
+  }
+
+  private ImmutableSet<Path> getFilesInCache(ProjectFilesystem filesystem) {
+    Path tmp = Paths.get("cache", "tmp");
+    return dirArtifactCache
+        .getAllFilesInCache()
+        .stream()
+        .map(filesystem::relativize)
+        .filter(path -> !path.startsWith(tmp))
+        .collect(ImmutableSet.toImmutableSet());
+  }
+
   @Test
   public void testCacheStoreMultipleKeys() throws IOException {
     Path cacheDir = tmpDir.newFolder();
@@ -45,6 +45,7 @@ import com.google.common.io.ByteSource;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -518,12 +519,14 @@ public class HttpArtifactCacheTest {
                       .build();
               return new OkHttpResponseWrapper(response);
             })));
+    argsBuilder.setProjectFilesystem(filesystem);
     HttpArtifactCache cache = new HttpArtifactCache(argsBuilder.build());
     Path output = Paths.get("output/file");
     CacheResult result =
         Futures.getUnchecked(cache.fetchAsync(null, ruleKey, LazyPath.ofInstance(output)));
     assertEquals(CacheResultType.ERROR, result.getType());
     assertEquals(Optional.empty(), filesystem.readFileIfItExists(output));
+    assertEquals(ImmutableList.of(), filesystem.getDirectoryContents(output.getParent()));
     cache.close();
   }
 
@@ -617,6 +620,142 @@ public class HttpArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testMultiFetch() throws Exception {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    RuleKey hitKey = new RuleKey("00000000000000000000000000000000");
+    RuleKey missKey = new RuleKey("11111111111111111111111111111111");
+    RuleKey otherHitKey = new RuleKey("22222222222222222222222222222222");
+    ImmutableList<RuleKey> keys = ImmutableList.of(hitKey, missKey, otherHitKey);
+    List<Response> responseList = new ArrayList<>();
+    argsBuilder.setProjectFilesystem(filesystem);
+    argsBuilder.setFetchClient(
+        withMakeRequest(
+            (path, requestBuilder) -> {
+              Request request = requestBuilder.url(SERVER + path).build();
+              assertEquals(HttpArtifactCacheBinaryProtocol.MULTI_FETCH_PATH, path);
+              Buffer requestBody = new Buffer();
+              request.body().writeTo(requestBody);
+              assertEquals(
+                  keys,
+                  HttpArtifactCacheBinaryProtocol.readMultiFetchRequest(
+                      new DataInputStream(requestBody.inputStream())));
+
+              ByteArrayOutputStream out = new ByteArrayOutputStream();
+              try (DataOutputStream dataOut = new DataOutputStream(out)) {
+                new HttpArtifactCacheBinaryProtocol.FetchResponse(
+                        ImmutableSet.of(hitKey),
+                        ImmutableMap.of("key", "value"),
+                        ByteSource.wrap("hit".getBytes(Charsets.UTF_8)))
+                    .writeMultiFetchFrame(dataOut);
+                HttpArtifactCacheBinaryProtocol.writeMultiFetchMiss(dataOut);
+                new HttpArtifactCacheBinaryProtocol.FetchResponse(
+                        ImmutableSet.of(otherHitKey),
+                        ImmutableMap.of(),
+                        ByteSource.wrap("other hit".getBytes(Charsets.UTF_8)))
+                    .writeMultiFetchFrame(dataOut);
+              }
+              Response response =
+                  new Response.Builder()
+                      .request(request)
+                      .protocol(Protocol.HTTP_2)
+                      .code(HttpURLConnection.HTTP_OK)
+                      .body(ResponseBody.create(OCTET_STREAM, out.toByteArray()))
+                      .message("")
+                      .build();
+              responseList.add(response);
+              return new OkHttpResponseWrapper(response);
+            }));
+
+    HttpArtifactCache cache = new HttpArtifactCache(argsBuilder.build(), 10, 1);
+    assertEquals(3, cache.getMultiFetchBatchSize(2));
+    ImmutableList.Builder<AbstractAsynchronousCache.FetchRequest> requests =
+        ImmutableList.builder();
+    for (RuleKey key : keys) {
+      requests.add(
+          new AbstractAsynchronousCache.FetchRequest(
+              null,
+              key,
+              LazyPath.ofInstance(Paths.get("output", key.toString())),
+              SettableFuture.create()));
+    }
+    List<FetchResult> results =
+        cache.multiFetchImpl(requests.build()).getResults();
+
+    assertEquals(CacheResultType.HIT, results.get(0).getCacheResult().getType());
+    assertEquals(ImmutableMap.of("key", "value"), results.get(0).getCacheResult().getMetadata());
+    assertEquals(
+        Optional.of("hit"),
+        filesystem.readFileIfItExists(Paths.get("output", hitKey.toString())));
+    assertEquals(CacheResultType.MISS, results.get(1).getCacheResult().getType());
+    assertEquals(
+        Optional.empty(), filesystem.readFileIfItExists(Paths.get("output", missKey.toString())));
+    assertEquals(CacheResultType.HIT, results.get(2).getCacheResult().getType());
+    assertEquals(
+        Optional.of("other hit"),
+        filesystem.readFileIfItExists(Paths.get("output", otherHitKey.toString())));
+    assertEquals(1, responseList.size());
+    assertTrue("response wasn't fully read!", responseList.get(0).body().source().exhausted());
+    cache.close();
+  }
+
+  @Test
+  public void testMultiFetchFallsBackToFetchWhenUnsupported() throws Exception {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    RuleKey hitKey = new RuleKey("00000000000000000000000000000000");
+    RuleKey missKey = new RuleKey("11111111111111111111111111111111");
+    List<String> paths = new ArrayList<>();
+    argsBuilder.setProjectFilesystem(filesystem);
+    argsBuilder.setFetchClient(
+        withMakeRequest(
+            (path, requestBuilder) -> {
+              paths.add(path);
+              Request request = requestBuilder.url(SERVER + path).build();
+              Response.Builder response =
+                  new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).message("");
+              if (path.equals("/artifacts/key/" + hitKey)) {
+                response
+                    .code(HttpURLConnection.HTTP_OK)
+                    .body(
+                        createResponseBody(
+                            ImmutableSet.of(hitKey),
+                            ImmutableMap.of(),
+                            ByteSource.wrap("hit".getBytes(Charsets.UTF_8)),
+                            "hit"));
+              } else {
+                response.code(HttpURLConnection.HTTP_NOT_FOUND).body(createDummyBody());
+              }
+              return new OkHttpResponseWrapper(response.build());
+            }));
+
+    HttpArtifactCache cache = new HttpArtifactCache(argsBuilder.build(), 10, 1);
+    ImmutableList.Builder<AbstractAsynchronousCache.FetchRequest> requests =
+        ImmutableList.builder();
+    for (RuleKey key : ImmutableList.of(hitKey, missKey)) {
+      requests.add(
+          new AbstractAsynchronousCache.FetchRequest(
+              null,
+              key,
+              LazyPath.ofInstance(Paths.get("output", key.toString())),
+              SettableFuture.create()));
+    }
+    List<FetchResult> results = cache.multiFetchImpl(requests.build()).getResults();
+
+    assertEquals(CacheResultType.HIT, results.get(0).getCacheResult().getType());
+    assertEquals(
+        Optional.of("hit"),
+        filesystem.readFileIfItExists(Paths.get("output", hitKey.toString())));
+    assertEquals(CacheResultType.MISS, results.get(1).getCacheResult().getType());
+    assertEquals(
+        ImmutableList.of(
+            HttpArtifactCacheBinaryProtocol.MULTI_FETCH_PATH,
+            "/artifacts/key/" + hitKey,
+            "/artifacts/key/" + missKey),
+        paths);
+    assertEquals(0, cache.getMultiFetchBatchSize(2));
+    cache.close();
+  }
+
   private static ResponseBody createDummyBody() {
     return ResponseBody.create(MediaType.parse("text/plain"), "SUCCESS");
   }
@@ -31,6 +31,7 @@ import com.google.caliper.Benchmark;
 import com.google.caliper.Param;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
@@ -95,6 +96,7 @@ public class SQLiteArtifactCacheBenchmark {
   @BeforeExperiment
   private void setUpBenchmark() throws IOException, SQLException {
     artifactCache = cache(Optional.of(1024 * 1024 * 1024L));
+    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
     byte[] randomRuleKey = new byte[16];
 
     ruleKeys = new ArrayList<>(opCount);
@@ -143,6 +145,7 @@ public class SQLiteArtifactCacheBenchmark {
   @Ignore
   @Test
   public void testSingleThreaded() {
+    executor.shutdown();
     executor = MoreExecutors.newDirectExecutorService();
     runAllBenchmarks();
   }
@@ -150,7 +153,6 @@ public class SQLiteArtifactCacheBenchmark {
   @Ignore
   @Test
   public void testMultiThreaded() {
-    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
     runAllBenchmarks();
   }
 
@@ -159,6 +161,7 @@ public class SQLiteArtifactCacheBenchmark {
     benchMetadataFetch();
     benchArtifactStore();
     benchArtifactFetch();
+    benchConcurrentFetchAndStore();
   }
 
   @Benchmark
@@ -192,4 +195,29 @@ public class SQLiteArtifactCacheBenchmark {
       Futures.getUnchecked(artifactCache.fetchAsync(null, key, output));
     }
   }
+
+  /**
+   * Interleaves fetches of the stored content with stores of new content across {@code
+   * threadCount} threads, the way a build with a warm cache both reads from and writes to it.
+   */
+  @Benchmark
+  private void benchConcurrentFetchAndStore() {
+    benchArtifactStore();
+
+    List<ListenableFuture<?>> operations = new ArrayList<>(2 * opCount);
+    for (int i = 0; i < opCount; i++) {
+      RuleKey fetchKey = contentHashes.get(i);
+      LazyPath fetchOutput = LazyPath.ofInstance(cacheDir.resolve(".output" + i));
+      operations.add(
+          executor.submit(
+              () -> Futures.getUnchecked(artifactCache.fetchAsync(null, fetchKey, fetchOutput))));
+
+      ArtifactInfo storeInfo = ArtifactInfo.builder().addRuleKeys(ruleKeys.get(i)).build();
+      Path storeFile = i % 2 == 0 ? inlinedFile : largeFile;
+      operations.add(
+          executor.submit(
+              () -> artifactCache.store(storeInfo, BorrowablePath.notBorrowablePath(storeFile))));
+    }
+    Futures.getUnchecked(Futures.allAsList(operations));
+  }
 }
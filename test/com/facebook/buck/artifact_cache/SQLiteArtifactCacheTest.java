@@ -35,6 +35,7 @@ import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
 import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.concurrent.ExplicitRunExecutorService;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.Futures;
@@ -68,6 +69,7 @@ public class SQLiteArtifactCacheTest {
   private Path cacheDir;
   private LazyPath output;
   private SQLiteArtifactCache artifactCache;
+  private ExplicitRunExecutorService evictionExecutor;
 
   @Before
   public void setUp() throws InterruptedException, IOException, SQLException {
@@ -91,6 +93,7 @@ public class SQLiteArtifactCacheTest {
 
     cacheDir = tmpDir.newFolder();
     output = LazyPath.ofInstance(cacheDir.resolve(".output"));
+    evictionExecutor = new ExplicitRunExecutorService();
   }
 
   @After
@@ -109,7 +112,8 @@ public class SQLiteArtifactCacheTest {
         BuckEventBusForTests.newInstance(),
         maxCacheSizeBytes,
         Optional.of(MAX_INLINED_BYTES),
-        CacheReadMode.READWRITE);
+        CacheReadMode.READWRITE,
+        evictionExecutor);
   }
 
   /**
@@ -388,6 +392,83 @@ public class SQLiteArtifactCacheTest {
     assertThat(filesNotDeleted, Matchers.hasItem(contentHashC));
   }
 
+  @Test
+  public void testStoreOverLimitEvictsInBackground() throws Exception {
+    artifactCache = cache(Optional.of(2 * MAX_INLINED_BYTES));
+
+    writeFileArtifact(fileA);
+    writeFileArtifact(fileB);
+    writeFileArtifact(fileC);
+
+    artifactCache.insertContent(
+        contentHashA,
+        BorrowablePath.borrowablePath(fileA),
+        Timestamp.from(Instant.now().minus(Duration.ofDays(3))));
+    artifactCache.insertContent(
+        contentHashB,
+        BorrowablePath.borrowablePath(fileB),
+        Timestamp.from(Instant.now().minus(Duration.ofDays(2))));
+    artifactCache.store(artifactInfoC, BorrowablePath.borrowablePath(fileC));
+
+    // the store only schedules the eviction
+    assertThat(artifactCache.directoryFileContentHashes(), Matchers.hasSize(3));
+
+    evictionExecutor.run();
+    assertThat(artifactCache.directoryFileContentHashes(), Matchers.contains(contentHashC));
+  }
+
+  @Test
+  public void testFetchedContentSurvivesEviction() throws Exception {
+    writeFileArtifact(fileA);
+    writeFileArtifact(fileB);
+    writeFileArtifact(fileC);
+    long artifactSize = filesystem.getFileSize(fileA);
+    artifactCache = cache(Optional.of(3 * artifactSize - 1));
+
+    artifactCache.insertContent(
+        contentHashA,
+        BorrowablePath.borrowablePath(fileA),
+        Timestamp.from(Instant.now().minus(Duration.ofDays(4))));
+    artifactCache.insertContent(
+        contentHashB,
+        BorrowablePath.borrowablePath(fileB),
+        Timestamp.from(Instant.now().minus(Duration.ofDays(3))));
+    artifactCache.insertContent(
+        contentHashC,
+        BorrowablePath.borrowablePath(fileC),
+        Timestamp.from(Instant.now().minus(Duration.ofDays(2))));
+
+    // the access time of the fetch is only written when the cache is trimmed
+    CacheResult result = Futures.getUnchecked(artifactCache.fetchAsync(null, contentHashA, output));
+    assertEquals(CacheResultType.HIT, result.getType());
+
+    artifactCache.removeOldContent().get();
+    assertThat(artifactCache.directoryFileContentHashes(), Matchers.contains(contentHashA));
+  }
+
+  @Test
+  public void testContentSizeIsTracked() throws Exception {
+    artifactCache = cache(Optional.empty());
+    assertEquals(0, artifactCache.contentSize());
+
+    writeInlinedArtifact(fileA);
+    writeFileArtifact(fileB);
+    long expectedSize = filesystem.getFileSize(fileA) + filesystem.getFileSize(fileB);
+    artifactCache.store(artifactInfoA, BorrowablePath.notBorrowablePath(fileA));
+    artifactCache.store(artifactInfoB, BorrowablePath.notBorrowablePath(fileB));
+    assertEquals(expectedSize, artifactCache.contentSize());
+
+    // deleting content that went missing on disk takes it out of the total
+    Files.delete(artifactCache.getArtifactPath(contentHashB));
+    CacheResult result = Futures.getUnchecked(artifactCache.fetchAsync(null, contentHashB, output));
+    assertEquals(CacheResultType.MISS, result.getType());
+    assertEquals(filesystem.getFileSize(fileA), artifactCache.contentSize());
+
+    artifactCache.close();
+    artifactCache = cache(Optional.empty());
+    assertEquals(filesystem.getFileSize(fileA), artifactCache.contentSize());
+  }
+
   @Test
   public void testCacheStoreMultipleKeys() throws IOException, SQLException {
     artifactCache = cache(Optional.empty());
@@ -334,6 +334,9 @@ public class CleanCommandTest {
         executableFinder,
         pluginManager,
         TestBuckModuleManagerFactory.create(pluginManager),
-        Main.getForkJoinPoolSupplier(buckConfig));
+        Main.getForkJoinPoolSupplier(buckConfig),
+        Optional.empty(),
+        Optional.empty(),
+        Optional.empty());
   }
 }
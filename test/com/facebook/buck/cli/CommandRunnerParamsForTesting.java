@@ -148,7 +148,10 @@ public class CommandRunnerParamsForTesting {
         new ExecutableFinder(),
         pluginManager,
         TestBuckModuleManagerFactory.create(pluginManager),
-        Main.getForkJoinPoolSupplier(config));
+        Main.getForkJoinPoolSupplier(config),
+        Optional.empty(),
+        Optional.empty(),
+        Optional.empty());
   }
 
   public static Builder builder() {
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.buildinfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class SQLiteBuildInfoStoreTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final BuildTarget TARGET = BuildTargetFactory.newInstance("//foo/bar:baz");
+  private static final BuildTarget OTHER_TARGET = BuildTargetFactory.newInstance("//foo/bar:qux");
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+  }
+
+  @Test
+  public void writeBehindReadsItsOwnWrites() throws IOException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem, true)) {
+      store.updateMetadata(TARGET, ImmutableMap.of("a", "1", "b", "2"));
+      store.updateMetadata(TARGET, ImmutableMap.of("b", "3"));
+      assertEquals(Optional.of("1"), store.readMetadata(TARGET, "a"));
+      assertEquals(Optional.of("3"), store.readMetadata(TARGET, "b"));
+      assertEquals(Optional.empty(), store.readMetadata(TARGET, "c"));
+      assertEquals(ImmutableMap.of("a", "1", "b", "3"), store.getAllMetadata(TARGET));
+
+      store.flush();
+      store.deleteMetadata(TARGET);
+      store.updateMetadata(TARGET, ImmutableMap.of("c", "4"));
+      assertEquals(Optional.empty(), store.readMetadata(TARGET, "a"));
+      assertEquals(ImmutableMap.of("c", "4"), store.getAllMetadata(TARGET));
+    }
+  }
+
+  @Test
+  public void writeBehindPersistsUpdatesOnFlush() throws IOException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem, true);
+        SQLiteBuildInfoStore reader = new SQLiteBuildInfoStore(filesystem)) {
+      store.updateMetadata(TARGET, ImmutableMap.of("a", "1"));
+      store.updateMetadata(OTHER_TARGET, ImmutableMap.of("a", "2"));
+      store.deleteMetadata(OTHER_TARGET);
+      store.flush();
+      assertEquals(ImmutableMap.of("a", "1"), reader.getAllMetadata(TARGET));
+      assertEquals(ImmutableMap.of(), reader.getAllMetadata(OTHER_TARGET));
+    }
+  }
+
+  @Test
+  public void writeBehindCommitsDeletionsRightAway() throws IOException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem, true);
+        SQLiteBuildInfoStore reader = new SQLiteBuildInfoStore(filesystem)) {
+      store.updateMetadata(TARGET, ImmutableMap.of("a", "1"));
+      store.flush();
+      store.updateMetadata(OTHER_TARGET, ImmutableMap.of("a", "2"));
+      store.deleteMetadata(TARGET);
+      assertEquals(ImmutableMap.of(), reader.getAllMetadata(TARGET));
+      // Updates queued before the deletion are committed along with it.
+      assertEquals(ImmutableMap.of("a", "2"), reader.getAllMetadata(OTHER_TARGET));
+    }
+  }
+
+  @Test
+  public void writeBehindPersistsUpdatesOnClose() throws IOException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem, true)) {
+      for (int i = 0; i < 100; i++) {
+        store.updateMetadata(TARGET, ImmutableMap.of("key" + i, "value" + i));
+      }
+    }
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem)) {
+      assertEquals(100, store.getAllMetadata(TARGET).size());
+      assertEquals(Optional.of("value99"), store.readMetadata(TARGET, "key99"));
+    }
+  }
+
+  @Test
+  public void writeBehindRetriesUpdatesWhoseCommitFailed() throws IOException, SQLException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem, true)) {
+      String dbPath =
+          filesystem
+              .getRootPath()
+              .resolve(filesystem.getBuckPaths().getScratchDir().resolve("metadata.db"))
+              .toString();
+      try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath)) {
+        connection.createStatement().executeUpdate("DROP TABLE metadata");
+      }
+
+      store.updateMetadata(TARGET, ImmutableMap.of("a", "1"));
+      try {
+        store.flush();
+        fail("The commit should have failed.");
+      } catch (IOException e) {
+        // Expected, there is no table to commit to.
+      }
+      assertEquals(Optional.of("1"), store.readMetadata(TARGET, "a"));
+
+      // Opening another store creates the table again.
+      try (SQLiteBuildInfoStore reader = new SQLiteBuildInfoStore(filesystem)) {
+        store.flush();
+        assertEquals(ImmutableMap.of("a", "1"), reader.getAllMetadata(TARGET));
+      }
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.cache.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.testutil.TemporaryPaths;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CacheMissPredictorTest {
+
+  private static final CacheResult LOCAL_HIT = CacheResult.hit("dir", ArtifactCacheMode.dir);
+  private static final CacheResult REMOTE_HIT = CacheResult.hit("http", ArtifactCacheMode.http);
+  private static final CacheResult MISS = CacheResult.miss();
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void lookupsAreMadeUntilEnoughMissesAreSeen() {
+    CacheMissPredictor predictor = new CacheMissPredictor();
+    for (int i = 0; i < CacheMissPredictor.MIN_LOOKUPS - 1; i++) {
+      assertFalse(predictor.shouldSkipRemoteLookup("genrule"));
+      predictor.record("genrule", MISS, true);
+    }
+    assertFalse(predictor.shouldSkipRemoteLookup("genrule"));
+    predictor.record("genrule", MISS, true);
+
+    assertTrue(predictor.shouldSkipRemoteLookup("genrule"));
+    assertFalse(predictor.shouldSkipRemoteLookup("java_library"));
+  }
+
+  @Test
+  public void onlyHitsAndMissesAreCounted() {
+    CacheMissPredictor predictor = new CacheMissPredictor();
+    for (int i = 0; i < CacheMissPredictor.MIN_LOOKUPS; i++) {
+      predictor.record("genrule", CacheResult.error("http", ArtifactCacheMode.http, "error"), true);
+      predictor.record("genrule", CacheResult.skipped(), true);
+    }
+    assertFalse(predictor.shouldSkipRemoteLookup("genrule"));
+  }
+
+  @Test
+  public void rareHitsKeepLookupsGoing() {
+    CacheMissPredictor predictor = new CacheMissPredictor();
+    for (int i = 0; i < CacheMissPredictor.MIN_LOOKUPS * 2; i++) {
+      predictor.record("genrule", i % 10 == 0 ? REMOTE_HIT : MISS, true);
+    }
+    assertFalse(predictor.shouldSkipRemoteLookup("genrule"));
+  }
+
+  @Test
+  public void hitRatesAreTrackedPerTier() {
+    CacheMissPredictor predictor = new CacheMissPredictor();
+    for (int i = 0; i < CacheMissPredictor.MIN_LOOKUPS * 10; i++) {
+      // Local hits never reach the remote tiers, so they don't make remote lookups worthwhile.
+      predictor.record("genrule", LOCAL_HIT, true);
+      predictor.record("java_library", LOCAL_HIT, true);
+    }
+    for (int i = 0; i < CacheMissPredictor.MIN_LOOKUPS; i++) {
+      predictor.record("genrule", MISS, true);
+      // Misses of lookups which skipped the remote tiers say nothing about them.
+      predictor.record("java_library", MISS, false);
+    }
+
+    assertTrue(predictor.shouldSkipRemoteLookup("genrule"));
+    assertFalse(predictor.shouldSkipRemoteLookup("java_library"));
+  }
+
+  @Test
+  public void somePredictedMissesAreStillLookedUp() {
+    CacheMissPredictor predictor = new CacheMissPredictor();
+    for (int i = 0; i < CacheMissPredictor.MIN_LOOKUPS; i++) {
+      predictor.record("genrule", MISS, true);
+    }
+    int lookups = 0;
+    for (int i = 0; i < CacheMissPredictor.SAMPLING_INTERVAL * 3; i++) {
+      if (!predictor.shouldSkipRemoteLookup("genrule")) {
+        lookups++;
+      }
+    }
+    assertEquals(3, lookups);
+  }
+
+  @Test
+  public void historyIsRestoredAndOutweighedByNewHits() throws IOException {
+    Path path = tmp.getRoot().resolve("buck-out").resolve(CacheMissPredictor.HISTORY_FILE_NAME);
+    CacheMissPredictor predictor = new CacheMissPredictor();
+    for (int i = 0; i < CacheMissPredictor.MIN_LOOKUPS * 2; i++) {
+      predictor.record("genrule", MISS, true);
+    }
+    predictor.saveIfChanged(path);
+
+    CacheMissPredictor reloaded = CacheMissPredictor.load(path);
+    assertTrue(reloaded.shouldSkipRemoteLookup("genrule"));
+
+    // The cache started having the artifacts: the sampled lookups bring lookups back.
+    reloaded.record("genrule", REMOTE_HIT, true);
+    reloaded.record("genrule", REMOTE_HIT, true);
+    assertFalse(reloaded.shouldSkipRemoteLookup("genrule"));
+  }
+
+  @Test
+  public void learnedLookupsDecay() throws IOException {
+    Path path = tmp.getRoot().resolve(CacheMissPredictor.HISTORY_FILE_NAME);
+    CacheMissPredictor predictor = new CacheMissPredictor();
+    for (int i = 0; i < CacheMissPredictor.MIN_LOOKUPS; i++) {
+      predictor.record("genrule", MISS, true);
+    }
+    predictor.saveIfChanged(path);
+
+    // Another command saves lookups of an unrelated rule type, which decays the genrule misses
+    // below the number needed for a prediction.
+    CacheMissPredictor reloaded = CacheMissPredictor.load(path);
+    reloaded.record("java_library", REMOTE_HIT, true);
+    reloaded.saveIfChanged(path);
+
+    assertFalse(CacheMissPredictor.load(path).shouldSkipRemoteLookup("genrule"));
+  }
+
+  @Test
+  public void unreadableHistoryIsDiscarded() throws IOException {
+    Path path = tmp.getRoot().resolve(CacheMissPredictor.HISTORY_FILE_NAME);
+    Files.write(path, "garbage".getBytes(StandardCharsets.UTF_8));
+    assertFalse(CacheMissPredictor.load(path).shouldSkipRemoteLookup("genrule"));
+    assertFalse(
+        CacheMissPredictor.load(tmp.getRoot().resolve("missing")).shouldSkipRemoteLookup("genrule"));
+  }
+}
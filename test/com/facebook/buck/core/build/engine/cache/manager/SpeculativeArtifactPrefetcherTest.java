@@ -0,0 +1,215 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.cache.manager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.CacheDeleteResult;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpeculativeArtifactPrefetcherTest {
+
+  private static final BuildTarget TARGET = BuildTargetFactory.newInstance("//foo:bar");
+  private static final RuleKey KEY_A = new RuleKey("aaaa");
+  private static final RuleKey KEY_B = new RuleKey("bbbb");
+  private static final RuleKey KEY_C = new RuleKey("cccc");
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot().toPath());
+  }
+
+  @Test
+  public void prefetchedHitIsServedWithoutFetchingAgain() throws Exception {
+    FakeArtifactCache delegate = new FakeArtifactCache();
+    SpeculativeArtifactPrefetcher prefetcher =
+        new SpeculativeArtifactPrefetcher(delegate, filesystem, Long.MAX_VALUE);
+
+    prefetcher.prefetch(TARGET, KEY_A);
+    assertEquals(1, delegate.fetches.size());
+    FakeFetch fetch = delegate.fetches.get(0);
+    fetch.completeWithHit(new byte[] {1, 2, 3});
+    Path tmpDir = filesystem.resolve(filesystem.getBuckPaths().getTmpDir());
+    assertTrue(fetch.output.get().startsWith(tmpDir));
+
+    Path output = tmp.getRoot().toPath().resolve("output");
+    CacheResult result =
+        prefetcher.fetchAsync(TARGET, KEY_A, LazyPath.ofInstance(output)).get();
+
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(output));
+    assertEquals(1, delegate.fetches.size());
+  }
+
+  @Test
+  public void fetchesWithoutPrefetchGoToDelegate() throws Exception {
+    FakeArtifactCache delegate = new FakeArtifactCache();
+    SpeculativeArtifactPrefetcher prefetcher =
+        new SpeculativeArtifactPrefetcher(delegate, filesystem, Long.MAX_VALUE);
+
+    ListenableFuture<CacheResult> result =
+        prefetcher.fetchAsync(
+            TARGET, KEY_A, LazyPath.ofInstance(tmp.getRoot().toPath().resolve("output")));
+    assertEquals(1, delegate.fetches.size());
+    delegate.fetches.get(0).future.set(CacheResult.miss());
+
+    assertEquals(CacheResultType.MISS, result.get().getType());
+  }
+
+  @Test
+  public void erroredPrefetchIsRetried() throws Exception {
+    FakeArtifactCache delegate = new FakeArtifactCache();
+    SpeculativeArtifactPrefetcher prefetcher =
+        new SpeculativeArtifactPrefetcher(delegate, filesystem, Long.MAX_VALUE);
+
+    prefetcher.prefetch(TARGET, KEY_A);
+    delegate.fetches.get(0).future.set(CacheResult.error("fake", ArtifactCacheMode.dir, "boom"));
+    ListenableFuture<CacheResult> result =
+        prefetcher.fetchAsync(
+            TARGET, KEY_A, LazyPath.ofInstance(tmp.getRoot().toPath().resolve("output")));
+
+    assertEquals(2, delegate.fetches.size());
+    delegate.fetches.get(1).completeWithHit(new byte[] {4});
+    assertEquals(CacheResultType.HIT, result.get().getType());
+  }
+
+  @Test
+  public void sizeBudgetBoundsOutstandingPrefetches() throws Exception {
+    FakeArtifactCache delegate = new FakeArtifactCache();
+    SpeculativeArtifactPrefetcher prefetcher =
+        new SpeculativeArtifactPrefetcher(delegate, filesystem, 1);
+
+    prefetcher.prefetch(TARGET, KEY_A);
+    prefetcher.prefetch(TARGET, KEY_B);
+    prefetcher.prefetch(TARGET, KEY_C);
+    assertEquals(1, delegate.fetches.size());
+
+    // A fetched but unconsumed artifact still counts against the budget.
+    delegate.fetches.get(0).completeWithHit(new byte[] {1, 2});
+    assertEquals(1, delegate.fetches.size());
+
+    prefetcher
+        .fetchAsync(TARGET, KEY_A, LazyPath.ofInstance(tmp.getRoot().toPath().resolve("a")))
+        .get();
+    assertEquals(2, delegate.fetches.size());
+    assertEquals(KEY_B, delegate.fetches.get(1).ruleKey);
+  }
+
+  @Test
+  public void closeDeletesUnconsumedPrefetches() throws Exception {
+    FakeArtifactCache delegate = new FakeArtifactCache();
+    SpeculativeArtifactPrefetcher prefetcher =
+        new SpeculativeArtifactPrefetcher(delegate, filesystem, Long.MAX_VALUE);
+
+    prefetcher.prefetch(TARGET, KEY_A);
+    FakeFetch fetch = delegate.fetches.get(0);
+    fetch.completeWithHit(new byte[] {1});
+    prefetcher.close();
+
+    assertFalse(Files.exists(fetch.output.get()));
+    prefetcher.prefetch(TARGET, KEY_B);
+    assertEquals(1, delegate.fetches.size());
+  }
+
+  private static class FakeFetch {
+    private final RuleKey ruleKey;
+    private final LazyPath output;
+    private final SettableFuture<CacheResult> future = SettableFuture.create();
+
+    private FakeFetch(RuleKey ruleKey, LazyPath output) {
+      this.ruleKey = ruleKey;
+      this.output = output;
+    }
+
+    private void completeWithHit(byte[] data) throws IOException {
+      Files.write(output.get(), data);
+      future.set(CacheResult.hit("fake", ArtifactCacheMode.dir, ImmutableMap.of(), data.length));
+    }
+  }
+
+  /** Records fetches so that tests decide when and how they complete. */
+  private static class FakeArtifactCache implements ArtifactCache {
+    private final List<FakeFetch> fetches = new ArrayList<>();
+
+    @Override
+    public ListenableFuture<CacheResult> fetchAsync(
+        BuildTarget target, RuleKey ruleKey, LazyPath output) {
+      FakeFetch fetch = new FakeFetch(ruleKey, output);
+      fetches.add(fetch);
+      return fetch.future;
+    }
+
+    @Override
+    public void skipPendingAndFutureAsyncFetches() {}
+
+    @Override
+    public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+        ImmutableSet<RuleKey> ruleKeys) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CacheReadMode getCacheReadMode() {
+      return CacheReadMode.READONLY;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -18,12 +18,15 @@ package com.facebook.buck.core.build.engine.impl;
 
 import com.facebook.buck.core.build.distributed.synchronization.RemoteBuildRuleCompletionWaiter;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
+import com.facebook.buck.core.build.engine.cache.manager.CacheMissPrediction;
 import com.facebook.buck.core.build.engine.config.ResourceAwareSchedulingInfo;
+import com.facebook.buck.core.build.engine.config.RuleSchedulingInfo;
 import com.facebook.buck.core.build.engine.delegate.CachingBuildEngineDelegate;
 import com.facebook.buck.core.build.engine.delegate.LocalCachingBuildEngineDelegate;
 import com.facebook.buck.core.build.engine.type.BuildType;
 import com.facebook.buck.core.build.engine.type.DepFiles;
 import com.facebook.buck.core.build.engine.type.MetadataStorage;
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory;
 import com.facebook.buck.core.rules.BuildRuleResolver;
 import com.facebook.buck.core.rules.SourcePathRuleFinder;
 import com.facebook.buck.core.rules.build.strategy.BuildRuleStrategy;
@@ -51,6 +54,8 @@ public class CachingBuildEngineFactory {
   private DepFiles depFiles = DepFiles.ENABLED;
   private long maxDepFileCacheEntries = 256L;
   private Optional<Long> artifactCacheSizeLimit = Optional.empty();
+  private long speculativePrefetchMaxBytes = 0;
+  private Optional<CacheMissPrediction> cacheMissPrediction = Optional.empty();
   private long inputFileSizeLimit = Long.MAX_VALUE;
   private Optional<RuleKeyFactories> ruleKeyFactories = Optional.empty();
   private CachingBuildEngineDelegate cachingBuildEngineDelegate;
@@ -58,6 +63,9 @@ public class CachingBuildEngineFactory {
   private BuildRuleResolver buildRuleResolver;
   private ResourceAwareSchedulingInfo resourceAwareSchedulingInfo =
       ResourceAwareSchedulingInfo.NON_AWARE_SCHEDULING_INFO;
+  private RuleSchedulingInfo ruleSchedulingInfo =
+      RuleSchedulingInfo.DISCOVERY_ORDER_SCHEDULING_INFO;
+  private Optional<BuildRuleDurationHistory> durationHistory = Optional.empty();
   private boolean logBuildRuleFailuresInline = true;
   private BuildInfoStoreManager buildInfoStoreManager;
   private final RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter;
@@ -95,6 +103,18 @@ public class CachingBuildEngineFactory {
     return this;
   }
 
+  public CachingBuildEngineFactory setSpeculativePrefetchMaxBytes(
+      long speculativePrefetchMaxBytes) {
+    this.speculativePrefetchMaxBytes = speculativePrefetchMaxBytes;
+    return this;
+  }
+
+  public CachingBuildEngineFactory setCacheMissPrediction(
+      CacheMissPrediction cacheMissPrediction) {
+    this.cacheMissPrediction = Optional.of(cacheMissPrediction);
+    return this;
+  }
+
   public CachingBuildEngineFactory setCachingBuildEngineDelegate(
       CachingBuildEngineDelegate cachingBuildEngineDelegate) {
     this.cachingBuildEngineDelegate = cachingBuildEngineDelegate;
@@ -123,6 +143,16 @@ public class CachingBuildEngineFactory {
     return this;
   }
 
+  public CachingBuildEngineFactory setRuleSchedulingInfo(RuleSchedulingInfo ruleSchedulingInfo) {
+    this.ruleSchedulingInfo = ruleSchedulingInfo;
+    return this;
+  }
+
+  public CachingBuildEngineFactory setDurationHistory(BuildRuleDurationHistory durationHistory) {
+    this.durationHistory = Optional.of(durationHistory);
+    return this;
+  }
+
   public CachingBuildEngineFactory setCustomBuildRuleStrategy(BuildRuleStrategy strategy) {
     this.customBuildRuleStrategy = Optional.of(strategy);
     return this;
@@ -148,6 +178,8 @@ public class CachingBuildEngineFactory {
           depFiles,
           maxDepFileCacheEntries,
           artifactCacheSizeLimit,
+          speculativePrefetchMaxBytes,
+          cacheMissPrediction,
           buildRuleResolver,
           buildInfoStoreManager,
           ruleFinder,
@@ -155,6 +187,8 @@ public class CachingBuildEngineFactory {
           ruleKeyFactories.get(),
           remoteBuildRuleCompletionWaiter,
           resourceAwareSchedulingInfo,
+          ruleSchedulingInfo,
+          durationHistory,
           RuleKeyDiagnostics.nop(),
           logBuildRuleFailuresInline);
     }
@@ -169,11 +203,15 @@ public class CachingBuildEngineFactory {
         depFiles,
         maxDepFileCacheEntries,
         artifactCacheSizeLimit,
+        speculativePrefetchMaxBytes,
+        cacheMissPrediction,
         buildRuleResolver,
         ruleFinder,
         sourcePathResolver,
         buildInfoStoreManager,
         resourceAwareSchedulingInfo,
+        ruleSchedulingInfo,
+        durationHistory,
         logBuildRuleFailuresInline,
         RuleKeyFactories.of(
             TestRuleKeyConfigurationFactory.create(),
@@ -30,6 +30,7 @@ import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -41,6 +42,7 @@ import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
 import com.facebook.buck.artifact_cache.NoopArtifactCache;
+import com.facebook.buck.artifact_cache.RuleKeyCacheResultEvent;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.cli.CommandThreadManager;
@@ -62,6 +64,8 @@ import com.facebook.buck.core.build.engine.buildinfo.BuildInfoRecorder;
 import com.facebook.buck.core.build.engine.buildinfo.BuildInfoStore;
 import com.facebook.buck.core.build.engine.buildinfo.OnDiskBuildInfo;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
+import com.facebook.buck.core.build.engine.cache.manager.CacheMissPrediction;
+import com.facebook.buck.core.build.engine.cache.manager.CacheMissPredictor;
 import com.facebook.buck.core.build.engine.cache.manager.ManifestRuleKeyManagerTestUtil;
 import com.facebook.buck.core.build.engine.delegate.CachingBuildEngineDelegate;
 import com.facebook.buck.core.build.engine.delegate.LocalCachingBuildEngineDelegate;
@@ -173,6 +177,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.AbstractListeningExecutorService;
@@ -192,6 +197,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -847,6 +853,196 @@ public class CachingBuildEngineTest {
       }
     }
 
+    @Test
+    public void speculativePrefetchSkipsLocallyBuiltRulesAndIsFetchedOnce() throws Exception {
+      // A dep that was already built locally with a matching rule key.
+      FakeBuildRule builtDep =
+          new FakeBuildRule(
+              BuildTargetFactory.newInstance("//:built_dep"),
+              filesystem,
+              TestBuildRuleParams.create());
+      RuleKey builtDepKey = defaultRuleKeyFactory.build(builtDep);
+      BuildInfoRecorder depRecorder = createBuildInfoRecorder(builtDep.getBuildTarget());
+      depRecorder.addBuildMetadata(BuildInfo.MetadataKey.RULE_KEY, builtDepKey.toString());
+      depRecorder.addMetadata(BuildInfo.MetadataKey.RECORDED_PATHS, ImmutableList.of());
+      depRecorder.writeMetadataToDisk(true);
+
+      // A dep that has never been built.
+      FakeBuildRule newDep =
+          new FakeBuildRule(
+              BuildTargetFactory.newInstance("//:new_dep"),
+              filesystem,
+              TestBuildRuleParams.create());
+      RuleKey newDepKey = defaultRuleKeyFactory.build(newDep);
+
+      FakeBuildRule ruleToTest = new FakeBuildRule(BUILD_TARGET, filesystem, builtDep, newDep);
+      RuleKey ruleToTestKey = defaultRuleKeyFactory.build(ruleToTest);
+
+      List<RuleKey> fetchedKeys = Collections.synchronizedList(new ArrayList<>());
+      BuildEngineBuildContext context =
+          this.buildContext.withArtifactCache(
+              new NoopArtifactCache() {
+                @Override
+                public ListenableFuture<CacheResult> fetchAsync(
+                    @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+                  fetchedKeys.add(ruleKey);
+                  return super.fetchAsync(target, ruleKey, output);
+                }
+              });
+
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory()
+              .setBuildMode(BuildType.DEEP)
+              .setSpeculativePrefetchMaxBytes(1024 * 1024)
+              .build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(context, TestExecutionContext.newInstance(), ruleToTest)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+      }
+
+      assertThat(fetchedKeys, Matchers.containsInAnyOrder(newDepKey, ruleToTestKey));
+    }
+
+    @Test
+    public void lazyBuildOnlyBuildsDepsMissingFromCacheWithoutFetchingCachedOnes()
+        throws Exception {
+      // A dep whose artifact is in the cache.
+      FakeBuildRule cachedDep =
+          new FakeBuildRule(
+              BuildTargetFactory.newInstance("//:cached_dep"),
+              filesystem,
+              TestBuildRuleParams.create());
+      RuleKey cachedDepKey = defaultRuleKeyFactory.build(cachedDep);
+
+      // A dep that is neither in the cache nor built locally.
+      FakeBuildRule missingDep =
+          new FakeBuildRule(
+              BuildTargetFactory.newInstance("//:missing_dep"),
+              filesystem,
+              TestBuildRuleParams.create());
+
+      // The top-level rule is already built locally.
+      FakeBuildRule ruleToTest = new FakeBuildRule(BUILD_TARGET, filesystem, cachedDep, missingDep);
+      RuleKey ruleToTestKey = defaultRuleKeyFactory.build(ruleToTest);
+      BuildInfoRecorder recorder = createBuildInfoRecorder(BUILD_TARGET);
+      recorder.addBuildMetadata(BuildInfo.MetadataKey.RULE_KEY, ruleToTestKey.toString());
+      recorder.addMetadata(BuildInfo.MetadataKey.RECORDED_PATHS, ImmutableList.of());
+      recorder.writeMetadataToDisk(true);
+
+      List<RuleKey> fetchedKeys = Collections.synchronizedList(new ArrayList<>());
+      BuildEngineBuildContext context =
+          this.buildContext.withArtifactCache(
+              new NoopArtifactCache() {
+                @Override
+                public ListenableFuture<CacheResult> fetchAsync(
+                    @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+                  fetchedKeys.add(ruleKey);
+                  return super.fetchAsync(target, ruleKey, output);
+                }
+
+                @Override
+                public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+                    ImmutableSet<RuleKey> ruleKeys) {
+                  return Futures.immediateFuture(
+                      Maps.toMap(
+                          ruleKeys,
+                          ruleKey ->
+                              ruleKey.equals(cachedDepKey)
+                                  ? CacheResult.contains("fake", ArtifactCacheMode.dir)
+                                  : CacheResult.miss()));
+                }
+              });
+
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory().setBuildMode(BuildType.LAZY).build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(context, TestExecutionContext.newInstance(), ruleToTest)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.MATCHING_RULE_KEY, result.getSuccess());
+        assertEquals(
+            BuildRuleSuccessType.BUILT_LOCALLY,
+            Preconditions.checkNotNull(
+                    cachingBuildEngine.getBuildRuleResult(missingDep.getBuildTarget()))
+                .getSuccess());
+        assertNull(cachingBuildEngine.getBuildRuleResult(cachedDep.getBuildTarget()));
+      }
+
+      assertThat(fetchedKeys, Matchers.not(hasItem(cachedDepKey)));
+      // The cached dep was never built, so it's only reported as not materialized.
+      assertThat(
+          listener
+              .getEvents()
+              .stream()
+              .filter(BuildRuleEvent.Finished.class::isInstance)
+              .map(BuildRuleEvent.Finished.class::cast)
+              .filter(event -> event.getBuildRule().equals(cachedDep))
+              .collect(Collectors.toList()),
+          Matchers.empty());
+      assertThat(
+          listener
+              .getEvents()
+              .stream()
+              .filter(BuildRuleEvent.NotMaterialized.class::isInstance)
+              .map(BuildRuleEvent.NotMaterialized.class::cast)
+              .filter(event -> event.getBuildRule().equals(cachedDep))
+              .map(event -> event.getCacheResult().getType())
+              .collect(Collectors.toList()),
+          Matchers.contains(CacheResultType.CONTAINS));
+      // The missing dep was built, so it's only reported as finished.
+      assertThat(
+          listener
+              .getEvents()
+              .stream()
+              .filter(BuildRuleEvent.NotMaterialized.class::isInstance)
+              .map(BuildRuleEvent.NotMaterialized.class::cast)
+              .filter(event -> event.getBuildRule().equals(missingDep))
+              .collect(Collectors.toList()),
+          Matchers.empty());
+    }
+
+    @Test
+    public void lazyBuildCancelsEveryTopLevelRuleWhoseDepFailed() throws Exception {
+      BuildRule failingDep =
+          new RuleWithSteps(
+              BuildTargetFactory.newInstance("//:failing_dep"),
+              filesystem,
+              TestBuildRuleParams.create(),
+              ImmutableList.of(new FailingStep()),
+              /* output */ null);
+
+      // Both top-level rules are already built locally, so only the lazy check builds the dep.
+      List<BuildRule> topLevelRules = new ArrayList<>();
+      for (String name : ImmutableList.of("first", "second")) {
+        BuildTarget target = BuildTargetFactory.newInstance("//:" + name);
+        FakeBuildRule rule = new FakeBuildRule(target, filesystem, failingDep);
+        BuildInfoRecorder recorder = createBuildInfoRecorder(target);
+        recorder.addBuildMetadata(
+            BuildInfo.MetadataKey.RULE_KEY, defaultRuleKeyFactory.build(rule).toString());
+        recorder.addMetadata(BuildInfo.MetadataKey.RECORDED_PATHS, ImmutableList.of());
+        recorder.writeMetadataToDisk(true);
+        topLevelRules.add(rule);
+      }
+
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory().setBuildMode(BuildType.LAZY).build()) {
+        List<ListenableFuture<BuildResult>> results = new ArrayList<>();
+        for (BuildRule rule : topLevelRules) {
+          results.add(
+              cachingBuildEngine
+                  .build(buildContext, TestExecutionContext.newInstance(), rule)
+                  .getResult());
+        }
+        for (ListenableFuture<BuildResult> result : results) {
+          assertEquals(BuildRuleStatus.CANCELED, result.get().getStatus());
+        }
+      }
+    }
+
     @Test
     public void testMatchingTopLevelRuleKeyStillProcessesRuntimeDeps() throws Exception {
       // Setup a runtime dependency that is found transitively from the top-level rule.
@@ -1231,6 +1427,120 @@ public class CachingBuildEngineTest {
       }
     }
 
+    @Test
+    public void predictedCacheMissOnlyLooksUpLocalCache() throws Exception {
+      BuildTarget target = BuildTargetFactory.newInstance("//:rule");
+      BuildRule rule = new EmptyBuildRule(target, filesystem);
+
+      CacheMissPredictor predictor = new CacheMissPredictor();
+      for (int i = 0; i < 100; i++) {
+        predictor.record(rule.getType(), CacheResult.miss(), true);
+      }
+
+      List<RuleKey> fetchedKeys = Collections.synchronizedList(new ArrayList<>());
+      List<RuleKey> locallyFetchedKeys = Collections.synchronizedList(new ArrayList<>());
+      BuildEngineBuildContext context =
+          this.buildContext.withArtifactCache(new RecordingArtifactCache(fetchedKeys));
+
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory()
+              .setCacheMissPrediction(
+                  CacheMissPrediction.of(predictor, new RecordingArtifactCache(locallyFetchedKeys)))
+              .build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(context, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertThat(result.getSuccess(), equalTo(BuildRuleSuccessType.BUILT_LOCALLY));
+        assertThat(
+            result.getCacheResult().map(CacheResult::getType),
+            equalTo(Optional.of(CacheResultType.MISS)));
+      }
+
+      assertThat(fetchedKeys, Matchers.empty());
+      assertThat(locallyFetchedKeys, Matchers.hasSize(1));
+      List<RuleKeyCacheResultEvent> cacheResultEvents =
+          listener
+              .getEvents()
+              .stream()
+              .filter(RuleKeyCacheResultEvent.class::isInstance)
+              .map(RuleKeyCacheResultEvent.class::cast)
+              .collect(Collectors.toList());
+      assertThat(cacheResultEvents, Matchers.hasSize(1));
+      assertTrue(cacheResultEvents.get(0).isMissPredicted());
+    }
+
+    @Test
+    public void predictedCacheMissStillFetchesFromLocalCache() throws Exception {
+      Step step =
+          new AbstractExecutionStep("exploding step") {
+            @Override
+            public StepExecutionResult execute(ExecutionContext context) {
+              throw new UnsupportedOperationException("build step should not be executed");
+            }
+          };
+      BuildRule buildRule =
+          createRule(
+              filesystem,
+              graphBuilder,
+              /* deps */ ImmutableSortedSet.of(),
+              ImmutableList.of(step),
+              /* postBuildSteps */ ImmutableList.of(),
+              /* pathToOutputFile */ null,
+              ImmutableList.of());
+
+      CacheMissPredictor predictor = new CacheMissPredictor();
+      for (int i = 0; i < 100; i++) {
+        predictor.record(buildRule.getType(), CacheResult.miss(), true);
+      }
+
+      ImmutableMap<String, String> metadata =
+          ImmutableMap.of(
+              BuildInfo.MetadataKey.RULE_KEY,
+              defaultRuleKeyFactory.build(buildRule).toString(),
+              BuildInfo.MetadataKey.BUILD_ID,
+              buildContext.getBuildId().toString(),
+              BuildInfo.MetadataKey.ORIGIN_BUILD_ID,
+              buildContext.getBuildId().toString());
+      Path metadataDirectory =
+          BuildInfo.getPathToArtifactMetadataDirectory(buildRule.getBuildTarget(), filesystem);
+      ImmutableMap<Path, String> desiredZipEntries =
+          ImmutableMap.of(
+              metadataDirectory.resolve(BuildInfo.MetadataKey.RECORDED_PATHS),
+              ObjectMappers.WRITER.writeValueAsString(ImmutableList.of()),
+              metadataDirectory.resolve(BuildInfo.MetadataKey.RECORDED_PATH_HASHES),
+              ObjectMappers.WRITER.writeValueAsString(ImmutableMap.of()),
+              Paths.get("buck-out/gen/src/com/facebook/orca/orca.jar"),
+              "Imagine this is the contents of a valid JAR file.",
+              metadataDirectory.resolve(BuildInfo.MetadataKey.OUTPUT_SIZE),
+              "123",
+              metadataDirectory.resolve(BuildInfo.MetadataKey.OUTPUT_HASH),
+              HashCode.fromInt(123).toString());
+
+      List<RuleKey> fetchedKeys = Collections.synchronizedList(new ArrayList<>());
+      BuildEngineBuildContext context =
+          this.buildContext.withArtifactCache(new RecordingArtifactCache(fetchedKeys));
+
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory()
+              .setCacheMissPrediction(
+                  CacheMissPrediction.of(
+                      predictor,
+                      new FakeArtifactCacheThatWritesAZipFile(desiredZipEntries, metadata)))
+              .build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(context, TestExecutionContext.newInstance(), buildRule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.FETCHED_FROM_CACHE, result.getSuccess());
+        assertTrue(filesystem.exists(Paths.get("buck-out/gen/src/com/facebook/orca/orca.jar")));
+      }
+
+      assertThat(fetchedKeys, Matchers.empty());
+    }
+
     @Test
     public void testExceptionMessagesAreInformative() throws Exception {
       AtomicReference<RuntimeException> throwable = new AtomicReference<>();
@@ -4526,6 +4836,23 @@ public class CachingBuildEngineTest {
    * BorrowablePath)} and ensure that there will be a zip file in place immediately after the
    * captured method has been invoked.
    */
+  /** A cache which misses every fetch, and records the rule keys it was asked for. */
+  private static class RecordingArtifactCache extends NoopArtifactCache {
+
+    private final List<RuleKey> fetchedKeys;
+
+    public RecordingArtifactCache(List<RuleKey> fetchedKeys) {
+      this.fetchedKeys = fetchedKeys;
+    }
+
+    @Override
+    public ListenableFuture<CacheResult> fetchAsync(
+        @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+      fetchedKeys.add(ruleKey);
+      return super.fetchAsync(target, ruleKey, output);
+    }
+  }
+
   private static class FakeArtifactCacheThatWritesAZipFile implements ArtifactCache {
 
     private final ImmutableMap<Path, String> desiredEntries;
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.rules.ActionGraphBuilder;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CriticalPathRulePrioritizerTest {
+
+  private BuildRule codegen;
+  private BuildRule library;
+  private BuildRule link;
+  private BuildRule resources;
+  private BuildRule binary;
+  private BuildRule tool;
+  private CriticalPathRulePrioritizer prioritizer;
+
+  // Visualisation of the action graph (rules depend on rules below them), with costs:
+  //
+  //      binary(1)   tool(3)
+  //      /      \     /
+  //  link(10)  resources(1)
+  //     |
+  //  library(5)
+  //     |
+  //  codegen(2)
+
+  @Before
+  public void setUp() {
+    ActionGraphBuilder graphBuilder = new TestActionGraphBuilder();
+    codegen = graphBuilder.addToIndex(new FakeBuildRule("//:codegen"));
+    library = graphBuilder.addToIndex(new FakeBuildRule("//:library", codegen));
+    link = graphBuilder.addToIndex(new FakeBuildRule("//:link", library));
+    resources = graphBuilder.addToIndex(new FakeBuildRule("//:resources"));
+    binary = graphBuilder.addToIndex(new FakeBuildRule("//:binary", link, resources));
+    tool = graphBuilder.addToIndex(new FakeBuildRule("//:tool", resources));
+    ImmutableMap<BuildRule, Long> costs =
+        ImmutableMap.<BuildRule, Long>builder()
+            .put(codegen, 2L)
+            .put(library, 5L)
+            .put(link, 10L)
+            .put(resources, 1L)
+            .put(binary, 1L)
+            .put(tool, 3L)
+            .build();
+    prioritizer =
+        new CriticalPathRulePrioritizer(new DefaultRuleDepsCache(graphBuilder), costs::get);
+  }
+
+  @Test
+  public void priorityIsLongestRemainingPathToTopLevelRule() {
+    prioritizer.registerTopLevelRules(ImmutableList.of(binary));
+    assertEquals(1L, prioritizer.getPriority(binary));
+    assertEquals(11L, prioritizer.getPriority(link));
+    assertEquals(16L, prioritizer.getPriority(library));
+    assertEquals(18L, prioritizer.getPriority(codegen));
+    assertEquals(2L, prioritizer.getPriority(resources));
+  }
+
+  @Test
+  public void rulesOnTheDeepChainOutrankShallowRulesThatAreReadyAtTheSameTime() {
+    prioritizer.registerTopLevelRules(ImmutableList.of(binary, tool));
+    assertTrue(prioritizer.getPriority(codegen) > prioritizer.getPriority(resources));
+  }
+
+  @Test
+  public void sharedRulesTakeTheMostExpensivePathAcrossTopLevelRules() {
+    prioritizer.registerTopLevelRules(ImmutableList.of(binary));
+    assertEquals(2L, prioritizer.getPriority(resources));
+    prioritizer.registerTopLevelRules(ImmutableList.of(tool));
+    assertEquals(4L, prioritizer.getPriority(resources));
+    // Registering an already known top-level rule again changes nothing.
+    prioritizer.registerTopLevelRules(ImmutableList.of(binary));
+    assertEquals(4L, prioritizer.getPriority(resources));
+  }
+
+  @Test
+  public void unregisteredRulesHaveNoPriority() {
+    assertEquals(0L, prioritizer.getPriority(codegen));
+    prioritizer.registerTopLevelRules(ImmutableList.of(tool));
+    assertEquals(0L, prioritizer.getPriority(codegen));
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.manifest;
+
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.SourcePathRuleFinder;
+import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
+import com.facebook.buck.core.sourcepath.FakeSourcePath;
+import com.facebook.buck.core.sourcepath.SourcePath;
+import com.facebook.buck.core.sourcepath.resolver.SourcePathResolver;
+import com.facebook.buck.core.sourcepath.resolver.impl.DefaultSourcePathResolver;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.util.cache.FileHashCache;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures looking up a dep file rule key in a manifest with thousands of entries built against a
+ * shared pool of headers, where only the most recently added entry matches the inputs on disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ManifestBenchmark {
+
+  private static final SourcePathResolver RESOLVER =
+      DefaultSourcePathResolver.from(new SourcePathRuleFinder(new TestActionGraphBuilder()));
+
+  @Param({"1000", "4000"})
+  private int entryCount;
+
+  @Param({"500"})
+  private int headerCount;
+
+  @Param({"50"})
+  private int headersPerEntry;
+
+  private Manifest manifest;
+  private FileHashCache fileHashCache;
+  private ImmutableSet<SourcePath> universe;
+  private RuleKey expectedKey;
+
+  @Setup
+  public void setUp() {
+    ImmutableSet.Builder<SourcePath> universeBuilder = ImmutableSet.builder();
+    Map<Path, HashCode> onDiskHashes = new HashMap<>();
+    String[] headers = new String[headerCount];
+    for (int header = 0; header < headerCount; header++) {
+      SourcePath path = FakeSourcePath.of("include/header" + header + ".h");
+      headers[header] = RESOLVER.getRelativePath(path).toString();
+      universeBuilder.add(path);
+      onDiskHashes.put(RESOLVER.getAbsolutePath(path), HashCode.fromInt(header));
+    }
+    universe = universeBuilder.build();
+
+    // Every entry saw a different version of one of its headers, so that only the last entry,
+    // whose version of that header is the one on disk, matches.
+    ImmutableMap.Builder<RuleKey, ImmutableMap<String, HashCode>> entries = ImmutableMap.builder();
+    for (int entry = 0; entry < entryCount; entry++) {
+      ImmutableMap.Builder<String, HashCode> hashes = ImmutableMap.builder();
+      int changedHeader = (entry * 7) % headerCount;
+      for (int i = 0; i < headersPerEntry; i++) {
+        int header = (changedHeader + i * 3) % headerCount;
+        hashes.put(
+            headers[header],
+            header == changedHeader ? HashCode.fromInt(-1 - entry) : HashCode.fromInt(header));
+      }
+      RuleKey key = new RuleKey(HashCode.fromInt(entry));
+      entries.put(key, hashes.build());
+      expectedKey = key;
+      if (entry == entryCount - 1) {
+        onDiskHashes.put(
+            RESOLVER.getAbsolutePath(FakeSourcePath.of("include/header" + changedHeader + ".h")),
+            HashCode.fromInt(-1 - entry));
+      }
+    }
+    manifest = ManifestUtil.fromMap(new RuleKey("cc"), entries.build());
+    fileHashCache = new FakeFileHashCache(onDiskHashes);
+  }
+
+  @Benchmark
+  public Optional<RuleKey> lookup() throws IOException {
+    Optional<RuleKey> key = manifest.lookup(fileHashCache, RESOLVER, universe);
+    Preconditions.checkState(key.equals(Optional.of(expectedKey)));
+    return key;
+  }
+}
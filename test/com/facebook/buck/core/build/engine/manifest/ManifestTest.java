@@ -319,4 +319,81 @@ public class ManifestTest {
         Matchers.equalTo(
             ManifestStats.builder().setNumDepFiles(2).setNumInputs(2).setNumHashes(1).build()));
   }
+
+  @Test
+  public void lookupPrefersMostRecentlyUsedMatch() throws IOException {
+    RuleKey key1 = new RuleKey("aa");
+    RuleKey key2 = new RuleKey("bb");
+    SourcePath input = FakeSourcePath.of("input.h");
+    String inputPath = RESOLVER.getRelativePath(input).toString();
+    Manifest manifest =
+        ManifestUtil.fromMap(
+            new RuleKey("cc"),
+            ImmutableMap.of(
+                key1,
+                ImmutableMap.of(inputPath, HashCode.fromInt(1)),
+                key2,
+                ImmutableMap.of(inputPath, HashCode.fromInt(1), "other.h", HashCode.fromInt(2))));
+    FileHashCache fileHashCache =
+        new FakeFileHashCache(
+            ImmutableMap.of(RESOLVER.getAbsolutePath(input), HashCode.fromInt(1)));
+
+    // Only the first entry matches, as other.h is not an input anymore.
+    assertThat(
+        manifest.lookup(fileHashCache, RESOLVER, ImmutableSet.of(input)),
+        Matchers.equalTo(Optional.of(key1)));
+
+    RuleKey key3 = new RuleKey("dd");
+    manifest.addEntry(key3, new int[] {0});
+    assertThat(
+        manifest.lookup(fileHashCache, RESOLVER, ImmutableSet.of(input)),
+        Matchers.equalTo(Optional.of(key3)));
+
+    assertThat(manifest.markUsed(key1), Matchers.equalTo(2));
+    assertThat(manifest.markUsed(key1), Matchers.equalTo(0));
+    assertThat(manifest.markUsed(new RuleKey("ee")), Matchers.equalTo(-1));
+    assertThat(
+        manifest.lookup(fileHashCache, RESOLVER, ImmutableSet.of(input)),
+        Matchers.equalTo(Optional.of(key1)));
+  }
+
+  @Test
+  public void evictLeastRecentlyUsedDropsUnreferencedInputs() throws IOException {
+    RuleKey key1 = new RuleKey("aa");
+    RuleKey key2 = new RuleKey("bb");
+    RuleKey key3 = new RuleKey("dd");
+    Manifest manifest =
+        ManifestUtil.fromMap(
+            new RuleKey("cc"),
+            ImmutableMap.of(
+                key1,
+                ImmutableMap.of("foo.h", HashCode.fromInt(1)),
+                key2,
+                ImmutableMap.of("bar.h", HashCode.fromInt(2)),
+                key3,
+                ImmutableMap.of("baz.h", HashCode.fromInt(3))));
+    manifest.markUsed(key1);
+
+    assertThat(manifest.evictLeastRecentlyUsed(3), Matchers.equalTo(0));
+    assertThat(manifest.evictLeastRecentlyUsed(2), Matchers.equalTo(1));
+    assertThat(
+        ManifestUtil.toMap(manifest),
+        Matchers.equalTo(
+            ImmutableMap.of(
+                key3,
+                ImmutableMap.of("baz.h", HashCode.fromInt(3)),
+                key1,
+                ImmutableMap.of("foo.h", HashCode.fromInt(1)))));
+    assertThat(
+        manifest.getStats(),
+        Matchers.equalTo(
+            ManifestStats.builder().setNumDepFiles(2).setNumInputs(2).setNumHashes(2).build()));
+
+    // The compacted manifest survives a round trip, in the same order.
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    manifest.serialize(byteArrayOutputStream);
+    Manifest deserialized =
+        new Manifest(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+    assertThat(deserialized.markUsed(key3), Matchers.equalTo(1));
+  }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory.DurationType;
+import com.facebook.buck.rules.keys.RuleKeyType;
+import com.facebook.buck.testutil.TemporaryPaths;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.OptionalLong;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class BuildRuleDurationHistoryTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void durationsAreSmoothedAcrossBuilds() {
+    BuildRuleDurationHistory history = new BuildRuleDurationHistory(10);
+    history.record("//:a", RuleKeyType.DEFAULT, DurationType.EXECUTION, 1000);
+    assertEquals(
+        OptionalLong.of(1000),
+        history.getExpectedMillis("//:a", RuleKeyType.DEFAULT, DurationType.EXECUTION));
+
+    history.record("//:a", RuleKeyType.DEFAULT, DurationType.EXECUTION, 2000);
+    assertEquals(
+        OptionalLong.of(1500),
+        history.getExpectedMillis("//:a", RuleKeyType.DEFAULT, DurationType.EXECUTION));
+  }
+
+  @Test
+  public void durationsAreTrackedPerRuleKeyTypeAndDurationType() {
+    BuildRuleDurationHistory history = new BuildRuleDurationHistory(10);
+    history.record("//:a", RuleKeyType.INPUT, DurationType.CACHE_FETCH, 30);
+
+    assertEquals(
+        OptionalLong.of(30),
+        history.getExpectedMillis("//:a", RuleKeyType.INPUT, DurationType.CACHE_FETCH));
+    assertFalse(
+        history
+            .getExpectedMillis("//:a", RuleKeyType.DEFAULT, DurationType.CACHE_FETCH)
+            .isPresent());
+    assertFalse(
+        history.getExpectedMillis("//:a", RuleKeyType.INPUT, DurationType.EXECUTION).isPresent());
+  }
+
+  @Test
+  public void leastRecentlyUsedEntriesAreEvicted() {
+    BuildRuleDurationHistory history = new BuildRuleDurationHistory(2);
+    history.record("//:a", RuleKeyType.DEFAULT, DurationType.EXECUTION, 1);
+    history.record("//:b", RuleKeyType.DEFAULT, DurationType.EXECUTION, 2);
+    // Looking up //:a makes //:b the least recently used entry.
+    history.getExpectedMillis("//:a", RuleKeyType.DEFAULT, DurationType.EXECUTION);
+    history.record("//:c", RuleKeyType.DEFAULT, DurationType.EXECUTION, 3);
+
+    assertEquals(2, history.size());
+    assertEquals(
+        OptionalLong.of(1),
+        history.getExpectedMillis("//:a", RuleKeyType.DEFAULT, DurationType.EXECUTION));
+    assertFalse(
+        history.getExpectedMillis("//:b", RuleKeyType.DEFAULT, DurationType.EXECUTION).isPresent());
+  }
+
+  @Test
+  public void meanIsComputedOverKnownDurations() {
+    BuildRuleDurationHistory history = new BuildRuleDurationHistory(10);
+    assertFalse(
+        history.getMeanExpectedMillis(RuleKeyType.DEFAULT, DurationType.EXECUTION).isPresent());
+
+    history.record("//:a", RuleKeyType.DEFAULT, DurationType.EXECUTION, 100);
+    history.record("//:b", RuleKeyType.DEFAULT, DurationType.EXECUTION, 300);
+    history.record("//:c", RuleKeyType.DEFAULT, DurationType.UPLOAD, 5000);
+    assertEquals(
+        OptionalLong.of(200),
+        history.getMeanExpectedMillis(RuleKeyType.DEFAULT, DurationType.EXECUTION));
+  }
+
+  @Test
+  public void historySurvivesRoundTripThroughDisk() throws IOException {
+    Path path = tmp.getRoot().resolve("buck-out").resolve("history");
+    BuildRuleDurationHistory history = new BuildRuleDurationHistory(10);
+    history.record("//:a", RuleKeyType.DEFAULT, DurationType.EXECUTION, 100);
+    history.record("//:a", RuleKeyType.MANIFEST, DurationType.CACHE_FETCH, 20);
+    history.record("//:b", RuleKeyType.DEFAULT, DurationType.UPLOAD, 7);
+    history.saveIfChanged(path);
+
+    BuildRuleDurationHistory loaded = BuildRuleDurationHistory.load(path, 10);
+    assertEquals(3, loaded.size());
+    assertEquals(
+        OptionalLong.of(100),
+        loaded.getExpectedMillis("//:a", RuleKeyType.DEFAULT, DurationType.EXECUTION));
+    assertEquals(
+        OptionalLong.of(20),
+        loaded.getExpectedMillis("//:a", RuleKeyType.MANIFEST, DurationType.CACHE_FETCH));
+    assertEquals(
+        OptionalLong.of(7),
+        loaded.getExpectedMillis("//:b", RuleKeyType.DEFAULT, DurationType.UPLOAD));
+  }
+
+  @Test
+  public void unchangedHistoryIsNotRewritten() throws IOException {
+    Path path = tmp.getRoot().resolve("history");
+    new BuildRuleDurationHistory(10).saveIfChanged(path);
+    assertFalse(Files.exists(path));
+  }
+
+  @Test
+  public void missingOrCorruptHistoryLoadsAsEmpty() throws IOException {
+    Path path = tmp.getRoot().resolve("history");
+    assertEquals(0, BuildRuleDurationHistory.load(path, 10).size());
+
+    Files.write(path, "not a history".getBytes(StandardCharsets.UTF_8));
+    assertEquals(0, BuildRuleDurationHistory.load(path, 10).size());
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.OptionalLong;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class RuleTypeMemoryHistoryTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void highestPeakOfTheCommandIsKept() {
+    RuleTypeMemoryHistory history = new RuleTypeMemoryHistory();
+    history.record("cxx_link", 300);
+    history.record("cxx_link", 500);
+    history.record("cxx_link", 200);
+
+    assertEquals(OptionalLong.of(500), history.getExpectedPeakBytes("cxx_link"));
+    assertFalse(history.getExpectedPeakBytes("genrule").isPresent());
+  }
+
+  @Test
+  public void learnedPeaksDecayWhenLowerPeaksAreObserved() throws IOException {
+    Path path = tmp.getRoot().resolve("buck-out").resolve(".rulememoryhistory");
+    RuleTypeMemoryHistory history = new RuleTypeMemoryHistory();
+    history.record("cxx_link", 1000);
+    history.record("dex_merge", 400);
+    history.saveIfChanged(path);
+
+    RuleTypeMemoryHistory reloaded = RuleTypeMemoryHistory.load(path);
+    assertEquals(
+        ImmutableMap.of("cxx_link", 1000L, "dex_merge", 400L),
+        reloaded.getExpectedPeakBytesPerRuleType());
+
+    reloaded.record("cxx_link", 100);
+    reloaded.record("dex_merge", 800);
+    // Until the history is saved, the higher of the learned and observed peaks is expected.
+    assertEquals(OptionalLong.of(1000), reloaded.getExpectedPeakBytes("cxx_link"));
+    reloaded.saveIfChanged(path);
+
+    assertEquals(
+        ImmutableMap.of(
+            "cxx_link",
+            Math.round(1000 * RuleTypeMemoryHistory.DECAY_FACTOR),
+            "dex_merge",
+            800L),
+        RuleTypeMemoryHistory.load(path).getExpectedPeakBytesPerRuleType());
+  }
+
+  @Test
+  public void unchangedHistoryIsNotWritten() throws IOException {
+    Path path = tmp.getRoot().resolve(".rulememoryhistory");
+    new RuleTypeMemoryHistory().saveIfChanged(path);
+    assertFalse(Files.exists(path));
+  }
+
+  @Test
+  public void corruptedHistoryIsDiscarded() throws IOException {
+    Path path = tmp.getRoot().resolve(".rulememoryhistory");
+    Files.write(path, "not a history".getBytes(StandardCharsets.UTF_8));
+    assertEquals(
+        ImmutableMap.of(), RuleTypeMemoryHistory.load(path).getExpectedPeakBytesPerRuleType());
+  }
+}
@@ -28,6 +28,7 @@ import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.Optional;
 import org.hamcrest.Matchers;
 import org.junit.Rule;
 import org.junit.Test;
@@ -76,4 +77,31 @@ public class ResourcesConfigTest {
     }
     assertThat("IllegalArgumentException should be thrown", Matchers.equalTo(""));
   }
+
+  @Test
+  public void testMemoryBudgetSetsMaximumMemoryAmount() throws InterruptedException, IOException {
+    Reader reader =
+        new StringReader(
+            Joiner.on('\n')
+                .join(
+                    "[resources]",
+                    "resource_aware_scheduling_enabled = true",
+                    "max_memory_resource = 3",
+                    "memory_budget = 2GB"));
+    ResourcesConfig config =
+        BuckConfigTestUtils.createWithDefaultFilesystem(temporaryFolder, reader)
+            .getView(ResourcesConfig.class);
+    assertEquals(Optional.of(2L * 1024 * 1024 * 1024), config.getMemoryBudget());
+    assertEquals(20, config.getMaximumResourceAmounts().getMemory());
+  }
+
+  @Test
+  public void testMemoryBudgetRequiresResourceAwareScheduling()
+      throws InterruptedException, IOException {
+    Reader reader = new StringReader(Joiner.on('\n').join("[resources]", "memory_budget = 2GB"));
+    ResourcesConfig config =
+        BuckConfigTestUtils.createWithDefaultFilesystem(temporaryFolder, reader)
+            .getView(ResourcesConfig.class);
+    assertEquals(Optional.empty(), config.getMemoryBudget());
+  }
 }
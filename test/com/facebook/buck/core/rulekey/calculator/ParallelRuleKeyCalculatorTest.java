@@ -0,0 +1,201 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.rulekey.calculator;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.core.build.engine.RuleDepsCache;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.keys.RuleKeyFactory;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelRuleKeyCalculatorTest {
+
+  private static final RuleDepsCache BUILD_DEPS =
+      new RuleDepsCache() {
+        @Override
+        public SortedSet<BuildRule> get(BuildRule rule) {
+          return rule.getBuildDeps();
+        }
+
+        @Override
+        public SortedSet<BuildRule> getRuntimeDeps(BuildRule rule) {
+          return ImmutableSortedSet.of();
+        }
+      };
+
+  private final BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+  private ListeningExecutorService service;
+
+  @Before
+  public void setUp() {
+    service = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    service.shutdownNow();
+    assertTrue(service.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void calculatesEachKeyOnceAfterItsDeps() throws Exception {
+    Random random = new Random(42);
+    List<BuildRule> rules = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      ImmutableSortedSet.Builder<BuildRule> deps = ImmutableSortedSet.naturalOrder();
+      for (int j = 0; j < 4 && i > 0; j++) {
+        deps.add(rules.get(random.nextInt(i)));
+      }
+      rules.add(
+          new FakeBuildRule(
+              BuildTargetFactory.newInstance(String.format("//:rule%d", i)), deps.build()));
+    }
+    RecordingRuleKeyFactory factory = new RecordingRuleKeyFactory();
+    ParallelRuleKeyCalculator<String> calculator =
+        new ParallelRuleKeyCalculator<>(service, factory, BUILD_DEPS, (bus, rule) -> () -> {}, 4);
+
+    List<ListenableFuture<String>> futures = new ArrayList<>();
+    for (int i = rules.size() - 1; i >= 0; i--) {
+      futures.add(calculator.calculate(eventBus, rules.get(i)));
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      BuildRule rule = rules.get(rules.size() - 1 - i);
+      assertEquals(rule.getFullyQualifiedName(), futures.get(i).get(10, TimeUnit.SECONDS));
+    }
+
+    assertEquals(rules.size(), factory.built.size());
+    for (int count : factory.built.values()) {
+      assertEquals(1, count);
+    }
+    assertFalse("a key was calculated before its deps", factory.builtTooEarly);
+    assertEquals(rules.size(), calculator.getAllKnownTargets().size());
+  }
+
+  @Test
+  public void usesKeysFromInternalCacheWithoutVisitingDeps() throws Exception {
+    FakeBuildRule leaf = new FakeBuildRule("//:leaf");
+    FakeBuildRule cached = new FakeBuildRule("//:cached", leaf);
+    FakeBuildRule root = new FakeBuildRule("//:root", cached);
+    RecordingRuleKeyFactory factory = new RecordingRuleKeyFactory();
+    factory.cached.put(cached.getBuildTarget(), "from cache");
+    ParallelRuleKeyCalculator<String> calculator =
+        new ParallelRuleKeyCalculator<>(service, factory, BUILD_DEPS, (bus, rule) -> () -> {});
+
+    assertEquals("//:root", calculator.calculate(eventBus, root).get(10, TimeUnit.SECONDS));
+    assertEquals("from cache", calculator.calculate(eventBus, cached).get());
+    assertFalse(factory.built.containsKey(leaf.getBuildTarget()));
+    assertFalse(factory.built.containsKey(cached.getBuildTarget()));
+  }
+
+  @Test
+  public void failuresPropagateToDependents() throws Exception {
+    FakeBuildRule broken = new FakeBuildRule("//:broken");
+    FakeBuildRule fine = new FakeBuildRule("//:fine");
+    FakeBuildRule middle = new FakeBuildRule("//:middle", broken, fine);
+    FakeBuildRule root = new FakeBuildRule("//:root", middle);
+    RecordingRuleKeyFactory factory = new RecordingRuleKeyFactory();
+    factory.broken = broken.getBuildTarget();
+    ParallelRuleKeyCalculator<String> calculator =
+        new ParallelRuleKeyCalculator<>(service, factory, BUILD_DEPS, (bus, rule) -> () -> {});
+
+    ListenableFuture<String> rootKey = calculator.calculate(eventBus, root);
+    try {
+      rootKey.get(10, TimeUnit.SECONDS);
+      fail("expected the failure to propagate");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause().getCause(), instanceOf(IllegalStateException.class));
+    }
+    assertEquals("//:fine", calculator.calculate(eventBus, fine).get());
+    assertFalse(factory.built.containsKey(middle.getBuildTarget()));
+    assertFalse(factory.built.containsKey(root.getBuildTarget()));
+  }
+
+  @Test
+  public void failsWhenTheExecutorRejectsWork() throws Exception {
+    service.shutdown();
+    ParallelRuleKeyCalculator<String> calculator =
+        new ParallelRuleKeyCalculator<>(
+            service, new RecordingRuleKeyFactory(), BUILD_DEPS, (bus, rule) -> () -> {});
+
+    ListenableFuture<String> key = calculator.calculate(eventBus, new FakeBuildRule("//:rule"));
+    assertTrue(key.isDone());
+    try {
+      key.get();
+      fail("expected the rejection to be reported");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+    }
+  }
+
+  /** Uses target names as keys, recording which rules were built and in which order. */
+  private static class RecordingRuleKeyFactory implements RuleKeyFactory<String> {
+
+    private final ConcurrentMap<BuildTarget, Integer> built = new ConcurrentHashMap<>();
+    private final ConcurrentMap<BuildTarget, String> cached = new ConcurrentHashMap<>();
+    @Nullable private BuildTarget broken;
+    private volatile boolean builtTooEarly = false;
+
+    @Override
+    public String build(BuildRule buildRule) {
+      if (buildRule.getBuildTarget().equals(broken)) {
+        throw new IllegalStateException("broken");
+      }
+      for (BuildRule dep : buildRule.getBuildDeps()) {
+        if (!built.containsKey(dep.getBuildTarget())
+            && !cached.containsKey(dep.getBuildTarget())) {
+          builtTooEarly = true;
+        }
+      }
+      built.merge(buildRule.getBuildTarget(), 1, Integer::sum);
+      return buildRule.getFullyQualifiedName();
+    }
+
+    @Nullable
+    @Override
+    public String getFromCache(BuildRule buildRule) {
+      return cached.get(buildRule.getBuildTarget());
+    }
+  }
+}
@@ -19,6 +19,19 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.core.build.engine.BuildRuleStatus;
+import com.facebook.buck.core.build.engine.BuildRuleSuccessType;
+import com.facebook.buck.core.build.engine.type.UploadToCacheResultType;
+import com.facebook.buck.core.build.event.BuildRuleEvent;
+import com.facebook.buck.core.build.stats.BuildRuleDurationTracker;
+import com.facebook.buck.core.model.BuildId;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.rulekey.BuildRuleKeys;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.rules.FakeBuildRule;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.environment.DefaultExecutionEnvironment;
 import com.facebook.buck.util.timing.FakeClock;
@@ -168,4 +181,44 @@ public class AbstractConsoleEventBusListenerTest {
             ImmutableList.of(oneToThreeHundred, twoToThreeHundred));
     assertEquals("We should not double count when two event pairs overlap", 200L, timeElapsed);
   }
+
+  @Test
+  public void testRuleNotMaterializedIsCountedAsCompletedOnce() {
+    AbstractConsoleEventBusListener listener = createAbstractConsoleInstance();
+    BuildRule rule = new FakeBuildRule(BuildTargetFactory.newInstance("//banana:stand"));
+    BuildId buildId = new BuildId();
+
+    BuildRuleEvent.NotMaterialized notMaterialized =
+        BuildRuleEvent.notMaterialized(rule, CacheResult.contains("dir", ArtifactCacheMode.dir));
+    notMaterialized.configure(0, 0, 0, 0, buildId);
+    listener.buildRuleNotMaterialized(notMaterialized);
+    assertEquals(1, listener.numRulesCompleted.get());
+
+    // A rule which is materialized after all, because a dependent had to be built, isn't counted
+    // again when it finishes.
+    BuildRuleEvent.Started started = BuildRuleEvent.started(rule, new BuildRuleDurationTracker());
+    started.configure(1, 1, 0, 0, buildId);
+    listener.buildRuleStarted(started);
+    BuildRuleEvent.Finished finished =
+        BuildRuleEvent.finished(
+            started,
+            BuildRuleKeys.of(new RuleKey("aaaa")),
+            BuildRuleStatus.SUCCESS,
+            CacheResult.miss(),
+            Optional.empty(),
+            Optional.of(BuildRuleSuccessType.BUILT_LOCALLY),
+            UploadToCacheResultType.UNCACHEABLE,
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty());
+    finished.configure(2, 2, 0, 0, buildId);
+    listener.buildRuleFinished(finished);
+    assertEquals(1, listener.numRulesCompleted.get());
+  }
 }
@@ -84,6 +84,7 @@ import com.facebook.buck.testutil.TestConsole;
 import com.facebook.buck.util.ExitCode;
 import com.facebook.buck.util.environment.DefaultExecutionEnvironment;
 import com.facebook.buck.util.json.ObjectMappers;
+import com.facebook.buck.util.perf.MemoryAdmissionController.MemoryBudgetEvent;
 import com.facebook.buck.util.timing.Clock;
 import com.facebook.buck.util.timing.IncrementingFakeClock;
 import com.facebook.buck.util.unit.SizeUnit;
@@ -2924,6 +2925,52 @@ public class SuperConsoleEventBusListenerTest {
             "Building... 0.1 sec"));
   }
 
+  @Test
+  public void memoryBudgetIsDisplayedWhileBuilding() {
+    Clock fakeClock = new IncrementingFakeClock(TimeUnit.SECONDS.toNanos(1));
+    BuckEventBus eventBus = BuckEventBusForTests.newInstance(fakeClock);
+    SuperConsoleEventBusListener listener = createSuperConsole(fakeClock, eventBus);
+
+    BuildEvent.Started buildEventStarted = BuildEvent.started(ImmutableList.of("//banana:stand"));
+    eventBus.postWithoutConfiguring(
+        configureTestEventAtTime(buildEventStarted, 0L, TimeUnit.MILLISECONDS, /* threadId */ 0L));
+    ParseEvent.Started parseStarted = ParseEvent.started(ImmutableList.of());
+    eventBus.postWithoutConfiguring(
+        configureTestEventAtTime(parseStarted, 0L, TimeUnit.MILLISECONDS, /* threadId */ 0L));
+    eventBus.postWithoutConfiguring(
+        configureTestEventAtTime(
+            ParseEvent.finished(parseStarted, 0, Optional.empty()),
+            0L,
+            TimeUnit.MILLISECONDS,
+            /* threadId */ 0L));
+    ActionGraphEvent.Started actionGraphStarted = ActionGraphEvent.started();
+    eventBus.postWithoutConfiguring(
+        configureTestEventAtTime(actionGraphStarted, 0L, TimeUnit.MILLISECONDS, /* threadId */ 0L));
+    eventBus.postWithoutConfiguring(
+        configureTestEventAtTime(
+            ActionGraphEvent.finished(actionGraphStarted),
+            0L,
+            TimeUnit.MILLISECONDS,
+            /* threadId */ 0L));
+    eventBus.postWithoutConfiguring(
+        configureTestEventAtTime(
+            new MemoryBudgetEvent(
+                1536L * 1024 * 1024, 2048L * 1024 * 1024, 8L * 1024 * 1024 * 1024),
+            100L,
+            TimeUnit.MILLISECONDS,
+            /* threadId */ 0L));
+
+    validateConsole(
+        listener,
+        100L,
+        ImmutableList.of(
+            "Parsing buck files: finished in 0.0 sec",
+            "Creating action graph: finished in 0.0 sec",
+            formatCacheStatsLine(true, 0, 0f, 0f),
+            "Memory budget: 1.50 Gbytes in use, 2.00 Gbytes reserved of 8.00 Gbytes",
+            "Building... 0.1 sec"));
+  }
+
   private SuperConsoleEventBusListener createSuperConsole(Clock clock, BuckEventBus eventBus) {
     SuperConsoleEventBusListener listener =
         new SuperConsoleEventBusListener(
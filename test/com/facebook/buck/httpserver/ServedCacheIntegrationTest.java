@@ -146,6 +146,36 @@ public class ServedCacheIntegrationTest {
         projectFilesystem.readFileIfItExists(fetchedContents).get(), Matchers.equalTo(A_FILE_DATA));
   }
 
+  @Test
+  public void testMultiFetchFromServedDircache() throws Exception {
+    webServer = new WebServer(/* port */ 0, projectFilesystem);
+    webServer.updateAndStartIfNeeded(Optional.of(dirCache));
+
+    ArtifactCache serverBackedCache =
+        createArtifactCache(
+            createMockLocalConfig(
+                "[cache]",
+                "mode = http",
+                String.format("http_url = http://127.0.0.1:%d/", webServer.getPort().getAsInt()),
+                "multi_fetch = enabled"));
+
+    Path fetchedContents = tmpDir.newFile();
+    CacheResult cacheResult =
+        Futures.getUnchecked(
+            serverBackedCache.fetchAsync(
+                null, A_FILE_RULE_KEY, LazyPath.ofInstance(fetchedContents)));
+    assertThat(cacheResult.getType(), Matchers.is(CacheResultType.HIT));
+    assertThat(cacheResult.getMetadata(), Matchers.equalTo(A_FILE_METADATA));
+    assertThat(
+        projectFilesystem.readFileIfItExists(fetchedContents).get(), Matchers.equalTo(A_FILE_DATA));
+
+    cacheResult =
+        Futures.getUnchecked(
+            serverBackedCache.fetchAsync(
+                null, new RuleKey("9876543210"), LazyPath.ofInstance(tmpDir.newFile())));
+    assertThat(cacheResult.getType(), Matchers.is(CacheResultType.MISS));
+  }
+
   private static class ThrowAfterXBytesStream extends FilterInputStream {
     private final long bytesToThrowAfter;
     private long bytesRead = 0L;
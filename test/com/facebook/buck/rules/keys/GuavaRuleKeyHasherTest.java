@@ -16,9 +16,18 @@
 
 package com.facebook.buck.rules.keys;
 
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.rules.keys.hasher.GuavaRuleKeyHasher;
+import com.facebook.buck.rules.keys.hasher.RuleKeyHasherTypes;
+import com.google.common.base.Strings;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
@@ -44,6 +53,48 @@ public class GuavaRuleKeyHasherTest {
     }
   }
 
+  public static class EncodingTest {
+
+    @Test
+    public void testStringsAreHashedAsUtf8() {
+      // Includes strings longer than the hasher's initial scratch buffer and non-ASCII strings,
+      // which take different encoding paths.
+      String[] strings = {
+        "", "abc", Strings.repeat("long", 100), "\u00e9t\u00e9", "\ud83d\ude00", "abc",
+      };
+      GuavaRuleKeyHasher ruleKeyHasher = newHasher();
+      Hasher expected = Hashing.sha1().newHasher();
+      for (String string : strings) {
+        ruleKeyHasher.putString(string);
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        expected.putBytes(bytes).putInt(bytes.length).putByte(RuleKeyHasherTypes.STRING);
+      }
+      assertEquals(expected.hash(), ruleKeyHasher.hash());
+    }
+
+    @Test
+    public void testHashCodesAreHashedAsBytes() {
+      RuleKey ruleKey = new RuleKey("a002b39af204cdfaa5fdb67816b13867c32ac52c");
+      HashCode fileHash = HashCode.fromString("b67816b13867c32ac52c");
+      byte[] path = "foo/bar".getBytes(StandardCharsets.UTF_8);
+      Hasher expected =
+          Hashing.sha1()
+              .newHasher()
+              .putBytes(ruleKey.getHashCode().asBytes())
+              .putInt(20)
+              .putByte(RuleKeyHasherTypes.RULE_KEY)
+              .putBytes(path)
+              .putInt(path.length)
+              .putByte(RuleKeyHasherTypes.PATH)
+              .putBytes(fileHash.asBytes())
+              .putInt(10)
+              .putByte(RuleKeyHasherTypes.PATH);
+      assertEquals(
+          expected.hash(),
+          newHasher().putRuleKey(ruleKey).putPath(Paths.get("foo/bar"), fileHash).hash());
+    }
+  }
+
   public static GuavaRuleKeyHasher newHasher() {
     return new GuavaRuleKeyHasher(Hashing.sha1().newHasher());
   }
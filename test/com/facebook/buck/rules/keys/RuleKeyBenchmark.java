@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.rulekey.AddToRuleKey;
+import com.facebook.buck.core.rulekey.AddsToRuleKey;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.SourcePathRuleFinder;
+import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
+import com.facebook.buck.core.sourcepath.FakeSourcePath;
+import com.facebook.buck.core.sourcepath.SourcePath;
+import com.facebook.buck.core.sourcepath.resolver.SourcePathResolver;
+import com.facebook.buck.core.sourcepath.resolver.impl.DefaultSourcePathResolver;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of computing default rule keys for rules shaped like the largest ones in
+ * real builds. Every invocation uses a fresh factory, so the keys of all deps are computed too.
+ *
+ * <p>Run with {@code -prof gc} to see the allocation rate of rule key calculation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class RuleKeyBenchmark {
+
+  @Param({"100", "1000"})
+  private int size;
+
+  private SourcePathResolver pathResolver;
+  private SourcePathRuleFinder ruleFinder;
+  private FakeFileHashCache hashCache;
+  private BuildRule library;
+  private BuildRule binary;
+
+  @Setup
+  public void setUp() {
+    ruleFinder = new SourcePathRuleFinder(new TestActionGraphBuilder());
+    pathResolver = DefaultSourcePathResolver.from(ruleFinder);
+    Map<Path, HashCode> hashes = new HashMap<>();
+
+    ImmutableList.Builder<SourcePath> srcs = ImmutableList.builder();
+    ImmutableSortedMap.Builder<String, SourcePath> headers = ImmutableSortedMap.naturalOrder();
+    ImmutableList.Builder<String> flags = ImmutableList.builder();
+    for (int i = 0; i < size; i++) {
+      SourcePath src = FakeSourcePath.of("lib/src/file" + i + ".cpp");
+      SourcePath header = FakeSourcePath.of("lib/include/file" + i + ".h");
+      hashes.put(pathResolver.getAbsolutePath(src), HashCode.fromInt(i));
+      hashes.put(pathResolver.getAbsolutePath(header), HashCode.fromInt(-i));
+      srcs.add(src);
+      headers.put("lib/file" + i + ".h", header);
+      flags.add("-DLIBRARY_DEFINE_" + i + "=" + i);
+    }
+    library =
+        new LibraryRule(
+            BuildTargetFactory.newInstance("//lib:lib"),
+            srcs.build(),
+            headers.build(),
+            flags.build());
+
+    ImmutableList.Builder<BuildRule> deps = ImmutableList.builder();
+    ImmutableList.Builder<Resource> resources = ImmutableList.builder();
+    ImmutableSortedMap.Builder<String, String> manifestEntries = ImmutableSortedMap.naturalOrder();
+    for (int i = 0; i < size; i++) {
+      SourcePath res = FakeSourcePath.of("app/res/values" + i + ".xml");
+      hashes.put(pathResolver.getAbsolutePath(res), HashCode.fromInt(i));
+      deps.add(
+          new LibraryRule(
+              BuildTargetFactory.newInstance("//app/lib" + i + ":lib"),
+              ImmutableList.of(res),
+              ImmutableSortedMap.of(),
+              ImmutableList.of("-O2")));
+      resources.add(
+          new Resource(res, "package" + i, i % 2 == 0 ? Optional.of(i) : Optional.empty()));
+      manifestEntries.put("entry" + i, "value" + i);
+    }
+    binary =
+        new BinaryRule(
+            BuildTargetFactory.newInstance("//app:app"),
+            deps.build(),
+            resources.build(),
+            manifestEntries.build());
+
+    hashCache = new FakeFileHashCache(hashes);
+  }
+
+  /** A rule with many sources, headers and flags, like a large {@code cxx_library}. */
+  @Benchmark
+  public RuleKey libraryRuleKey() {
+    return newFactory().build(library);
+  }
+
+  /**
+   * A rule with many deps and nested values, like an {@code android_binary} with many resources.
+   */
+  @Benchmark
+  public RuleKey binaryRuleKey() {
+    return newFactory().build(binary);
+  }
+
+  private DefaultRuleKeyFactory newFactory() {
+    return new TestDefaultRuleKeyFactory(hashCache, pathResolver, ruleFinder);
+  }
+
+  private static class LibraryRule extends EmptyFakeBuildRule {
+    @AddToRuleKey private final ImmutableList<SourcePath> srcs;
+    @AddToRuleKey private final ImmutableSortedMap<String, SourcePath> headers;
+    @AddToRuleKey private final ImmutableList<String> flags;
+    @AddToRuleKey private final boolean linkWhole = false;
+
+    private LibraryRule(
+        BuildTarget target,
+        ImmutableList<SourcePath> srcs,
+        ImmutableSortedMap<String, SourcePath> headers,
+        ImmutableList<String> flags) {
+      super(target);
+      this.srcs = srcs;
+      this.headers = headers;
+      this.flags = flags;
+    }
+  }
+
+  private static class BinaryRule extends EmptyFakeBuildRule {
+    @AddToRuleKey private final ImmutableList<BuildRule> deps;
+    @AddToRuleKey private final ImmutableList<Resource> resources;
+    @AddToRuleKey private final ImmutableSortedMap<String, String> manifestEntries;
+
+    private BinaryRule(
+        BuildTarget target,
+        ImmutableList<BuildRule> deps,
+        ImmutableList<Resource> resources,
+        ImmutableSortedMap<String, String> manifestEntries) {
+      super(target);
+      this.deps = deps;
+      this.resources = resources;
+      this.manifestEntries = manifestEntries;
+    }
+  }
+
+  private static class Resource implements AddsToRuleKey {
+    @AddToRuleKey private final SourcePath path;
+    @AddToRuleKey private final String packageName;
+    @AddToRuleKey private final Optional<Integer> version;
+
+    private Resource(SourcePath path, String packageName, Optional<Integer> version) {
+      this.path = path;
+      this.packageName = packageName;
+      this.version = version;
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.model.actiongraph.ActionGraph;
+import com.facebook.buck.core.model.targetgraph.FakeTargetNodeBuilder;
+import com.facebook.buck.core.model.targetgraph.TargetGraph;
+import com.facebook.buck.core.model.targetgraph.TargetGraphFactory;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.toolchain.ComparableToolchain;
+import com.facebook.buck.core.toolchain.ToolchainProvider;
+import com.facebook.buck.core.toolchain.impl.ToolchainProviderBuilder;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.keys.config.TestRuleKeyConfigurationFactory;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.cache.NoOpCacheStatsTracker;
+import com.facebook.buck.util.config.RawConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class RuleKeyCacheSnapshotterTest {
+
+  private static final String FINGERPRINT = "fingerprint";
+  private static final RuleKey DEP_KEY = new RuleKey("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+  private static final RuleKey RULE_KEY = new RuleKey("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Path snapshotPath;
+  private RuleKeyInput input;
+  private BuildRule dep;
+  private BuildRule rule;
+  private ActionGraph actionGraph;
+  private TargetGraph targetGraph;
+
+  @Before
+  public void setUp() {
+    filesystem = new FakeProjectFilesystem();
+    snapshotPath = tmp.getRoot().resolve(RuleKeyCacheSnapshotter.SNAPSHOT_FILE_NAME);
+    input = RuleKeyInput.of(filesystem, filesystem.getPath("input"));
+    dep = new FakeBuildRule("//:dep");
+    rule = new FakeBuildRule("//:rule", dep);
+    actionGraph = new ActionGraph(ImmutableList.of(dep, rule));
+    TargetNode<?> depNode = FakeTargetNodeBuilder.build(dep);
+    targetGraph =
+        TargetGraphFactory.newInstance(
+            depNode, FakeTargetNodeBuilder.newBuilder(rule).setDeps(depNode).build());
+  }
+
+  @Test
+  public void restoresSavedRuleKeys() throws IOException {
+    saveSnapshot(hashes("cccc"));
+
+    DefaultRuleKeyCache<RuleKey> cache = new DefaultRuleKeyCache<>(true);
+    RuleKeyCacheSnapshotter snapshotter = new RuleKeyCacheSnapshotter(snapshotPath, cache);
+    assertEquals(
+        2,
+        snapshotter.restore(
+            FINGERPRINT, actionGraph, targetGraph, hashes("cccc"), ImmutableList.of(filesystem)));
+    assertEquals(DEP_KEY, cache.get(dep, new NoOpCacheStatsTracker()));
+    assertEquals(RULE_KEY, cache.get(rule, new NoOpCacheStatsTracker()));
+
+    // Restored keys keep tracking their inputs, so they're invalidated like computed ones.
+    cache.invalidateInputs(ImmutableList.of(input), new NoOpCacheStatsTracker());
+    assertTrue(cache.isEmpty());
+  }
+
+  @Test
+  public void doesNotRestoreRuleKeysWithChangedInputs() throws IOException {
+    saveSnapshot(hashes("cccc"));
+
+    DefaultRuleKeyCache<RuleKey> cache = new DefaultRuleKeyCache<>(true);
+    RuleKeyCacheSnapshotter snapshotter = new RuleKeyCacheSnapshotter(snapshotPath, cache);
+    assertEquals(
+        0,
+        snapshotter.restore(
+            FINGERPRINT, actionGraph, targetGraph, hashes("dddd"), ImmutableList.of(filesystem)));
+    assertTrue(cache.isEmpty());
+  }
+
+  @Test
+  public void ignoresSnapshotWrittenWithDifferentSettings() throws IOException {
+    saveSnapshot(hashes("cccc"));
+
+    DefaultRuleKeyCache<RuleKey> cache = new DefaultRuleKeyCache<>(true);
+    RuleKeyCacheSnapshotter snapshotter = new RuleKeyCacheSnapshotter(snapshotPath, cache);
+    assertEquals(
+        0,
+        snapshotter.restore(
+            "other", actionGraph, targetGraph, hashes("cccc"), ImmutableList.of(filesystem)));
+    assertTrue(cache.isEmpty());
+  }
+
+  @Test
+  public void fingerprintDependsOnTheEnvironmentAndToolchains() {
+    ImmutableMap<String, String> environment = ImmutableMap.of("PATH", "/usr/bin");
+    ImmutableList<RawConfig> configs = ImmutableList.of(RawConfig.of());
+    ToolchainProvider toolchains =
+        new ToolchainProviderBuilder().withToolchain("sdk", new FakeToolchain("1.0")).build();
+    String fingerprint =
+        RuleKeyCacheSnapshotter.getFingerprint(
+            TestRuleKeyConfigurationFactory.create(),
+            environment,
+            configs,
+            ImmutableList.of(toolchains));
+
+    assertEquals(
+        fingerprint,
+        RuleKeyCacheSnapshotter.getFingerprint(
+            TestRuleKeyConfigurationFactory.create(),
+            ImmutableMap.copyOf(environment),
+            configs,
+            ImmutableList.of(
+                new ToolchainProviderBuilder()
+                    .withToolchain("sdk", new FakeToolchain("1.0"))
+                    .build())));
+    assertNotEquals(
+        fingerprint,
+        RuleKeyCacheSnapshotter.getFingerprint(
+            TestRuleKeyConfigurationFactory.create(),
+            ImmutableMap.of("PATH", "/opt/bin:/usr/bin"),
+            configs,
+            ImmutableList.of(toolchains)));
+    assertNotEquals(
+        fingerprint,
+        RuleKeyCacheSnapshotter.getFingerprint(
+            TestRuleKeyConfigurationFactory.create(),
+            environment,
+            configs,
+            ImmutableList.of(
+                new ToolchainProviderBuilder()
+                    .withToolchain("sdk", new FakeToolchain("2.0"))
+                    .build())));
+  }
+
+  @Test
+  public void fingerprintIgnoresPerInvocationEnvironment() {
+    ImmutableList<RawConfig> configs = ImmutableList.of(RawConfig.of());
+    assertEquals(
+        RuleKeyCacheSnapshotter.getFingerprint(
+            TestRuleKeyConfigurationFactory.create(),
+            ImmutableMap.of("PATH", "/usr/bin", "BUCK_BUILD_ID", "1111"),
+            configs,
+            ImmutableList.of()),
+        RuleKeyCacheSnapshotter.getFingerprint(
+            TestRuleKeyConfigurationFactory.create(),
+            ImmutableMap.of("PATH", "/usr/bin", "BUCK_BUILD_ID", "2222"),
+            configs,
+            ImmutableList.of()));
+  }
+
+  @Test
+  public void doesNotRestoreRuleKeysOfChangedTargets() throws IOException {
+    saveSnapshot(hashes("cccc"));
+
+    // The dep gains a new dep in the target graph, which changes the structure of both rules.
+    TargetNode<?> newNode =
+        FakeTargetNodeBuilder.newBuilder(BuildTargetFactory.newInstance("//:new")).build();
+    TargetNode<?> depNode = FakeTargetNodeBuilder.newBuilder(dep).setDeps(newNode).build();
+    TargetGraph changedTargetGraph =
+        TargetGraphFactory.newInstance(
+            newNode, depNode, FakeTargetNodeBuilder.newBuilder(rule).setDeps(depNode).build());
+    DefaultRuleKeyCache<RuleKey> cache = new DefaultRuleKeyCache<>(true);
+    RuleKeyCacheSnapshotter snapshotter = new RuleKeyCacheSnapshotter(snapshotPath, cache);
+    assertEquals(
+        0,
+        snapshotter.restore(
+            FINGERPRINT,
+            actionGraph,
+            changedTargetGraph,
+            hashes("cccc"),
+            ImmutableList.of(filesystem)));
+    assertTrue(cache.isEmpty());
+  }
+
+  private void saveSnapshot(FakeFileHashCache hashCache) throws IOException {
+    DefaultRuleKeyCache<RuleKey> cache = new DefaultRuleKeyCache<>(true);
+    RuleKeyCacheSnapshotter snapshotter = new RuleKeyCacheSnapshotter(snapshotPath, cache);
+    snapshotter.restore(
+        FINGERPRINT, actionGraph, targetGraph, hashCache, ImmutableList.of(filesystem));
+    cache.get(
+        dep,
+        r -> new RuleKeyResult<>(DEP_KEY, ImmutableList.of(), ImmutableList.of(input)),
+        new NoOpCacheStatsTracker());
+    cache.get(
+        rule,
+        r -> new RuleKeyResult<>(RULE_KEY, ImmutableList.of(dep), ImmutableList.of()),
+        new NoOpCacheStatsTracker());
+    snapshotter.saveIfChanged(hashCache);
+  }
+
+  private FakeFileHashCache hashes(String hash) {
+    return new FakeFileHashCache(
+        ImmutableMap.of(filesystem.resolve(input.getPath()), HashCode.fromString(hash)));
+  }
+
+  private static class FakeToolchain implements ComparableToolchain {
+    private final String version;
+
+    private FakeToolchain(String version) {
+      this.version = version;
+    }
+
+    @Override
+    public String toString() {
+      return "FakeToolchain{version=" + version + "}";
+    }
+  }
+}
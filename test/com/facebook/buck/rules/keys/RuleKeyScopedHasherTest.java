@@ -159,6 +159,47 @@ public class RuleKeyScopedHasherTest {
     assertEquals(newGuavaHasher().hash(), countHasher.hash());
   }
 
+  @Test
+  public void testNestedScopes() {
+    CountingRuleKeyHasher<HashCode> countHasher = newCountHasher();
+    RuleKeyScopedHasher containerHasher = new DefaultRuleKeyScopedHasher<>(countHasher);
+    try (Scope keyScope = containerHasher.keyScope("key")) {
+      try (RuleKeyScopedHasher.ContainerScope containerScope =
+          containerHasher.containerScope(RuleKeyHasher.Container.LIST)) {
+        try (Scope elementScope = containerScope.elementScope()) {
+          try (Scope wrapperScope = containerHasher.wrapperScope(RuleKeyHasher.Wrapper.OPTIONAL)) {
+            try (RuleKeyScopedHasher.ContainerScope innerScope =
+                containerHasher.containerScope(RuleKeyHasher.Container.MAP)) {
+              try (Scope innerElementScope = innerScope.elementScope()) {
+                countHasher.putString("k");
+              }
+              try (Scope innerElementScope = innerScope.elementScope()) {
+                countHasher.putString("v");
+              }
+            }
+          }
+        }
+        try (Scope elementScope = containerScope.elementScope()) { // NOPMD
+          // no-op
+        }
+        try (Scope elementScope = containerScope.elementScope()) {
+          countHasher.putString("e");
+        }
+      }
+    }
+    assertEquals(
+        newGuavaHasher()
+            .putString("k")
+            .putString("v")
+            .putContainer(RuleKeyHasher.Container.MAP, 2)
+            .putWrapper(RuleKeyHasher.Wrapper.OPTIONAL)
+            .putString("e")
+            .putContainer(RuleKeyHasher.Container.LIST, 2)
+            .putKey("key")
+            .hash(),
+        countHasher.hash());
+  }
+
   private CountingRuleKeyHasher<HashCode> newCountHasher() {
     return new CountingRuleKeyHasher<>(newGuavaHasher());
   }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ValueAccessorsTest {
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void fieldValuesAreReadThroughMethodHandles() throws Exception {
+    Field field = Values.class.getDeclaredField("number");
+    field.setAccessible(true);
+    assertTrue(ValueAccessors.getterFor(field).isPresent());
+    assertEquals(42, new FieldValueExtractor(field).getValue(new Values()));
+
+    Field nullField = Values.class.getDeclaredField("nothing");
+    nullField.setAccessible(true);
+    assertNull(new FieldValueExtractor(nullField).getValue(new Values()));
+  }
+
+  @Test
+  public void methodValuesAreReadThroughMethodHandles() throws Exception {
+    Method method = Values.class.getDeclaredMethod("isEnabled");
+    method.setAccessible(true);
+    assertTrue(ValueAccessors.invokerFor(method).isPresent());
+    ValueMethodValueExtractor extractor = new ValueMethodValueExtractor(method);
+    assertEquals("enabled", extractor.getName());
+    assertEquals(true, extractor.getValue(new Values()));
+  }
+
+  @Test
+  public void exceptionsThrownByMethodsPropagate() throws Exception {
+    Method method = Values.class.getDeclaredMethod("getBroken");
+    method.setAccessible(true);
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("broken");
+    new ValueMethodValueExtractor(method).getValue(new Values());
+  }
+
+  @SuppressWarnings("unused")
+  private static class Values {
+    private final int number = 42;
+    private final Object nothing = null;
+
+    private boolean isEnabled() {
+      return true;
+    }
+
+    private String getBroken() {
+      throw new IllegalStateException("broken");
+    }
+  }
+}
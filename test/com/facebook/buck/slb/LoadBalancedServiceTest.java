@@ -0,0 +1,250 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.slb;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.testutil.integration.HttpdForTests;
+import com.facebook.buck.util.timing.DefaultClock;
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Runs requests against local stand-in servers that respond with different latencies. */
+public class LoadBalancedServiceTest {
+
+  private static final String PATH = "/artifacts/key/0123456789abcdef";
+  private static final long SLOW_RESPONSE_MILLIS = 2000;
+
+  private DelayedResponseHandler slowHandler;
+  private DelayedResponseHandler fastHandler;
+  private HttpdForTests slowServer;
+  private HttpdForTests fastServer;
+  private BuckEventBus eventBus;
+  private List<LoadBalancedServiceEventData> events;
+
+  @Before
+  public void setUp() throws Exception {
+    slowHandler = new DelayedResponseHandler("slow");
+    slowServer = new HttpdForTests();
+    slowServer.addHandler(slowHandler);
+    slowServer.start();
+
+    fastServer = new HttpdForTests();
+    fastHandler = new DelayedResponseHandler("fast");
+    fastServer.addHandler(fastHandler);
+    fastServer.start();
+
+    eventBus = BuckEventBusForTests.newInstance();
+    events = new ArrayList<>();
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void onLoadBalancedServiceEvent(LoadBalancedServiceEvent event) {
+            events.add(event.getData());
+          }
+        });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    // Let requests still held by the slow server finish so that it shuts down promptly.
+    slowHandler.delayMillis.set(0);
+    slowServer.close();
+    fastServer.close();
+  }
+
+  @Test
+  public void testSlowFetchIsHedgedToAnotherServer() throws IOException {
+    try (ClientSideSlb slb = newSlbPreferringSlowServer(true);
+        LoadBalancedService service = new LoadBalancedService(slb, new OkHttpClient(), eventBus)) {
+      slowHandler.delayMillis.set(SLOW_RESPONSE_MILLIS);
+
+      long startNanos = System.nanoTime();
+      String body = fetch(service, new Request.Builder().get());
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+      Assert.assertEquals("fast", body);
+      Assert.assertTrue(
+          String.format("Hedged fetch took %d ms", elapsedMillis),
+          elapsedMillis < SLOW_RESPONSE_MILLIS);
+      LoadBalancedServiceEventData data = events.get(0);
+      Assert.assertEquals(getUri(fastServer), data.getServer());
+      Assert.assertEquals(Optional.of(getUri(slowServer)), data.getHedgedServer());
+    }
+  }
+
+  @Test
+  public void testHedgedErrorDoesNotReplaceSlowSuccess() throws IOException {
+    try (ClientSideSlb slb = newSlbPreferringSlowServer(true);
+        LoadBalancedService service = new LoadBalancedService(slb, new OkHttpClient(), eventBus)) {
+      slowHandler.delayMillis.set(500);
+      fastHandler.statusCode.set(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+
+      String body = fetch(service, new Request.Builder().get());
+
+      Assert.assertEquals("slow", body);
+      LoadBalancedServiceEventData data = events.get(0);
+      Assert.assertEquals(getUri(slowServer), data.getServer());
+      Assert.assertEquals(Optional.of(getUri(fastServer)), data.getHedgedServer());
+    }
+  }
+
+  @Test
+  public void testSlowFetchWaitsForServerWithoutHedging() throws IOException {
+    try (ClientSideSlb slb = newSlbPreferringSlowServer(false);
+        LoadBalancedService service = new LoadBalancedService(slb, new OkHttpClient(), eventBus)) {
+      slowHandler.delayMillis.set(SLOW_RESPONSE_MILLIS);
+
+      long startNanos = System.nanoTime();
+      String body = fetch(service, new Request.Builder().get());
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+      Assert.assertEquals("slow", body);
+      Assert.assertTrue(elapsedMillis >= SLOW_RESPONSE_MILLIS);
+      Assert.assertEquals(Optional.empty(), events.get(0).getHedgedServer());
+    }
+  }
+
+  @Test
+  public void testRequestsWithBodyAreNotHedged() throws IOException {
+    try (ClientSideSlb slb = newSlbPreferringSlowServer(true);
+        LoadBalancedService service = new LoadBalancedService(slb, new OkHttpClient(), eventBus)) {
+      slowHandler.delayMillis.set(200);
+
+      String body =
+          fetch(
+              service,
+              new Request.Builder()
+                  .post(RequestBody.create(MediaType.parse("text/plain"), "contents")));
+
+      Assert.assertEquals("slow", body);
+      Assert.assertEquals(Optional.empty(), events.get(0).getHedgedServer());
+    }
+  }
+
+  @Test
+  public void testHedgingBoundsTailLatencyOfIntermittentlySlowServer() throws IOException {
+    try (ClientSideSlb slb = newSlbPreferringSlowServer(true);
+        LoadBalancedService service = new LoadBalancedService(slb, new OkHttpClient(), eventBus)) {
+      long maxElapsedMillis = 0;
+      for (int i = 0; i < 10; ++i) {
+        // Every other request stalls on the slow server.
+        slowHandler.delayMillis.set(i % 2 == 0 ? SLOW_RESPONSE_MILLIS : 0);
+        long startNanos = System.nanoTime();
+        fetch(service, new Request.Builder().get());
+        maxElapsedMillis =
+            Math.max(
+                maxElapsedMillis, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+      }
+
+      Assert.assertTrue(
+          String.format("Slowest fetch took %d ms", maxElapsedMillis),
+          maxElapsedMillis < SLOW_RESPONSE_MILLIS);
+    }
+  }
+
+  /**
+   * Creates a load balancer that has seen plenty of fast requests to the slow server, so it ranks
+   * it first and knows what latency to expect from it.
+   */
+  private ClientSideSlb newSlbPreferringSlowServer(boolean hedgingEnabled) {
+    URI slowUri = getUri(slowServer);
+    URI fastUri = getUri(fastServer);
+    ClientSideSlb slb =
+        new ClientSideSlb(
+            ClientSideSlbConfig.builder()
+                .setClock(new DefaultClock())
+                .setServerPool(ImmutableList.of(slowUri, fastUri))
+                .setEventBus(eventBus)
+                .setHedgingEnabled(hedgingEnabled)
+                .build(),
+            new OkHttpClient.Builder());
+    for (int i = 0; i < 20; ++i) {
+      slb.reportRequestLatency(slowUri, 10);
+    }
+    slb.reportRequestLatency(fastUri, 50);
+    return slb;
+  }
+
+  private static URI getUri(HttpdForTests server) {
+    return URI.create(String.format("http://localhost:%d/", server.getRootUri().getPort()));
+  }
+
+  private static String fetch(LoadBalancedService service, Request.Builder requestBuilder)
+      throws IOException {
+    try (HttpResponse response = service.makeRequest(PATH, requestBuilder);
+        InputStream body = response.getBody()) {
+      return new String(ByteStreams.toByteArray(body), StandardCharsets.UTF_8);
+    }
+  }
+
+  /** Answers requests for artifacts with a fixed body after a configurable delay. */
+  private static class DelayedResponseHandler extends AbstractHandler {
+    private final String body;
+    private final AtomicLong delayMillis = new AtomicLong(0);
+    private final AtomicInteger statusCode = new AtomicInteger(HttpServletResponse.SC_OK);
+
+    private DelayedResponseHandler(String body) {
+      this.body = body;
+    }
+
+    @Override
+    public void handle(
+        String target,
+        org.eclipse.jetty.server.Request request,
+        HttpServletRequest httpServletRequest,
+        HttpServletResponse httpServletResponse)
+        throws IOException {
+      if (target.startsWith("/artifacts")) {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis.get());
+        while (System.nanoTime() < deadlineNanos && delayMillis.get() > 0) {
+          try {
+            Thread.sleep(10);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+      }
+      httpServletResponse.setStatus(statusCode.get());
+      httpServletResponse.getOutputStream().write(body.getBytes(StandardCharsets.UTF_8));
+      request.setHandled(true);
+    }
+  }
+}
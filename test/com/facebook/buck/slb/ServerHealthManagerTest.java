@@ -22,6 +22,8 @@ import com.facebook.buck.util.timing.FakeClock;
 import com.google.common.collect.ImmutableList;
 import java.io.IOException;
 import java.net.URI;
+import java.util.Optional;
+import java.util.OptionalLong;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -95,6 +97,55 @@ public class ServerHealthManagerTest {
     Assert.fail("All servers have high latency so an exception was expected.");
   }
 
+  @Test
+  public void testServerWithLowestRequestLatencyIsReturned() throws IOException {
+    ServerHealthManager manager = newServerHealthManager();
+    reportLatencyToAll(manager, 1);
+    manager.reportRequestLatency(SERVERS.get(0), 30);
+    manager.reportRequestLatency(SERVERS.get(1), 10);
+    manager.reportRequestLatency(SERVERS.get(2), 20);
+
+    Assert.assertEquals(SERVERS.get(1), manager.getBestServer());
+    Assert.assertEquals(
+        Optional.of(SERVERS.get(2)), manager.getBestServerOtherThan(SERVERS.get(1)));
+  }
+
+  @Test
+  public void testRequestLatencyIsNotComparedWithPingLatency() throws IOException {
+    ServerHealthManager manager = newServerHealthManager();
+    manager.reportPingLatency(SERVERS.get(0), 5);
+    manager.reportPingLatency(SERVERS.get(1), 10);
+    manager.reportPingLatency(SERVERS.get(2), 20);
+    manager.reportRequestLatency(SERVERS.get(0), 30);
+
+    Assert.assertEquals(SERVERS.get(0), manager.getBestServer());
+    Assert.assertEquals(
+        Optional.of(SERVERS.get(1)), manager.getBestServerOtherThan(SERVERS.get(0)));
+  }
+
+  @Test
+  public void testHedgeDelayNeedsEnoughRequests() {
+    ServerHealthManager manager = newServerHealthManager();
+    URI server = SERVERS.get(0);
+    for (int i = 0; i < 19; ++i) {
+      manager.reportRequestLatency(server, 10);
+    }
+    Assert.assertEquals(OptionalLong.empty(), manager.getHedgeDelayMillis(server));
+
+    manager.reportRequestLatency(server, 30);
+    Assert.assertEquals(OptionalLong.of(10), manager.getHedgeDelayMillis(server));
+  }
+
+  @Test
+  public void testHedgeDelayHasAMinimum() {
+    ServerHealthManager manager = newServerHealthManager();
+    URI server = SERVERS.get(0);
+    for (int i = 0; i < 20; ++i) {
+      manager.reportRequestLatency(server, 0);
+    }
+    Assert.assertEquals(OptionalLong.of(10), manager.getHedgeDelayMillis(server));
+  }
+
   private void reportLatencyToAll(ServerHealthManager manager, int latencyMillis) {
     for (URI server : SERVERS) {
       manager.reportPingLatency(server, latencyMillis);
@@ -99,6 +99,36 @@ public class ServerHealthStateTest {
     Assert.assertEquals(1f, errorsPerSecond, DELTA);
   }
 
+  @Test
+  public void testRequestLatencyEwmaFavoursRecentRequests() {
+    ServerHealthState state = new ServerHealthState(SERVER);
+    Assert.assertEquals(-1, state.getRequestLatencyEwmaMillis(NOW_MILLIS, RANGE_MILLIS));
+
+    state.reportRequestLatency(NOW_MILLIS, 100);
+    Assert.assertEquals(100, state.getRequestLatencyEwmaMillis(NOW_MILLIS, RANGE_MILLIS));
+
+    state.reportRequestLatency(NOW_MILLIS, 200);
+    Assert.assertEquals(120, state.getRequestLatencyEwmaMillis(NOW_MILLIS, RANGE_MILLIS));
+
+    Assert.assertEquals(
+        -1, state.getRequestLatencyEwmaMillis(NOW_MILLIS + RANGE_MILLIS + 1, RANGE_MILLIS));
+  }
+
+  @Test
+  public void testRequestLatencyPercentile() {
+    ServerHealthState state = new ServerHealthState(SERVER);
+    for (int latencyMillis = 1; latencyMillis <= 20; ++latencyMillis) {
+      state.reportRequestLatency(NOW_MILLIS, latencyMillis);
+    }
+
+    Assert.assertEquals(
+        19, state.getRequestLatencyPercentileMillis(NOW_MILLIS, RANGE_MILLIS, 0.95, 20));
+    Assert.assertEquals(
+        10, state.getRequestLatencyPercentileMillis(NOW_MILLIS, RANGE_MILLIS, 0.5, 20));
+    Assert.assertEquals(
+        -1, state.getRequestLatencyPercentileMillis(NOW_MILLIS, RANGE_MILLIS, 0.95, 21));
+  }
+
   private void reportSamples(ServerHealthState state, long epochMillis, int latencyMillis) {
     state.reportRequestError(epochMillis);
     state.reportPingLatency(epochMillis, latencyMillis);
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.cache.HashCodeAndFileType;
+import com.facebook.buck.util.cache.JarContentHasher;
+import com.facebook.buck.util.timing.SettableFakeClock;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CachingJarContentHasherTest {
+
+  private static final Path JAR = Paths.get("lib.jar");
+  private static final HashCode JAR_HASH = HashCode.fromInt(42);
+  private static final ImmutableMap<Path, HashCodeAndFileType> CONTENTS =
+      ImmutableMap.of(Paths.get("A.class"), HashCodeAndFileType.ofFile(HashCode.fromInt(1)));
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static class CountingJarContentHasher implements JarContentHasher {
+    private int reads = 0;
+
+    @Override
+    public Path getJarRelativePath() {
+      return JAR;
+    }
+
+    @Override
+    public ImmutableMap<Path, HashCodeAndFileType> getContentHashes() {
+      reads++;
+      return CONTENTS;
+    }
+  }
+
+  private static Cache<HashCode, ImmutableMap<Path, HashCodeAndFileType>> newCache() {
+    return CacheBuilder.newBuilder().build();
+  }
+
+  @Test
+  public void jarWithTheSameHashIsOnlyReadOnce() throws IOException {
+    CountingJarContentHasher delegate = new CountingJarContentHasher();
+    Cache<HashCode, ImmutableMap<Path, HashCodeAndFileType>> cache = newCache();
+
+    assertSame(
+        CONTENTS, new CachingJarContentHasher(delegate, JAR_HASH, cache, null).getContentHashes());
+    assertSame(
+        CONTENTS, new CachingJarContentHasher(delegate, JAR_HASH, cache, null).getContentHashes());
+    assertEquals(1, delegate.reads);
+
+    new CachingJarContentHasher(delegate, HashCode.fromInt(43), cache, null).getContentHashes();
+    assertEquals(2, delegate.reads);
+  }
+
+  @Test
+  public void persistedContentsAreUsedByANewCache() throws IOException {
+    Path storePath = tmp.getRoot().resolve(PersistentFileHashStore.FILE_NAME);
+    SettableFakeClock clock = SettableFakeClock.DO_NOT_CARE;
+    CountingJarContentHasher delegate = new CountingJarContentHasher();
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath, clock);
+    new CachingJarContentHasher(delegate, JAR_HASH, newCache(), store).getContentHashes();
+    store.saveIfChanged();
+
+    new CachingJarContentHasher(
+            delegate, JAR_HASH, newCache(), new PersistentFileHashStore(storePath, clock))
+        .getContentHashes();
+    assertEquals(1, delegate.reads);
+  }
+}
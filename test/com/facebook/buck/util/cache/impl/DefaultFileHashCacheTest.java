@@ -22,6 +22,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
+import com.facebook.buck.event.FileHashCacheEvent;
 import com.facebook.buck.io.ArchiveMemberPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
@@ -42,8 +43,11 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
@@ -184,6 +188,34 @@ public class DefaultFileHashCacheTest {
     assertFalse(cache.getIfPresent(child2).isPresent());
   }
 
+  @Test(timeout = 60000)
+  public void directoryHashedInParallelMatchesSerialHash() throws IOException {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path dir = filesystem.getPath("dir");
+    for (int i = 0; i < 64; i++) {
+      Path child = dir.resolve(String.format("sub%d/child%d", i % 5, i));
+      filesystem.mkdirs(child.getParent());
+      filesystem.writeContentsToPath("contents" + i, child);
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      // Loads the children of the directory through the cache, from the threads of the pool,
+      // while the directory itself is being loaded.
+      DefaultFileHashCache parallelCache =
+          new DefaultFileHashCache(
+              filesystem, path -> false, fileHashCacheMode, Optional.of(pool));
+      DefaultFileHashCache serialCache =
+          new DefaultFileHashCache(
+              filesystem, path -> false, fileHashCacheMode, Optional.empty());
+
+      assertEquals(serialCache.get(dir), parallelCache.get(dir));
+      assertTrue(parallelCache.willGet(dir.resolve("sub0/child0")));
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
   @Test
   public void whenJarMemberWithHashInManifestIsQueriedThenCacheCorrectlyObtainsIt()
       throws IOException {
@@ -350,4 +382,84 @@ public class DefaultFileHashCacheTest {
     assertFalse(cache.willGet(filesystem.getPath("buck-out/cells/file.txt")));
     assertTrue(cache.willGet(filesystem.getPath("file.txt")));
   }
+
+  @Test
+  public void persistedHashesAreUsedByANewCacheWhileTheFileIsUnchanged() throws IOException {
+    Assume.assumeTrue(fileHashCacheMode == FileHashCacheMode.PERSISTENT_PREFIX_TREE);
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    Path path = Paths.get("SomeClass.java");
+    FileTime modified = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+    filesystem.writeContentsToPath("contents", path);
+    filesystem.setLastModifiedTime(path, modified);
+
+    DefaultFileHashCache cache =
+        DefaultFileHashCache.createDefaultFileHashCache(filesystem, fileHashCacheMode);
+    HashCode hashCode = cache.get(path);
+    cache.saveIfChanged();
+
+    // Same size and timestamp, so a new cache can't tell the file apart from the one it hashed.
+    filesystem.writeContentsToPath("CONTENTS", path);
+    filesystem.setLastModifiedTime(path, modified);
+    assertEquals(
+        hashCode,
+        DefaultFileHashCache.createDefaultFileHashCache(filesystem, fileHashCacheMode).get(path));
+
+    filesystem.writeContentsToPath("other contents", path);
+    filesystem.setLastModifiedTime(path, modified);
+    assertEquals(
+        Hashing.sha1().hashString("other contents", StandardCharsets.UTF_8),
+        DefaultFileHashCache.createDefaultFileHashCache(filesystem, fileHashCacheMode).get(path));
+  }
+
+  @Test
+  public void statsReportTheFilesHashedFromDisk() throws IOException {
+    // The comparison modes hash every file once per engine they compare.
+    Assume.assumeFalse(
+        fileHashCacheMode == FileHashCacheMode.PARALLEL_COMPARISON
+            || fileHashCacheMode == FileHashCacheMode.LIMITED_PREFIX_TREE_PARALLEL);
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    filesystem.writeContentsToPath("contents", Paths.get("a.txt"));
+    filesystem.writeContentsToPath("more contents", Paths.get("b.txt"));
+    DefaultFileHashCache cache =
+        DefaultFileHashCache.createDefaultFileHashCache(filesystem, fileHashCacheMode);
+
+    cache.get(Paths.get("a.txt"));
+    cache.get(Paths.get("b.txt"));
+    cache.get(Paths.get("a.txt"));
+
+    FileHashCacheEvent.FilesHashed event =
+        cache
+            .getStatsEvents()
+            .stream()
+            .filter(FileHashCacheEvent.FilesHashed.class::isInstance)
+            .map(FileHashCacheEvent.FilesHashed.class::cast)
+            .findFirst()
+            .get();
+    assertEquals(2, event.getDataPointsCount());
+    assertEquals("contents".length() + "more contents".length(), event.getBytesHashed());
+    assertFalse(
+        cache.getStatsEvents().stream().anyMatch(FileHashCacheEvent.FilesHashed.class::isInstance));
+  }
+
+  @Test
+  public void verifyRehashesFilesWithPersistedHashes() throws IOException {
+    Assume.assumeTrue(fileHashCacheMode == FileHashCacheMode.PERSISTENT_PREFIX_TREE);
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    Path path = Paths.get("SomeClass.java");
+    FileTime modified = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+    filesystem.writeContentsToPath("contents", path);
+    filesystem.setLastModifiedTime(path, modified);
+    DefaultFileHashCache cache =
+        DefaultFileHashCache.createDefaultFileHashCache(filesystem, fileHashCacheMode);
+    cache.get(path);
+    cache.saveIfChanged();
+
+    // The persisted hash is stale, but the attributes of the file still match it.
+    filesystem.writeContentsToPath("CONTENTS", path);
+    filesystem.setLastModifiedTime(path, modified);
+    cache = DefaultFileHashCache.createDefaultFileHashCache(filesystem, fileHashCacheMode);
+    cache.get(path);
+
+    assertEquals(ImmutableList.of(path.toString()), cache.verify().getVerificationErrors());
+  }
 }
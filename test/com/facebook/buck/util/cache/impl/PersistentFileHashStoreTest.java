@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.cache.HashCodeAndFileType;
+import com.facebook.buck.util.timing.SettableFakeClock;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentFileHashStoreTest {
+
+  private static final long MODIFIED_MILLIS = TimeUnit.DAYS.toMillis(365);
+  private static final HashCode HASH = HashCode.fromInt(42);
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private Path storePath;
+  private SettableFakeClock clock;
+
+  @Before
+  public void setUp() {
+    storePath = tmp.getRoot().resolve("buck-out").resolve(PersistentFileHashStore.FILE_NAME);
+    clock = new SettableFakeClock(MODIFIED_MILLIS + TimeUnit.HOURS.toMillis(1), 0);
+  }
+
+  @Test
+  public void storedHashesAreServedByANewStore() throws IOException {
+    Path file = writeFile("a.txt", "contents");
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath, clock);
+    assertNull(store.get(file, attributesOf(file)));
+    store.put(file, attributesOf(file), HASH);
+    store.saveIfChanged();
+
+    assertEquals(HASH, new PersistentFileHashStore(storePath, clock).get(file, attributesOf(file)));
+  }
+
+  @Test
+  public void hashesOfModifiedFilesAreNotServed() throws IOException {
+    Path file = writeFile("a.txt", "contents");
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath, clock);
+    store.put(file, attributesOf(file), HASH);
+    store.saveIfChanged();
+
+    writeFile("a.txt", "other contents");
+    assertNull(new PersistentFileHashStore(storePath, clock).get(file, attributesOf(file)));
+    Files.setLastModifiedTime(
+        tmp.getRoot().resolve(file), FileTime.fromMillis(MODIFIED_MILLIS + 1));
+    assertNull(store.get(file, attributesOf(file)));
+  }
+
+  @Test
+  public void hashesOfRecentlyModifiedFilesAreNotStored() throws IOException {
+    Path file = writeFile("a.txt", "contents");
+    clock.setCurrentTimeMillis(MODIFIED_MILLIS + 500);
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath, clock);
+    store.put(file, attributesOf(file), HASH);
+    store.saveIfChanged();
+
+    assertNull(store.get(file, attributesOf(file)));
+    assertFalse(Files.exists(storePath));
+  }
+
+  @Test
+  public void hashesSavedByOtherStoresAreKept() throws IOException {
+    Path first = writeFile("first.txt", "first");
+    Path second = writeFile("second.txt", "second");
+    PersistentFileHashStore firstStore = new PersistentFileHashStore(storePath, clock);
+    PersistentFileHashStore secondStore = new PersistentFileHashStore(storePath, clock);
+    assertNull(firstStore.get(first, attributesOf(first)));
+    assertNull(secondStore.get(second, attributesOf(second)));
+    firstStore.put(first, attributesOf(first), HASH);
+    secondStore.put(second, attributesOf(second), HASH);
+    firstStore.saveIfChanged();
+    secondStore.saveIfChanged();
+
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath, clock);
+    assertEquals(HASH, store.get(first, attributesOf(first)));
+    assertEquals(HASH, store.get(second, attributesOf(second)));
+  }
+
+  @Test
+  public void hashesWhichWereNotUsedRecentlyAreDropped() throws IOException {
+    Path used = writeFile("used.txt", "used");
+    Path unused = writeFile("unused.txt", "unused");
+    Path added = writeFile("added.txt", "added");
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath, clock);
+    store.put(used, attributesOf(used), HASH);
+    store.put(unused, attributesOf(unused), HASH);
+    store.saveIfChanged();
+
+    advanceClockMillis(PersistentFileHashStore.MAX_UNUSED_MILLIS - TimeUnit.HOURS.toMillis(1));
+    store = new PersistentFileHashStore(storePath, clock);
+    assertEquals(HASH, store.get(used, attributesOf(used)));
+    store.saveIfChanged();
+
+    advanceClockMillis(TimeUnit.HOURS.toMillis(2));
+    store = new PersistentFileHashStore(storePath, clock);
+    store.put(added, attributesOf(added), HASH);
+    store.saveIfChanged();
+
+    store = new PersistentFileHashStore(storePath, clock);
+    assertEquals(HASH, store.get(used, attributesOf(used)));
+    assertEquals(HASH, store.get(added, attributesOf(added)));
+    assertNull(store.get(unused, attributesOf(unused)));
+  }
+
+  @Test
+  public void jarContentsAreServedByANewStoreUntilUnused() throws IOException {
+    ImmutableMap<Path, HashCodeAndFileType> contents =
+        ImmutableMap.of(
+            Paths.get("com/example/A.class"), HashCodeAndFileType.ofFile(HashCode.fromInt(1)),
+            Paths.get("com/example/B.class"), HashCodeAndFileType.ofFile(HashCode.fromInt(2)));
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath, clock);
+    assertNull(store.getJarContents(HASH));
+    store.putJarContents(HASH, contents);
+    store.saveIfChanged();
+
+    store = new PersistentFileHashStore(storePath, clock);
+    ImmutableMap<Path, HashCodeAndFileType> loaded = store.getJarContents(HASH);
+    assertEquals(contents.keySet(), loaded.keySet());
+    for (Path member : contents.keySet()) {
+      assertEquals(contents.get(member).getHashCode(), loaded.get(member).getHashCode());
+      assertEquals(HashCodeAndFileType.TYPE_FILE, loaded.get(member).getType());
+    }
+
+    // Stores which don't use the jar contents keep them until they have been unused for too long.
+    Path file = writeFile("a.txt", "contents");
+    store = new PersistentFileHashStore(storePath, clock);
+    store.put(file, attributesOf(file), HASH);
+    store.saveIfChanged();
+    assertEquals(
+        contents.keySet(),
+        new PersistentFileHashStore(storePath, clock).getJarContents(HASH).keySet());
+
+    advanceClockMillis(PersistentFileHashStore.MAX_UNUSED_MILLIS);
+    store = new PersistentFileHashStore(storePath, clock);
+    store.put(file, attributesOf(file), HashCode.fromInt(43));
+    store.saveIfChanged();
+    assertNull(new PersistentFileHashStore(storePath, clock).getJarContents(HASH));
+  }
+
+  @Test
+  public void unreadableStoresAreIgnored() throws IOException {
+    Path file = writeFile("a.txt", "contents");
+    Files.createDirectories(storePath.getParent());
+    Files.write(storePath, new byte[] {1, 2, 3});
+
+    assertNull(new PersistentFileHashStore(storePath, clock).get(file, attributesOf(file)));
+  }
+
+  private void advanceClockMillis(long millis) {
+    clock.setCurrentTimeMillis(clock.currentTimeMillis() + millis);
+  }
+
+  private Path writeFile(String name, String contents) throws IOException {
+    Path path = tmp.getRoot().resolve(name);
+    Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(path, FileTime.fromMillis(MODIFIED_MILLIS));
+    return Paths.get(name);
+  }
+
+  private BasicFileAttributes attributesOf(Path file) throws IOException {
+    return Files.readAttributes(tmp.getRoot().resolve(file), BasicFileAttributes.class);
+  }
+}
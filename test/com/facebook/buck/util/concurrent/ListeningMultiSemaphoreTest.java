@@ -202,6 +202,86 @@ public class ListeningMultiSemaphoreTest {
     assertThat(second.isDone(), Matchers.equalTo(true));
   }
 
+  @Test
+  public void testPendingItemsWithHigherPriorityAreProcessedFirst() {
+    ListeningMultiSemaphore array = getFairListeningMultiSemaphore(amountsOfCpu(1));
+
+    ListenableFuture<Void> running = array.acquire(amountsOfCpu(1));
+    assertThat(running.isDone(), Matchers.equalTo(true));
+
+    ListenableFuture<Void> lowFirst = array.acquire(amountsOfCpu(1), 1);
+    ListenableFuture<Void> high = array.acquire(amountsOfCpu(1), 10);
+    ListenableFuture<Void> lowSecond = array.acquire(amountsOfCpu(1), 1);
+    ListenableFuture<Void> defaultPriority = array.acquire(amountsOfCpu(1));
+    assertThat(array.getQueueLength(), Matchers.equalTo(4));
+
+    array.release(amountsOfCpu(1));
+    assertThat(high.isDone(), Matchers.equalTo(true));
+    assertThat(lowFirst.isDone(), Matchers.equalTo(false));
+
+    array.release(amountsOfCpu(1));
+    assertThat(lowFirst.isDone(), Matchers.equalTo(true));
+    assertThat(lowSecond.isDone(), Matchers.equalTo(false));
+
+    array.release(amountsOfCpu(1));
+    assertThat(lowSecond.isDone(), Matchers.equalTo(true));
+    assertThat(defaultPriority.isDone(), Matchers.equalTo(false));
+
+    array.release(amountsOfCpu(1));
+    assertThat(defaultPriority.isDone(), Matchers.equalTo(true));
+    assertThat(array.getQueueLength(), Matchers.equalTo(0));
+  }
+
+  @Test
+  public void testSkippedPendingItemsKeepTheirPlace() {
+    ListeningMultiSemaphore array =
+        new ListeningMultiSemaphore(amountsOfCpu(2), ResourceAllocationFairness.FAST);
+
+    ListenableFuture<Void> running = array.acquire(amountsOfCpu(2));
+    assertThat(running.isDone(), Matchers.equalTo(true));
+
+    ListenableFuture<Void> large = array.acquire(amountsOfCpu(2), 10);
+    ListenableFuture<Void> smallFirst = array.acquire(amountsOfCpu(1), 1);
+    ListenableFuture<Void> smallSecond = array.acquire(amountsOfCpu(1), 1);
+
+    array.release(amountsOfCpu(1));
+    assertThat(large.isDone(), Matchers.equalTo(false));
+    assertThat(smallFirst.isDone(), Matchers.equalTo(true));
+    assertThat(smallSecond.isDone(), Matchers.equalTo(false));
+
+    array.release(amountsOfCpu(1));
+    assertThat(large.isDone(), Matchers.equalTo(false));
+    assertThat(smallSecond.isDone(), Matchers.equalTo(true));
+    assertThat(array.getQueueLength(), Matchers.equalTo(1));
+
+    array.release(amountsOfCpu(2));
+    assertThat(large.isDone(), Matchers.equalTo(true));
+    assertThat(array.getQueueLength(), Matchers.equalTo(0));
+  }
+
+  @Test
+  public void testMeasuredMemoryAboveAcquiredAmountsDelaysRequests() {
+    ListeningMultiSemaphore array = getFairListeningMultiSemaphore(amountsOfMemory(10));
+
+    array.acquire(amountsOfMemory(2));
+    array.updateMeasuredMemory(8);
+    ListenableFuture<Void> pending = array.acquire(amountsOfMemory(3));
+    assertThat(pending.isDone(), Matchers.equalTo(false));
+
+    array.updateMeasuredMemory(6);
+    assertThat(pending.isDone(), Matchers.equalTo(true));
+    assertThat(array.getUsedResources(), Matchers.equalTo(amountsOfMemory(5)));
+  }
+
+  @Test
+  public void testMeasuredMemoryIsIgnoredWhenNoMemoryIsAcquired() {
+    ListeningMultiSemaphore array = getFairListeningMultiSemaphore(amountsOfMemory(10));
+
+    array.updateMeasuredMemory(20);
+    assertThat(array.acquire(amountsOfMemory(3)).isDone(), Matchers.equalTo(true));
+    assertThat(array.acquire(amountsOfMemory(1)).isDone(), Matchers.equalTo(false));
+  }
+
   private ListeningMultiSemaphore getFairListeningMultiSemaphore(ResourceAmounts values) {
     return new ListeningMultiSemaphore(values, ResourceAllocationFairness.FAIR);
   }
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.filesystem;
+
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures populating and querying a {@link FileSystemMap} shaped like the file hash cache of a
+ * large repository, along with the heap the populated map retains.
+ *
+ * <p>The retained heap is printed by the {@code retainedHeap} benchmark after each iteration, in
+ * bytes per million entries. Its timing should be ignored as it includes full GCs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class FileSystemMapBenchmark {
+
+  @Param({"100000", "1000000"})
+  private int entries;
+
+  private FakeProjectFilesystem filesystem;
+  private List<Path> paths;
+  private FileSystemMap<Boolean> populated;
+  private long retainedBytesPerMillionEntries = -1;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    filesystem = new FakeProjectFilesystem();
+    paths = generatePaths(entries, new Random(42));
+    populated = populate();
+  }
+
+  @Benchmark
+  public FileSystemMap<Boolean> populate() {
+    FileSystemMap<Boolean> map = new FileSystemMap<>(path -> true, filesystem);
+    for (Path path : paths) {
+      map.put(path, true);
+    }
+    return map;
+  }
+
+  @Benchmark
+  public int lookup() {
+    int found = 0;
+    for (Path path : paths) {
+      if (populated.getIfPresent(path) != null) {
+        found++;
+      }
+    }
+    return found;
+  }
+
+  @Benchmark
+  public FileSystemMap<Boolean> retainedHeap() {
+    populated = null;
+    long before = usedHeapAfterGc();
+    FileSystemMap<Boolean> map = populate();
+    long after = usedHeapAfterGc();
+    retainedBytesPerMillionEntries = (after - before) * 1_000_000L / entries;
+    populated = map;
+    return map;
+  }
+
+  @TearDown(Level.Iteration)
+  public void reportRetainedHeap() {
+    // JMH doesn't report secondary counters of single shot benchmarks, so print them instead.
+    if (retainedBytesPerMillionEntries >= 0) {
+      System.out.printf(
+          "Retained heap: %d bytes per million entries%n", retainedBytesPerMillionEntries);
+      retainedBytesPerMillionEntries = -1;
+    }
+  }
+
+  private static long usedHeapAfterGc() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Generates paths to files in a tree of directories, whose names are drawn from a limited
+   * vocabulary as they are in real repositories, while file names are mostly unique.
+   */
+  private static List<Path> generatePaths(int count, Random random) {
+    List<String> directoryNames = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      directoryNames.add(randomName(random));
+    }
+    List<String> directories = new ArrayList<>();
+    directories.add("");
+    List<Path> result = new ArrayList<>(count);
+    while (result.size() < count) {
+      String parent = directories.get(random.nextInt(directories.size()));
+      if (random.nextInt(10) == 0) {
+        directories.add(parent + directoryNames.get(random.nextInt(directoryNames.size())) + "/");
+      } else {
+        result.add(Paths.get(parent + randomName(random) + ".java"));
+      }
+    }
+    return result;
+  }
+
+  private static String randomName(Random random) {
+    StringBuilder builder = new StringBuilder();
+    int length = random.nextInt(10) + 3;
+    for (int i = 0; i < length; i++) {
+      builder.append((char) ('a' + random.nextInt(26)));
+    }
+    return builder.toString();
+  }
+}
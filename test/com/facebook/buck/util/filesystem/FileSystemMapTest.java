@@ -25,8 +25,17 @@ import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.util.filesystem.FileSystemMap.Entry;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
 import org.junit.Test;
 
 public class FileSystemMapTest {
@@ -41,15 +50,15 @@ public class FileSystemMapTest {
     Path path = Paths.get("foo/bar/HelloWorld.java");
     FileSystemMap<Boolean> fsMap = new FileSystemMap<>(loader, filesystem);
     fsMap.put(path, true);
-    FileSystemMap.Entry<Boolean> foo = fsMap.root.subLevels.get(fooPath);
+    FileSystemMap.Entry<Boolean> foo = child(fsMap.root, fooPath);
     assertNotNull(foo);
-    FileSystemMap.Entry<Boolean> bar = foo.subLevels.get(barPath);
+    FileSystemMap.Entry<Boolean> bar = child(foo, barPath);
     assertNotNull(bar);
-    FileSystemMap.Entry<Boolean> file = bar.subLevels.get(path);
+    FileSystemMap.Entry<Boolean> file = child(bar, path);
     assertNotNull(file);
     assertTrue(file.getWithoutLoading());
-    assertEquals(1, fsMap.map.size());
-    assertTrue(fsMap.map.get(path).getWithoutLoading());
+    assertEquals(1, fsMap.asMap().size());
+    assertTrue(fsMap.getIfPresent(path));
   }
 
   @Test
@@ -62,16 +71,15 @@ public class FileSystemMapTest {
 
     // Set up the trie with one child and ensure the trie is in the state we want.
     fsMap.put(Paths.get("usr"), true);
-    assertNotNull(fsMap.root.subLevels.get(usrPath));
+    assertNotNull(child(fsMap.root, usrPath));
 
     // Write the new entry and check data structure state.
     fsMap.put(path, true);
-    assertEquals(0, fsMap.root.subLevels.get(usrPath).size());
-    Entry<Boolean> file =
-        fsMap.root.subLevels.get(fooPath).subLevels.get(barPath).subLevels.get(path);
+    assertEquals(0, child(fsMap.root, usrPath).size());
+    Entry<Boolean> file = child(child(child(fsMap.root, fooPath), barPath), path);
     assertTrue(file.getWithoutLoading());
-    assertEquals(2, fsMap.map.size());
-    assertTrue(fsMap.map.get(path).getWithoutLoading());
+    assertEquals(2, fsMap.asMap().size());
+    assertTrue(fsMap.getIfPresent(path));
   }
 
   @Test
@@ -83,22 +91,22 @@ public class FileSystemMapTest {
 
     // Insert the entry into the map, verify resulting state.
     fsMap.put(path, true);
-    FileSystemMap.Entry<Boolean> usr = fsMap.root.subLevels.get(parent);
-    Entry<Boolean> helloWorld = fsMap.map.get(path);
+    FileSystemMap.Entry<Boolean> usr = child(fsMap.root, parent);
+    Entry<Boolean> helloWorld = child(usr, path);
     assertTrue(helloWorld.getWithoutLoading());
-    assertSame(helloWorld, fsMap.root.subLevels.get(parent).subLevels.get(path));
+    assertSame(helloWorld, child(child(fsMap.root, parent), path));
 
     // Insert the entry again with a different value.
     fsMap.put(path, false);
 
     // We check that the object hasn't been reinstantiated => reference is the same.
-    assertSame(fsMap.root.subLevels.get(parent), usr);
-    assertSame(usr.subLevels.get(path), helloWorld);
-    Entry<Boolean> helloWorldEntry = usr.subLevels.get(path);
+    assertSame(child(fsMap.root, parent), usr);
+    assertSame(child(usr, path), helloWorld);
+    Entry<Boolean> helloWorldEntry = child(usr, path);
     assertNotNull(helloWorldEntry);
     assertFalse(helloWorldEntry.getWithoutLoading());
-    assertEquals(fsMap.map.size(), 1);
-    assertFalse(fsMap.map.get(path).getWithoutLoading());
+    assertEquals(fsMap.asMap().size(), 1);
+    assertFalse(fsMap.getIfPresent(path));
   }
 
   @Test
@@ -109,18 +117,18 @@ public class FileSystemMapTest {
 
     // Insert another entry with the same initial path.
     fsMap.put(Paths.get("usr/OtherPath"), false);
-    FileSystemMap.Entry<Boolean> usr = fsMap.root.subLevels.get(parent);
+    FileSystemMap.Entry<Boolean> usr = child(fsMap.root, parent);
 
     // Now insert the entry.
     fsMap.put(path, true);
 
     // We check that the object hasn't been reinstantiated => reference is the same.
-    assertSame(fsMap.root.subLevels.get(parent), usr);
-    Entry<Boolean> file = usr.subLevels.get(path);
+    assertSame(child(fsMap.root, parent), usr);
+    Entry<Boolean> file = child(usr, path);
     assertNotNull(file);
     assertTrue(file.getWithoutLoading());
-    assertEquals(2, fsMap.map.size());
-    assertTrue(fsMap.map.get(path).getWithoutLoading());
+    assertEquals(2, fsMap.asMap().size());
+    assertTrue(fsMap.getIfPresent(path));
   }
 
   @Test
@@ -131,12 +139,12 @@ public class FileSystemMapTest {
 
     // Insert the item and ensure data structure is correct.
     fsMap.put(path, true);
-    assertTrue(fsMap.root.subLevels.get(parent).subLevels.get(path).getWithoutLoading());
+    assertTrue(child(child(fsMap.root, parent), path).getWithoutLoading());
 
     // Remove the item and check intermediate nodes are deleted.
     fsMap.remove(path);
-    assertFalse(fsMap.root.subLevels != null && fsMap.root.subLevels.containsKey(parent));
-    assertEquals(0, fsMap.map.size());
+    assertNull(child(fsMap.root, parent));
+    assertEquals(0, fsMap.asMap().size());
   }
 
   @Test
@@ -150,11 +158,11 @@ public class FileSystemMapTest {
     fsMap.put(path2, true);
 
     fsMap.remove(path1);
-    assertNull(fsMap.root.subLevels.get(parent).getWithoutLoading());
-    assertFalse(fsMap.root.subLevels.get(parent).subLevels.containsKey(path1));
-    assertTrue(fsMap.root.subLevels.get(parent).subLevels.containsKey(path2));
-    assertEquals(2, fsMap.map.size());
-    assertTrue(fsMap.map.get(path2).getWithoutLoading());
+    assertNull(child(fsMap.root, parent).getWithoutLoading());
+    assertNull(child(child(fsMap.root, parent), path1));
+    assertNotNull(child(child(fsMap.root, parent), path2));
+    assertEquals(ImmutableMap.of(path2, true), fsMap.asMap());
+    assertTrue(fsMap.getIfPresent(path2));
   }
 
   @Test
@@ -164,9 +172,9 @@ public class FileSystemMapTest {
     FileSystemMap<Boolean> fsMap = new FileSystemMap<>(loader, filesystem);
     fsMap.put(parent, true);
     fsMap.remove(path);
-    assertFalse(fsMap.root.subLevels != null && fsMap.root.subLevels.containsKey(parent));
-    assertEquals(0, fsMap.map.size());
-    assertFalse(fsMap.map.containsKey(path));
+    assertNull(child(fsMap.root, parent));
+    assertEquals(0, fsMap.asMap().size());
+    assertFalse(fsMap.asMap().containsKey(path));
   }
 
   @Test
@@ -178,13 +186,13 @@ public class FileSystemMapTest {
     fsMap.put(parent, true);
     fsMap.put(path1, true);
     fsMap.put(path2, true);
-    assertEquals(3, fsMap.map.size());
+    assertEquals(3, fsMap.asMap().size());
 
     fsMap.remove(parent);
-    assertFalse(fsMap.root.subLevels != null && fsMap.root.subLevels.containsKey(parent));
-    assertFalse(fsMap.map.containsKey(parent));
-    assertFalse(fsMap.map.containsKey(path1));
-    assertFalse(fsMap.map.containsKey(path2));
+    assertNull(child(fsMap.root, parent));
+    assertFalse(fsMap.asMap().containsKey(parent));
+    assertFalse(fsMap.asMap().containsKey(path1));
+    assertFalse(fsMap.asMap().containsKey(path2));
   }
 
   @Test
@@ -193,11 +201,11 @@ public class FileSystemMapTest {
     fsMap.put(Paths.get("usr/HelloWorld.java"), true);
     fsMap.put(Paths.get("usr/Yo.java"), true);
     assertEquals(1, fsMap.root.size());
-    assertEquals(2, fsMap.map.size());
+    assertEquals(2, fsMap.asMap().size());
 
     fsMap.removeAll();
     assertEquals(0, fsMap.root.size());
-    assertEquals(0, fsMap.map.size());
+    assertEquals(0, fsMap.asMap().size());
   }
 
   @Test
@@ -205,7 +213,7 @@ public class FileSystemMapTest {
     FileSystemMap<Boolean> fsMap = new FileSystemMap<>(loader, filesystem);
     fsMap.removeAll();
     assertEquals(fsMap.root.size(), 0);
-    assertEquals(fsMap.map.size(), 0);
+    assertEquals(fsMap.asMap().size(), 0);
   }
 
   @Test
@@ -215,7 +223,7 @@ public class FileSystemMapTest {
     fsMap.put(path, true);
     assertTrue(fsMap.get(path));
     assertEquals(fsMap.root.size(), 1);
-    assertTrue(fsMap.map.get(path).getWithoutLoading());
+    assertTrue(fsMap.getIfPresent(path));
   }
 
   @Test
@@ -225,7 +233,7 @@ public class FileSystemMapTest {
     fsMap.put(path, true);
     assertTrue(fsMap.get(path));
     assertEquals(fsMap.root.size(), 1);
-    assertTrue(fsMap.map.get(path).getWithoutLoading());
+    assertTrue(fsMap.getIfPresent(path));
   }
 
   @Test
@@ -240,7 +248,186 @@ public class FileSystemMapTest {
     Boolean entry = fsMap.get(path);
     assertNotNull(entry);
     assertTrue(entry);
-    assertEquals(fsMap.map.size(), 2);
-    assertTrue(fsMap.map.get(path).getWithoutLoading());
+    assertEquals(fsMap.asMap().size(), 2);
+    assertTrue(fsMap.getIfPresent(path));
+  }
+
+  @Test
+  public void testAsMapReturnsValuesByPath() {
+    FileSystemMap<Boolean> fsMap = new FileSystemMap<>(loader, filesystem);
+    fsMap.put(Paths.get("usr"), false);
+    fsMap.put(Paths.get("usr/HelloWorld.java"), true);
+    fsMap.put(Paths.get("foo/bar/Yo.java"), true);
+
+    assertEquals(
+        ImmutableMap.of(
+            Paths.get("usr"), false,
+            Paths.get("usr/HelloWorld.java"), true,
+            Paths.get("foo/bar/Yo.java"), true),
+        fsMap.asMap());
+  }
+
+  @Test
+  public void testPathSegmentsAreSharedBetweenMaps() {
+    FileSystemMap<Boolean> fsMap1 = new FileSystemMap<>(loader, filesystem);
+    FileSystemMap<Boolean> fsMap2 = new FileSystemMap<>(loader, filesystem);
+    fsMap1.put(Paths.get("usr/HelloWorld.java"), true);
+    fsMap2.put(Paths.get(new String("usr") + "/Yo.java"), true);
+
+    assertSame(
+        child(fsMap1.root, Paths.get("usr")).getName(),
+        child(fsMap2.root, Paths.get("usr")).getName());
+  }
+
+  @Test
+  public void testManyChildrenCanBeAddedAndRemoved() {
+    FileSystemMap<Boolean> fsMap = new FileSystemMap<>(loader, filesystem);
+    for (int i = 0; i < 1000; i++) {
+      fsMap.put(Paths.get("usr/file" + i), true);
+    }
+    for (int i = 0; i < 1000; i += 2) {
+      fsMap.remove(Paths.get("usr/file" + i));
+    }
+
+    Entry<Boolean> usr = child(fsMap.root, Paths.get("usr"));
+    assertEquals(500, usr.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i % 2 == 1 ? Boolean.TRUE : null, fsMap.getIfPresent(Paths.get("usr/file" + i)));
+    }
+  }
+
+  @Test
+  public void testConcurrentAccessKeepsAllEntries() throws Exception {
+    FileSystemMap<Boolean> fsMap = new FileSystemMap<>(loader, filesystem);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++) {
+        int offset = thread;
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = offset; i < 8000; i += 8) {
+                    Path path = Paths.get(String.format("dir%d/sub%d/file%d", i % 3, i % 7, i));
+                    fsMap.put(path, true);
+                    assertTrue(fsMap.get(path));
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(8000, fsMap.asMap().size());
+  }
+
+  @Test
+  public void testConcurrentRemovalsOfSiblingsKeepEntries() throws Exception {
+    FileSystemMap<Boolean> fsMap = new FileSystemMap<>(loader, filesystem);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++) {
+        int offset = thread;
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < 2000; i++) {
+                    // Removing a path may remove its parents while siblings are added to them.
+                    Path path =
+                        Paths.get(String.format("dir%d/sub%d/file%d", i % 3, i % 7, offset));
+                    fsMap.put(path, true);
+                    fsMap.remove(path);
+                    fsMap.put(path, false);
+                    assertFalse(fsMap.getIfPresent(path));
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(3 * 7 * 8, fsMap.asMap().size());
+  }
+
+  @Test
+  public void testConcurrentRemovalsKeepIndexConsistentWithTrie() throws Exception {
+    FileSystemMap<Boolean> fsMap = new FileSystemMap<>(loader, filesystem);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++) {
+        int offset = thread;
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = offset; i < 20000; i += 8) {
+                    Path path =
+                        Paths.get(String.format("dir%d/sub%d/file%d", i % 3, i % 7, i % 50));
+                    if (i % 5 == 0) {
+                      fsMap.remove(path.getParent());
+                    } else {
+                      fsMap.put(path, true);
+                    }
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (Map.Entry<Path, Entry<Boolean>> indexed : fsMap.map.entrySet()) {
+      Entry<Boolean> entry = fsMap.root;
+      for (int i = 1; entry != null && i <= indexed.getKey().getNameCount(); i++) {
+        entry = child(entry, indexed.getKey().subpath(0, i));
+      }
+      assertSame(indexed.getValue(), entry);
+    }
+  }
+  @Test(timeout = 60000)
+  public void testLoaderCanGetChildrenFromOtherThreads() throws Exception {
+    Path parent = Paths.get("usr");
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<FileSystemMap<Integer>> fsMap = new ArrayList<>();
+      fsMap.add(
+          new FileSystemMap<>(
+              path -> {
+                if (!path.equals(parent)) {
+                  return 1;
+                }
+                // Like a directory hash, which loads the values of its files in parallel.
+                List<Future<Integer>> futures = new ArrayList<>();
+                for (int i = 0; i < 64; i++) {
+                  Path child = parent.resolve("file" + i);
+                  futures.add(executor.submit(() -> fsMap.get(0).get(child)));
+                }
+                int sum = 0;
+                for (Future<Integer> future : futures) {
+                  sum += Futures.getUnchecked(future);
+                }
+                return sum;
+              },
+              filesystem));
+
+      assertEquals(64, (int) fsMap.get(0).get(parent));
+      assertEquals(64, child(fsMap.get(0).root, parent).size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Nullable
+  private static <T> Entry<T> child(Entry<T> entry, Path path) {
+    return entry.getChild(path.getFileName().toString());
   }
 }
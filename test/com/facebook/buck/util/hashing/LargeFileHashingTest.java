@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.hashing;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class LargeFileHashingTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void hashOfSmallFileMatchesHashOfContents() throws IOException {
+    byte[] contents = randomBytes(100_000);
+    Path path = Files.write(tmp.getRoot().resolve("small"), contents);
+
+    assertEquals(
+        Hashing.sha1().hashBytes(contents), LargeFileHashing.hash(path, Hashing.sha1()));
+  }
+
+  @Test
+  public void hashOfMappedFileMatchesHashOfContents() throws IOException {
+    byte[] contents = randomBytes((int) LargeFileHashing.MIN_SIZE_TO_MAP + 12345);
+    Path path = Files.write(tmp.getRoot().resolve("large"), contents);
+
+    assertEquals(
+        Hashing.sha1().hashBytes(contents), LargeFileHashing.hash(path, Hashing.sha1(), true));
+  }
+
+  @Test
+  public void hashOfEmptyFileMatchesHashOfNoContents() throws IOException {
+    Path path = Files.write(tmp.getRoot().resolve("empty"), new byte[0]);
+
+    assertEquals(
+        Hashing.sha1().hashBytes(new byte[0]), LargeFileHashing.hash(path, Hashing.sha1()));
+  }
+
+  @Test
+  public void largeFilesAreReadWhenTheFileSystemCannotMapThem() throws IOException {
+    byte[] contents = randomBytes((int) LargeFileHashing.MIN_SIZE_TO_MAP + 1);
+    Path path =
+        Files.write(Jimfs.newFileSystem(Configuration.unix()).getPath("/large"), contents);
+
+    assertEquals(
+        Hashing.sha1().hashBytes(contents), LargeFileHashing.hash(path, Hashing.sha1(), true));
+  }
+
+  @Test
+  public void fileChangedWhileMappedIsReadAgain() throws IOException {
+    int size = (int) LargeFileHashing.MIN_SIZE_TO_MAP + 1;
+    Path path = Files.write(tmp.getRoot().resolve("large"), randomBytes(size));
+    byte[] changedContents = new byte[size];
+
+    assertEquals(
+        Hashing.sha1().hashBytes(changedContents),
+        LargeFileHashing.hash(
+            path, rewritingAfterHashingBuffers(path, changedContents, Hashing.sha1()), true));
+  }
+
+  /** @return a hash function whose hashers rewrite the file after hashing any buffer. */
+  private static HashFunction rewritingAfterHashingBuffers(
+      Path path, byte[] contents, HashFunction delegate) {
+    return forwardingProxy(
+        HashFunction.class,
+        delegate,
+        (method, args) -> {
+          Object result = invoke(method, delegate, args);
+          return result instanceof Hasher
+              ? rewritingAfterHashingBuffers(path, contents, (Hasher) result)
+              : result;
+        });
+  }
+
+  private static Hasher rewritingAfterHashingBuffers(Path path, byte[] contents, Hasher delegate) {
+    return forwardingProxy(
+        Hasher.class,
+        delegate,
+        (method, args) -> {
+          Object result = invoke(method, delegate, args);
+          if (args != null && args.length == 1 && args[0] instanceof ByteBuffer) {
+            FileTime lastModifiedTime = Files.getLastModifiedTime(path);
+            Files.write(path, contents);
+            Files.setLastModifiedTime(
+                path, FileTime.fromMillis(lastModifiedTime.toMillis() + 1000));
+          }
+          return result;
+        });
+  }
+
+  private interface Handler {
+    Object handle(Method method, Object[] args) throws Throwable;
+  }
+
+  private static <T> T forwardingProxy(Class<T> type, T delegate, Handler handler) {
+    return type.cast(
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> {
+              Object result = handler.handle(method, args);
+              // Keep chained calls going through the proxy.
+              return result == delegate ? proxy : result;
+            }));
+  }
+
+  private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  @Test
+  public void chunkedHashCombinesTheHashesOfEachChunk() throws IOException {
+    byte[] contents = randomBytes(10_000);
+    Path path = Files.write(tmp.getRoot().resolve("file"), contents);
+
+    Hasher expected = Hashing.sha1().newHasher().putLong(4096);
+    for (int start = 0; start < contents.length; start += 4096) {
+      byte[] chunk = Arrays.copyOfRange(contents, start, Math.min(start + 4096, contents.length));
+      expected.putBytes(Hashing.sha1().hashBytes(chunk).asBytes());
+    }
+
+    assertEquals(
+        expected.hash(),
+        LargeFileHashing.hashChunks(path, Hashing.sha1(), 4096, Optional.empty()));
+  }
+
+  @Test
+  public void chunkedHashDoesNotDependOnThePool() throws IOException {
+    Path path = Files.write(tmp.getRoot().resolve("file"), randomBytes(1_000_000));
+
+    HashCode serial = LargeFileHashing.hashChunks(path, Hashing.sha1(), 1000, Optional.empty());
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      HashCode parallel =
+          LargeFileHashing.hashChunks(path, Hashing.sha1(), 1000, Optional.of(pool));
+      assertEquals(serial, parallel);
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
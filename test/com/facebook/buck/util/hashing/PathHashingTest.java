@@ -26,15 +26,23 @@ import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.timing.SettableFakeClock;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
 import org.junit.Test;
 
 /** Unit tests for {@link PathHashing}. */
 public class PathHashingTest {
 
+  private ForkJoinPool pool = new ForkJoinPool(4);
+
   private ProjectFilesystem projectFilesystem = new FakeProjectFilesystem();
   private ProjectFileHashCache fileHashCache =
       FakeProjectFileHashCache.createFromStrings(
@@ -51,6 +59,11 @@ public class PathHashingTest {
               "foo/bar.txt", "123456",
               "foo/baz.txt", "123456"));
 
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
   @Test
   public void sameContentsSameNameHaveSameHash() throws IOException {
     SettableFakeClock clock = new SettableFakeClock(1000, 0);
@@ -126,4 +139,42 @@ public class PathHashingTest {
 
     assertThat(hasher1.hash(), equalTo(hasher2.hash()));
   }
+
+  @Test
+  public void parallelHashingProducesTheSameHashAsSerialHashing() throws IOException {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem(new SettableFakeClock(1000, 0));
+    ImmutableMap.Builder<String, String> contents = ImmutableMap.builder();
+    for (int i = 0; i < 100; i++) {
+      String path = String.format("foo/dir%d/file%d.txt", i % 7, i);
+      filesystem.touch(Paths.get(path));
+      contents.put(path, String.format("%08x", i));
+    }
+    ProjectFileHashCache cache =
+        FakeProjectFileHashCache.createFromStrings(filesystem, contents.build());
+
+    Hasher serial = Hashing.sha1().newHasher();
+    ImmutableSet<Path> serialChildren =
+        PathHashing.hashPath(serial, cache, filesystem, Paths.get("foo"), Optional.empty());
+    Hasher parallel = Hashing.sha1().newHasher();
+    ImmutableSet<Path> parallelChildren =
+        PathHashing.hashPath(parallel, cache, filesystem, Paths.get("foo"), Optional.of(pool));
+
+    assertThat(parallel.hash(), equalTo(serial.hash()));
+    assertThat(parallelChildren.asList(), equalTo(serialChildren.asList()));
+  }
+
+  @Test(expected = NoSuchFileException.class)
+  public void parallelHashingPropagatesIOExceptions() throws IOException {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem(new SettableFakeClock(1000, 0));
+    for (int i = 0; i < 100; i++) {
+      filesystem.touch(Paths.get(String.format("foo/file%d.txt", i)));
+    }
+
+    PathHashing.hashPath(
+        Hashing.sha1().newHasher(),
+        fileHashCache,
+        filesystem,
+        Paths.get("foo"),
+        Optional.of(pool));
+  }
 }
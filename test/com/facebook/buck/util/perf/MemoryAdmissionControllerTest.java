@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.perf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.util.concurrent.ListeningMultiSemaphore;
+import com.facebook.buck.util.concurrent.ResourceAllocationFairness;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
+import com.facebook.buck.util.concurrent.ResourceAmountsEstimator;
+import com.facebook.buck.util.perf.MemoryAdmissionController.MemoryBudgetEvent;
+import com.facebook.buck.util.perf.ProcessTracker.ExternalProcessesMemoryEvent;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class MemoryAdmissionControllerTest {
+
+  private static final long UNIT = ResourceAmountsEstimator.MEMORY_UNIT_BYTES;
+
+  @Test
+  public void measuredMemoryDelaysWorkUntilItFitsInTheBudget() throws Exception {
+    BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+    BlockingQueue<MemoryBudgetEvent> events = new LinkedBlockingQueue<>();
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void event(MemoryBudgetEvent event) {
+            events.add(event);
+          }
+        });
+    ListeningMultiSemaphore semaphore =
+        new ListeningMultiSemaphore(
+            ResourceAmounts.of(10, 10, 0, 0), ResourceAllocationFairness.FAIR);
+
+    try (MemoryAdmissionController controller =
+        new MemoryAdmissionController(eventBus, semaphore, 10 * UNIT)) {
+      assertTrue(semaphore.acquire(ResourceAmounts.of(1, 2, 0, 0)).isDone());
+
+      // The running rule expected to need 2 units, but its processes use 8 and a half.
+      eventBus.post(new ExternalProcessesMemoryEvent(8 * UNIT + UNIT / 2));
+      MemoryBudgetEvent event = events.poll(1, TimeUnit.SECONDS);
+      assertEquals(8 * UNIT + UNIT / 2, event.getMeasuredBytes());
+      assertEquals(2 * UNIT, event.getReservedBytes());
+      assertEquals(10 * UNIT, event.getBudgetBytes());
+
+      ListenableFuture<Void> pending = semaphore.acquire(ResourceAmounts.of(1, 2, 0, 0));
+      assertFalse(pending.isDone());
+
+      eventBus.post(new ExternalProcessesMemoryEvent(5 * UNIT));
+      assertEquals(5 * UNIT, events.poll(1, TimeUnit.SECONDS).getMeasuredBytes());
+      assertTrue(pending.isDone());
+    }
+    assertNull(events.poll(0, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void measuredMemoryIsRoundedUpToWholeUnits() {
+    assertEquals(0, MemoryAdmissionController.toMemoryAmount(0));
+    assertEquals(1, MemoryAdmissionController.toMemoryAmount(1));
+    assertEquals(1, MemoryAdmissionController.toMemoryAmount(UNIT));
+    assertEquals(2, MemoryAdmissionController.toMemoryAmount(UNIT + 1));
+  }
+}
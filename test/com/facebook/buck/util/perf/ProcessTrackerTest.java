@@ -169,6 +169,67 @@ public class ProcessTrackerTest {
     }
   }
 
+  @Test
+  public void testExternalProcessesMemoryIsPostedOnRefresh() throws Exception {
+    BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+    BlockingQueue<ProcessTracker.ExternalProcessesMemoryEvent> events =
+        new LinkedBlockingQueue<>();
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void event(ProcessTracker.ExternalProcessesMemoryEvent event) {
+            events.add(event);
+          }
+        });
+    try (ProcessTrackerForTest processTracker =
+        new ProcessTrackerForTest(
+            eventBus, FakeInvocationInfoFactory.create(), processHelper, processRegistry, true)) {
+      processHelper.setProcessResourceConsumption(PID, createConsumption(1, 1, 0, 1000));
+      processTracker.explicitStartUp();
+      FakeNuProcess proc41 = new FakeNuProcess(41);
+      FakeNuProcess proc42 = new FakeNuProcess(42);
+      processHelper.setProcessResourceConsumption(41, createConsumption(1, 1, 0, 100));
+      processHelper.setProcessResourceConsumption(42, createConsumption(1, 1, 0, 20));
+      processRegistry.registerProcess(proc41, createParams("proc41"), CONTEXT);
+      processRegistry.registerProcess(proc42, createParams("proc42"), CONTEXT);
+
+      // Buck's own memory is not included.
+      processTracker.explicitRunOneIteration();
+      ProcessTracker.ExternalProcessesMemoryEvent event = events.poll(0, TimeUnit.MILLISECONDS);
+      assertEquals(120, event.getMemResidentBytes());
+      assertEquals("ExternalProcessesMemoryEvent(120)", event.toString());
+
+      processHelper.setProcessResourceConsumption(41, createConsumption(1, 1, 0, 50));
+      proc42.finish(0);
+      processTracker.explicitRunOneIteration();
+      assertEquals(50, events.poll(0, TimeUnit.MILLISECONDS).getMemResidentBytes());
+    }
+  }
+
+  @Test
+  public void testExternalProcessesMemoryIsNotPostedWithoutMemoryAdmission() throws Exception {
+    BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+    BlockingQueue<ProcessTracker.ExternalProcessesMemoryEvent> events =
+        new LinkedBlockingQueue<>();
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void event(ProcessTracker.ExternalProcessesMemoryEvent event) {
+            events.add(event);
+          }
+        });
+    try (ProcessTrackerForTest processTracker =
+        new ProcessTrackerForTest(
+            eventBus, FakeInvocationInfoFactory.create(), processHelper, processRegistry, false)) {
+      processTracker.explicitStartUp();
+      processHelper.setProcessResourceConsumption(41, createConsumption(1, 1, 0, 100));
+      processRegistry.registerProcess(new FakeNuProcess(41), createParams("proc41"), CONTEXT);
+
+      processTracker.explicitRunOneIteration();
+      assertTrue(events.isEmpty());
+    }
+  }
+
   @Test
   public void testThisProcessInfo() throws Exception {
     BlockingQueue<ProcessResourceConsumptionEvent> events = new LinkedBlockingQueue<>();
@@ -285,7 +346,7 @@ public class ProcessTrackerTest {
           }
         });
     return new ProcessTrackerForTest(
-        eventBus, FakeInvocationInfoFactory.create(), processHelper, processRegistry);
+        eventBus, FakeInvocationInfoFactory.create(), processHelper, processRegistry, false);
   }
 
   private static class ProcessTrackerForTest extends ProcessTracker {
@@ -293,8 +354,16 @@ public class ProcessTrackerTest {
         BuckEventBus eventBus,
         InvocationInfo invocationInfo,
         ProcessHelper processHelper,
-        ProcessRegistry processRegistry) {
-      super(eventBus, invocationInfo, processHelper, processRegistry, /* isDaemon */ false, false);
+        ProcessRegistry processRegistry,
+        boolean memoryAdmissionEnabled) {
+      super(
+          eventBus,
+          invocationInfo,
+          processHelper,
+          processRegistry,
+          /* isDaemon */ false,
+          false,
+          memoryAdmissionEnabled);
     }
 
     void explicitStartUp() throws Exception {
@@ -339,8 +408,13 @@ public class ProcessTrackerTest {
   }
 
   private static ProcessResourceConsumption createConsumption(long cpu, long mem, long io) {
+    return createConsumption(cpu, mem, io, 0);
+  }
+
+  private static ProcessResourceConsumption createConsumption(
+      long cpu, long mem, long io, long memResident) {
     return ProcessResourceConsumption.builder()
-        .setMemResident(0)
+        .setMemResident(memResident)
         .setMemSize(mem)
         .setCpuReal(cpu)
         .setCpuUser(1)
@@ -26,16 +26,21 @@ import com.facebook.buck.util.environment.Platform;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.hamcrest.Matchers;
@@ -695,4 +700,96 @@ public class UntarTest {
     Assert.assertEquals("testing", filesystem.readLines(junkFiles.get(0)).get(0));
     Assert.assertEquals("testing", filesystem.readLines(junkFiles.get(1)).get(0));
   }
+
+  private static void putFileEntry(TarArchiveOutputStream stream, String name, byte[] contents)
+      throws IOException {
+    TarArchiveEntry entry = new TarArchiveEntry(name);
+    entry.setSize(contents.length);
+    stream.putArchiveEntry(entry);
+    stream.write(contents);
+    stream.closeArchiveEntry();
+  }
+
+  @Test
+  public void extractsFilesWithParallelWrites() throws Exception {
+    Path archive = filesystem.resolve("archive.tar");
+    byte[] largeContents = new byte[4 * 1024 * 1024];
+    Arrays.fill(largeContents, (byte) 'x');
+
+    ImmutableSet.Builder<Path> expectedPaths = ImmutableSet.builder();
+    try (TarArchiveOutputStream stream =
+        new TarArchiveOutputStream(
+            new BufferedOutputStream(filesystem.newFileOutputStream(archive)))) {
+      for (int i = 0; i < 200; i++) {
+        String name = String.format("res/dir%d/file%d.txt", i % 10, i);
+        putFileEntry(stream, name, name.getBytes(StandardCharsets.UTF_8));
+        expectedPaths.add(getDestPath(name));
+      }
+      putFileEntry(stream, "res/large.bin", largeContents);
+      expectedPaths.add(getDestPath("res", "large.bin"));
+    }
+
+    ListeningExecutorService writeExecutor =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    ImmutableSet<Path> extractedPaths;
+    try {
+      extractedPaths =
+          Untar.tarUnarchiver()
+              .extractArchive(
+                  archive,
+                  filesystem,
+                  OUTPUT_SUBDIR,
+                  Optional.empty(),
+                  ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES,
+                  false,
+                  writeExecutor);
+    } finally {
+      writeExecutor.shutdownNow();
+    }
+
+    Assert.assertEquals(expectedPaths.build(), extractedPaths);
+    for (int i = 0; i < 200; i++) {
+      String name = String.format("res/dir%d/file%d.txt", i % 10, i);
+      assertOutputFileExists(getDestPath(name), name);
+    }
+    Assert.assertArrayEquals(
+        largeContents, Files.readAllBytes(filesystem.resolve(getDestPath("res", "large.bin"))));
+  }
+
+  @Test
+  public void laterEntriesWinOverPendingWritesToTheSamePaths() throws Exception {
+    Path archive = filesystem.resolve("archive.tar");
+    try (TarArchiveOutputStream stream =
+        new TarArchiveOutputStream(
+            new BufferedOutputStream(filesystem.newFileOutputStream(archive)))) {
+      putFileEntry(stream, "dup.txt", "first".getBytes(StandardCharsets.UTF_8));
+      putFileEntry(stream, "dup.txt", "second".getBytes(StandardCharsets.UTF_8));
+      putFileEntry(stream, "replaced/file.txt", "nested".getBytes(StandardCharsets.UTF_8));
+      putFileEntry(stream, "replaced", "file".getBytes(StandardCharsets.UTF_8));
+      putFileEntry(stream, "grown", "file".getBytes(StandardCharsets.UTF_8));
+      stream.putArchiveEntry(new TarArchiveEntry("grown/"));
+      putFileEntry(stream, "grown/file.txt", "nested".getBytes(StandardCharsets.UTF_8));
+    }
+
+    ListeningExecutorService writeExecutor =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    try {
+      Untar.tarUnarchiver()
+          .extractArchive(
+              archive,
+              filesystem,
+              OUTPUT_SUBDIR,
+              Optional.empty(),
+              ExistingFileMode.OVERWRITE,
+              false,
+              writeExecutor);
+    } finally {
+      writeExecutor.shutdownNow();
+    }
+
+    assertOutputFileExists(getDestPath("dup.txt"), "second");
+    assertOutputFileExists(getDestPath("replaced"), "file");
+    assertOutputDirExists(getDestPath("grown"));
+    assertOutputFileExists(getDestPath("grown", "file.txt"), "nested");
+  }
 }